@@ -3,6 +3,7 @@ import './App.css';
 
 // Replace this with your actual API Gateway endpoint after deployment
 const API_ENDPOINT = process.env.REACT_APP_API_ENDPOINT || 'http://localhost:8081/analyze';
+const UPLOADS_ENDPOINT = API_ENDPOINT.replace(/\/analyze$/, '/uploads');
 
 function App() {
   const [activeTab, setActiveTab] = useState('analyze'); // 'analyze', 'good-examples', 'bad-examples'
@@ -82,6 +83,31 @@ function App() {
     });
   };
 
+  // Upload the photo straight to S3 with a presigned URL, returns its key, or null if uploads aren't available
+  const uploadToS3 = async (file) => {
+    const response = await fetch(UPLOADS_ENDPOINT, {
+      method: 'POST',
+      headers: {
+        'Content-Type': 'application/json',
+      },
+      body: JSON.stringify({ contentType: file.type, contentLength: file.size })
+    });
+    if (!response.ok) {
+      return null;
+    }
+
+    const upload = await response.json();
+    const uploaded = await fetch(upload.uploadUrl, {
+      method: 'PUT',
+      headers: upload.headers,
+      body: file
+    });
+    if (!uploaded.ok) {
+      throw new Error(`Upload failed with status ${uploaded.status}`);
+    }
+    return upload.imageKey;
+  };
+
   // Handle escape key to close modal
   React.useEffect(() => {
     const handleEscape = (e) => {
@@ -133,10 +159,18 @@ function App() {
           imageUrl: imageUrl.trim()
         };
       } else {
-        const base64Image = await fileToBase64(imageFile);
-        requestBody = {
-          imageBase64: base64Image
-        };
+        const imageKey = await uploadToS3(imageFile);
+        if (imageKey) {
+          requestBody = {
+            imageKey: imageKey
+          };
+        } else {
+          // Uploads not enabled (e.g. running locally without a bucket), send the photo inline
+          const base64Image = await fileToBase64(imageFile);
+          requestBody = {
+            imageBase64: base64Image
+          };
+        }
       }
 
       const response = await fetch(`${API_ENDPOINT}`, {
@@ -1,7 +1,21 @@
 package com.ratemyrickshaw.bean;
 
+import java.net.URI;
+import java.time.Duration;
+import java.util.Optional;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.core.retry.RetryPolicy;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClientBuilder;
 import software.amazon.awssdk.services.rekognition.RekognitionClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3ClientBuilder;
+import software.amazon.awssdk.services.s3.S3Configuration;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
 
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.enterprise.inject.Produces;
@@ -12,6 +26,22 @@ In Quarkus, AWS SDK clients should be injected as CDI beans or created using pro
 @ApplicationScoped
 public class AwsClientProducer {
 
+    // Point at DynamoDB Local (e.g. http://localhost:8000) instead of the real service
+    @ConfigProperty(name = "rickshaw.dynamodb.endpoint")
+    Optional<URI> dynamoDbEndpoint;
+
+    // Point at an S3 compatible stand-in (e.g. MinIO on http://localhost:9000) instead of the real service
+    @ConfigProperty(name = "rickshaw.s3.endpoint")
+    Optional<URI> s3Endpoint;
+
+    // Requests set their own timeouts from their deadline, these only cap calls made without one
+    @ConfigProperty(name = "rickshaw.rekognition.attempt-timeout", defaultValue = "10s")
+    Duration rekognitionAttemptTimeout;
+
+    // Slow calls are hedged rather than retried (see RekognitionService), so keep the SDK's own retries for errors short
+    @ConfigProperty(name = "rickshaw.rekognition.max-retries", defaultValue = "1")
+    int rekognitionMaxRetries;
+
     @Produces
     @ApplicationScoped
     public RekognitionClient rekognitionClient() {
@@ -19,6 +49,42 @@ public class AwsClientProducer {
         // AWS SDK will automatically use apache-client from classpath
         return RekognitionClient.builder()
                 .region(Region.of(region))
+                .overrideConfiguration(ClientOverrideConfiguration.builder()
+                        .apiCallAttemptTimeout(rekognitionAttemptTimeout)
+                        .retryPolicy(RetryPolicy.builder().numRetries(rekognitionMaxRetries).build())
+                        .build())
                 .build();
     }
+
+    @Produces
+    @ApplicationScoped
+    public DynamoDbClient dynamoDbClient() {
+        String region = System.getenv().getOrDefault("AWS_REGION", "eu-west-2");
+        DynamoDbClientBuilder builder = DynamoDbClient.builder()
+                .region(Region.of(region));
+        dynamoDbEndpoint.ifPresent(builder::endpointOverride);
+        return builder.build();
+    }
+
+    @Produces
+    @ApplicationScoped
+    public S3Client s3Client() {
+        String region = System.getenv().getOrDefault("AWS_REGION", "eu-west-2");
+        S3ClientBuilder builder = S3Client.builder()
+                .region(Region.of(region));
+        s3Endpoint.ifPresent(endpoint -> builder.endpointOverride(endpoint).forcePathStyle(true));
+        return builder.build();
+    }
+
+    @Produces
+    @ApplicationScoped
+    public S3Presigner s3Presigner() {
+        String region = System.getenv().getOrDefault("AWS_REGION", "eu-west-2");
+        S3Presigner.Builder builder = S3Presigner.builder()
+                .region(Region.of(region));
+        // Stand-ins are addressed by host name, so buckets go in the path rather than a subdomain
+        s3Endpoint.ifPresent(endpoint -> builder.endpointOverride(endpoint)
+                .serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(true).build()));
+        return builder.build();
+    }
 }
@@ -0,0 +1,109 @@
+package com.ratemyrickshaw.bean;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.ratemyrickshaw.fn.NumberPlateValidationFn;
+import com.ratemyrickshaw.service.DynamoDbRatingStore;
+import com.ratemyrickshaw.service.InMemoryRatingStore;
+import com.ratemyrickshaw.service.LogStructuredRatingStore;
+import com.ratemyrickshaw.service.RatingStore;
+import com.ratemyrickshaw.service.ShardedRatingStore;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.inject.Disposes;
+import jakarta.enterprise.inject.Instance;
+import jakarta.enterprise.inject.Produces;
+import io.quarkus.runtime.configuration.MemorySize;
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+
+/*
+Picks the ratings store from config, so local development and tests don't need AWS credentials or a table.
+The DynamoDB client is looked up lazily so it is never built when the in-memory or log store is used.
+With rickshaw.ratings.shards.names set, ratings are sharded over one store per name (a table each, a log directory
+each, or an in-memory store each) instead of going to the one table. A changed list of shards is refused unless
+rickshaw.ratings.shards.rebalance is set, in which case the plates are moved to the new shards before the app starts.
+*/
+@Slf4j
+@ApplicationScoped
+public class RatingStoreProducer {
+
+    @ConfigProperty(name = "rickshaw.ratings.store", defaultValue = "dynamodb")
+    String store;
+
+    @ConfigProperty(name = "rickshaw.ratings.table", defaultValue = "rickshaw-ratings")
+    String tableName;
+
+    @ConfigProperty(name = "rickshaw.ratings.log.directory", defaultValue = "data/ratings")
+    String logDirectory;
+
+    @ConfigProperty(name = "rickshaw.ratings.log.segment-size", defaultValue = "64M")
+    MemorySize segmentSize;
+
+    @ConfigProperty(name = "rickshaw.ratings.log.fsync", defaultValue = "true")
+    boolean fsync;
+
+    @ConfigProperty(name = "rickshaw.ratings.log.compaction-threshold", defaultValue = "4")
+    int compactionThreshold;
+
+    @ConfigProperty(name = "rickshaw.ratings.shards.names")
+    Optional<List<String>> shardNames;
+
+    @ConfigProperty(name = "rickshaw.ratings.shards.virtual-nodes", defaultValue = "128")
+    int virtualNodes;
+
+    @ConfigProperty(name = "rickshaw.ratings.shards.state-affinity")
+    Optional<String> stateAffinity;
+
+    @ConfigProperty(name = "rickshaw.ratings.shards.rebalance", defaultValue = "false")
+    boolean rebalance;
+
+    @Produces
+    @ApplicationScoped
+    public RatingStore ratingStore(Instance<DynamoDbClient> dynamoDbClient, NumberPlateValidationFn numberPlateValidationFn) {
+        if (shardNames.isPresent() && !shardNames.get().isEmpty()) {
+            Map<String, RatingStore> shards = new LinkedHashMap<>();
+            shardNames.get().forEach(name -> shards.put(name.trim(), store(dynamoDbClient, name.trim())));
+            return ShardedRatingStore.open(shards, virtualNodes,
+                    ShardedRatingStore.parseStateShards(stateAffinity.orElse(null)), numberPlateValidationFn, rebalance,
+                    name -> store(dynamoDbClient, name));
+        }
+        return store(dynamoDbClient, tableName);
+    }
+
+    void close(@Disposes RatingStore ratingStore) throws IOException {
+        if (ratingStore instanceof Closeable closeable) {
+            closeable.close();
+        }
+    }
+
+    private RatingStore store(Instance<DynamoDbClient> dynamoDbClient, String table) {
+        if ("memory".equalsIgnoreCase(store)) {
+            log.info("Using the in-memory ratings store");
+            return new InMemoryRatingStore();
+        }
+        if ("log".equalsIgnoreCase(store)) {
+            // A sharded log keeps each shard in its own directory, named like a table would be
+            Path directory = shardNames.isPresent() && !shardNames.get().isEmpty()
+                    ? Path.of(logDirectory, table)
+                    : Path.of(logDirectory);
+            log.info("Using the ratings log in '{}'", directory.toAbsolutePath());
+            try {
+                return new LogStructuredRatingStore(directory, segmentSize.asLongValue(), fsync, compactionThreshold);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to open the ratings log in '" + directory + "'", e);
+            }
+        }
+        log.info("Using the DynamoDB ratings table '{}'", table);
+        return new DynamoDbRatingStore(dynamoDbClient.get(), table);
+    }
+}
@@ -0,0 +1,84 @@
+package com.ratemyrickshaw.cli;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.ratemyrickshaw.model.ReprocessingSummary;
+import com.ratemyrickshaw.service.ReprocessingService;
+
+import io.quarkus.runtime.QuarkusApplication;
+import io.quarkus.runtime.annotations.QuarkusMain;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+
+/*
+Command line entry point for re-running plate extraction and validation over an archive, see ReprocessingService.
+It's a named main, so the Lambda and dev server builds are unaffected. Build it with
+
+  mvn package -Dquarkus.package.main-class=reprocess -Dquarkus.package.type=uber-jar
+
+then run
+
+  java -jar target/*-runner.jar <archive directory | manifest> --output results.jsonl
+      [--workers N] [--multi-plate] [--ocr]
+
+Running again with the same output resumes where the last run stopped. Adding
+-Dquarkus.log.category."com.ratemyrickshaw".level=WARN keeps the per photo logging out of the way.
+*/
+@Slf4j
+@QuarkusMain(name = "reprocess")
+public class ReprocessCommand implements QuarkusApplication {
+
+    private static final String USAGE = "Usage: reprocess <archive directory | manifest> --output <results.jsonl>"
+            + " [--workers N] [--multi-plate] [--ocr]";
+
+    @Inject
+    ReprocessingService reprocessingService;
+
+    @Override
+    public int run(String... args) throws Exception {
+        Path input = null;
+        Path output = null;
+        int workers = Runtime.getRuntime().availableProcessors();
+        boolean multiPlate = false;
+        boolean ocr = false;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--output" -> output = Path.of(value(args, ++i));
+                    case "--workers" -> workers = Integer.parseInt(value(args, ++i));
+                    case "--multi-plate" -> multiPlate = true;
+                    case "--ocr" -> ocr = true;
+                    default -> {
+                        if (args[i].startsWith("--") || input != null) {
+                            throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+                        }
+                        input = Path.of(args[i]);
+                    }
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            log.error("{}\n{}", e.getMessage(), USAGE);
+            return 2;
+        }
+        if (input == null || output == null || workers < 1) {
+            log.error(USAGE);
+            return 2;
+        }
+        if (!Files.exists(input)) {
+            log.error("No such archive directory or manifest: {}", input);
+            return 2;
+        }
+
+        ReprocessingSummary summary = reprocessingService.reprocess(input, output, workers, multiPlate, ocr);
+        return summary.getFailed() == 0 ? 0 : 1;
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+        }
+        return args[i];
+    }
+}
@@ -0,0 +1,55 @@
+package com.ratemyrickshaw.controller;
+
+import com.ratemyrickshaw.model.AnalysisJobResponse;
+import com.ratemyrickshaw.model.ImageAnalysisRequest;
+import com.ratemyrickshaw.service.AnalysisJobService;
+import com.ratemyrickshaw.service.CapacityExceededException;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import lombok.RequiredArgsConstructor;
+
+
+@Path("/analyze/jobs")
+@Consumes(MediaType.APPLICATION_JSON)
+@Produces(MediaType.APPLICATION_JSON)
+@ApplicationScoped
+@RequiredArgsConstructor
+public class AnalysisJobController {
+
+    private final AnalysisJobService analysisJobService;
+
+    @POST
+    public Response submit(ImageAnalysisRequest request) {
+        try {
+            return Response.status(Response.Status.ACCEPTED)
+                    .entity(AnalysisJobResponse.of(analysisJobService.submit(request)))
+                    .build();
+        } catch (IllegalArgumentException e) {
+            return error(Response.Status.BAD_REQUEST, e.getMessage());
+        } catch (CapacityExceededException e) {
+            return error(Response.Status.SERVICE_UNAVAILABLE, "Too many images are waiting to be analysed, please try again later");
+        }
+    }
+
+    @GET
+    @Path("/{id}")
+    public Response status(@PathParam("id") String id) {
+        return analysisJobService.find(id)
+                .map(job -> Response.ok(AnalysisJobResponse.of(job)).build())
+                .orElseGet(() -> error(Response.Status.NOT_FOUND, "No such job, or its result has expired"));
+    }
+
+    private Response error(Response.Status status, String message) {
+        return Response.status(status)
+                .entity(AnalysisJobResponse.builder().success(false).message(message).build())
+                .build();
+    }
+}
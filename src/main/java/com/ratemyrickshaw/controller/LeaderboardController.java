@@ -0,0 +1,52 @@
+package com.ratemyrickshaw.controller;
+
+import com.ratemyrickshaw.model.LeaderboardResponse;
+import com.ratemyrickshaw.service.RatingService;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.ws.rs.DefaultValue;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import lombok.RequiredArgsConstructor;
+
+
+@Path("/leaderboards")
+@Produces(MediaType.APPLICATION_JSON)
+@ApplicationScoped
+@RequiredArgsConstructor
+public class LeaderboardController {
+
+    private final RatingService ratingService;
+
+    @GET
+    @Path("/{region}")
+    public Response leaderboard(@PathParam("region") String region,
+            @QueryParam("order") @DefaultValue("best") String order,
+            @QueryParam("limit") @DefaultValue("10") int limit) {
+        if (!"best".equals(order) && !"worst".equals(order)) {
+            return error(Response.Status.BAD_REQUEST, "Order must be best or worst");
+        }
+        try {
+            return Response.ok(LeaderboardResponse.builder()
+                            .success(true)
+                            .region(region.toUpperCase())
+                            .order(order)
+                            .entries(ratingService.getLeaderboard(region, "worst".equals(order), limit))
+                            .build())
+                    .build();
+        } catch (IllegalArgumentException e) {
+            return error(Response.Status.BAD_REQUEST, e.getMessage());
+        }
+    }
+
+    private Response error(Response.Status status, String message) {
+        return Response.status(status)
+                .entity(LeaderboardResponse.builder().success(false).message(message).build())
+                .build();
+    }
+}
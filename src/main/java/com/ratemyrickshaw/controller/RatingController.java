@@ -0,0 +1,67 @@
+package com.ratemyrickshaw.controller;
+
+import com.ratemyrickshaw.model.Rating;
+import com.ratemyrickshaw.model.RatingRequest;
+import com.ratemyrickshaw.model.RatingResponse;
+import com.ratemyrickshaw.service.RatingService;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import lombok.RequiredArgsConstructor;
+
+
+@Path("/ratings")
+@Consumes(MediaType.APPLICATION_JSON)
+@Produces(MediaType.APPLICATION_JSON)
+@ApplicationScoped
+@RequiredArgsConstructor
+public class RatingController {
+
+    private final RatingService ratingService;
+
+    @POST
+    public Response submit(RatingRequest request) {
+        try {
+            Rating rating = ratingService.submitRating(request);
+            return Response.status(Response.Status.ACCEPTED)
+                    .entity(RatingResponse.builder()
+                            .success(true)
+                            .message("Rating accepted")
+                            .plate(rating.getPlate())
+                            .build())
+                    .build();
+        } catch (IllegalArgumentException e) {
+            return error(Response.Status.BAD_REQUEST, e.getMessage());
+        } catch (IllegalStateException e) {
+            return error(Response.Status.SERVICE_UNAVAILABLE, e.getMessage());
+        }
+    }
+
+    @GET
+    @Path("/{plate}")
+    public Response ratings(@PathParam("plate") String plate) {
+        try {
+            return Response.ok(RatingResponse.builder()
+                            .success(true)
+                            .plate(plate)
+                            .ratings(ratingService.getRatings(plate))
+                            .build())
+                    .build();
+        } catch (IllegalArgumentException e) {
+            return error(Response.Status.BAD_REQUEST, e.getMessage());
+        }
+    }
+
+    private Response error(Response.Status status, String message) {
+        return Response.status(status)
+                .entity(RatingResponse.builder().success(false).message(message).build())
+                .build();
+    }
+}
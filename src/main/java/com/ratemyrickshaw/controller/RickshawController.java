@@ -1,19 +1,29 @@
 package com.ratemyrickshaw.controller;
 
+import java.util.Locale;
+
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.ratemyrickshaw.lambda.RickshawAnalysisHandler;
 
+import io.smallrye.common.annotation.Blocking;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.sse.Sse;
+import jakarta.ws.rs.sse.SseEventSink;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 
 
+@Slf4j
 @Path("/analyze")
 @Consumes(MediaType.APPLICATION_JSON)
 @Produces(MediaType.APPLICATION_JSON)
@@ -22,6 +32,7 @@ import lombok.RequiredArgsConstructor;
 public class RickshawController {
 
     private final RickshawAnalysisHandler lambda;
+    private final ObjectMapper objectMapper;
 
     @POST
     public Response analyze(String body) {
@@ -34,4 +45,43 @@ public class RickshawController {
                 .entity(result.getBody())
                 .build();
     }
+
+    /**
+     * The same analysis as {@link #analyze}, sent as Server-Sent Events: one event per stage as it's done (named after
+     * the stage, e.g. "ocr_words"), then a "result" event with the response body, or an "error" event with the error
+     * body if the analysis failed.
+     */
+    @POST
+    @Path("/stream")
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+    @Blocking
+    public void analyzeStream(String body, @Context SseEventSink sink, @Context Sse sse) {
+        try (sink) {
+            APIGatewayProxyResponseEvent result = lambda.handleAnalysis(body, null,
+                    (stage, data) -> send(sink, sse, stage.name().toLowerCase(Locale.ROOT), json(data)));
+            send(sink, sse, result.getStatusCode() == 200 ? "result" : "error", result.getBody());
+        }
+    }
+
+    /*
+     * A client that has gone away only stops getting events, the analysis carries on to its deadline.
+     */
+    private static void send(SseEventSink sink, Sse sse, String name, String data) {
+        if (sink.isClosed()) {
+            return;
+        }
+        sink.send(sse.newEventBuilder().name(name).data(data).build())
+                .exceptionally(e -> {
+                    log.debug("Unable to send the '{}' event: {}", name, e.getMessage());
+                    return null;
+                });
+    }
+
+    private String json(Object data) {
+        try {
+            return objectMapper.writeValueAsString(data);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Unable to write the event data: " + e.getMessage(), e);
+        }
+    }
 }
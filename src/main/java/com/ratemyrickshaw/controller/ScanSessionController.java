@@ -0,0 +1,93 @@
+package com.ratemyrickshaw.controller;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ratemyrickshaw.model.ScanEvent;
+import com.ratemyrickshaw.service.ScanSession;
+import com.ratemyrickshaw.service.ScanSessions;
+
+import io.quarkus.runtime.configuration.MemorySize;
+import io.quarkus.vertx.http.HttpServerOptionsCustomizer;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.http.ServerWebSocket;
+import io.vertx.ext.web.Router;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/*
+Live scanning over a WebSocket at /analyze/session, for the mobile app pointing its camera at a rickshaw.
+
+The logic is as follows:
+1. The client opens the socket and sends camera frames (downscaled JPEG or PNG) as binary messages, as fast as it
+   likes. Each connection is one ScanSession, which analyses only the freshest frame and drops the rest.
+2. The session's events (see ScanEvent) come back as JSON text messages: FRAME after each analysed frame, then PLATE
+   once the frames agree on a plate, or EXHAUSTED if they never did within the session's OCR calls.
+3. The text message "reset" starts a new scan on the same socket, anything else gets an ERROR event. A connection
+   has an OCR call budget of its own that resets don't restore, once it's spent the client has to reconnect.
+4. Closing the socket ends the session.
+Served by the HTTP server only, like /analyze/stream. Frames larger than the max frame size close the socket.
+*/
+@Slf4j
+@ApplicationScoped
+@RequiredArgsConstructor
+public class ScanSessionController implements HttpServerOptionsCustomizer {
+
+    public static final String PATH = "/analyze/session";
+
+    private final ScanSessions scanSessions;
+    private final ObjectMapper objectMapper;
+
+    // Downscaled camera frames are well under this, a full size photo should go to /analyze or /uploads instead
+    @ConfigProperty(name = "rickshaw.scan.max-frame-size", defaultValue = "512K")
+    MemorySize maxFrameSize;
+
+    void registerRoutes(@Observes Router router) {
+        router.get(PATH).handler(context -> context.request().toWebSocket()
+                .onSuccess(this::open)
+                .onFailure(e -> log.debug("Unable to open a scanning session: {}", e.getMessage())));
+    }
+
+    @Override
+    public void customizeHttpServer(HttpServerOptions options) {
+        int maxBytes = (int) Math.min(Integer.MAX_VALUE, maxFrameSize.asLongValue());
+        options.setMaxWebSocketFrameSize(Math.max(options.getMaxWebSocketFrameSize(), maxBytes));
+        options.setMaxWebSocketMessageSize(Math.max(options.getMaxWebSocketMessageSize(), maxBytes));
+    }
+
+    private void open(ServerWebSocket socket) {
+        log.info("Scanning session opened from {}", socket.remoteAddress());
+        ScanSession session = scanSessions.open(event -> send(socket, event));
+        socket.binaryMessageHandler(frame -> session.offer(frame.getBytes()));
+        socket.textMessageHandler(message -> {
+            if ("reset".equals(message.trim())) {
+                session.reset();
+            } else {
+                send(socket, ScanEvent.builder()
+                        .type(ScanEvent.Type.ERROR)
+                        .message("Send frames as binary messages, or \"reset\" to start a new scan")
+                        .build());
+            }
+        });
+        socket.exceptionHandler(e -> log.debug("Scanning session failed: {}", e.getMessage()));
+        socket.closeHandler(ignored -> session.close());
+    }
+
+    /*
+     * A client that has gone away only stops getting events, the session is closed by the close handler.
+     */
+    private void send(ServerWebSocket socket, ScanEvent event) {
+        if (socket.isClosed()) {
+            return;
+        }
+        try {
+            socket.writeTextMessage(objectMapper.writeValueAsString(event))
+                    .onFailure(e -> log.debug("Unable to send the {} event: {}", event.getType(), e.getMessage()));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Unable to write the event: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.ratemyrickshaw.controller;
+
+import com.ratemyrickshaw.service.StatsService;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import lombok.RequiredArgsConstructor;
+
+
+@Path("/stats")
+@Produces(MediaType.APPLICATION_JSON)
+@ApplicationScoped
+@RequiredArgsConstructor
+public class StatsController {
+
+    private final StatsService statsService;
+
+    @GET
+    public Response stats() {
+        return Response.ok(statsService.stats()).build();
+    }
+}
@@ -0,0 +1,42 @@
+package com.ratemyrickshaw.controller;
+
+import com.ratemyrickshaw.model.ImageUploadRequest;
+import com.ratemyrickshaw.model.ImageUploadResponse;
+import com.ratemyrickshaw.service.ImageUploadService;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import lombok.RequiredArgsConstructor;
+
+
+@Path("/uploads")
+@Consumes(MediaType.APPLICATION_JSON)
+@Produces(MediaType.APPLICATION_JSON)
+@ApplicationScoped
+@RequiredArgsConstructor
+public class UploadController {
+
+    private final ImageUploadService imageUploadService;
+
+    @POST
+    public Response createUpload(ImageUploadRequest request) {
+        try {
+            return Response.ok(imageUploadService.createUpload(request)).build();
+        } catch (IllegalArgumentException e) {
+            return error(Response.Status.BAD_REQUEST, e.getMessage());
+        } catch (IllegalStateException e) {
+            return error(Response.Status.SERVICE_UNAVAILABLE, e.getMessage());
+        }
+    }
+
+    private Response error(Response.Status status, String message) {
+        return Response.status(status)
+                .entity(ImageUploadResponse.builder().success(false).message(message).build())
+                .build();
+    }
+}
@@ -0,0 +1,115 @@
+package com.ratemyrickshaw.fn;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+
+/*
+Finds every occurrence of a fixed set of patterns in one pass over the text (Aho-Corasick), so the cost depends on
+the length of the text and not on how many patterns there are.
+
+The trie of patterns is compiled into a full transition table: every state has a next state for every symbol, the
+failure links already folded in, so matching is one array lookup per character. Each state also records the longest
+pattern that ends there, its own or one reached through failure links. Every other pattern ending there is a
+suffix of that one, so the longest covers them all.
+
+Symbols are letters (ignoring case), digits and the space between words. Anything else is skipped, matching
+PerfectHashSet's view of a word.
+*/
+final class AhoCorasickAutomaton {
+
+    static final int ROOT = 0;
+    static final int SPACE = 36;
+    private static final int SYMBOLS = 37;
+
+    private final int[] transitions;
+    private final int[] longestMatch;
+
+    /**
+     * @param patterns Letters, digits and single spaces, e.g. "HORN OK PLEASE"
+     */
+    AhoCorasickAutomaton(List<String> patterns) {
+        int capacity = 1 + patterns.stream().mapToInt(String::length).sum();
+        int[] next = new int[capacity * SYMBOLS];
+        int[] ownMatch = new int[capacity];
+        Arrays.fill(next, -1);
+        int states = 1;
+
+        for (String pattern : patterns) {
+            int state = ROOT;
+            int length = 0;
+            for (int i = 0; i < pattern.length(); i++) {
+                int symbol = symbol(pattern.charAt(i));
+                if (symbol < 0) {
+                    continue;
+                }
+                int target = next[state * SYMBOLS + symbol];
+                if (target < 0) {
+                    target = states++;
+                    next[state * SYMBOLS + symbol] = target;
+                }
+                state = target;
+                length++;
+            }
+            if (state != ROOT) {
+                ownMatch[state] = Math.max(ownMatch[state], length);
+            }
+        }
+
+        // Breadth first, so a state's failure target is always finished before the state itself
+        int[] failure = new int[states];
+        this.transitions = new int[states * SYMBOLS];
+        this.longestMatch = Arrays.copyOf(ownMatch, states);
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int symbol = 0; symbol < SYMBOLS; symbol++) {
+            int target = next[symbol];
+            if (target < 0) {
+                transitions[symbol] = ROOT;
+            } else {
+                transitions[symbol] = target;
+                failure[target] = ROOT;
+                queue.add(target);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            longestMatch[state] = Math.max(longestMatch[state], longestMatch[failure[state]]);
+            for (int symbol = 0; symbol < SYMBOLS; symbol++) {
+                int target = next[state * SYMBOLS + symbol];
+                if (target < 0) {
+                    transitions[state * SYMBOLS + symbol] = transitions[failure[state] * SYMBOLS + symbol];
+                } else {
+                    transitions[state * SYMBOLS + symbol] = target;
+                    failure[target] = transitions[failure[state] * SYMBOLS + symbol];
+                    queue.add(target);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param symbol From {@link #symbol}, never negative
+     */
+    int step(int state, int symbol) {
+        return transitions[state * SYMBOLS + symbol];
+    }
+
+    /**
+     * @return The length in symbols of the longest pattern ending at this state, 0 if none does
+     */
+    int longestMatch(int state) {
+        return longestMatch[state];
+    }
+
+    int stateCount() {
+        return longestMatch.length;
+    }
+
+    /**
+     * 0-35 for letters and digits (see PerfectHashSet), 36 for a space, -1 for anything to skip
+     */
+    static int symbol(char c) {
+        return c == ' ' ? SPACE : PerfectHashSet.code(c);
+    }
+}
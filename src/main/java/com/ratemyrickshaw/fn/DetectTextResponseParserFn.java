@@ -0,0 +1,69 @@
+package com.ratemyrickshaw.fn;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import software.amazon.awssdk.services.rekognition.model.BoundingBox;
+import software.amazon.awssdk.services.rekognition.model.DetectTextResponse;
+import software.amazon.awssdk.services.rekognition.model.Geometry;
+import software.amazon.awssdk.services.rekognition.model.Point;
+import software.amazon.awssdk.services.rekognition.model.TextDetection;
+
+/*
+Reads a stored DetectText response, in the JSON Rekognition returns on the wire (and the AWS CLI prints), e.g.
+{"TextDetections": [{"DetectedText": "AP13", "Type": "LINE", "Id": 0, ...}], "TextModelVersion": "3.0"}.
+Missing fields are left unset rather than failing, older archives don't always have the polygon or parent ids.
+*/
+@ApplicationScoped
+public class DetectTextResponseParserFn implements Function<JsonNode, DetectTextResponse> {
+
+    @Override
+    public DetectTextResponse apply(JsonNode root) {
+        JsonNode textDetections = root.get("TextDetections");
+        if (textDetections == null || !textDetections.isArray()) {
+            throw new IllegalArgumentException("Not a DetectText response, there are no TextDetections");
+        }
+
+        List<TextDetection> detections = new ArrayList<>(textDetections.size());
+        for (JsonNode node : textDetections) {
+            detections.add(TextDetection.builder()
+                    .detectedText(node.path("DetectedText").asText(null))
+                    .type(node.path("Type").asText(null))
+                    .id(node.has("Id") ? node.get("Id").asInt() : null)
+                    .parentId(node.has("ParentId") ? node.get("ParentId").asInt() : null)
+                    .confidence(node.has("Confidence") ? node.get("Confidence").floatValue() : null)
+                    .geometry(node.has("Geometry") ? geometry(node.get("Geometry")) : null)
+                    .build());
+        }
+
+        return DetectTextResponse.builder()
+                .textDetections(detections)
+                .textModelVersion(root.path("TextModelVersion").asText(null))
+                .build();
+    }
+
+    private Geometry geometry(JsonNode geometry) {
+        Geometry.Builder builder = Geometry.builder();
+        JsonNode box = geometry.get("BoundingBox");
+        if (box != null) {
+            builder.boundingBox(BoundingBox.builder()
+                    .width(box.path("Width").floatValue())
+                    .height(box.path("Height").floatValue())
+                    .left(box.path("Left").floatValue())
+                    .top(box.path("Top").floatValue())
+                    .build());
+        }
+        JsonNode polygon = geometry.get("Polygon");
+        if (polygon != null) {
+            List<Point> points = new ArrayList<>(polygon.size());
+            polygon.forEach(point -> points.add(
+                    Point.builder().x(point.path("X").floatValue()).y(point.path("Y").floatValue()).build()));
+            builder.polygon(points);
+        }
+        return builder.build();
+    }
+}
@@ -1,29 +1,43 @@
 package com.ratemyrickshaw.fn;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.ratemyrickshaw.model.DetectionBatch;
 
 import jakarta.enterprise.context.ApplicationScoped;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import software.amazon.awssdk.services.rekognition.model.DetectTextResponse;
-import software.amazon.awssdk.services.rekognition.model.TextDetection;
 
 /*
 Returns a list of detected text that are likely to be parts of the number plate, based on confidence and similarity.
 
 The logic is as follows:
-1. Filter for word level detections and exclude common non-number plate words (e.g., "STOP", "KEEP", "DISTANCE").
+1. Filter for word level detections and exclude the words painted on rickshaws that are never part of a number plate
+   (e.g., "STOP", "CNG", "HORN OK PLEASE"), see SignageFilterFn. This happens first, so they never reach step 2.
 2. Compare each detected word with every other word to find similar words, e.g the number plate might appear multiple times on a vehicle so pick the clearest one.
 3. For similar words, keep the one with the highest confidence score.
 4. If no similar words are found, keep all the words.
 5. Sort the remaining words by their bounding box position (top to bottom, then left to right) to maintain the order they appear in the image. 
    The number plate text should be close together in the sorted list due to their proximity in the image.
 6. Return the sorted list of detected text as potential number plate candidates.
+
+In LINES mode (rickshaw.extraction.mode=lines) the words are grouped using Rekognition's own LINE detections instead:
+1. Group word level detections under their parent LINE, and order each line's words along the line's own angle.
+2. Sweep the lines top to bottom, merging lines that sit side by side on the same baseline into rows. Each row is
+   measured along its own angle, so "MH" and "12" read as separate lines on a tilted plate still end up in one row.
+3. Compare rows (rather than words) with each other to find the same plate painted twice, and keep the clearest one.
+4. Return the words of the remaining rows in reading order.
+A tilted plate keeps its words in order because ordering follows the text direction rather than the raw box top.
 */
 @Slf4j
 @ApplicationScoped
@@ -31,91 +45,395 @@ The logic is as follows:
 public class NumberPlateExtractionFn implements Function<DetectTextResponse, List<String>> {
 
     private final SimilarityFn similarityFn;
+    private final SignageFilterFn signageFilterFn;
+
+    // Skew beyond this is more likely a badly estimated angle than a real photo of a plate
+    private static final double MAX_SKEW_RADIANS = Math.toRadians(30);
+
+    public enum Mode {
+        SIMILARITY,
+        LINES
+    }
 
-    private static final List<String> excludedWords = List.of("stop", "keep", "distance");
+    @ConfigProperty(name = "rickshaw.extraction.mode", defaultValue = "similarity")
+    Mode mode;
 
     @Override
     public List<String> apply(DetectTextResponse rekognitionResponse) {
+        DetectionBatch batch = DetectionBatch.of(rekognitionResponse);
+        return texts(batch, extract(batch));
+    }
+
+    /**
+     * Same as {@link #apply}, but on a batch, returning the indexes of the candidate words so their confidence can
+     * be used as well
+     *
+     * @param batch The text detections
+     * @return The indexes of the candidate words in reading order
+     */
+    public int[] extract(DetectionBatch batch) {
+        return mode == Mode.LINES
+                ? detectionsByLines(batch)
+                : extractBySimilarity(batch);
+    }
+
+    private int[] extractBySimilarity(DetectionBatch batch) {
 
         // Filter for word level detections
-        Set<TextDetection> wordDetections = rekognitionResponse.textDetections().stream()
-                .filter(textDetection -> "WORD".equals(textDetection.type().toString()))
-                .filter(textDetection -> !excludedWords.contains(textDetection.detectedText().toLowerCase()))
-                .collect(Collectors.toSet());
+        BitSet signage = signageFilterFn.apply(batch);
+        int[] wordDetections = IntStream.range(0, batch.size())
+                .filter(i -> batch.isWord(i) && !signage.get(i))
+                .toArray();
 
-        log.info("Detected words: {}", wordDetections.stream().map(TextDetection::detectedText).toList());
+        log.info("Detected words: {}", texts(batch, wordDetections));
 
-        // Using a set due to the On2 loop - for 2 similar words like v123 and 123, it try to add v123 twice
-        Set<TextDetection> highestConfidenceDetections = new HashSet<>();
+        // A bit per detection, a word compared with several similar words is still only kept once
+        BitSet highestConfidenceDetections = new BitSet(batch.size());
 
         // On^2 loop to compare each text detection with every other..
-        for (TextDetection text : wordDetections) {
-            if (highestConfidenceDetections.contains(text)) {
+        for (int text : wordDetections) {
+            if (highestConfidenceDetections.get(text)) {
                 continue; // already added as a similar word
             }
 
-            for (TextDetection otherText : wordDetections) {
+            for (int otherText : wordDetections) {
                 
-                if (text.detectedText().equals(otherText.detectedText()))
+                if (batch.sameText(text, otherText))
                     continue; // skip comparing the same detection
 
-                boolean similar = similarityFn.test(text.detectedText(), otherText.detectedText());
+                boolean similar = similarityFn.test(batch, text, otherText);
 
                 if (similar) {
-                    log.info("Treating '{}' and '{}' as the same word", text.detectedText(),
-                            otherText.detectedText());
+                    log.info("Treating '{}' and '{}' as the same word", batch.textView(text), batch.textView(otherText));
 
                     // Pick the word with more text content
-                    if(text.detectedText().length() > otherText.detectedText().length()){
-                        log.info("Keeping '{}' because it has more characters than '{}'", text.detectedText(),
-                                otherText.detectedText());
-                        highestConfidenceDetections.add(text);
-                    } else if (text.detectedText().length() < otherText.detectedText().length()) {
-                        log.info("Keeping '{}' because it has more characters thann '{}'", otherText.detectedText(),
-                                text.detectedText());
-                        highestConfidenceDetections.add(otherText);
+                    if(batch.textLength(text) > batch.textLength(otherText)){
+                        log.info("Keeping '{}' because it has more characters than '{}'", batch.textView(text),
+                                batch.textView(otherText));
+                        highestConfidenceDetections.set(text);
+                    } else if (batch.textLength(text) < batch.textLength(otherText)) {
+                        log.info("Keeping '{}' because it has more characters thann '{}'", batch.textView(otherText),
+                                batch.textView(text));
+                        highestConfidenceDetections.set(otherText);
                     }
                     else {
                         // If the length is the same, pick the one with higher confidence
-                        if (text.confidence() > otherText.confidence()) {
-                            log.info("Keeping '{}' because it has higher confidence than '{}'", text.detectedText(),
-                                    otherText.detectedText());
-                            highestConfidenceDetections.add(text);
+                        if (batch.confidence(text) > batch.confidence(otherText)) {
+                            log.info("Keeping '{}' because it has higher confidence than '{}'", batch.textView(text),
+                                    batch.textView(otherText));
+                            highestConfidenceDetections.set(text);
                         } else {
-                            log.info("Keeping '{}' because it has higher confidence than '{}'", otherText.detectedText(),
-                                    text.detectedText());
-                            highestConfidenceDetections.add(otherText);
+                            log.info("Keeping '{}' because it has higher confidence than '{}'", batch.textView(otherText),
+                                    batch.textView(text));
+                            highestConfidenceDetections.set(otherText);
                         }
                     }
 
                 } else {
-                    log.info("Treating '{}' and '{}' as different words", text.detectedText(),
-                            otherText.detectedText());
+                    log.info("Treating '{}' and '{}' as different words", batch.textView(text),
+                            batch.textView(otherText));
                 }
             }
         }
 
-        if(highestConfidenceDetections.isEmpty()){
-            // Then there were no similar words detected, just take all of the words
-            highestConfidenceDetections = wordDetections;
-        }
+        // Then there were no similar words detected, just take all of the words
+        int[] candidates = highestConfidenceDetections.isEmpty()
+                ? wordDetections
+                : highestConfidenceDetections.stream().toArray();
 
-        log.info("Highest confidence detections: {}",
-                highestConfidenceDetections.stream().map(TextDetection::detectedText).toList());
+        log.info("Highest confidence detections: {}", texts(batch, candidates));
 
         // Sort the detected text by bounding region, to get words in order: (top →
         // bottom, left → right)
-        return highestConfidenceDetections.stream()
-                .sorted(Comparator
-                        .comparing((TextDetection td) -> td.geometry().boundingBox().top())
-                        .thenComparing(td -> td.geometry().boundingBox().left()))
-                .map(text -> {
-                    // Debug stage just to log the text
-                    log.info("Sorted detected text: {}", text.detectedText());
-                    return text;
-                })
-                .map(TextDetection::detectedText)
-                .toList();
+        DetectionBatch.sort(candidates, (a, b) -> batch.top(a) != batch.top(b)
+                ? Float.compare(batch.top(a), batch.top(b))
+                : Float.compare(batch.left(a), batch.left(b)));
+        log.info("Sorted detected text: {}", texts(batch, candidates));
+        return candidates;
+    }
+
+
+    /**
+     * Extract candidate words grouped by Rekognition's LINE detections, in reading order
+     *
+     * @param rekognitionResponse The text detection response
+     * @return The words of the most plate-like rows, rows top to bottom and words left to right
+     */
+    public List<String> extractByLines(DetectTextResponse rekognitionResponse) {
+        DetectionBatch batch = DetectionBatch.of(rekognitionResponse);
+        return texts(batch, detectionsByLines(batch));
+    }
+
+    private int[] detectionsByLines(DetectionBatch batch) {
+        BitSet signage = signageFilterFn.apply(batch);
+
+        // Words per LINE, counted first so each line's words go straight into an array of the right size
+        int[] wordCounts = new int[batch.size()];
+        int[] lineOf = new int[batch.size()];
+        int lineCount = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            lineOf[i] = -1;
+            if (!batch.isWord(i) || signage.get(i)) {
+                continue;
+            }
+            int parent = batch.parent(i);
+            // No usable parent, treat the word as a line of its own
+            lineOf[i] = parent >= 0 && batch.isLine(parent) ? parent : i;
+            if (wordCounts[lineOf[i]]++ == 0) {
+                lineCount++;
+            }
+        }
+
+        if (lineCount == 0) {
+            return new int[0];
+        }
+
+        // Lines in the order their first word appears, then the words without one
+        List<TextLine> lines = new ArrayList<>(lineCount);
+        List<TextLine> orphanWords = new ArrayList<>();
+        int[][] wordsOf = new int[batch.size()][];
+        int[] filled = new int[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            int line = lineOf[i];
+            if (line < 0) {
+                continue;
+            }
+            if (wordsOf[line] == null) {
+                wordsOf[line] = new int[wordCounts[line]];
+                (line == i ? orphanWords : lines).add(new TextLine(batch, line, wordsOf[line]));
+            }
+            wordsOf[line][filled[line]++] = i;
+        }
+        lines.addAll(orphanWords);
+        lines.forEach(TextLine::sortWords);
+
+        List<TextRow> rows = groupIntoRows(lines, estimateSkew(lines));
+
+        log.info("Grouped {} lines into rows: {}", lines.size(), rows.stream().map(TextRow::text).toList());
+
+        return removeDuplicateRows(rows).stream()
+                .flatMapToInt(row -> IntStream.of(row.words()))
+                .toArray();
+    }
+
+    private static List<String> texts(DetectionBatch batch, int[] indexes) {
+        List<String> texts = new ArrayList<>(indexes.length);
+        for (int index : indexes) {
+            texts.add(batch.text(index));
+        }
+        return texts;
+    }
+
+    /*
+     * Median angle of the lines that have a polygon, used for any line that doesn't have one of its own.
+     */
+    private double estimateSkew(List<TextLine> lines) {
+        double[] angles = lines.stream()
+                .mapToDouble(line -> line.angle)
+                .filter(angle -> !Double.isNaN(angle))
+                .sorted()
+                .toArray();
+        if (angles.length == 0) {
+            return 0;
+        }
+        return clampSkew(angles[angles.length / 2]);
+    }
+
+    private static double clampSkew(double angle) {
+        return Math.max(-MAX_SKEW_RADIANS, Math.min(MAX_SKEW_RADIANS, angle));
+    }
+
+    /*
+     * Sweep the lines top to bottom. Each row is measured along its own angle, since a photo can hold two plates
+     * tilted different ways. A row stays open while new lines could still land on its baseline, once the sweep has
+     * moved more than a line height past it the row is closed. Sorting dominates, so this is O(n log n) rather than
+     * comparing every line with every other line.
+     */
+    private List<TextRow> groupIntoRows(List<TextLine> lines, double skew) {
+        lines.sort(Comparator.comparingDouble(line -> line.centreY));
+
+        List<TextRow> rows = new ArrayList<>();
+        List<TextRow> openRows = new ArrayList<>();
+
+        for (TextLine line : lines) {
+            openRows.removeIf(row -> line.centreY - row.maxCentreY > row.height);
+
+            TextRow match = null;
+            for (TextRow row : openRows) {
+                if (row.accepts(line)) {
+                    match = row;
+                    break;
+                }
+            }
+
+            if (match == null) {
+                match = new TextRow(Double.isNaN(line.angle) ? skew : clampSkew(line.angle));
+                rows.add(match);
+                openRows.add(match);
+            }
+            match.add(line);
+        }
+
+        rows.forEach(TextRow::sortIntoReadingOrder);
+        rows.sort(Comparator.comparingDouble(TextRow::centreY).thenComparingDouble(TextRow::left));
+        return rows;
+    }
+
+    /*
+     * Same idea as the word level pass in similarity mode, but rows are far fewer than words.
+     * For rows that look like the same text, keep the longer one, or the more confident one if they're the same length.
+     * A row that loses any comparison is dropped, even if it beat some other row.
+     * If nothing looks duplicated, keep every row.
+     */
+    private List<TextRow> removeDuplicateRows(List<TextRow> rows) {
+        Set<TextRow> kept = new HashSet<>();
+        Set<TextRow> dropped = new HashSet<>();
+
+        for (int i = 0; i < rows.size(); i++) {
+            for (int j = i + 1; j < rows.size(); j++) {
+                TextRow row = rows.get(i);
+                TextRow other = rows.get(j);
+                if (!similarityFn.test(row.text(), other.text())) {
+                    continue;
+                }
+                TextRow better = row.text().length() != other.text().length()
+                        ? (row.text().length() > other.text().length() ? row : other)
+                        : (row.confidence() >= other.confidence() ? row : other);
+                log.info("Treating rows '{}' and '{}' as the same text, keeping '{}'", row.text(), other.text(), better.text());
+                kept.add(better);
+                dropped.add(better == row ? other : row);
+            }
+        }
+
+        if (kept.isEmpty()) {
+            return rows;
+        }
+        return rows.stream().filter(row -> kept.contains(row) && !dropped.contains(row)).toList();
+    }
+
+    /*
+     * A LINE detection and the indexes of its words.
+     */
+    private static final class TextLine {
+        private final DetectionBatch batch;
+        private final int[] words;
+        private final double angle;
+        private final double centreX;
+        private final double centreY;
+        private final double length;
+        private final double height;
+
+        TextLine(DetectionBatch batch, int line, int[] words) {
+            this.batch = batch;
+            this.words = words;
+            this.angle = batch.angle(line);
+            this.centreX = batch.centreX(line);
+            this.centreY = batch.centreY(line);
+            // A tilted line's box is taller than its text, so the batch measures along the polygon edges when there is one
+            this.length = batch.length(line);
+            this.height = batch.thickness(line);
+        }
+
+        /*
+         * Order words along the line's own direction, which handles a line tilted differently to the rest.
+         */
+        void sortWords() {
+            double lineAngle = Double.isNaN(angle) ? 0 : angle;
+            double cos = Math.cos(lineAngle);
+            double sin = Math.sin(lineAngle);
+            DetectionBatch.sort(words, (a, b) -> Double.compare(
+                    batch.centreX(a) * cos + batch.centreY(a) * sin,
+                    batch.centreX(b) * cos + batch.centreY(b) * sin));
+        }
+    }
+
+    /*
+     * One or more lines sitting side by side on the same baseline, measured in the row's own rotated frame:
+     * "along" runs with the text and "across" runs perpendicular to it.
+     */
+    private static final class TextRow {
+        private final List<TextLine> lines = new ArrayList<>();
+        private final double cos;
+        private final double sin;
+        private double sumAcross;
+        private double sumCentreY;
+        private double maxCentreY = -Double.MAX_VALUE;
+        private double minAlong = Double.MAX_VALUE;
+        private double maxAlong = -Double.MAX_VALUE;
+        private double height;
+        private String text;
+
+        TextRow(double angle) {
+            this.cos = Math.cos(angle);
+            this.sin = Math.sin(angle);
+        }
+
+        private double along(TextLine line) {
+            return line.centreX * cos + line.centreY * sin;
+        }
+
+        private double across(TextLine line) {
+            return -line.centreX * sin + line.centreY * cos;
+        }
+
+        boolean accepts(TextLine line) {
+            double tallest = Math.max(height, line.height);
+            double along = along(line);
+            double gap = Math.max(along - line.length / 2.0 - maxAlong, minAlong - along - line.length / 2.0);
+            // Lines that overlap along the text are stacked (a two row plate), not side by side
+            boolean sideBySide = gap >= -0.25 * tallest && gap <= 1.5 * tallest;
+            // Use the smaller height so a tall sticker next to the plate doesn't swallow its neighbours
+            double tolerance = 0.5 * Math.min(height, line.height);
+            return sideBySide && Math.abs(across(line) - sumAcross / lines.size()) <= tolerance;
+        }
+
+        void add(TextLine line) {
+            lines.add(line);
+            double along = along(line);
+            sumAcross += across(line);
+            sumCentreY += line.centreY;
+            maxCentreY = Math.max(maxCentreY, line.centreY);
+            minAlong = Math.min(minAlong, along - line.length / 2.0);
+            maxAlong = Math.max(maxAlong, along + line.length / 2.0);
+            height = Math.max(height, line.height);
+            text = null;
+        }
+
+        double centreY() {
+            return sumCentreY / lines.size();
+        }
+
+        double left() {
+            return minAlong;
+        }
+
+        void sortIntoReadingOrder() {
+            lines.sort(Comparator.comparingDouble(this::along));
+        }
+
+        int[] words() {
+            return lines.stream().flatMapToInt(line -> IntStream.of(line.words)).toArray();
+        }
+
+        String text() {
+            if (text == null) {
+                StringBuilder joined = new StringBuilder();
+                for (TextLine line : lines) {
+                    for (int word : line.words) {
+                        joined.append(line.batch.textChars(), line.batch.textStart(word), line.batch.textLength(word));
+                    }
+                }
+                text = joined.toString();
+            }
+            return text;
+        }
+
+        double confidence() {
+            return lines.stream()
+                    .flatMapToDouble(line -> IntStream.of(line.words).mapToDouble(line.batch::confidence))
+                    .average()
+                    .orElse(0);
+        }
     }
 
 }
@@ -1,17 +1,34 @@
 package com.ratemyrickshaw.fn;
 
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.regex.Pattern;
+
+import com.ratemyrickshaw.model.DetectionBatch;
 
 import jakarta.enterprise.context.ApplicationScoped;
 import lombok.extern.slf4j.Slf4j;
 
 /*
 Validation and normalization.
+
+The logic is as follows:
+1. Normalize the OCR words: uppercase, strip anything that isn't a letter or digit, drop empty words.
+2. Search for the most likely plate with dynamic programming over the words (see searchPlate). A plate is a run of
+   words, starting at the start of a word, that reads as state code, RTO, series and number. Stray words inside the
+   plate can be skipped, and common OCR misreads are corrected, both at a cost, and each word counts for as much as
+   Rekognition's confidence in it. The best scoring plate wins.
+3. Correct the chosen plate's state code and RTO misreads (e.g. OL -> DL, TNll -> TN11).
+   Corrections learned from confirmed plates (useCorrections) are tried before the built in ones, but only on a state
+   code that isn't one or an RTO character that isn't a digit, never on characters that already validate.
+4. If no plate could be assembled, report what is wrong with the most plausible candidate:
+   an invalid state code, an invalid RTO code, or an invalid format.
+Only RTO codes in the registry (rto-codes.txt) are valid, so MH99 or DL0 is never a plate. The search checks each RTO
+digit against the registry as it reads it, so a correction that would make an impossible code is never tried.
 */
 @Slf4j
 @ApplicationScoped
@@ -28,186 +45,521 @@ public class NumberPlateValidationFn implements Function<List<String>, String> {
     private static final String STANDARD_SERIES_REGEX = "^[A-Z]{1,3}$";  // Just 1-3 letters (e.g., "AB")
     private static final String STANDARD_COMPLETE_REGEX = "^[A-Z]{2}\\d{2}[A-Z]{1,3}\\d{4}$";  // Complete plate
 
+    // Precompiled for matchCompletePlate, which runs on every LINE detection
+    private static final Pattern STATE_PATTERN = Pattern.compile(STATE_REGEX);
+    private static final Pattern DL_COMPLETE_PATTERN = Pattern.compile(DL_COMPLETE_REGEX);
+    private static final Pattern STANDARD_COMPLETE_PATTERN = Pattern.compile(STANDARD_COMPLETE_REGEX);
+
+    private static final RtoRegistry RTO_REGISTRY = RtoRegistry.load("/rto-codes.txt");
+
+    // Log probability penalties for the plate search
+    private static final double CORRECTION_PENALTY = Math.log(0.6);
+    private static final double SKIPPED_WORD_PENALTY = Math.log(0.25);
+    private static final double OUT_OF_ORDER_PENALTY = Math.log(0.3);
+    // Most stray words inside a plate that can be skipped in a row
+    private static final int MAX_SKIPPED = 2;
+
+    // Learned from confirmed plates, read once per call so a call never mixes two tables
+    private volatile OcrCorrectionTable learnedCorrections = OcrCorrectionTable.NONE;
+
     @Override
     public String apply(List<String> detectedTexts) {
 
-        // Normalize OCR output: uppercase, strip non-alphanumeric, and correct common OCR errors
-        detectedTexts = detectedTexts.stream()
-                .map(String::toUpperCase)
-                .map(text -> text.replaceAll("[^A-Z0-9]", "")) // Remove periods, hyphens, spaces, etc.
-                .filter(text -> !text.isEmpty()) // Remove empty strings after cleanup
-                .map(this::correctOcrErrors)
-                .map(this::correctCharToDigitErrors)
-                .toList();
+        return assemble(detectedTexts, null);
+    }
+
+    /**
+     * Switch to a newer table of learned OCR corrections. Calls already running finish with the table they started with.
+     */
+    public void useCorrections(OcrCorrectionTable corrections) {
+        this.learnedCorrections = Objects.requireNonNull(corrections);
+    }
+
+    /**
+     * Check whether a single piece of text is a complete number plate on its own, e.g. a LINE like "MH 12 AB 1234".
+     * Applies the same normalization and OCR corrections as {@link #apply}, but no assembly.
+     *
+     * @param text The raw OCR text
+     * @return The normalized plate, or empty if the text isn't a complete plate with a valid state code
+     */
+    public Optional<String> matchCompletePlate(String text) {
+        String normalized = text.toUpperCase().replaceAll("[^A-Z0-9]", "");
+        if (normalized.length() < 2) {
+            return Optional.empty();
+        }
+        OcrCorrectionTable corrections = learnedCorrections;
+        normalized = correctCharToDigitErrors(correctOcrErrors(normalized, corrections), corrections);
+
+        boolean isDehli = normalized.startsWith("DL");
+        boolean complete = (isDehli ? DL_COMPLETE_PATTERN : STANDARD_COMPLETE_PATTERN).matcher(normalized).matches()
+                && STATE_PATTERN.matcher(normalized.substring(0, 2)).matches()
+                && knownRto(normalized, isDehli);
+        return complete ? Optional.of(normalized) : Optional.empty();
+    }
 
-        return assembleNumberPlate(detectedTexts);
+    /**
+     * The RTO a canonical plate is registered at, e.g. "MH12" for MH12AB1234 or "DL1" for DL1RK5954. Its first two
+     * letters are the state code.
+     *
+     * @param plate A plate as returned by {@link #apply} or {@link #matchCompletePlate}
+     * @return The RTO code, or empty if the plate isn't a complete plate with a valid state code
+     */
+    public Optional<String> rtoCode(String plate) {
+        if (plate == null || plate.length() < 2) {
+            return Optional.empty();
+        }
+        boolean isDehli = plate.startsWith("DL");
+        boolean complete = (isDehli ? DL_COMPLETE_PATTERN : STANDARD_COMPLETE_PATTERN).matcher(plate).matches()
+                && STATE_PATTERN.matcher(plate.substring(0, 2)).matches()
+                && knownRto(plate, isDehli);
+        return complete ? Optional.of(plate.substring(0, isDehli ? 3 : 4)) : Optional.empty();
     }
 
     /*
-     * If we only have 2 detections, we can assume we've found the number plate, so just concatenate them.
-     * Otherwise if we have more than 2 detections, need to apply some logic to
-     * determine which words are most likely to be the number plate
-     * For example the detectedTexts at this point could be: [CNG, RECNG, atrone,
-     * OLIRE, T.S.R, 5021]
-     * The text with the most digits is likely to be the number part of the plate,
-     * so we can count the digits in each detected text and pick the one with the
-     * most digits
-     * And we can see if other word matches pass the regexes for state code, RTO
-     * code, or series code, and if they do, we can assume they're part of the
-     * number plate as well.
+     * Whether the RTO code of a plate that already matches the plate pattern is in the registry
      */
-    private String assembleNumberPlate(List<String> detectedTexts){
-        
-        String detectedPlate = null;    
+    private static boolean knownRto(String plate, boolean isDehli) {
+        int code = isDehli ? plate.charAt(2) - '0' : (plate.charAt(2) - '0') * 10 + plate.charAt(3) - '0';
+        return RTO_REGISTRY.contains(RTO_REGISTRY.state(plate.charAt(0), plate.charAt(1)), code);
+    }
 
-        if (detectedTexts.isEmpty()) {
-                return "No text detected";
+    /**
+     * Assemble the most likely number plate from OCR words in reading order, weighting each word by its confidence
+     *
+     * @param detectedTexts The words, e.g. [CNG, RECNG, atrone, OLIRE, T.S.R, 5021]
+     * @param confidences Rekognition's confidence (0-100) for each word, or null if unknown
+     * @return The plate, or an error message starting with "Invalid" (or "No text detected")
+     */
+    public String assemble(List<String> detectedTexts, List<Float> confidences) {
+        List<String> words = new ArrayList<>(detectedTexts.size());
+        float[] wordConfidences = new float[detectedTexts.size()];
+        for (int i = 0; i < detectedTexts.size(); i++) {
+            String word = detectedTexts.get(i).toUpperCase().replaceAll("[^A-Z0-9]", "");
+            if (!word.isEmpty()) {
+                Float confidence = confidences == null ? null : confidences.get(i);
+                wordConfidences[words.size()] = confidence == null ? Float.NaN : confidence;
+                words.add(word);
+            }
         }
+        return assembleNormalized(words, wordConfidences);
+    }
 
-        if (detectedTexts.size() == 1) {
-            detectedPlate = detectedTexts.get(0);
-        } else if (detectedTexts.size() == 2) {
-            detectedPlate = detectedTexts.stream().collect(Collectors.joining());
-        } else {
-            int numberPartIdx = detectedTexts.stream()
-                    .max(Comparator.comparingInt(s -> (int) s.chars()
-                            .filter(Character::isDigit)
-                            .count()))
-                    .map(detectedTexts::indexOf)
-                    .orElse(-1);
-
-            List<String> matches = new ArrayList<>();
-
-            // For every text detection, see how many regexes it matches (state code, RTO code, series code), 
-            // and if it matches enough regexes based on its length, then we can be reasonably sure it's part of the number plate 
-            // and add it to the matches list.
-            for (int i = 0; i < numberPartIdx; i++) {
-                String otherText = detectedTexts.get(i);
-                int matchCount = 0;
-                StringBuilder matchedRegexes = new StringBuilder("[");
-                
-                // Check state code (first 2 chars)
-                if (otherText.length() >= 2 && otherText.substring(0, 2).matches(STATE_REGEX)) {
-                    matchCount++;
-                    matchedRegexes.append("STATE,");
-                }
-                
-                // Check RTO code based on state
-                if (otherText.length() >= 3) {
-                    String statePrefix = otherText.substring(0, 2);
-                    if (statePrefix.equals("DL")) {
-                        // Delhi: check 3 chars (DL + 1 digit)
-                        if (otherText.substring(0, 3).matches(DL_RTO_REGEX)) {
-                            matchCount++;
-                            matchedRegexes.append("DL_RTO,");
-                        }
-                    } else if (otherText.length() >= 4) {
-                        // Standard: check 4 chars (state + 2 digits)
-                        if (otherText.substring(0, 4).matches(STANDARD_RTO_REGEX)) {
-                            matchCount++;
-                            matchedRegexes.append("STANDARD_RTO,");
-                        }
+    /**
+     * Same as {@link #assemble(List, List)} for words of a detection batch, normalized straight from its text arena
+     *
+     * @param batch The text detections
+     * @param indexes The candidate words, in reading order
+     */
+    public String assemble(DetectionBatch batch, int[] indexes) {
+        List<String> words = new ArrayList<>(indexes.length);
+        float[] wordConfidences = new float[indexes.length];
+        char[] text = batch.textChars();
+        for (int index : indexes) {
+            String word = normalize(text, batch.textStart(index), batch.textEnd(index));
+            if (!word.isEmpty()) {
+                wordConfidences[words.size()] = batch.confidence(index);
+                words.add(word);
+            }
+        }
+        return assembleNormalized(words, wordConfidences);
+    }
+
+    private String assembleNormalized(List<String> words, float[] confidences) {
+        if (words.isEmpty()) {
+            return "No text detected";
+        }
+
+        OcrCorrectionTable corrections = learnedCorrections;
+        Optional<String> plate = searchPlate(words, confidences, corrections);
+        if (plate.isPresent()) {
+            return plate.get();
+        }
+        return diagnose(words, corrections);
+    }
+
+    /*
+     * Uppercase letters and digits only, the same as toUpperCase().replaceAll("[^A-Z0-9]", "") without the regex.
+     */
+    private static String normalize(char[] text, int from, int to) {
+        char[] normalized = new char[to - from];
+        int length = 0;
+        for (int i = from; i < to; i++) {
+            char c = Character.toUpperCase(text[i]);
+            if ((c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) {
+                normalized[length++] = c;
+            }
+        }
+        return new String(normalized, 0, length);
+    }
+
+    /*
+     * Search the words for the best scoring plate, Viterbi style.
+     *
+     * The plate grammar is a small automaton over characters: state code, RTO digits (2, or 1 for Delhi), 1 to 3
+     * series letters, then 4 digits. A plate has to start at the start of a word, and its first two characters decide
+     * the state code (and so the Delhi or standard RTO length). Every other step is decided by the character, so
+     * feeding a word through the automaton from a given state leads to at most one state.
+     *
+     * best[i][q] is the best score of a partial plate whose last word is word i, leaving the automaton in state q.
+     * It extends from best[j][q'] for the few words j just before i, so stray words inside a plate ("AP13", "T.S.R",
+     * "V7951") can be skipped at a cost, while words before or after the plate cost nothing. Scores are log
+     * probabilities: each word used adds log(confidence), each skipped word and each OCR correction adds a penalty.
+     * There are n words, at most MAX_SKIPPED + 1 predecessors each, and K automaton states, so this is O(n * k).
+     *
+     * A plate whose number part was read before the rest (a two row plate read bottom row first) is also tried, by
+     * completing a plate that is only missing its number with a 4 digit word from before it. numberBefore[m][a] is the
+     * best such word among the first m words for the a'th AWAITING_NUMBER state. It's carried forward a word at a time,
+     * and only once some plate is waiting for its number, so completing a plate is O(1) and the whole search stays
+     * O(n * k).
+     */
+    private Optional<String> searchPlate(List<String> words, float[] confidences, OcrCorrectionTable corrections) {
+        int n = words.size();
+        // The registry row of the state code each word would start a plate with
+        int[] stateRows = new int[n];
+        double[][] best = new double[n][PlateGrammar.STATES];
+        int[][] previousWord = new int[n][PlateGrammar.STATES];
+        int[][] previousState = new int[n][PlateGrammar.STATES];
+        int[][] firstWord = new int[n][PlateGrammar.STATES];
+        for (double[] row : best) {
+            Arrays.fill(row, Double.NEGATIVE_INFINITY);
+        }
+
+        double bestScore = Double.NEGATIVE_INFINITY;
+        int bestEnd = -1;
+        int bestNumberWord = -1;
+        int bestNumberState = -1;
+        double[][] numberBefore = null;
+        int[][] numberWordBefore = null;
+        int numberScanned = 0;
+
+        for (int i = 0; i < n; i++) {
+            String word = words.get(i);
+            double emission = emission(confidences[i]);
+
+            // Start a new plate with this word
+            stateRows[i] = PlateGrammar.stateRow(word, corrections);
+            PlateGrammar.Step start = PlateGrammar.start(word, stateRows[i], corrections);
+            if (start != null) {
+                relax(best, previousWord, previousState, firstWord, i, start, emission, -1, -1, i);
+            }
+
+            // Or continue a plate that ended a word or two earlier
+            for (int j = i - 1; j >= 0 && j >= i - 1 - MAX_SKIPPED; j--) {
+                double skipped = (i - j - 1) * SKIPPED_WORD_PENALTY;
+                for (int q = 0; q < PlateGrammar.STATES; q++) {
+                    if (best[j][q] == Double.NEGATIVE_INFINITY || q == PlateGrammar.ACCEPT) {
+                        continue;
                     }
-                }
-                
-                // Check series code (extract middle portion)
-                if (otherText.length() >= 4) {
-                    String statePrefix = otherText.substring(0, 2);
-                    if (statePrefix.equals("DL") && otherText.length() >= 5) {
-                        // Delhi: series starts at position 3 (after DL1)
-                        String series = otherText.substring(3, Math.min(6, otherText.length()));
-                        // Extract just letters before any digits
-                        String seriesLetters = series.replaceAll("\\d.*$", "");
-                        if (!seriesLetters.isEmpty() && seriesLetters.matches(STANDARD_SERIES_REGEX)) {
-                            matchCount++;
-                            matchedRegexes.append("DL_SERIES,");
-                        }
-                    } else if (otherText.length() >= 5) {
-                        // Standard: series starts at position 4 (after state + 2 digits)
-                        String series = otherText.substring(4, Math.min(7, otherText.length()));
-                        // Extract just letters before any digits
-                        String seriesLetters = series.replaceAll("\\d.*$", "");
-                        if (!seriesLetters.isEmpty() && seriesLetters.matches(STANDARD_SERIES_REGEX)) {
-                            matchCount++;
-                            matchedRegexes.append("STANDARD_SERIES,");
-                        }
+                    PlateGrammar.Step step = PlateGrammar.feed(q, word, 0, stateRows[firstWord[j][q]],
+                            PlateGrammar.firstRtoDigit(q, words.get(j), corrections), corrections);
+                    if (step != null) {
+                        relax(best, previousWord, previousState, firstWord, i, step, best[j][q] + skipped + emission,
+                                j, q, firstWord[j][q]);
                     }
                 }
-                
-                // Validate based on word length
-                boolean isValid = false;
-                if (otherText.length() == 2) {
-                    // Should match state OR be 2 digits
-                    isValid = matchCount == 1 || otherText.matches("^\\d{2}$");
-                } else if (otherText.length() == 3) {
-                    // Should match state + RTO (Delhi) = 2 matches
-                    isValid = matchCount == 2;
-                } else if (otherText.length() == 4) {
-                    // Should match state + RTO (standard) = 2 matches
-                    isValid = matchCount == 2;
-                } else if (otherText.length() >= 5) {
-                    // Should match state + RTO + series = 3 matches
-                    isValid = matchCount == 3;
-                } else {
-                    // Handle longer words?
+            }
+
+            if (best[i][PlateGrammar.ACCEPT] > bestScore) {
+                bestScore = best[i][PlateGrammar.ACCEPT];
+                bestEnd = i;
+                bestNumberWord = -1;
+            }
+
+            // A plate missing only its number, completed by a number read before the plate started
+            for (int a = 0; a < PlateGrammar.AWAITING_NUMBER.length; a++) {
+                int q = PlateGrammar.AWAITING_NUMBER[a];
+                if (best[i][q] == Double.NEGATIVE_INFINITY) {
+                    continue;
+                }
+                if (numberBefore == null) {
+                    numberBefore = new double[n + 1][PlateGrammar.AWAITING_NUMBER.length];
+                    numberWordBefore = new int[n + 1][PlateGrammar.AWAITING_NUMBER.length];
+                    Arrays.fill(numberBefore[0], Double.NEGATIVE_INFINITY);
+                }
+                for (; numberScanned < i; numberScanned++) {
+                    carryNumberForward(numberBefore, numberWordBefore, numberScanned, words, confidences, corrections);
+                }
+
+                int plateStart = firstWord[i][q];
+                if (numberBefore[plateStart][a] == Double.NEGATIVE_INFINITY) {
+                    continue;
                 }
-                
-                // Log the regex matches
-                String regexList = matchedRegexes.length() > 1 
-                    ? matchedRegexes.substring(0, matchedRegexes.length() - 1) + "]" 
-                    : "[]";
-                log.info("Word: '{}' (length: {}) - Matched regexes: {} - Match count: {} - Valid: {}", 
-                    otherText, otherText.length(), regexList, matchCount, isValid);
-                    
-                if (isValid) {
-                    matches.add(otherText);
+                double score = best[i][q] + numberBefore[plateStart][a] + OUT_OF_ORDER_PENALTY;
+                if (score > bestScore) {
+                    bestScore = score;
+                    bestEnd = i;
+                    bestNumberWord = numberWordBefore[plateStart][a];
+                    bestNumberState = q;
                 }
             }
+        }
+
+        if (bestEnd < 0) {
+            return Optional.empty();
+        }
+
+        // Walk the back pointers to recover the words
+        List<String> path = new ArrayList<>();
+        int state = bestNumberWord < 0 ? PlateGrammar.ACCEPT : bestNumberState;
+        for (int i = bestEnd; i >= 0; ) {
+            path.add(0, words.get(i));
+            int previous = previousWord[i][state];
+            state = previousState[i][state];
+            i = previous;
+        }
+        if (bestNumberWord >= 0) {
+            path.add(words.get(bestNumberWord));
+        }
+
+        String plate = correctCharToDigitErrors(correctOcrErrors(String.join("", path), corrections), corrections);
+        log.info("Assembled '{}' from {} (score {})", plate, path, String.format("%.2f", bestScore));
+        return Optional.of(plate);
+    }
+
+    /*
+     * Extends numberBefore by word k: for each state awaiting a number, word k takes over if it completes the plate
+     * from that state and counts for more than the best word before it. Ties keep the earlier word.
+     */
+    private static void carryNumberForward(double[][] numberBefore, int[][] numberWordBefore, int k,
+            List<String> words, float[] confidences, OcrCorrectionTable corrections) {
+        for (int a = 0; a < PlateGrammar.AWAITING_NUMBER.length; a++) {
+            numberBefore[k + 1][a] = numberBefore[k][a];
+            numberWordBefore[k + 1][a] = numberWordBefore[k][a];
+            PlateGrammar.Step step = PlateGrammar.feed(PlateGrammar.AWAITING_NUMBER[a], words.get(k), 0,
+                    RtoRegistry.NO_STATE, -1, corrections);
+            double score = emission(confidences[k]);
+            if (step != null && step.state == PlateGrammar.ACCEPT && score > numberBefore[k + 1][a]) {
+                numberBefore[k + 1][a] = score;
+                numberWordBefore[k + 1][a] = k;
+            }
+        }
+    }
+
+    private void relax(double[][] best, int[][] previousWord, int[][] previousState, int[][] firstWord, int i,
+            PlateGrammar.Step step, double score, int fromWord, int fromState, int start) {
+        double total = score + step.corrections * CORRECTION_PENALTY;
+        if (total > best[i][step.state]) {
+            best[i][step.state] = total;
+            previousWord[i][step.state] = fromWord;
+            previousState[i][step.state] = fromState;
+            firstWord[i][step.state] = start;
+        }
+    }
+
+    // An unknown (NaN) confidence counts for nothing either way
+    private static double emission(float confidence) {
+        return Float.isNaN(confidence) ? 0 : Math.log(Math.max(1f, Math.min(100f, confidence)) / 100.0);
+    }
+
+    /*
+     * No plate could be assembled, explain what is wrong with the most plausible candidate, using the same messages
+     * as always. One or two words are taken together. With more, the candidate runs from the first word that starts
+     * with a state code to the word with the most digits after it.
+     */
+    private String diagnose(List<String> words, OcrCorrectionTable corrections) {
+        List<String> corrected = words.stream()
+                .map(word -> correctOcrErrors(word, corrections))
+                .map(word -> correctCharToDigitErrors(word, corrections))
+                .toList();
 
-            if (!matches.isEmpty()) {
-                detectedPlate = String.join("", matches) + detectedTexts.get(numberPartIdx);
+        String detectedPlate = null;
+        if (corrected.size() <= 2) {
+            detectedPlate = String.join("", corrected);
+        } else {
+            int first = -1;
+            for (int i = 0; i < corrected.size() && first < 0; i++) {
+                if (corrected.get(i).length() >= 2 && STATE_PATTERN.matcher(corrected.get(i).substring(0, 2)).matches()) {
+                    first = i;
+                }
+            }
+            if (first >= 0) {
+                int numberPart = first;
+                for (int i = first + 1; i < corrected.size(); i++) {
+                    if (digitCount(corrected.get(i)) > digitCount(corrected.get(numberPart))) {
+                        numberPart = i;
+                    }
+                }
+                detectedPlate = String.join("", corrected.subList(first, numberPart + 1));
             }
         }
 
         Objects.requireNonNull(detectedPlate, "No valid number plate detected");
 
         // Use Delhi-specific or standard regex based on state code
-        String stateCode = detectedPlate.substring(0, 2);
-        boolean isDehli = stateCode.equals("DL");
-        
-        // Validate complete plate format
-        boolean validNumber = isDehli 
-            ? detectedPlate.matches(DL_COMPLETE_REGEX) 
-            : detectedPlate.matches(STANDARD_COMPLETE_REGEX);
-
-        if (!validNumber) {
-            // Try to provide more specific error message
-            // Check state code (first 2 chars)
-            if (detectedPlate.length() < 2 || !detectedPlate.substring(0, 2).matches(STATE_REGEX)) {
-                return "Invalid state code";
+        boolean isDehli = detectedPlate.startsWith("DL");
+
+        // Try to provide more specific error message
+        // Check state code (first 2 chars)
+        if (detectedPlate.length() < 2 || !detectedPlate.substring(0, 2).matches(STATE_REGEX)) {
+            return "Invalid state code";
+        }
+        // Extract and validate RTO component
+        int rtoLength = isDehli ? 3 : 4;
+        if (detectedPlate.length() < rtoLength) {
+            return "Invalid RTO code";
+        }
+        String rto = detectedPlate.substring(0, rtoLength);
+        if (!rto.matches(isDehli ? DL_RTO_REGEX : STANDARD_RTO_REGEX) || !knownRto(rto, isDehli)) {
+            return "Invalid RTO code";
+        }
+        return "Invalid plate format";
+    }
+
+    private static int digitCount(String text) {
+        return (int) text.chars().filter(Character::isDigit).count();
+    }
+
+    /*
+     * The plate grammar as a character automaton. States are numbered by phase and position:
+     * RTO digit positions for standard and Delhi plates, series letter counts, number digit counts, then ACCEPT.
+     */
+    private static final class PlateGrammar {
+        private static final int STANDARD_RTO = 0;  // 0..1: standard RTO digits read so far
+        private static final int DELHI_RTO = 2;     // Delhi RTO, 0 digits read
+        private static final int SERIES = 3;        // 3..6: 0..3 series letters read
+        private static final int NUMBER = 7;        // 7..10: 1..4 number digits read (10 is complete)
+        private static final int ACCEPT = 10;
+        private static final int STATES = 11;
+        // Series read (1 to 3 letters), only the number is missing
+        private static final int[] AWAITING_NUMBER = { SERIES + 1, SERIES + 2, SERIES + 3 };
+
+        // Where feeding a word through the automaton ended up, and how many characters had to be corrected on the way
+        private static final class Step {
+            private final int state;
+            private final int corrections;
+
+            Step(int state, int corrections) {
+                this.state = state;
+                this.corrections = corrections;
             }
-            // Extract and validate RTO component
-            int rtoLength = isDehli ? 3 : 4;
-            if (detectedPlate.length() < rtoLength) {
-                return "Invalid RTO code";
+        }
+
+        private static final int DELHI = RTO_REGISTRY.state('D', 'L');
+
+        /*
+         * The registry row of the (possibly misread) state code a word starts with, or NO_STATE
+         */
+        static int stateRow(String word, OcrCorrectionTable learned) {
+            if (word.length() < 2) {
+                return RtoRegistry.NO_STATE;
             }
-            String rto = detectedPlate.substring(0, rtoLength);
-            if (!rto.matches(isDehli ? DL_RTO_REGEX : STANDARD_RTO_REGEX)) {
-                return "Invalid RTO code";
+            String stateCode = correctOcrErrors(word.substring(0, 2), learned);
+            return RTO_REGISTRY.state(stateCode.charAt(0), stateCode.charAt(1));
+        }
+
+        /*
+         * Start a plate with this word: its first two characters have to be a (possibly misread) state code.
+         */
+        static Step start(String word, int stateRow, OcrCorrectionTable learned) {
+            if (stateRow == RtoRegistry.NO_STATE) {
+                return null;
             }
-            return "Invalid plate format";
+            int corrections = RTO_REGISTRY.state(word.charAt(0), word.charAt(1)) == stateRow ? 0 : 1;
+            Step step = feed(stateRow == DELHI ? DELHI_RTO : STANDARD_RTO, word, 2, stateRow, -1, learned);
+            return step == null ? null : new Step(step.state, step.corrections + corrections);
+        }
+
+        /*
+         * The first RTO digit of a plate whose last word ended in the middle of its RTO code, or -1
+         */
+        static int firstRtoDigit(int state, String lastWord, OcrCorrectionTable learned) {
+            return state == STANDARD_RTO + 1
+                    ? rtoDigit(lastWord.charAt(lastWord.length() - 1), OcrCorrectionTable.RTO_FIRST, learned)
+                    : -1;
         }
-        return detectedPlate;
-    }
 
+        /*
+         * Feed the word's characters from the given offset through the automaton. While reading the RTO code it needs
+         * the plate's state code (its registry row) and, after the first digit, that digit.
+         * Returns null if the word doesn't fit, e.g. a letter where the number should be, an RTO code the state
+         * doesn't have, or characters after ACCEPT.
+         */
+        static Step feed(int state, String word, int offset, int stateRow, int firstDigit, OcrCorrectionTable learned) {
+            int corrections = 0;
+            for (int i = offset; i < word.length(); i++) {
+                char c = word.charAt(i);
+                boolean digit = Character.isDigit(c);
+                if (state == STANDARD_RTO || state == STANDARD_RTO + 1 || state == DELHI_RTO) {
+                    // The RTO code is always digits, so common letter for digit misreads are corrected
+                    int part = state == STANDARD_RTO + 1 ? OcrCorrectionTable.RTO_SECOND : OcrCorrectionTable.RTO_FIRST;
+                    int rtoDigit = rtoDigit(c, part, learned);
+                    if (rtoDigit < 0) {
+                        return null;
+                    }
+                    if (rtoDigit != c - '0') {
+                        corrections++;
+                    }
+                    // Pruned as soon as no RTO code of the state can start with (or be) the digits read so far
+                    if (state == STANDARD_RTO) {
+                        if (!RTO_REGISTRY.startsWith(stateRow, rtoDigit)) {
+                            return null;
+                        }
+                        firstDigit = rtoDigit;
+                        state = STANDARD_RTO + 1;
+                    } else {
+                        int code = state == DELHI_RTO ? rtoDigit : firstDigit * 10 + rtoDigit;
+                        if (!RTO_REGISTRY.contains(stateRow, code)) {
+                            return null;
+                        }
+                        state = SERIES;
+                    }
+                } else if (state >= SERIES && state < NUMBER) {
+                    int letters = state - SERIES;
+                    if (!digit && letters < 3) {
+                        state++;
+                    } else if (digit && letters > 0) {
+                        state = NUMBER;
+                    } else {
+                        return null;
+                    }
+                } else if (state >= NUMBER && state < ACCEPT) {
+                    if (!digit) {
+                        return null;
+                    }
+                    state++;
+                } else {
+                    return null;
+                }
+            }
+            return new Step(state, corrections);
+        }
+    }
     
+    /*
+     * The digit a character in an RTO code stands for, reading it the way correctCharToDigitErrors corrects it (a
+     * learned correction first), or -1 if it can't be a digit
+     */
+    private static int rtoDigit(char c, int part, OcrCorrectionTable learned) {
+        // A digit is already a valid RTO character, a learned correction never changes it
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        char corrected = learned.correct(part, c);
+        if (corrected >= '0' && corrected <= '9') {
+            return corrected - '0';
+        }
+        return switch (c) {
+            case 'O', 'D' -> 0;
+            case 'I', 'L' -> 1;
+            case 'Z' -> 2;
+            case 'E' -> 3;
+            case 'A' -> 4;
+            case 'S' -> 5;
+            case 'G' -> 6;
+            case 'T' -> 7;
+            case 'B', 'R' -> 8;
+            default -> -1;
+        };
+    }
+
     /**
      * Corrects common OCR misreadings of state codes
      * 
      * @param text The text to correct
+     * @param learned Corrections learned from confirmed plates, tried first when the text doesn't start with a state code
      * @return Corrected text
      */
-    private String correctOcrErrors(String text) {
+    private static String correctOcrErrors(String text, OcrCorrectionTable learned) {
         if (text.length() < 2) {
             return text;
         }
@@ -215,6 +567,14 @@ public class NumberPlateValidationFn implements Function<List<String>, String> {
         String firstTwo = text.substring(0, 2);
         String rest = text.substring(2);
 
+        if (learned.size() > 0 && RTO_REGISTRY.state(firstTwo.charAt(0), firstTwo.charAt(1)) == RtoRegistry.NO_STATE) {
+            char first = learned.correct(OcrCorrectionTable.STATE_FIRST, firstTwo.charAt(0));
+            char second = learned.correct(OcrCorrectionTable.STATE_SECOND, firstTwo.charAt(1));
+            if (RTO_REGISTRY.state(first, second) != RtoRegistry.NO_STATE) {
+                return "" + first + second + rest;
+            }
+        }
+
         // Common OCR mistakes for Indian state codes
         String corrected = switch (firstTwo) {
             case "OL" -> "DL"; // O confused with D (Delhi)
@@ -246,9 +606,10 @@ public class NumberPlateValidationFn implements Function<List<String>, String> {
      * Delhi (DL) uses 1-digit RTO codes, all other states use 2-digit codes.
      * 
      * @param text The text to correct
+     * @param learned Corrections learned from confirmed plates, tried before the built in ones
      * @return Corrected text with digit substitutions
      */
-    private String correctCharToDigitErrors(String text) {
+    private String correctCharToDigitErrors(String text, OcrCorrectionTable learned) {
         if (text.length() < 3) {
             return text;
         }
@@ -261,6 +622,19 @@ public class NumberPlateValidationFn implements Function<List<String>, String> {
         int rtoEndIndex = Math.min(2 + rtoLength, text.length());
         
         String rtoCode = text.substring(2, rtoEndIndex);
+        if (learned.size() > 0) {
+            char[] rto = rtoCode.toCharArray();
+            for (int i = 0; i < rto.length; i++) {
+                if (Character.isDigit(rto[i])) {
+                    continue;
+                }
+                char corrected = learned.correct(i == 0 ? OcrCorrectionTable.RTO_FIRST : OcrCorrectionTable.RTO_SECOND, rto[i]);
+                if (corrected >= '0' && corrected <= '9') {
+                    rto[i] = corrected;
+                }
+            }
+            rtoCode = new String(rto);
+        }
         String rest = text.length() > rtoEndIndex ? text.substring(rtoEndIndex) : "";
 
         // Correct common character-to-digit OCR mistakes in RTO code
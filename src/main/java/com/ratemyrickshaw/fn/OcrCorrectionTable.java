@@ -0,0 +1,121 @@
+package com.ratemyrickshaw.fn;
+
+/*
+OCR corrections learned from confirmed plates, for the parts of a plate validation corrects: the two state code
+letters and the RTO digits. Never changes once built, a new table is built from newer counts instead.
+
+The logic is as follows:
+1. The counts say, for each part, how often a character was read as each other character. A reading of 'N' at the
+   start of a plate that turned out to be 'M' adds one to (STATE_FIRST, N, M).
+2. For each part and read character, the character it most often turned out to be is its correction, if that isn't
+   the read character itself, has been seen at least the minimum number of times and makes up at least the minimum
+   share of everything that read character turned out to be.
+3. A lookup is one array read, the table is a flat char[] of part x read character.
+*/
+public final class OcrCorrectionTable {
+
+    public static final int STATE_FIRST = 0;
+    public static final int STATE_SECOND = 1;
+    public static final int RTO_FIRST = 2;
+    public static final int RTO_SECOND = 3;
+    public static final int PARTS = 4;
+    public static final int SYMBOLS = 36;
+
+    public static final OcrCorrectionTable NONE = new OcrCorrectionTable(new char[PARTS * SYMBOLS], 0);
+
+    private final char[] corrections;
+    private final int size;
+
+    private OcrCorrectionTable(char[] corrections, int size) {
+        this.corrections = corrections;
+        this.size = size;
+    }
+
+    /**
+     * @param counts How often each character was read as each other, indexed by {@link #index}
+     * @param minObservations A correction has to have been seen at least this many times
+     * @param minShare And be at least this share (0-1) of what its read character turned out to be
+     */
+    public static OcrCorrectionTable build(long[] counts, long minObservations, double minShare) {
+        if (counts.length != PARTS * SYMBOLS * SYMBOLS) {
+            throw new IllegalArgumentException("Expected " + PARTS * SYMBOLS * SYMBOLS + " counts, got " + counts.length);
+        }
+        char[] corrections = new char[PARTS * SYMBOLS];
+        int size = 0;
+        for (int part = 0; part < PARTS; part++) {
+            for (int read = 0; read < SYMBOLS; read++) {
+                long total = 0;
+                int likeliest = read;
+                for (int actual = 0; actual < SYMBOLS; actual++) {
+                    long count = counts[index(part, read, actual)];
+                    total += count;
+                    if (count > counts[index(part, read, likeliest)]) {
+                        likeliest = actual;
+                    }
+                }
+                long observed = counts[index(part, read, likeliest)];
+                if (likeliest != read && observed >= minObservations && observed >= minShare * total) {
+                    corrections[part * SYMBOLS + read] = character(likeliest);
+                    size++;
+                }
+            }
+        }
+        return size == 0 ? NONE : new OcrCorrectionTable(corrections, size);
+    }
+
+    /**
+     * @return What a character read in this part of a plate should be, or the character itself if there is no
+     *         correction for it
+     */
+    public char correct(int part, char read) {
+        int symbol = symbol(read);
+        if (symbol < 0) {
+            return read;
+        }
+        char corrected = corrections[part * SYMBOLS + symbol];
+        return corrected == 0 ? read : corrected;
+    }
+
+    /**
+     * @return How many corrections the table has
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Where the count of a character read as another is in a counts array
+     */
+    public static int index(int part, int read, int actual) {
+        return (part * SYMBOLS + read) * SYMBOLS + actual;
+    }
+
+    /**
+     * @return 0-9 for digits, 10-35 for A-Z, or -1 for anything else
+     */
+    public static int symbol(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'A' && c <= 'Z') {
+            return 10 + c - 'A';
+        }
+        return -1;
+    }
+
+    static char character(int symbol) {
+        return (char) (symbol < 10 ? '0' + symbol : 'A' + symbol - 10);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < corrections.length; i++) {
+            if (corrections[i] != 0) {
+                text.append(text.length() == 0 ? "" : ", ")
+                        .append(i / SYMBOLS).append(':').append(character(i % SYMBOLS)).append("->").append(corrections[i]);
+            }
+        }
+        return "OcrCorrectionTable[" + text + "]";
+    }
+}
@@ -0,0 +1,172 @@
+package com.ratemyrickshaw.fn;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+An immutable set of words with a perfect hash (hash and displace), so a lookup is two hashes of the
+word and one comparison, whatever the size of the set, and never allocates.
+
+The logic is as follows:
+1. Words are hashed into buckets of a few words each.
+2. Biggest bucket first, find a seed that sends every word in the bucket to a free slot of the table, and remember
+   the seed for the bucket. Small buckets almost always find one within a few tries.
+3. To look a word up, hash it to its bucket, hash it again with the bucket's seed to its slot, and compare it with
+   the word in that slot.
+Words are compared on their letters and digits only, ignoring case, so "R.T.O" and "rto" are the same word.
+*/
+final class PerfectHashSet {
+
+    private static final int WORDS_PER_BUCKET = 3;
+    private static final double LOAD_FACTOR = 0.8;
+    private static final int MAX_SEED = 1 << 20;
+
+    private final int[] seeds;
+    private final String[] slots;
+
+    PerfectHashSet(List<String> words) {
+        List<String> distinct = words.stream().map(PerfectHashSet::normalize).filter(word -> !word.isEmpty())
+                .distinct().toList();
+        int bucketCount = Math.max(1, (distinct.size() + WORDS_PER_BUCKET - 1) / WORDS_PER_BUCKET);
+        this.seeds = new int[bucketCount];
+        this.slots = new String[Math.max(1, (int) Math.ceil(distinct.size() / LOAD_FACTOR))];
+
+        List<List<String>> buckets = new ArrayList<>(bucketCount);
+        for (int i = 0; i < bucketCount; i++) {
+            buckets.add(new ArrayList<>());
+        }
+        for (String word : distinct) {
+            buckets.get(index(hash(word.toCharArray(), 0, word.length(), 0), bucketCount)).add(word);
+        }
+
+        List<Integer> order = new ArrayList<>(bucketCount);
+        for (int i = 0; i < bucketCount; i++) {
+            order.add(i);
+        }
+        order.sort(Comparator.comparingInt((Integer bucket) -> buckets.get(bucket).size()).reversed());
+
+        int[] taken = new int[buckets.stream().mapToInt(List::size).max().orElse(0)];
+        for (int bucket : order) {
+            List<String> members = buckets.get(bucket);
+            if (members.isEmpty()) {
+                break;
+            }
+            seeds[bucket] = place(members, taken);
+        }
+    }
+
+    /*
+     * The first seed that puts every word of the bucket in a free slot, distinct from each other.
+     */
+    private int place(List<String> members, int[] taken) {
+        for (int seed = 1; seed < MAX_SEED; seed++) {
+            int placed = 0;
+            for (String word : members) {
+                int slot = index(hash(word.toCharArray(), 0, word.length(), seed), slots.length);
+                boolean free = slots[slot] == null;
+                for (int i = 0; i < placed && free; i++) {
+                    free = taken[i] != slot;
+                }
+                if (!free) {
+                    break;
+                }
+                taken[placed++] = slot;
+            }
+            if (placed == members.size()) {
+                for (int i = 0; i < placed; i++) {
+                    slots[taken[i]] = members.get(i);
+                }
+                return seed;
+            }
+        }
+        throw new IllegalStateException("Unable to place the words " + members + " in the perfect hash table");
+    }
+
+    /**
+     * @return Whether chars[from, to) is one of the words
+     */
+    boolean contains(char[] chars, int from, int to) {
+        int seed = seeds[index(hash(chars, from, to, 0), seeds.length)];
+        if (seed == 0) {
+            return false;
+        }
+        String candidate = slots[index(hash(chars, from, to, seed), slots.length)];
+        return candidate != null && sameWord(candidate, chars, from, to);
+    }
+
+    int size() {
+        int size = 0;
+        for (String slot : slots) {
+            if (slot != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /*
+     * FNV-1a over the word's letters and digits, then a finalising mix so nearby seeds give unrelated hashes.
+     */
+    private static int hash(char[] chars, int from, int to, int seed) {
+        int hash = 0x811C9DC5 ^ (seed * 0x9E3779B9);
+        for (int i = from; i < to; i++) {
+            int code = code(chars[i]);
+            if (code >= 0) {
+                hash = (hash ^ code) * 0x01000193;
+            }
+        }
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        return hash;
+    }
+
+    private static int index(int hash, int length) {
+        return (hash & 0x7FFFFFFF) % length;
+    }
+
+    /*
+     * Compares a normalized entry with a word as read, skipping the word's punctuation.
+     */
+    private static boolean sameWord(String entry, char[] chars, int from, int to) {
+        int e = 0;
+        for (int i = from; i < to; i++) {
+            int code = code(chars[i]);
+            if (code < 0) {
+                continue;
+            }
+            if (e >= entry.length() || code(entry.charAt(e)) != code) {
+                return false;
+            }
+            e++;
+        }
+        return e == entry.length();
+    }
+
+    /**
+     * 0-25 for letters, 26-35 for digits, -1 for anything else
+     */
+    static int code(char c) {
+        if (c >= 'A' && c <= 'Z') {
+            return c - 'A';
+        }
+        if (c >= 'a' && c <= 'z') {
+            return c - 'a';
+        }
+        if (c >= '0' && c <= '9') {
+            return 26 + c - '0';
+        }
+        return -1;
+    }
+
+    static String normalize(String word) {
+        StringBuilder normalized = new StringBuilder(word.length());
+        for (int i = 0; i < word.length(); i++) {
+            if (code(word.charAt(i)) >= 0) {
+                normalized.append(Character.toUpperCase(word.charAt(i)));
+            }
+        }
+        return normalized.toString();
+    }
+}
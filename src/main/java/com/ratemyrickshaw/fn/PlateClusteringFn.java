@@ -0,0 +1,140 @@
+package com.ratemyrickshaw.fn;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+import com.ratemyrickshaw.model.DetectionBatch;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import lombok.extern.slf4j.Slf4j;
+
+/*
+Splits one text detection response into clusters of words that sit close together, so a photo of a rickshaw queue
+or a traffic junction can be read as several plates rather than one.
+
+The logic is as follows:
+1. Take the word level detections and sort them by their left edge.
+2. Link two words when the gap between their boxes is small compared to the text height: up to one text height
+   side by side, or half a text height above/below, which keeps the two rows of a two row plate together.
+   Words are swept left to right, so each word is only compared with words that could still be close enough.
+3. Join linked words into clusters (union find), biggest first, clusters of the same size left to right.
+4. Return each cluster as its own DetectionBatch, holding the cluster's words and the LINE detections they belong
+   to, so it can go through the same extraction and validation as a whole photo.
+*/
+@Slf4j
+@ApplicationScoped
+public class PlateClusteringFn implements Function<DetectionBatch, List<DetectionBatch>> {
+
+    private static final double HORIZONTAL_GAP_HEIGHTS = 1.0;
+    private static final double VERTICAL_GAP_HEIGHTS = 0.5;
+
+    @Override
+    public List<DetectionBatch> apply(DetectionBatch batch) {
+        int[] words = IntStream.range(0, batch.size())
+                .filter(i -> batch.isWord(i) && batch.hasBox(i))
+                .toArray();
+        DetectionBatch.sort(words, (a, b) -> Float.compare(batch.left(a), batch.left(b)));
+
+        if (words.length == 0) {
+            return List.of();
+        }
+
+        int[] parent = new int[words.length];
+        for (int i = 0; i < parent.length; i++) {
+            parent[i] = i;
+        }
+
+        // The tallest word bounds how far right a neighbour can start, so the inner loop can stop early
+        float maxHeight = 0;
+        for (int word : words) {
+            maxHeight = Math.max(maxHeight, batch.height(word));
+        }
+
+        for (int i = 0; i < words.length; i++) {
+            int word = words[i];
+            float reach = batch.left(word) + batch.width(word) + (float) (HORIZONTAL_GAP_HEIGHTS * maxHeight);
+            for (int j = i + 1; j < words.length && batch.left(words[j]) <= reach; j++) {
+                if (close(batch, word, words[j])) {
+                    union(parent, i, j);
+                }
+            }
+        }
+
+        // Each cluster holds its words left to right, roots are collected in the order their leftmost word appears
+        int[] sizes = new int[words.length];
+        List<Integer> roots = new ArrayList<>();
+        for (int i = 0; i < words.length; i++) {
+            int root = find(parent, i);
+            if (sizes[root]++ == 0) {
+                roots.add(root);
+            }
+        }
+        int[][] clusters = new int[words.length][];
+        int[] filled = new int[words.length];
+        for (int i = 0; i < words.length; i++) {
+            int root = find(parent, i);
+            if (clusters[root] == null) {
+                clusters[root] = new int[sizes[root]];
+            }
+            clusters[root][filled[root]++] = words[i];
+        }
+
+        // Biggest first, the sort is stable so clusters of the same size stay in left to right order
+        roots.sort(Comparator.comparingInt((Integer root) -> sizes[root]).reversed());
+        List<DetectionBatch> batches = roots.stream()
+                .map(root -> toBatch(batch, clusters[root]))
+                .toList();
+
+        log.info("Clustered {} words into {} regions: {}", words.length, batches.size(),
+                roots.stream()
+                        .map(root -> IntStream.of(clusters[root]).mapToObj(batch::text).toList())
+                        .toList());
+
+        return batches;
+    }
+
+    /*
+     * The gap between two boxes, measured against the taller of the two words.
+     * Negative gaps mean the boxes overlap on that axis.
+     */
+    private boolean close(DetectionBatch batch, int a, int b) {
+        float height = Math.max(batch.height(a), batch.height(b));
+        float horizontalGap = Math.max(batch.left(b) - (batch.left(a) + batch.width(a)),
+                batch.left(a) - (batch.left(b) + batch.width(b)));
+        float verticalGap = Math.max(batch.top(b) - (batch.top(a) + batch.height(a)),
+                batch.top(a) - (batch.top(b) + batch.height(b)));
+        return horizontalGap <= HORIZONTAL_GAP_HEIGHTS * height && verticalGap <= VERTICAL_GAP_HEIGHTS * height;
+    }
+
+    /*
+     * The cluster's LINE detections, by id, then its words.
+     */
+    private DetectionBatch toBatch(DetectionBatch batch, int[] words) {
+        int[] lines = IntStream.of(words)
+                .map(batch::parent)
+                .filter(line -> line >= 0 && batch.isLine(line))
+                .distinct()
+                .toArray();
+        DetectionBatch.sort(lines, (a, b) -> Integer.compare(batch.id(a), batch.id(b)));
+        return batch.select(IntStream.concat(IntStream.of(lines), IntStream.of(words)).toArray());
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        if (rootA != rootB) {
+            parent[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package com.ratemyrickshaw.fn;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+
+import com.ratemyrickshaw.model.PlateRegion;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import lombok.extern.slf4j.Slf4j;
+
+/*
+Finds the regions of an image that are likely to contain a number plate, so only those crops need to be sent for OCR.
+
+The logic is as follows:
+1. Downscale the image to a fixed working width and convert it to greyscale.
+2. Binarize with a local contrast threshold (pixel vs the mean of its neighbourhood), once for dark text on a light
+   plate and once for light text on a dark plate. This copes with shadows and uneven lighting on the vehicle body.
+3. Label connected components and keep the ones shaped like a single character.
+4. Chain characters of a similar height that sit next to each other on the same baseline into rows of text.
+   Random texture (gravel, foliage) produces blobs too, but they rarely line up into rows of 3+ similar characters.
+5. Merge rows stacked directly on top of each other, rickshaws usually carry two row plates (e.g. "MH03" over "V5823").
+6. Score every candidate on how close it is to Indian plate proportions (single row ~4.5:1, two rows ~1.7:1),
+   its character count and how consistent its character heights are, and return the best non-overlapping ones.
+*/
+@Slf4j
+@ApplicationScoped
+public class PlateLocalizationFn implements Function<BufferedImage, List<PlateRegion>> {
+
+    private static final int WORKING_WIDTH = 640;
+    private static final int MAX_REGIONS = 2;
+    private static final int CONTRAST_OFFSET = 12;
+    // Neighbourhood sizes as a fraction of the working width, the larger one catches plates that fill the frame
+    private static final int[] NEIGHBOURHOOD_RADII = { 32, 10 };
+
+    // Standard single row plates are 500x120mm, two row plates (as used on most rickshaws) are 340x200mm
+    private static final double SINGLE_ROW_ASPECT = 4.5;
+    private static final double TWO_ROW_ASPECT = 1.7;
+    private static final double ASPECT_TOLERANCE = 0.5; // in log space
+
+    private static final int MIN_CHAR_HEIGHT = 6;
+    private static final int MIN_CHARS_PER_ROW = 3;
+    private static final int PLATE_CHARS = 8;
+    private static final double HEIGHT_VARIATION = 0.1;
+
+    @Override
+    public List<PlateRegion> apply(BufferedImage image) {
+        double scale = Math.min(1.0, (double) WORKING_WIDTH / image.getWidth());
+        int w = Math.max(3, (int) Math.round(image.getWidth() * scale));
+        int h = Math.max(3, (int) Math.round(image.getHeight() * scale));
+
+        int[] grey = toGreyscale(image, w, h);
+        long[] integral = integralImage(grey, w, h);
+
+        List<int[]> candidates = new ArrayList<>();
+        for (int radius : NEIGHBOURHOOD_RADII) {
+            for (boolean darkText : new boolean[] { true, false }) {
+                boolean[] mask = localContrastMask(grey, integral, w, h, Math.max(8, w / radius), darkText);
+                List<int[]> characters = characterComponents(mask, w, h);
+                List<int[]> rows = textRows(characters);
+                candidates.addAll(rows);
+                candidates.addAll(stackedRows(rows));
+            }
+        }
+
+        List<PlateRegion> scored = new ArrayList<>();
+        for (int[] candidate : candidates) {
+            double score = score(candidate, w, h);
+            if (score > 0) {
+                scored.add(new PlateRegion(candidate[0], candidate[1],
+                        candidate[2] - candidate[0] + 1, candidate[3] - candidate[1] + 1, score));
+            }
+        }
+        scored.sort(Comparator.comparingDouble(PlateRegion::getScore).reversed());
+
+        // Keep the best regions that don't overlap a better one, mapped back to source pixels
+        List<PlateRegion> regions = new ArrayList<>();
+        for (PlateRegion candidate : scored) {
+            if (regions.size() == MAX_REGIONS) {
+                break;
+            }
+            if (regions.stream().noneMatch(r -> overlap(r, candidate) > 0.3)) {
+                regions.add(candidate);
+            }
+        }
+
+        log.debug("Plate regions: {} (from {} candidates)", regions, candidates.size());
+        return regions.stream()
+                .map(region -> toSource(region, scale, image.getWidth(), image.getHeight()))
+                .toList();
+    }
+
+    private int[] toGreyscale(BufferedImage image, int w, int h) {
+        BufferedImage grey = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = grey.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, w, h, null);
+        g.dispose();
+
+        byte[] data = ((DataBufferByte) grey.getRaster().getDataBuffer()).getData();
+        int[] pixels = new int[w * h];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = data[i] & 0xFF;
+        }
+        return pixels;
+    }
+
+    // Summed area table with a zero row/column, so any window mean is 4 lookups
+    private long[] integralImage(int[] grey, int w, int h) {
+        long[] integral = new long[(w + 1) * (h + 1)];
+        for (int y = 0; y < h; y++) {
+            long rowSum = 0;
+            for (int x = 0; x < w; x++) {
+                rowSum += grey[y * w + x];
+                integral[(y + 1) * (w + 1) + x + 1] = integral[y * (w + 1) + x + 1] + rowSum;
+            }
+        }
+        return integral;
+    }
+
+    private boolean[] localContrastMask(int[] grey, long[] integral, int w, int h, int radius, boolean darkText) {
+        boolean[] mask = new boolean[w * h];
+        for (int y = 0; y < h; y++) {
+            int y0 = Math.max(0, y - radius);
+            int y1 = Math.min(h, y + radius + 1);
+            for (int x = 0; x < w; x++) {
+                int x0 = Math.max(0, x - radius);
+                int x1 = Math.min(w, x + radius + 1);
+                long sum = integral[y1 * (w + 1) + x1] - integral[y0 * (w + 1) + x1]
+                        - integral[y1 * (w + 1) + x0] + integral[y0 * (w + 1) + x0];
+                int mean = (int) (sum / ((long) (x1 - x0) * (y1 - y0)));
+                int pixel = grey[y * w + x];
+                mask[y * w + x] = darkText ? pixel < mean - CONTRAST_OFFSET : pixel > mean + CONTRAST_OFFSET;
+            }
+        }
+        return mask;
+    }
+
+    /*
+     * 4-connected component labelling with an explicit stack. Returns the bounding boxes of components shaped
+     * like a single character, in the same layout as a row (see textRows) with a character count of 1.
+     */
+    private List<int[]> characterComponents(boolean[] mask, int w, int h) {
+        boolean[] visited = new boolean[w * h];
+        int[] stack = new int[w * h];
+        List<int[]> characters = new ArrayList<>();
+
+        for (int start = 0; start < mask.length; start++) {
+            if (!mask[start] || visited[start]) {
+                continue;
+            }
+            int minX = w, minY = h, maxX = -1, maxY = -1, count = 0;
+            int top = 0;
+            stack[top++] = start;
+            visited[start] = true;
+
+            while (top > 0) {
+                int p = stack[--top];
+                int x = p % w;
+                int y = p / w;
+                count++;
+                minX = Math.min(minX, x);
+                maxX = Math.max(maxX, x);
+                minY = Math.min(minY, y);
+                maxY = Math.max(maxY, y);
+
+                if (x > 0 && mask[p - 1] && !visited[p - 1]) { visited[p - 1] = true; stack[top++] = p - 1; }
+                if (x < w - 1 && mask[p + 1] && !visited[p + 1]) { visited[p + 1] = true; stack[top++] = p + 1; }
+                if (y > 0 && mask[p - w] && !visited[p - w]) { visited[p - w] = true; stack[top++] = p - w; }
+                if (y < h - 1 && mask[p + w] && !visited[p + w]) { visited[p + w] = true; stack[top++] = p + w; }
+            }
+
+            int bw = maxX - minX + 1;
+            int bh = maxY - minY + 1;
+            double tallness = (double) bh / bw;
+            double fill = (double) count / (bw * bh);
+
+            // Digits like "1" are thin and almost solid, so allow tall narrow shapes, but not wider than they are tall
+            if (bh >= MIN_CHAR_HEIGHT && bh <= h / 5
+                    && tallness >= 1.0 && tallness <= 6.0
+                    && fill >= 0.2 && (fill <= 0.9 || tallness >= 3.0)) {
+                characters.add(new int[] { minX, minY, maxX, maxY, 1, bh, bh * bh });
+            }
+        }
+        return characters;
+    }
+
+    /*
+     * Chains each character to its nearest neighbour on the right with a similar height and baseline.
+     * Sorted by left edge the neighbour search is a short forward scan, so this stays close to O(n log n).
+     * Returns row boxes {minX, minY, maxX, maxY, characterCount, sumOfHeights, sumOfSquaredHeights}.
+     */
+    private List<int[]> textRows(List<int[]> characters) {
+        characters.sort(Comparator.comparingInt(c -> c[0]));
+        int n = characters.size();
+        int[] next = new int[n];
+        boolean[] hasPrevious = new boolean[n];
+        Arrays.fill(next, -1);
+
+        for (int i = 0; i < n; i++) {
+            int[] c = characters.get(i);
+            int height = c[3] - c[1] + 1;
+            double centre = (c[1] + c[3]) / 2.0;
+            int best = -1;
+            int bestGap = Integer.MAX_VALUE;
+
+            for (int j = i + 1; j < n; j++) {
+                int[] o = characters.get(j);
+                int gap = o[0] - c[2];
+                if (gap > 1.5 * height) {
+                    break; // sorted by left edge, so everything after this is further away
+                }
+                int otherHeight = o[3] - o[1] + 1;
+                double ratio = (double) otherHeight / height;
+                double otherCentre = (o[1] + o[3]) / 2.0;
+                if (gap >= -height / 4 && gap < bestGap && !hasPrevious[j]
+                        && ratio >= 0.7 && ratio <= 1.4
+                        && Math.abs(otherCentre - centre) <= 0.4 * height) {
+                    best = j;
+                    bestGap = gap;
+                }
+            }
+            if (best >= 0) {
+                next[i] = best;
+                hasPrevious[best] = true;
+            }
+        }
+
+        List<int[]> rows = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            if (hasPrevious[i] || next[i] < 0) {
+                continue;
+            }
+            int[] row = characters.get(i).clone();
+            for (int j = next[i]; j >= 0; j = next[j]) {
+                int[] c = characters.get(j);
+                row[0] = Math.min(row[0], c[0]);
+                row[1] = Math.min(row[1], c[1]);
+                row[2] = Math.max(row[2], c[2]);
+                row[3] = Math.max(row[3], c[3]);
+                row[4]++;
+                row[5] += c[5];
+                row[6] += c[6];
+            }
+            if (row[4] >= MIN_CHARS_PER_ROW) {
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    /*
+     * Pairs of rows where one sits directly under the other with a similar height and horizontal extent,
+     * i.e. the two halves of a two row plate.
+     */
+    private List<int[]> stackedRows(List<int[]> rows) {
+        List<int[]> stacked = new ArrayList<>();
+        for (int[] upper : rows) {
+            int upperHeight = upper[3] - upper[1] + 1;
+            int upperWidth = upper[2] - upper[0] + 1;
+            for (int[] lower : rows) {
+                if (lower == upper || lower[1] <= upper[1]) {
+                    continue;
+                }
+                int lowerHeight = lower[3] - lower[1] + 1;
+                int lowerWidth = lower[2] - lower[0] + 1;
+                int gap = lower[1] - upper[3];
+                int overlap = Math.min(upper[2], lower[2]) - Math.max(upper[0], lower[0]) + 1;
+                double heightRatio = (double) upperHeight / lowerHeight;
+
+                // Gap can be negative, on a tilted plate the end of the top row dips below the start of the bottom row
+                double centreDistance = (lower[1] + lower[3]) / 2.0 - (upper[1] + upper[3]) / 2.0;
+                if (gap <= 0.8 * Math.max(upperHeight, lowerHeight)
+                        && centreDistance >= 0.6 * Math.max(upperHeight, lowerHeight)
+                        && overlap >= 0.5 * Math.min(upperWidth, lowerWidth)
+                        && heightRatio >= 0.6 && heightRatio <= 1.6) {
+                    stacked.add(new int[] {
+                            Math.min(upper[0], lower[0]), upper[1], Math.max(upper[2], lower[2]), lower[3],
+                            upper[4] + lower[4], upper[5] + lower[5], upper[6] + lower[6] });
+                }
+            }
+        }
+        return stacked;
+    }
+
+    private double score(int[] candidate, int w, int h) {
+        int bw = candidate[2] - candidate[0] + 1;
+        int bh = candidate[3] - candidate[1] + 1;
+        if ((double) bw * bh < 0.0005 * w * h) {
+            return 0;
+        }
+
+        double logAspect = Math.log((double) bw / bh);
+        double aspectScore = Math.max(
+                gaussian(logAspect - Math.log(SINGLE_ROW_ASPECT)),
+                gaussian(logAspect - Math.log(TWO_ROW_ASPECT)));
+
+        // Indian plates have 8-10 characters, fewer means we've likely only got a fragment
+        double characterScore = Math.min(1.0, (double) candidate[4] / PLATE_CHARS);
+
+        // Plate characters are printed at one size, chains of random blobs vary a lot more
+        double meanHeight = (double) candidate[5] / candidate[4];
+        double heightVariance = Math.max(0, (double) candidate[6] / candidate[4] - meanHeight * meanHeight);
+        double variation = Math.sqrt(heightVariance) / meanHeight;
+        double consistencyScore = Math.exp(-(variation * variation) / (2 * HEIGHT_VARIATION * HEIGHT_VARIATION));
+
+        return aspectScore * characterScore * consistencyScore;
+    }
+
+    private double gaussian(double distance) {
+        return Math.exp(-(distance * distance) / (2 * ASPECT_TOLERANCE * ASPECT_TOLERANCE));
+    }
+
+    // Intersection of the two regions as a fraction of the smaller one
+    private double overlap(PlateRegion a, PlateRegion b) {
+        double ix = Math.min(a.getX() + a.getWidth(), b.getX() + b.getWidth()) - Math.max(a.getX(), b.getX());
+        double iy = Math.min(a.getY() + a.getHeight(), b.getY() + b.getHeight()) - Math.max(a.getY(), b.getY());
+        if (ix <= 0 || iy <= 0) {
+            return 0;
+        }
+        return (ix * iy) / Math.min((double) a.getWidth() * a.getHeight(), (double) b.getWidth() * b.getHeight());
+    }
+
+    private PlateRegion toSource(PlateRegion region, double scale, int sourceWidth, int sourceHeight) {
+        int x = (int) Math.floor(region.getX() / scale);
+        int y = (int) Math.floor(region.getY() / scale);
+        int width = Math.min(sourceWidth - x, (int) Math.ceil(region.getWidth() / scale));
+        int height = Math.min(sourceHeight - y, (int) Math.ceil(region.getHeight() / scale));
+        return new PlateRegion(x, y, width, height, region.getScore());
+    }
+}
@@ -0,0 +1,105 @@
+package com.ratemyrickshaw.fn;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+Which RTO codes exist in each state, so an impossible code like MH99 or DL0 is turned away with one bit test.
+
+The logic is as follows:
+1. Every state gets 100 bits, one per code 00 to 99 (0 to 9 for Delhi), in two longs of one flat array.
+2. Every state also gets 10 bits saying which first digits any of its codes start with, so a reading can be given up
+   on after the first RTO digit when no code starts with it.
+3. A state code is turned into its row by a 26 x 26 table indexed by its two letters, no hashing and no strings.
+*/
+final class RtoRegistry {
+
+    static final int NO_STATE = -1;
+
+    private static final int MAX_CODE = 99;
+
+    private final int[] rows = new int[26 * 26];
+    private final long[] codes;
+    private final short[] firstDigits;
+
+    /**
+     * @param entries Registry lines, see rto-codes.txt for the format
+     */
+    RtoRegistry(List<String> entries) {
+        Arrays.fill(rows, NO_STATE);
+        List<String> lines = entries.stream()
+                .map(String::trim)
+                .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                .toList();
+        this.codes = new long[2 * lines.size()];
+        this.firstDigits = new short[lines.size()];
+
+        for (int row = 0; row < lines.size(); row++) {
+            String[] parts = lines.get(row).split("=", 2);
+            String state = parts[0].trim();
+            if (parts.length != 2 || state.length() != 2 || letter(state.charAt(0)) < 0 || letter(state.charAt(1)) < 0) {
+                throw new IllegalArgumentException("Expected STATE=codes, got '" + lines.get(row) + "'");
+            }
+            rows[letter(state.charAt(0)) * 26 + letter(state.charAt(1))] = row;
+            for (String range : parts[1].split(",")) {
+                String[] bounds = range.trim().split("-", 2);
+                // Delhi's codes are written with one digit, so their first digit is the whole code
+                boolean oneDigit = bounds[0].trim().length() == 1;
+                int from = Integer.parseInt(bounds[0].trim());
+                int to = bounds.length == 2 ? Integer.parseInt(bounds[1].trim()) : from;
+                if (from < 0 || to > MAX_CODE || from > to) {
+                    throw new IllegalArgumentException("Invalid RTO codes '" + range.trim() + "' for " + state);
+                }
+                for (int code = from; code <= to; code++) {
+                    codes[2 * row + (code >>> 6)] |= 1L << (code & 63);
+                    firstDigits[row] |= (short) (1 << (oneDigit ? code : code / 10));
+                }
+            }
+        }
+    }
+
+    static RtoRegistry load(String resource) {
+        try (InputStream in = RtoRegistry.class.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IllegalStateException("RTO registry '" + resource + "' is missing");
+            }
+            return new RtoRegistry(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)).lines().toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read the RTO registry '" + resource + "'", e);
+        }
+    }
+
+    /**
+     * @return The state's row, or {@link #NO_STATE} if the registry doesn't know it
+     */
+    int state(char first, char second) {
+        int a = letter(first);
+        int b = letter(second);
+        return a < 0 || b < 0 ? NO_STATE : rows[a * 26 + b];
+    }
+
+    /**
+     * @param code The RTO digits as a number, e.g. 12 for MH12, 1 for DL1
+     */
+    boolean contains(int state, int code) {
+        return state != NO_STATE && code >= 0 && code <= MAX_CODE
+                && (codes[2 * state + (code >>> 6)] & (1L << (code & 63))) != 0;
+    }
+
+    /**
+     * @return Whether any of the state's codes starts with this digit
+     */
+    boolean startsWith(int state, int digit) {
+        return state != NO_STATE && (firstDigits[state] & (1 << digit)) != 0;
+    }
+
+    private static int letter(char c) {
+        return c >= 'A' && c <= 'Z' ? c - 'A' : -1;
+    }
+}
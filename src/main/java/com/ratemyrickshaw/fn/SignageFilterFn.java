@@ -0,0 +1,172 @@
+package com.ratemyrickshaw.fn;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.ratemyrickshaw.model.DetectionBatch;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+
+/*
+Finds the words painted on a rickshaw that are never part of its number plate ("CNG", "HORN OK PLEASE", the maker's
+name, blessings, watermarks), so extraction never has to compare them with anything.
+
+The logic is as follows:
+1. The dictionary (rickshaw.extraction.stopwords) is read once. Single words go into a perfect hash set, phrases and
+   *PART* entries are compiled into one Aho-Corasick automaton.
+2. Every WORD detection is looked up in the set, one hash and one comparison however many words there are.
+3. The words of each line (consecutive words with the same parent LINE) are run through the automaton as one string,
+   with a space before, between and after them. Phrases are stored with the same spaces around them, so they only
+   match whole words. Every word a match touches is dropped.
+Both passes are case and punctuation insensitive, and cost one step per character whatever the size of the
+dictionary. Neither allocates per word, only the result and one array of word offsets per response.
+*/
+@Slf4j
+@ApplicationScoped
+public class SignageFilterFn implements Function<DetectionBatch, BitSet> {
+
+    private static final String CLASSPATH_PREFIX = "classpath:";
+
+    private final PerfectHashSet words;
+    private final AhoCorasickAutomaton phrases;
+
+    @Inject
+    public SignageFilterFn(
+            @ConfigProperty(name = "rickshaw.extraction.stopwords", defaultValue = "classpath:signage-stopwords.txt")
+            String location) {
+        this(read(location));
+        log.info("Loaded {} signage words and {} phrase states from {}", words.size(), phrases.stateCount(), location);
+    }
+
+    /**
+     * @param entries Dictionary lines, see signage-stopwords.txt for the format
+     */
+    SignageFilterFn(List<String> entries) {
+        List<String> singleWords = new ArrayList<>();
+        List<String> patterns = new ArrayList<>();
+        for (String line : entries) {
+            String entry = line.trim();
+            if (entry.isEmpty() || entry.startsWith("#")) {
+                continue;
+            }
+            if (entry.length() > 2 && entry.startsWith("*") && entry.endsWith("*")) {
+                String part = PerfectHashSet.normalize(entry);
+                if (!part.isEmpty()) {
+                    patterns.add(part);
+                }
+                continue;
+            }
+            List<String> phrase = Arrays.stream(entry.split("\\s+"))
+                    .map(PerfectHashSet::normalize)
+                    .filter(word -> !word.isEmpty())
+                    .toList();
+            if (phrase.size() == 1) {
+                singleWords.add(phrase.get(0));
+            } else if (phrase.size() > 1) {
+                patterns.add(" " + String.join(" ", phrase) + " ");
+            }
+        }
+        this.words = new PerfectHashSet(singleWords);
+        this.phrases = new AhoCorasickAutomaton(patterns);
+    }
+
+    /**
+     * @param batch A DetectText response's detections, in the order Rekognition returned them
+     * @return The indexes of the WORD detections that are signage
+     */
+    @Override
+    public BitSet apply(DetectionBatch batch) {
+        BitSet signage = new BitSet(batch.size());
+        // Where each word starts in its line's string, in automaton steps
+        int[] starts = new int[batch.size()];
+        char[] text = batch.textChars();
+
+        int lineStart = -1;
+        int lineId = DetectionBatch.NO_ID;
+        int state = AhoCorasickAutomaton.ROOT;
+        int position = 0;
+
+        for (int i = 0; i < batch.size(); i++) {
+            if (!batch.isWord(i)) {
+                lineStart = -1;
+                continue;
+            }
+            if (words.contains(text, batch.textStart(i), batch.textEnd(i))) {
+                signage.set(i);
+            }
+
+            if (lineStart < 0 || batch.parentId(i) == DetectionBatch.NO_ID || batch.parentId(i) != lineId) {
+                lineStart = i;
+                lineId = batch.parentId(i);
+                state = phrases.step(AhoCorasickAutomaton.ROOT, AhoCorasickAutomaton.SPACE);
+                position = 1;
+            }
+
+            starts[i] = position;
+            for (int c = batch.textStart(i); c < batch.textEnd(i); c++) {
+                int symbol = AhoCorasickAutomaton.symbol(text[c]);
+                if (symbol < 0 || symbol == AhoCorasickAutomaton.SPACE) {
+                    continue;
+                }
+                state = phrases.step(state, symbol);
+                position++;
+                mark(signage, starts, lineStart, i, position, phrases.longestMatch(state));
+            }
+            state = phrases.step(state, AhoCorasickAutomaton.SPACE);
+            position++;
+            mark(signage, starts, lineStart, i, position, phrases.longestMatch(state));
+        }
+        return signage;
+    }
+
+    /*
+     * A match of this length ends at this position in the line, mark every word it overlaps. The word being read
+     * always overlaps it, earlier words do while they end after the match starts.
+     */
+    private static void mark(BitSet signage, int[] starts, int lineStart, int word, int position, int length) {
+        if (length == 0) {
+            return;
+        }
+        int matchStart = position - length;
+        signage.set(word);
+        for (int earlier = word - 1; earlier >= lineStart; earlier--) {
+            // An earlier word ends just before the space in front of the next word
+            if (starts[earlier + 1] - 1 <= matchStart) {
+                break;
+            }
+            signage.set(earlier);
+        }
+    }
+
+    private static List<String> read(String location) {
+        try {
+            if (location.startsWith(CLASSPATH_PREFIX)) {
+                String resource = location.substring(CLASSPATH_PREFIX.length());
+                try (InputStream in = Thread.currentThread().getContextClassLoader().getResourceAsStream(resource)) {
+                    if (in == null) {
+                        throw new IllegalStateException("No signage dictionary on the classpath at " + resource);
+                    }
+                    return new String(in.readAllBytes(), StandardCharsets.UTF_8).lines()
+                            .collect(Collectors.toList());
+                }
+            }
+            return Files.readAllLines(Path.of(location), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read the signage dictionary from " + location, e);
+        }
+    }
+}
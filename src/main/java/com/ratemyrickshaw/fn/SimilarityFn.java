@@ -1,9 +1,12 @@
 package com.ratemyrickshaw.fn;
 
+import java.nio.CharBuffer;
 import java.util.function.BiPredicate;
 
 import org.apache.commons.text.similarity.JaroWinklerSimilarity;
 
+import com.ratemyrickshaw.model.DetectionBatch;
+
 import jakarta.enterprise.context.ApplicationScoped;
 import lombok.RequiredArgsConstructor;
 
@@ -21,14 +24,41 @@ public class SimilarityFn implements BiPredicate<String, String> {
         }
         detectedText1 = detectedText1.trim();
         detectedText2 = detectedText2.trim();
+        char[] a = detectedText1.toCharArray();
+        char[] b = detectedText2.toCharArray();
+        return similar(a, 0, a.length, b, 0, b.length, detectedText1, detectedText2);
+    }
+
+    /**
+     * Same as {@link #test(String, String)} for two detections of a batch, read in place from its text arena.
+     * Most pairs are turned down on length or edit distance, which need no copy of the text at all.
+     */
+    public boolean test(DetectionBatch batch, int a, int b) {
+        char[] text = batch.textChars();
+        int aFrom = batch.textStart(a);
+        int aTo = batch.textEnd(a);
+        int bFrom = batch.textStart(b);
+        int bTo = batch.textEnd(b);
+        // Trim
+        while (aFrom < aTo && text[aFrom] <= ' ') aFrom++;
+        while (aTo > aFrom && text[aTo - 1] <= ' ') aTo--;
+        while (bFrom < bTo && text[bFrom] <= ' ') bFrom++;
+        while (bTo > bFrom && text[bTo - 1] <= ' ') bTo--;
+        return similar(text, aFrom, aTo, text, bFrom, bTo, null, null);
+    }
 
+    /*
+     * The texts for Jaro-Winkler are only wrapped around the arrays when they're needed, if not given.
+     */
+    private boolean similar(char[] a, int aFrom, int aTo, char[] b, int bFrom, int bTo, CharSequence detectedText1,
+            CharSequence detectedText2) {
         // 1. Reject strings with significant length differences
-        if (Math.abs(detectedText1.length() - detectedText2.length()) > 2) {
+        if (Math.abs((aTo - aFrom) - (bTo - bFrom)) > 2) {
             return false;
         }
 
         // 2. Compute Levenshtein distance, if distance is too large, reject early
-        int lev = levenshtein(detectedText1, detectedText2);
+        int lev = levenshtein(a, aFrom, aTo, b, bFrom, bTo);
         if (lev > 3) {
             return false;
         }
@@ -37,27 +67,34 @@ public class SimilarityFn implements BiPredicate<String, String> {
         // So if we get a high confidence we can be pretty sure it's a good match.
 
         // 3. Use Jaro–Winkler for fine similarity scoring
-        double confidence = jw.apply(detectedText1, detectedText2);
+        double confidence = jw.apply(
+                detectedText1 != null ? detectedText1 : CharBuffer.wrap(a, aFrom, aTo - aFrom),
+                detectedText2 != null ? detectedText2 : CharBuffer.wrap(b, bFrom, bTo - bFrom));
         
         return confidence > SIMILARITY_THRESHOLD;
     }
 
-    // Basic Levenshtein implementation
-    private int levenshtein(String a, String b) {
-        int[][] dp = new int[a.length() + 1][b.length() + 1];
-        for (int i = 0; i <= a.length(); i++)
-            dp[i][0] = i;
-        for (int j = 0; j <= b.length(); j++)
-            dp[0][j] = j;
-        for (int i = 1; i <= a.length(); i++) {
-            for (int j = 1; j <= b.length(); j++) {
-                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
-                dp[i][j] = Math.min(Math.min(dp[i - 1][j] + 1,
-                        dp[i][j - 1] + 1), dp[i - 1][j - 1] + cost);
+    // Basic Levenshtein implementation, keeping only the previous row of the table
+    private int levenshtein(char[] a, int aFrom, int aTo, char[] b, int bFrom, int bTo) {
+        int aLength = aTo - aFrom;
+        int bLength = bTo - bFrom;
+        int[] previous = new int[bLength + 1];
+        int[] current = new int[bLength + 1];
+        for (int j = 0; j <= bLength; j++)
+            previous[j] = j;
+        for (int i = 1; i <= aLength; i++) {
+            current[0] = i;
+            for (int j = 1; j <= bLength; j++) {
+                int cost = a[aFrom + i - 1] == b[bFrom + j - 1] ? 0 : 1;
+                current[j] = Math.min(Math.min(previous[j] + 1,
+                        current[j - 1] + 1), previous[j - 1] + cost);
             }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
         }
 
-        return dp[a.length()][b.length()];
+        return previous[bLength];
     }
 
 }
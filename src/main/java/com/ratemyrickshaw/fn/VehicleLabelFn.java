@@ -0,0 +1,105 @@
+package com.ratemyrickshaw.fn;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.ratemyrickshaw.model.VehicleCheck;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import software.amazon.awssdk.services.rekognition.model.DetectLabelsResponse;
+import software.amazon.awssdk.services.rekognition.model.Label;
+
+/*
+Decides from a DetectLabels response whether a photo shows a rickshaw, some other vehicle, or no vehicle at all.
+
+The logic is as follows:
+1. Any rickshaw label (rickshaw.enrichment.rickshaw-labels) at or above the rickshaw confidence makes it a RICKSHAW.
+   The bar is low on purpose, a rickshaw in the photo always gets the benefit of the doubt.
+2. Otherwise any other vehicle label (rickshaw.enrichment.other-vehicle-labels) at or above the vehicle confidence
+   makes it an OTHER_VEHICLE. A label's parents count too, so "Sedan" is a car without being listed.
+3. Anything else is NO_VEHICLE. Close ups of a plate often have no vehicle label at all, so that is not a reason to
+   turn a photo away.
+Label names are compared case insensitively.
+*/
+@ApplicationScoped
+public class VehicleLabelFn implements Function<DetectLabelsResponse, VehicleCheck> {
+
+    private final Set<String> rickshawLabels;
+    private final Set<String> otherVehicleLabels;
+    private final float rickshawMinConfidence;
+    private final float otherVehicleMinConfidence;
+
+    @Inject
+    public VehicleLabelFn(
+            @ConfigProperty(name = "rickshaw.enrichment.rickshaw-labels", defaultValue = "Auto Rickshaw,Rickshaw,Tuk Tuk")
+            List<String> rickshawLabels,
+            @ConfigProperty(name = "rickshaw.enrichment.other-vehicle-labels", defaultValue = "Car,Truck,Bus,Van,Motorcycle")
+            List<String> otherVehicleLabels,
+            @ConfigProperty(name = "rickshaw.enrichment.rickshaw-min-confidence", defaultValue = "50")
+            float rickshawMinConfidence,
+            @ConfigProperty(name = "rickshaw.enrichment.other-vehicle-min-confidence", defaultValue = "90")
+            float otherVehicleMinConfidence) {
+        this.rickshawLabels = normalize(rickshawLabels);
+        this.otherVehicleLabels = normalize(otherVehicleLabels);
+        this.rickshawMinConfidence = rickshawMinConfidence;
+        this.otherVehicleMinConfidence = otherVehicleMinConfidence;
+    }
+
+    @Override
+    public VehicleCheck apply(DetectLabelsResponse response) {
+        List<Label> labels = response.hasLabels() ? response.labels() : List.of();
+
+        Label rickshaw = strongest(labels, rickshawLabels, rickshawMinConfidence);
+        if (rickshaw != null) {
+            return check(VehicleCheck.Verdict.RICKSHAW, rickshaw);
+        }
+        Label otherVehicle = strongest(labels, otherVehicleLabels, otherVehicleMinConfidence);
+        if (otherVehicle != null) {
+            return check(VehicleCheck.Verdict.OTHER_VEHICLE, otherVehicle);
+        }
+        return VehicleCheck.builder().verdict(VehicleCheck.Verdict.NO_VEHICLE).build();
+    }
+
+    private static Label strongest(List<Label> labels, Set<String> names, float minConfidence) {
+        Label strongest = null;
+        for (Label label : labels) {
+            if (label.confidence() == null || label.confidence() < minConfidence || !matches(label, names)) {
+                continue;
+            }
+            if (strongest == null || label.confidence() > strongest.confidence()) {
+                strongest = label;
+            }
+        }
+        return strongest;
+    }
+
+    private static boolean matches(Label label, Set<String> names) {
+        if (label.name() != null && names.contains(label.name().toLowerCase(Locale.ROOT))) {
+            return true;
+        }
+        return label.hasParents() && label.parents().stream()
+                .anyMatch(parent -> parent.name() != null && names.contains(parent.name().toLowerCase(Locale.ROOT)));
+    }
+
+    private static VehicleCheck check(VehicleCheck.Verdict verdict, Label label) {
+        return VehicleCheck.builder()
+                .verdict(verdict)
+                .label(label.name())
+                .confidence(label.confidence())
+                .build();
+    }
+
+    private static Set<String> normalize(List<String> labels) {
+        return labels.stream()
+                .map(String::trim)
+                .filter(label -> !label.isEmpty())
+                .map(label -> label.toLowerCase(Locale.ROOT))
+                .collect(Collectors.toUnmodifiableSet());
+    }
+}
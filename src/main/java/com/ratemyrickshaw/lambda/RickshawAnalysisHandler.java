@@ -1,68 +1,131 @@
 package com.ratemyrickshaw.lambda;
 
+import java.time.Duration;
+import java.util.Map;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ratemyrickshaw.model.AnalysisJobResponse;
+import com.ratemyrickshaw.model.Deadline;
 import com.ratemyrickshaw.model.ImageAnalysisRequest;
 import com.ratemyrickshaw.model.ImageAnalysisResponse;
-import com.ratemyrickshaw.service.PostRekognitionService;
-import com.ratemyrickshaw.service.RekognitionService;
+import com.ratemyrickshaw.model.ImageUploadRequest;
+import com.ratemyrickshaw.model.ImageUploadResponse;
+import com.ratemyrickshaw.model.LeaderboardResponse;
+import com.ratemyrickshaw.model.Rating;
+import com.ratemyrickshaw.model.RatingRequest;
+import com.ratemyrickshaw.model.RatingResponse;
+import com.ratemyrickshaw.service.AnalysisProgress;
+import com.ratemyrickshaw.service.CapacityExceededException;
+import com.ratemyrickshaw.service.DeadlineExceededException;
+import com.ratemyrickshaw.service.ImageAnalysisService;
+import com.ratemyrickshaw.service.ImageUploadService;
+import com.ratemyrickshaw.service.RatingService;
+import com.ratemyrickshaw.service.RekognitionRateGovernor.Priority;
+import com.ratemyrickshaw.service.StatsService;
 
 import jakarta.inject.Named;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import software.amazon.awssdk.services.rekognition.model.DetectTextResponse;
 
 @Slf4j
 @Named("rickshawAnalysis")
 @RequiredArgsConstructor
 public class RickshawAnalysisHandler implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
 
-    private final RekognitionService rekognitionService;
-    private final PostRekognitionService postRekognitionService;
+    private final ImageAnalysisService imageAnalysisService;
+    private final RatingService ratingService;
+    private final ImageUploadService imageUploadService;
+    private final StatsService statsService;
     private final ObjectMapper objectMapper;
 
+    // API Gateway gives up on the integration after 29s, so there's no point working past that
+    @ConfigProperty(name = "rickshaw.deadline.max", defaultValue = "28s")
+    Duration maxRequestTime;
+
+    // Kept back from Lambda's remaining time, to build and send the timeout response before the invocation is killed
+    @ConfigProperty(name = "rickshaw.deadline.reserve", defaultValue = "1s")
+    Duration deadlineReserve;
+
     @Override
     public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent requestEvent, Context context) {
         log.info("Processing request with method: {}", requestEvent.getHttpMethod());
+        Deadline deadline = requestDeadline(context);
+        try {
+            if (requestEvent.getPath() != null && requestEvent.getPath().endsWith("/ratings")) {
+                return handleRatingSubmission(requestEvent);
+            }
+            if (requestEvent.getPath() != null && requestEvent.getPath().contains("/leaderboards/")) {
+                return handleLeaderboardRequest(requestEvent);
+            }
+            if (requestEvent.getPath() != null && requestEvent.getPath().endsWith("/uploads")) {
+                return handleUploadRequest(requestEvent);
+            }
+            if (requestEvent.getPath() != null && requestEvent.getPath().contains("/analyze/jobs")) {
+                return handleJobRequest();
+            }
+            if (requestEvent.getPath() != null && requestEvent.getPath().endsWith("/stats")) {
+                return createResponse(200, statsService.stats());
+            }
 
+            return handleAnalysis(requestEvent.getBody(), deadline, AnalysisProgress.NONE);
+        } finally {
+            flushBeforeFreezing();
+        }
+    }
+
+    /*
+     * Ratings are buffered and written in batches, but Lambda may freeze this environment as soon as we return and
+     * never thaw it, so anything still buffered is written once per invocation, before the response goes back.
+     * An invocation that left nothing buffered costs nothing.
+     */
+    private void flushBeforeFreezing() {
+        if (ratingService.hasPendingRatings()) {
+            ratingService.flushPendingRatings();
+        }
+    }
+
+    /**
+     * Analyse the image in a request body, telling the listener about each stage as it's done. Used by /analyze/stream,
+     * so a streamed analysis is the same analysis, with the same errors, as a plain one.
+     */
+    public APIGatewayProxyResponseEvent handleAnalysis(String body, Context context, AnalysisProgress progress) {
+        return handleAnalysis(body, requestDeadline(context), progress);
+    }
+
+    private APIGatewayProxyResponseEvent handleAnalysis(String body, Deadline deadline, AnalysisProgress progress) {
         try {
             // Parse the request body
-            ImageAnalysisRequest request = objectMapper.readValue(requestEvent.getBody(), ImageAnalysisRequest.class);
+            ImageAnalysisRequest request = objectMapper.readValue(body, ImageAnalysisRequest.class);
             log.info("Processing image analysis request");
 
-            DetectTextResponse detectTextResponse;
-
-            if (request.getImageUrl() != null && !request.getImageUrl().isEmpty()) {
-                log.info("Analyzing image from URL: {}", request.getImageUrl());
-                detectTextResponse = rekognitionService.analyzeImageFromUrl(request.getImageUrl());
-            } else if (request.getImageBase64() != null && !request.getImageBase64().isEmpty()) {
-                log.info("Analyzing image from base64 data");
-                detectTextResponse = rekognitionService.analyzeImageFromBase64(request.getImageBase64());
-            } else {
-                ImageAnalysisResponse errorResponse = ImageAnalysisResponse.builder()
-                        .success(false)
-                        .message("Either imageUrl or imageBase64 must be provided")
-                        .build();
-                return createResponse(400, errorResponse);
-            }
-
-            // Process the detection response
-            String detectedText = postRekognitionService.postProcessTextDetections(detectTextResponse);
+            return createResponse(200, imageAnalysisService.analyze(request, deadline, Priority.INTERACTIVE, progress));
 
-            // Check if the result is an error message
-            boolean isError = detectedText.startsWith("Invalid");
-            
-            ImageAnalysisResponse response = ImageAnalysisResponse.builder()
-                    .success(!isError)
-                    .message(isError ? "Number plate validation failed" : "Image analysis completed successfully")
-                    .data(detectedText)
+        } catch (DeadlineExceededException e) {
+            log.warn("Image analysis ran out of time: {}", e.getMessage());
+            ImageAnalysisResponse timeoutResponse = ImageAnalysisResponse.builder()
+                    .success(false)
+                    .message("Image analysis timed out, please try again")
                     .build();
-
-            return createResponse(200, response);
-
+            return createResponse(504, timeoutResponse);
+        } catch (IllegalArgumentException e) {
+            ImageAnalysisResponse badRequest = ImageAnalysisResponse.builder()
+                    .success(false)
+                    .message(e.getMessage())
+                    .build();
+            return createResponse(400, badRequest);
+        } catch (CapacityExceededException e) {
+            log.warn("Too busy to analyse the image: {}", e.getMessage());
+            ImageAnalysisResponse busyResponse = ImageAnalysisResponse.builder()
+                    .success(false)
+                    .message("Too many images are being analysed right now, please try again shortly")
+                    .build();
+            return createResponse(503, busyResponse);
         } catch (Exception e) {
             log.error("Error processing image: {}", e.getMessage(), e);
             ImageAnalysisResponse errorResponse = ImageAnalysisResponse.builder()
@@ -73,10 +136,109 @@ public class RickshawAnalysisHandler implements RequestHandler<APIGatewayProxyRe
         }
     }
 
+    /*
+     * The request's deadline: whatever Lambda has left less the reserve, and never more than API Gateway will wait.
+     * Outside Lambda (the dev server) there's no context, so only the maximum applies.
+     */
+    private Deadline requestDeadline(Context context) {
+        Duration budget = maxRequestTime;
+        if (context != null && context.getRemainingTimeInMillis() > 0) {
+            Duration lambdaBudget = Duration.ofMillis(context.getRemainingTimeInMillis()).minus(deadlineReserve);
+            if (lambdaBudget.compareTo(budget) < 0) {
+                budget = lambdaBudget.isNegative() ? Duration.ZERO : lambdaBudget;
+            }
+        }
+        return Deadline.after(budget);
+    }
+
+    /*
+     * The rating is buffered like any other, and written when the invocation ends (see flushBeforeFreezing).
+     */
+    private APIGatewayProxyResponseEvent handleRatingSubmission(APIGatewayProxyRequestEvent requestEvent) {
+        try {
+            RatingRequest request = objectMapper.readValue(requestEvent.getBody(), RatingRequest.class);
+            Rating rating = ratingService.submitRating(request);
+            return createResponse(202, RatingResponse.builder()
+                    .success(true)
+                    .message("Rating accepted")
+                    .plate(rating.getPlate())
+                    .build());
+        } catch (IllegalArgumentException e) {
+            return createResponse(400, RatingResponse.builder().success(false).message(e.getMessage()).build());
+        } catch (IllegalStateException e) {
+            return createResponse(503, RatingResponse.builder().success(false).message(e.getMessage()).build());
+        } catch (Exception e) {
+            log.error("Error processing rating: {}", e.getMessage(), e);
+            return createResponse(500, RatingResponse.builder()
+                    .success(false)
+                    .message("Error processing rating: " + e.getMessage())
+                    .build());
+        }
+    }
+
+    /*
+     * GET /leaderboards/{region}?order=best|worst&limit=k, the best or worst rated drivers of a state or RTO.
+     */
+    private APIGatewayProxyResponseEvent handleLeaderboardRequest(APIGatewayProxyRequestEvent requestEvent) {
+        Map<String, String> query = requestEvent.getQueryStringParameters() != null
+                ? requestEvent.getQueryStringParameters()
+                : Map.of();
+        String region = requestEvent.getPathParameters() != null && requestEvent.getPathParameters().get("region") != null
+                ? requestEvent.getPathParameters().get("region")
+                : requestEvent.getPath().substring(requestEvent.getPath().lastIndexOf('/') + 1);
+        String order = query.getOrDefault("order", "best");
+        try {
+            if (!"best".equals(order) && !"worst".equals(order)) {
+                throw new IllegalArgumentException("Order must be best or worst");
+            }
+            int limit = Integer.parseInt(query.getOrDefault("limit", "10"));
+            return createResponse(200, LeaderboardResponse.builder()
+                    .success(true)
+                    .region(region.toUpperCase())
+                    .order(order)
+                    .entries(ratingService.getLeaderboard(region, "worst".equals(order), limit))
+                    .build());
+        } catch (IllegalArgumentException e) {
+            // NumberFormatException included
+            return createResponse(400, LeaderboardResponse.builder().success(false).message(e.getMessage()).build());
+        }
+    }
+
+    /*
+     * A presigned URL the browser uploads the photo to, so the photo itself never comes through API Gateway.
+     */
+    private APIGatewayProxyResponseEvent handleUploadRequest(APIGatewayProxyRequestEvent requestEvent) {
+        try {
+            ImageUploadRequest request = objectMapper.readValue(requestEvent.getBody(), ImageUploadRequest.class);
+            return createResponse(200, imageUploadService.createUpload(request));
+        } catch (IllegalArgumentException e) {
+            return createResponse(400, ImageUploadResponse.builder().success(false).message(e.getMessage()).build());
+        } catch (IllegalStateException e) {
+            return createResponse(503, ImageUploadResponse.builder().success(false).message(e.getMessage()).build());
+        } catch (Exception e) {
+            log.error("Error creating upload: {}", e.getMessage(), e);
+            return createResponse(500, ImageUploadResponse.builder()
+                    .success(false)
+                    .message("Error creating upload: " + e.getMessage())
+                    .build());
+        }
+    }
+
+    /*
+     * Analysis jobs are served by the HTTP server only. A Lambda environment is frozen between invocations, so its
+     * workers would stall, and a poll may reach an environment that never saw the job.
+     */
+    private APIGatewayProxyResponseEvent handleJobRequest() {
+        return createResponse(404, AnalysisJobResponse.builder()
+                .success(false)
+                .message("Analysis jobs aren't available here, use /uploads and /analyze instead")
+                .build());
+    }
+
     /**
      * Helper method to create a response with CORS headers
      */
-    private APIGatewayProxyResponseEvent createResponse(int statusCode, ImageAnalysisResponse body) {
+    private APIGatewayProxyResponseEvent createResponse(int statusCode, Object body) {
         try {
             String responseBody = body != null ? objectMapper.writeValueAsString(body) : "";
             return new APIGatewayProxyResponseEvent()
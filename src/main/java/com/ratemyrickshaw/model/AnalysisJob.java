@@ -0,0 +1,45 @@
+package com.ratemyrickshaw.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/*
+An image analysis submitted to run in the background (POST /analyze/jobs). Each change of status is saved as a new
+copy, so a job read from the store never changes underneath the reader.
+*/
+@Builder(toBuilder = true)
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class AnalysisJob {
+
+    public enum Status {
+        QUEUED,
+        RUNNING,
+        COMPLETED,
+        FAILED;
+
+        public boolean isFinished() {
+            return this == COMPLETED || this == FAILED;
+        }
+    }
+
+    String id;
+    Status status;
+
+    // Dropped once the job finishes, so a finished job doesn't hold on to the photo
+    ImageAnalysisRequest request;
+
+    // Only once COMPLETED. Its success flag says whether a plate was found
+    ImageAnalysisResponse result;
+    // Why the job FAILED
+    String error;
+
+    // Epoch millis
+    Long submittedAt;
+    Long startedAt;
+    Long finishedAt;
+
+}
@@ -0,0 +1,41 @@
+package com.ratemyrickshaw.model;
+
+import lombok.Builder;
+import lombok.Data;
+
+@Builder
+@Data
+public class AnalysisJobResponse {
+
+    boolean success;
+    String message;
+
+    String jobId;
+    AnalysisJob.Status status;
+
+    // Epoch millis
+    Long submittedAt;
+    Long startedAt;
+    Long finishedAt;
+
+    // Once the job has COMPLETED
+    ImageAnalysisResponse result;
+
+    public static AnalysisJobResponse of(AnalysisJob job) {
+        return AnalysisJobResponse.builder()
+                .success(job.getStatus() != AnalysisJob.Status.FAILED)
+                .message(switch (job.getStatus()) {
+                    case QUEUED -> "Waiting to be analysed";
+                    case RUNNING -> "Being analysed";
+                    case COMPLETED -> "Analysis completed";
+                    case FAILED -> job.getError();
+                })
+                .jobId(job.getId())
+                .status(job.getStatus())
+                .submittedAt(job.getSubmittedAt())
+                .startedAt(job.getStartedAt())
+                .finishedAt(job.getFinishedAt())
+                .result(job.getResult())
+                .build();
+    }
+}
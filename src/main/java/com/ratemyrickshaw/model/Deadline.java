@@ -0,0 +1,53 @@
+package com.ratemyrickshaw.model;
+
+import java.time.Duration;
+
+import com.ratemyrickshaw.service.DeadlineExceededException;
+
+/*
+The point in time a request has to be answered by. Created once by the handler and passed down to every stage
+(download, preprocessing, OCR), so each one only spends what is left rather than its own fixed timeout.
+Measured on the monotonic clock, so it isn't affected by wall clock adjustments.
+*/
+public final class Deadline {
+
+    private final long expiresAtNanos;
+
+    private Deadline(long expiresAtNanos) {
+        this.expiresAtNanos = expiresAtNanos;
+    }
+
+    public static Deadline after(Duration budget) {
+        return new Deadline(System.nanoTime() + budget.toNanos());
+    }
+
+    /**
+     * @return The time left, zero once the deadline has passed
+     */
+    public Duration remaining() {
+        return Duration.ofNanos(Math.max(0, expiresAtNanos - System.nanoTime()));
+    }
+
+    public boolean isExpired() {
+        return expiresAtNanos - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Stop here if the deadline has passed, rather than starting work that can't finish in time
+     *
+     * @param stage What was about to run, for the error message
+     */
+    public void check(String stage) {
+        if (isExpired()) {
+            throw new DeadlineExceededException("Ran out of time before " + stage);
+        }
+    }
+
+    /**
+     * @return The smaller of the time left and the given limit
+     */
+    public Duration remainingOrAtMost(Duration limit) {
+        Duration remaining = remaining();
+        return remaining.compareTo(limit) < 0 ? remaining : limit;
+    }
+}
@@ -0,0 +1,26 @@
+package com.ratemyrickshaw.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/*
+One of possibly several valid number plates found in a photo.
+The box is where the plate's words sit, as ratios of the full frame (the same convention as Rekognition's
+bounding boxes). The confidence follows PlateDetectionResult: only set when the plate was read as a single
+confident LINE.
+*/
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class DetectedPlate {
+    private String plate;
+    private Float confidence;
+    private float left;
+    private float top;
+    private float width;
+    private float height;
+    private RatingSummary rating;
+}
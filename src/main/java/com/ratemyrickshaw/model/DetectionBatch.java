@@ -0,0 +1,370 @@
+package com.ratemyrickshaw.model;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import software.amazon.awssdk.services.rekognition.model.BoundingBox;
+import software.amazon.awssdk.services.rekognition.model.DetectTextResponse;
+import software.amazon.awssdk.services.rekognition.model.Point;
+import software.amazon.awssdk.services.rekognition.model.TextDetection;
+
+/*
+A DetectText response's detections, converted once into one array per field (struct of arrays), so extraction,
+validation and similarity work on detection indexes and primitive columns instead of the SDK model.
+
+The logic is as follows:
+1. Boxes and confidences are floats, the type is a byte, ids and parent ids are ints (NO_ID when missing), and all
+   the text sits in one char arena with an offset per detection.
+2. The polygon is read once for the values lines mode uses (angle, length along the text and height across it) and
+   then dropped, along with the rest of the SDK response.
+3. A parent id is resolved to the parent's index up front, so grouping words under their LINE needs no map.
+Missing values are NaN for floats (a detection without a box, or without a confidence) rather than nulls.
+A batch is never modified once built, so it can be shared between threads.
+*/
+public final class DetectionBatch {
+
+    public static final byte WORD = 0;
+    public static final byte LINE = 1;
+    public static final byte OTHER = 2;
+    public static final int NO_ID = -1;
+    // Ids up to this many times the detection count (plus the slack) are resolved through an array indexed by id
+    private static final int DENSE_IDS_PER_DETECTION = 4;
+    private static final int DENSE_IDS_SLACK = 64;
+
+    private final int size;
+    private final byte[] types;
+    private final int[] ids;
+    private final int[] parentIds;
+    private final int[] parents;
+    private final float[] tops;
+    private final float[] lefts;
+    private final float[] widths;
+    private final float[] heights;
+    private final float[] confidences;
+    private final float[] angles;
+    private final float[] lengths;
+    private final float[] thicknesses;
+    private final char[] text;
+    // Detection i's text is text[textOffsets[i], textOffsets[i + 1])
+    private final int[] textOffsets;
+
+    private DetectionBatch(int size, char[] text) {
+        this.size = size;
+        this.types = new byte[size];
+        this.ids = new int[size];
+        this.parentIds = new int[size];
+        this.parents = new int[size];
+        this.tops = new float[size];
+        this.lefts = new float[size];
+        this.widths = new float[size];
+        this.heights = new float[size];
+        this.confidences = new float[size];
+        this.angles = new float[size];
+        this.lengths = new float[size];
+        this.thicknesses = new float[size];
+        this.textOffsets = new int[size + 1];
+        this.text = text;
+    }
+
+    public static DetectionBatch of(DetectTextResponse response) {
+        return of(response.textDetections());
+    }
+
+    public static DetectionBatch of(List<TextDetection> detections) {
+        int textLength = 0;
+        for (TextDetection detection : detections) {
+            textLength += detection.detectedText() == null ? 0 : detection.detectedText().length();
+        }
+        char[] text = new char[textLength];
+        DetectionBatch batch = new DetectionBatch(detections.size(), text);
+
+        int offset = 0;
+        for (int i = 0; i < detections.size(); i++) {
+            TextDetection detection = detections.get(i);
+            String type = detection.typeAsString();
+            batch.types[i] = "WORD".equals(type) ? WORD : "LINE".equals(type) ? LINE : OTHER;
+            batch.ids[i] = detection.id() == null ? NO_ID : detection.id();
+            batch.parentIds[i] = detection.parentId() == null ? NO_ID : detection.parentId();
+            batch.confidences[i] = detection.confidence() == null ? Float.NaN : detection.confidence();
+
+            BoundingBox box = detection.geometry() == null ? null : detection.geometry().boundingBox();
+            batch.tops[i] = box == null ? Float.NaN : box.top();
+            batch.lefts[i] = box == null ? Float.NaN : box.left();
+            batch.widths[i] = box == null ? Float.NaN : box.width();
+            batch.heights[i] = box == null ? Float.NaN : box.height();
+            readPolygon(batch, i, detection);
+
+            batch.textOffsets[i] = offset;
+            if (detection.detectedText() != null) {
+                detection.detectedText().getChars(0, detection.detectedText().length(), text, offset);
+                offset += detection.detectedText().length();
+            }
+        }
+        batch.textOffsets[detections.size()] = offset;
+        batch.resolveParents();
+        return batch;
+    }
+
+    /*
+     * The polygon's first edge runs along the text and its last edge across it (Rekognition starts at the top left
+     * corner and goes clockwise). Without a polygon the angle is NaN and the box is used as it is.
+     */
+    private static void readPolygon(DetectionBatch batch, int i, TextDetection detection) {
+        List<Point> polygon = detection.geometry() == null || !detection.geometry().hasPolygon()
+                ? List.of()
+                : detection.geometry().polygon();
+        if (polygon.size() < 2) {
+            batch.angles[i] = Float.NaN;
+            batch.lengths[i] = batch.widths[i];
+            batch.thicknesses[i] = batch.heights[i];
+            return;
+        }
+        Point topLeft = polygon.get(0);
+        Point topRight = polygon.get(1);
+        batch.angles[i] = (float) Math.atan2(topRight.y() - topLeft.y(), topRight.x() - topLeft.x());
+        batch.lengths[i] = (float) Math.hypot(topRight.x() - topLeft.x(), topRight.y() - topLeft.y());
+        batch.thicknesses[i] = polygon.size() > 3
+                ? (float) Math.hypot(polygon.get(3).x() - topLeft.x(), polygon.get(3).y() - topLeft.y())
+                : batch.heights[i];
+    }
+
+    /*
+     * Ids are small, dense numbers in practice (0 to the detection count), so an array indexed by id is usually enough.
+     * Ids well past the detection count are found by binary search of the sorted (id, index) pairs instead, so a
+     * stray huge id can't size the array. A negative id is no id: it has no parent and is nobody's parent.
+     */
+    private void resolveParents() {
+        int maxId = NO_ID;
+        for (int i = 0; i < size; i++) {
+            maxId = Math.max(maxId, ids[i]);
+        }
+        if (maxId < DENSE_IDS_PER_DETECTION * (long) size + DENSE_IDS_SLACK) {
+            resolveDenseParents(maxId);
+        } else {
+            resolveSparseParents();
+        }
+    }
+
+    private void resolveDenseParents(int maxId) {
+        int[] indexById = new int[maxId + 1];
+        Arrays.fill(indexById, -1);
+        for (int i = size - 1; i >= 0; i--) {
+            if (ids[i] >= 0) {
+                indexById[ids[i]] = i;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            parents[i] = parentIds[i] >= 0 && parentIds[i] <= maxId ? indexById[parentIds[i]] : -1;
+        }
+    }
+
+    /*
+     * Each pair is packed into a long, id in the high half, so sorting orders by id and then by index, and the first
+     * pair for an id is the first detection with it, as in the dense array.
+     */
+    private void resolveSparseParents() {
+        long[] pairs = new long[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (ids[i] >= 0) {
+                pairs[count++] = (long) ids[i] << 32 | i;
+            }
+        }
+        Arrays.sort(pairs, 0, count);
+        for (int i = 0; i < size; i++) {
+            parents[i] = -1;
+            if (parentIds[i] >= 0) {
+                int found = Arrays.binarySearch(pairs, 0, count, (long) parentIds[i] << 32);
+                int first = found >= 0 ? found : -found - 1;
+                if (first < count && pairs[first] >>> 32 == parentIds[i]) {
+                    parents[i] = (int) pairs[first];
+                }
+            }
+        }
+    }
+
+    /**
+     * A batch of just these detections, in this order. Parents outside the selection are dropped.
+     */
+    public DetectionBatch select(int[] indexes) {
+        int textLength = 0;
+        for (int index : indexes) {
+            textLength += textLength(index);
+        }
+        char[] selected = new char[textLength];
+        DetectionBatch batch = new DetectionBatch(indexes.length, selected);
+
+        int offset = 0;
+        for (int i = 0; i < indexes.length; i++) {
+            int from = indexes[i];
+            batch.types[i] = types[from];
+            batch.ids[i] = ids[from];
+            batch.parentIds[i] = parentIds[from];
+            batch.tops[i] = tops[from];
+            batch.lefts[i] = lefts[from];
+            batch.widths[i] = widths[from];
+            batch.heights[i] = heights[from];
+            batch.confidences[i] = confidences[from];
+            batch.angles[i] = angles[from];
+            batch.lengths[i] = lengths[from];
+            batch.thicknesses[i] = thicknesses[from];
+            batch.textOffsets[i] = offset;
+            System.arraycopy(text, textOffsets[from], selected, offset, textLength(from));
+            offset += textLength(from);
+        }
+        batch.textOffsets[indexes.length] = offset;
+        batch.resolveParents();
+        return batch;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isWord(int i) {
+        return types[i] == WORD;
+    }
+
+    public boolean isLine(int i) {
+        return types[i] == LINE;
+    }
+
+    /**
+     * @return The detection's id, or NO_ID
+     */
+    public int id(int i) {
+        return ids[i];
+    }
+
+    /**
+     * @return The parent detection's id, or NO_ID
+     */
+    public int parentId(int i) {
+        return parentIds[i];
+    }
+
+    /**
+     * @return The index of the parent detection in this batch, or -1 if it has none or it isn't in the batch
+     */
+    public int parent(int i) {
+        return parents[i];
+    }
+
+    public boolean hasBox(int i) {
+        return !Float.isNaN(widths[i]);
+    }
+
+    public float top(int i) {
+        return tops[i];
+    }
+
+    public float left(int i) {
+        return lefts[i];
+    }
+
+    public float width(int i) {
+        return widths[i];
+    }
+
+    public float height(int i) {
+        return heights[i];
+    }
+
+    public float centreX(int i) {
+        return lefts[i] + widths[i] / 2f;
+    }
+
+    public float centreY(int i) {
+        return tops[i] + heights[i] / 2f;
+    }
+
+    /**
+     * @return Rekognition's confidence (0-100), NaN if it didn't give one
+     */
+    public float confidence(int i) {
+        return confidences[i];
+    }
+
+    /**
+     * @return The angle of the text in radians, NaN if there's no polygon
+     */
+    public float angle(int i) {
+        return angles[i];
+    }
+
+    /**
+     * @return How long the text runs along its own angle, the box width if there's no polygon
+     */
+    public float length(int i) {
+        return lengths[i];
+    }
+
+    /**
+     * @return How tall the text is across its own angle, the box height if there's no polygon
+     */
+    public float thickness(int i) {
+        return thicknesses[i];
+    }
+
+    /**
+     * The arena every detection's text is stored in, see {@link #textStart} and {@link #textEnd}. Must not be modified.
+     */
+    public char[] textChars() {
+        return text;
+    }
+
+    public int textStart(int i) {
+        return textOffsets[i];
+    }
+
+    public int textEnd(int i) {
+        return textOffsets[i + 1];
+    }
+
+    public int textLength(int i) {
+        return textOffsets[i + 1] - textOffsets[i];
+    }
+
+    /**
+     * @return The detection's text as a new String
+     */
+    public String text(int i) {
+        return new String(text, textOffsets[i], textLength(i));
+    }
+
+    /**
+     * @return A view of the detection's text, without copying it
+     */
+    public CharSequence textView(int i) {
+        return CharBuffer.wrap(text, textOffsets[i], textLength(i));
+    }
+
+    public boolean sameText(int a, int b) {
+        return Arrays.equals(text, textOffsets[a], textOffsets[a + 1], text, textOffsets[b], textOffsets[b + 1]);
+    }
+
+    /**
+     * Order of two detections by index, for {@link #sort}
+     */
+    @FunctionalInterface
+    public interface IndexOrder {
+        int compare(int a, int b);
+    }
+
+    /**
+     * Sort detection indexes in place, stably and without boxing them. An insertion sort, which is all the few
+     * dozen detections in a photo need.
+     */
+    public static void sort(int[] indexes, IndexOrder order) {
+        for (int i = 1; i < indexes.length; i++) {
+            int index = indexes[i];
+            int j = i - 1;
+            while (j >= 0 && order.compare(indexes[j], index) > 0) {
+                indexes[j + 1] = indexes[j];
+                j--;
+            }
+            indexes[j + 1] = index;
+        }
+    }
+}
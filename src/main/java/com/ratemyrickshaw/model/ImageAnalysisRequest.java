@@ -10,4 +10,16 @@ import lombok.NoArgsConstructor;
 public class ImageAnalysisRequest {
     private String imageUrl;
     private String imageBase64;
+    // A photo already uploaded to the uploads bucket (see /uploads), Rekognition reads it from S3 directly
+    private String imageKey;
+    // Return every plate in the photo (e.g. a rickshaw stand), rather than just the most likely one
+    private boolean multiPlate;
+
+    public ImageAnalysisRequest(String imageUrl, String imageBase64) {
+        this(imageUrl, imageBase64, null, false);
+    }
+
+    public ImageAnalysisRequest(String imageUrl, String imageBase64, boolean multiPlate) {
+        this(imageUrl, imageBase64, null, multiPlate);
+    }
 }
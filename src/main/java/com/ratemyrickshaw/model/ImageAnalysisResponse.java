@@ -1,5 +1,7 @@
 package com.ratemyrickshaw.model;
 
+import java.util.List;
+
 import lombok.Builder;
 import lombok.Data;
 
@@ -14,4 +16,17 @@ public class ImageAnalysisResponse {
 
     String data;
 
+    // The raw text the plate was read from
+    String candidate;
+    // Signed by the server, sent back with a rating (candidateToken) so OCR corrections can be learned from candidate
+    String candidateToken;
+
+    RatingSummary rating;
+
+    // Only for multi plate requests, every valid plate found, biggest text region first
+    List<DetectedPlate> plates;
+
+    // What vehicle the photo shows, only when vehicle labels are enabled
+    VehicleCheck vehicle;
+
 }
@@ -0,0 +1,27 @@
+package com.ratemyrickshaw.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/*
+Encoded image bytes for part of a photo, along with where that part sits in the full frame.
+The position is given as ratios of the full frame, the same convention Rekognition uses for bounding boxes,
+so detections made on the crop can be mapped back onto the original photo.
+*/
+@Data
+@AllArgsConstructor
+public class ImageCrop {
+    private byte[] bytes;
+    private float left;
+    private float top;
+    private float width;
+    private float height;
+
+    public static ImageCrop fullFrame(byte[] bytes) {
+        return new ImageCrop(bytes, 0f, 0f, 1f, 1f);
+    }
+
+    public boolean isFullFrame() {
+        return left == 0f && top == 0f && width == 1f && height == 1f;
+    }
+}
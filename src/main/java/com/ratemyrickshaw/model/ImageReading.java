@@ -0,0 +1,20 @@
+package com.ratemyrickshaw.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import software.amazon.awssdk.services.rekognition.model.DetectTextResponse;
+
+/*
+Everything Rekognition was asked about one photo: its text, and what kind of vehicle it shows. The text is null when
+the labels came back first showing some other vehicle, since the text detection was cancelled.
+*/
+@Data
+@AllArgsConstructor
+public class ImageReading {
+    private DetectTextResponse text;
+    private VehicleCheck vehicle;
+
+    public boolean isOtherVehicle() {
+        return vehicle.getVerdict() == VehicleCheck.Verdict.OTHER_VEHICLE;
+    }
+}
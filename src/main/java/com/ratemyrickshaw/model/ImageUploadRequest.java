@@ -0,0 +1,15 @@
+package com.ratemyrickshaw.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ImageUploadRequest {
+    // image/jpeg or image/png, the formats Rekognition reads
+    private String contentType;
+    // The exact size of the photo in bytes, the upload URL is only valid for a body of this length
+    private long contentLength;
+}
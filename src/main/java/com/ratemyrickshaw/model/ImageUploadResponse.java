@@ -0,0 +1,22 @@
+package com.ratemyrickshaw.model;
+
+import java.util.Map;
+
+import lombok.Builder;
+import lombok.Data;
+
+@Builder
+@Data
+public class ImageUploadResponse {
+
+    boolean success;
+    String message;
+
+    // PUT the photo here, with exactly these headers, then pass the key to /analyze as "imageKey"
+    String uploadUrl;
+    Map<String, String> headers;
+    String imageKey;
+    // Epoch millis, the upload URL stops working after this
+    Long expiresAt;
+
+}
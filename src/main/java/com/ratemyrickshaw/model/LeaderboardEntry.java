@@ -0,0 +1,21 @@
+package com.ratemyrickshaw.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/*
+One driver's place on a leaderboard. Rank 1 is the best rated driver on a "best" leaderboard, and the worst rated on
+a "worst" one.
+*/
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class LeaderboardEntry {
+    private int rank;
+    private String plate;
+    private long count;
+    private double averageStars;
+}
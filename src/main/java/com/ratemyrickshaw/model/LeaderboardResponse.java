@@ -0,0 +1,21 @@
+package com.ratemyrickshaw.model;
+
+import java.util.List;
+
+import lombok.Builder;
+import lombok.Data;
+
+@Builder
+@Data
+public class LeaderboardResponse {
+
+    boolean success;
+    String message;
+
+    // A state code ("MH") or an RTO code ("MH12")
+    String region;
+    // best or worst
+    String order;
+    List<LeaderboardEntry> entries;
+
+}
@@ -0,0 +1,20 @@
+package com.ratemyrickshaw.model;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/*
+Every plate's standing on the leaderboards, one column per field: entry i is plates[i] with counts[i] ratings adding
+up to sums[i] stars. Which leaderboards a plate is on follows from the plate itself, so they aren't stored.
+*/
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class LeaderboardSnapshot {
+    private List<String> plates;
+    private long[] counts;
+    private long[] sums;
+}
@@ -0,0 +1,19 @@
+package com.ratemyrickshaw.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/*
+The OCR confusion counts learned so far, for saving: counts[(part * symbols + read) * symbols + actual] is how often a
+character was read as another in one part of a plate. The alphabet gives the symbols in order, so counts saved with a
+different alphabet or number of parts are never loaded into the wrong places.
+*/
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class OcrConfusionSnapshot {
+    private String alphabet;
+    private int parts;
+    private long[] counts;
+}
@@ -0,0 +1,21 @@
+package com.ratemyrickshaw.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/*
+The plate read from a photo, or an error message starting with "Invalid" if no valid plate was found.
+The confidence is Rekognition's confidence (0-100) when a single detection could be trusted as the whole plate,
+otherwise it is null. The candidate is the text the plate was read from, before validation.
+*/
+@Data
+@AllArgsConstructor
+public class PlateDetectionResult {
+    private String plate;
+    private Float confidence;
+    private String candidate;
+
+    public PlateDetectionResult(String plate, Float confidence) {
+        this(plate, confidence, null);
+    }
+}
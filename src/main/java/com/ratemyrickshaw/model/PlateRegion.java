@@ -0,0 +1,18 @@
+package com.ratemyrickshaw.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/*
+A candidate number plate region, in pixel coordinates of the source image.
+The score is in the range 0..1, higher means more plate-like.
+*/
+@Data
+@AllArgsConstructor
+public class PlateRegion {
+    private int x;
+    private int y;
+    private int width;
+    private int height;
+    private double score;
+}
@@ -0,0 +1,26 @@
+package com.ratemyrickshaw.model;
+
+import lombok.Builder;
+import lombok.Data;
+
+/*
+What the RekognitionRateGovernor is doing right now, and has done since the node started.
+*/
+@Builder
+@Data
+public class RateGovernorStats {
+
+    // The rate calls are paced at, it adapts to throttling
+    double tps;
+    // Callers waiting for a token right now
+    int queued;
+    long acquired;
+    // Turned away because the queue was full
+    long rejected;
+    // Calls Rekognition throttled anyway
+    long throttled;
+    // How long recent callers waited for a token, null before any
+    Long queueWaitP50Millis;
+    Long queueWaitP99Millis;
+
+}
@@ -0,0 +1,22 @@
+package com.ratemyrickshaw.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/*
+A single passenger rating of a driver, keyed by the canonical number plate (e.g. "AP13V7951").
+The idempotency key identifies the submission, so a client retrying the same rating overwrites it rather than
+counting it twice.
+*/
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class Rating {
+    private String plate;
+    private int stars;
+    private String idempotencyKey;
+    private long submittedAt;
+}
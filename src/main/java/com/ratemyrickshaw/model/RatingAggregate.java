@@ -0,0 +1,155 @@
+package com.ratemyrickshaw.model;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import lombok.Builder;
+import lombok.Value;
+
+/*
+Aggregate rating state for one plate, as a state based CRDT.
+Every node (Lambda environment or server) only ever increases its own counts, so two copies of the state are merged
+by taking the larger value of each count for each node. That merge is commutative, associative and idempotent, so
+nodes can exchange and store their state in any order, any number of times, and still agree.
+
+Recent ratings are weighted with forward exponential decay: each rating adds exp(lambda * (t - landmark)) to the
+decayed counts. The weights only ever grow, so they merge the same way, and the landmark cancels out of the
+recent average.
+
+Counts of nodes that have gone idle are folded into one shared base entry (BASE_NODE) by the store, see
+RatingStore.foldAggregate, so the number of entries stays bounded however many nodes come and go.
+*/
+@Value
+public class RatingAggregate {
+
+    public static final int MAX_STARS = 5;
+    // The entry idle nodes' counts are folded into, never a real node id
+    public static final String BASE_NODE = "#base";
+
+    Map<String, NodeCounts> nodes;
+
+    public static RatingAggregate empty() {
+        return new RatingAggregate(Map.of());
+    }
+
+    public static RatingAggregate of(String nodeId, NodeCounts counts) {
+        return new RatingAggregate(Map.of(nodeId, counts));
+    }
+
+    /**
+     * Combine the state seen by two replicas
+     */
+    public RatingAggregate merge(RatingAggregate other) {
+        Map<String, NodeCounts> merged = new HashMap<>(nodes);
+        other.nodes.forEach((nodeId, counts) -> merged.merge(nodeId, counts, NodeCounts::merge));
+        return new RatingAggregate(Map.copyOf(merged));
+    }
+
+    public long count() {
+        return nodes.values().stream().mapToLong(NodeCounts::getCount).sum();
+    }
+
+    public Double mean() {
+        long count = count();
+        return count == 0 ? null : (double) nodes.values().stream().mapToLong(NodeCounts::getSum).sum() / count;
+    }
+
+    public Double standardDeviation() {
+        long count = count();
+        if (count == 0) {
+            return null;
+        }
+        double mean = mean();
+        double meanOfSquares = (double) nodes.values().stream().mapToLong(NodeCounts::getSumOfSquares).sum() / count;
+        return Math.sqrt(Math.max(0, meanOfSquares - mean * mean));
+    }
+
+    /**
+     * @return The average with recent ratings weighted more heavily than old ones
+     */
+    public Double recentMean() {
+        double weight = nodes.values().stream().mapToDouble(NodeCounts::getDecayedCount).sum();
+        return weight == 0 ? null : nodes.values().stream().mapToDouble(NodeCounts::getDecayedSum).sum() / weight;
+    }
+
+    /**
+     * @return The number of 1 to 5 star ratings, index 0 is 1 star
+     */
+    public long[] histogram() {
+        long[] histogram = new long[MAX_STARS];
+        nodes.values().forEach(counts -> {
+            for (int i = 0; i < MAX_STARS; i++) {
+                histogram[i] += counts.getHistogram()[i];
+            }
+        });
+        return histogram;
+    }
+
+    /*
+     * One node's counts. Each field only ever grows on its own node, so the larger value is always the newer one.
+     */
+    @Value
+    @Builder
+    public static class NodeCounts {
+        long count;
+        long sum;
+        long sumOfSquares;
+        long[] histogram;
+        double decayedCount;
+        double decayedSum;
+
+        public static NodeCounts zero() {
+            return NodeCounts.builder().histogram(new long[MAX_STARS]).build();
+        }
+
+        /**
+         * @return The counts of both, for folding a node's counts into another's
+         */
+        public NodeCounts plus(NodeCounts other) {
+            long[] summedHistogram = new long[MAX_STARS];
+            for (int i = 0; i < MAX_STARS; i++) {
+                summedHistogram[i] = histogram[i] + other.histogram[i];
+            }
+            return NodeCounts.builder()
+                    .count(count + other.count)
+                    .sum(sum + other.sum)
+                    .sumOfSquares(sumOfSquares + other.sumOfSquares)
+                    .histogram(summedHistogram)
+                    .decayedCount(decayedCount + other.decayedCount)
+                    .decayedSum(decayedSum + other.decayedSum)
+                    .build();
+        }
+
+        public NodeCounts merge(NodeCounts other) {
+            long[] mergedHistogram = new long[MAX_STARS];
+            for (int i = 0; i < MAX_STARS; i++) {
+                mergedHistogram[i] = Math.max(histogram[i], other.histogram[i]);
+            }
+            return NodeCounts.builder()
+                    .count(Math.max(count, other.count))
+                    .sum(Math.max(sum, other.sum))
+                    .sumOfSquares(Math.max(sumOfSquares, other.sumOfSquares))
+                    .histogram(mergedHistogram)
+                    .decayedCount(Math.max(decayedCount, other.decayedCount))
+                    .decayedSum(Math.max(decayedSum, other.decayedSum))
+                    .build();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof NodeCounts other
+                    && count == other.count
+                    && sum == other.sum
+                    && sumOfSquares == other.sumOfSquares
+                    && Arrays.equals(histogram, other.histogram)
+                    && Double.compare(decayedCount, other.decayedCount) == 0
+                    && Double.compare(decayedSum, other.decayedSum) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(count) * 31 + Arrays.hashCode(histogram);
+        }
+    }
+}
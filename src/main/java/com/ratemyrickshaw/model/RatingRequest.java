@@ -0,0 +1,20 @@
+package com.ratemyrickshaw.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RatingRequest {
+    private String plate;
+    private int stars;
+    private String idempotencyKey;
+    // The analysis response's candidateToken, if the plate came from a photo, so OCR corrections can be learned
+    private String candidateToken;
+
+    public RatingRequest(String plate, int stars, String idempotencyKey) {
+        this(plate, stars, idempotencyKey, null);
+    }
+}
@@ -0,0 +1,18 @@
+package com.ratemyrickshaw.model;
+
+import java.util.List;
+
+import lombok.Builder;
+import lombok.Data;
+
+@Builder
+@Data
+public class RatingResponse {
+
+    boolean success;
+    String message;
+    String plate;
+
+    List<Rating> ratings;
+
+}
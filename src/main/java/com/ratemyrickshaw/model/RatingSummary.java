@@ -0,0 +1,42 @@
+package com.ratemyrickshaw.model;
+
+import lombok.Builder;
+import lombok.Data;
+
+/*
+What a passenger sees about a driver: how many ratings there are, the average star rating overall and recently,
+and how the ratings are spread across 1 to 5 stars.
+*/
+@Builder
+@Data
+public class RatingSummary {
+
+    String plate;
+    long count;
+    Double averageStars;
+    Double starsStandardDeviation;
+    Double recentAverageStars;
+    long[] histogram;
+
+    public static RatingSummary none(String plate) {
+        return RatingSummary.builder().plate(plate).count(0).build();
+    }
+
+    public static RatingSummary of(String plate, RatingAggregate aggregate) {
+        if (aggregate.count() == 0) {
+            return none(plate);
+        }
+        return RatingSummary.builder()
+                .plate(plate)
+                .count(aggregate.count())
+                .averageStars(aggregate.mean())
+                .starsStandardDeviation(aggregate.standardDeviation())
+                .recentAverageStars(aggregate.recentMean())
+                .histogram(aggregate.histogram())
+                .build();
+    }
+
+    public boolean hasRatings() {
+        return count > 0;
+    }
+}
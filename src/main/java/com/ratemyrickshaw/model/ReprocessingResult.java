@@ -0,0 +1,32 @@
+package com.ratemyrickshaw.model;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/*
+One line of a reprocessing run's JSONL output: what the current heuristics read from one archived photo.
+*/
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ReprocessingResult {
+    // The input's path, relative to the archive directory or as listed in the manifest
+    private String id;
+    private boolean valid;
+    // The plate, or the validation message when no valid plate was found
+    private String plate;
+    private Float confidence;
+    // Only for multi plate runs
+    private List<DetectedPlate> plates;
+    // Set instead of the rest when the input couldn't be read or analysed
+    private String error;
+    private long elapsedMicros;
+}
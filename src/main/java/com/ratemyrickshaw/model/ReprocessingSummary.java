@@ -0,0 +1,23 @@
+package com.ratemyrickshaw.model;
+
+import lombok.Builder;
+import lombok.Data;
+
+@Builder
+@Data
+public class ReprocessingSummary {
+
+    // Processed by this run
+    long processed;
+    long valid;
+    long failed;
+    // Already in the output from an earlier run
+    long skipped;
+
+    long elapsedMillis;
+
+    public double perSecond() {
+        return elapsedMillis == 0 ? 0 : processed * 1000.0 / elapsedMillis;
+    }
+
+}
@@ -0,0 +1,46 @@
+package com.ratemyrickshaw.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/*
+A message to the client of a live scanning session (/analyze/session), sent as JSON text.
+*/
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ScanEvent {
+
+    public enum Type {
+        // A frame was analysed: what it read, if anything, and what the frames so far agree on
+        FRAME,
+        // The frames agree on a plate, the scan is done. Comes with the plate's rating
+        PLATE,
+        // The scan used all its OCR calls without the frames agreeing, the best guess so far (if any) is the plate
+        EXHAUSTED,
+        // A frame couldn't be analysed, or the client sent something the session doesn't understand
+        ERROR
+    }
+
+    private Type type;
+    // The plate this frame read (FRAME), or the plate the frames agree on (PLATE, EXHAUSTED)
+    private String plate;
+    // What the frames so far agree on, for FRAME
+    private String consensus;
+    // The raw text the plate was read from, and its token to send back with a rating (see ImageAnalysisResponse)
+    private String candidate;
+    private String candidateToken;
+    private RatingSummary rating;
+    private String message;
+
+    private int framesReceived;
+    // Frames replaced by a newer one before they could be analysed
+    private int framesDropped;
+    private int ocrCalls;
+}
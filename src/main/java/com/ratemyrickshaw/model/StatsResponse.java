@@ -0,0 +1,20 @@
+package com.ratemyrickshaw.model;
+
+import lombok.Builder;
+import lombok.Data;
+
+@Builder
+@Data
+public class StatsResponse {
+
+    boolean success;
+    String message;
+
+    // Pacing of the Rekognition calls, see RekognitionRateGovernor
+    RateGovernorStats rekognition;
+    // How many detectText calls were hedged, and how many of those the hedge answered first
+    String hedging;
+    // The fraction of text detections settled by a single confident LINE, see PostRekognitionService
+    double fastPathHitRatio;
+
+}
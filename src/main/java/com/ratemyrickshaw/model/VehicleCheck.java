@@ -0,0 +1,36 @@
+package com.ratemyrickshaw.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/*
+What DetectLabels made of the vehicle in a photo, checked alongside the text detection. The label and confidence
+are those of the label that decided the verdict, neither is set for NO_VEHICLE or UNKNOWN.
+*/
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class VehicleCheck {
+
+    public enum Verdict {
+        // A rickshaw label was seen
+        RICKSHAW,
+        // Confidently some other vehicle (a car, a truck, a bus) and no rickshaw, the photo isn't analysed further
+        OTHER_VEHICLE,
+        // No vehicle at all, which is normal for a close up of a plate
+        NO_VEHICLE,
+        // The labels didn't come back in time or the call failed, the photo is analysed as if they'd never been asked for
+        UNKNOWN
+    }
+
+    private Verdict verdict;
+    private String label;
+    private Float confidence;
+
+    public static VehicleCheck unknown() {
+        return VehicleCheck.builder().verdict(Verdict.UNKNOWN).build();
+    }
+}
@@ -0,0 +1,31 @@
+package com.ratemyrickshaw.service;
+
+import java.time.Duration;
+
+import com.ratemyrickshaw.model.AnalysisJob;
+
+/*
+Jobs waiting for a worker. The in-process queue is the default, a shared queue (e.g. SQS) can replace it by
+providing its own bean, so jobs submitted to one instance can be picked up by another.
+*/
+public interface AnalysisJobQueue {
+
+    /**
+     * Add a job to the back of the queue
+     *
+     * @return false if the queue is full and the job was not accepted
+     */
+    boolean offer(AnalysisJob job);
+
+    /**
+     * Take the job at the front of the queue, waiting up to the timeout for one to arrive
+     *
+     * @return The job, or null if none arrived in time
+     */
+    AnalysisJob poll(Duration timeout) throws InterruptedException;
+
+    /**
+     * @return How many jobs are waiting
+     */
+    int size();
+}
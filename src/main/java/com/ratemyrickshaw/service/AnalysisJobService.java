@@ -0,0 +1,174 @@
+package com.ratemyrickshaw.service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.ratemyrickshaw.model.AnalysisJob;
+import com.ratemyrickshaw.model.Deadline;
+import com.ratemyrickshaw.model.ImageAnalysisRequest;
+import com.ratemyrickshaw.model.ImageAnalysisResponse;
+import com.ratemyrickshaw.service.RekognitionRateGovernor.Priority;
+
+import io.quarkus.runtime.ShutdownEvent;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+
+/*
+Analysis jobs, for photos and batches that don't fit a request API Gateway will wait 29s for. The client gets a job
+id straight away and polls for the result, so how long it waits no longer depends on how long the analysis takes.
+
+The logic is as follows:
+1. A submitted request is checked, saved as QUEUED and put on the queue. A job refers to its photo (an uploaded image
+   key or a URL) rather than carrying it, so a full queue holds kilobytes, not a photo per job. When the queue is full
+   the request is turned away rather than accepted and left to wait behind work that can't be done in time.
+2. A fixed number of workers (virtual threads) take jobs off the queue one at a time. Each job gets its own timeout,
+   much longer than a synchronous request's, and its Rekognition calls queue with the rate governor as BULK, so
+   interactive scans always go first and jobs soak up whatever capacity is left.
+3. The job is saved as RUNNING, then COMPLETED with the analysis response or FAILED with the reason.
+4. Finished jobs are kept for the result TTL, see the AnalysisJobStore.
+The queue and store are in-process, so jobs are served by the HTTP server only. On Lambda an environment is frozen
+between invocations, so its workers would only make progress while it's serving requests, and a poll may reach an
+environment that doesn't have the job. The Lambda handler turns jobs away.
+*/
+@Slf4j
+@ApplicationScoped
+public class AnalysisJobService {
+
+    private static final Duration POLL_INTERVAL = Duration.ofSeconds(1);
+
+    private final ImageAnalysisService imageAnalysisService;
+    private final AnalysisJobQueue jobQueue;
+    private final AnalysisJobStore jobStore;
+    private final int workerCount;
+    private final Duration jobTimeout;
+
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile boolean running;
+
+    @Inject
+    public AnalysisJobService(ImageAnalysisService imageAnalysisService, AnalysisJobQueue jobQueue,
+            AnalysisJobStore jobStore,
+            @ConfigProperty(name = "rickshaw.jobs.workers", defaultValue = "4") int workerCount,
+            @ConfigProperty(name = "rickshaw.jobs.timeout", defaultValue = "2m") Duration jobTimeout) {
+        this.imageAnalysisService = imageAnalysisService;
+        this.jobQueue = jobQueue;
+        this.jobStore = jobStore;
+        this.workerCount = workerCount;
+        this.jobTimeout = jobTimeout;
+    }
+
+    @PostConstruct
+    public synchronized void start() {
+        running = true;
+        for (int i = 0; i < workerCount; i++) {
+            workers.add(Thread.ofVirtual().name("analysis-job-worker-" + i).start(this::work));
+        }
+        log.info("Started {} analysis job workers", workerCount);
+    }
+
+    void onShutdown(@Observes ShutdownEvent event) {
+        stop();
+    }
+
+    /**
+     * Stop the workers. Jobs still queued stay queued, the job being analysed by each worker is abandoned.
+     */
+    public synchronized void stop() {
+        running = false;
+        workers.forEach(Thread::interrupt);
+        workers.clear();
+    }
+
+    /**
+     * Queue an analysis to run in the background
+     *
+     * @return The job, QUEUED
+     * @throws IllegalArgumentException If there's no image to analyse, or the image is in the request itself
+     * @throws CapacityExceededException If the queue is already full
+     */
+    public AnalysisJob submit(ImageAnalysisRequest request) {
+        imageAnalysisService.validate(request);
+        if (request.getImageBase64() != null && !request.getImageBase64().isBlank()) {
+            throw new IllegalArgumentException("Jobs take an imageKey (upload the photo with /uploads) or an imageUrl, "
+                    + "not imageBase64");
+        }
+
+        AnalysisJob job = AnalysisJob.builder()
+                .id(UUID.randomUUID().toString())
+                .status(AnalysisJob.Status.QUEUED)
+                .request(request)
+                .submittedAt(System.currentTimeMillis())
+                .build();
+
+        // Saved before it's queued, so a worker that picks it up straight away can't be overwritten by this
+        jobStore.save(job);
+        if (!jobQueue.offer(job)) {
+            jobStore.delete(job.getId());
+            throw new CapacityExceededException("Too many analysis jobs queued (" + jobQueue.size() + ")");
+        }
+        log.info("Queued analysis job {} ({} waiting)", job.getId(), jobQueue.size());
+        return job;
+    }
+
+    /**
+     * @return The job's latest status, or empty if there's no such job or its result has expired
+     */
+    public Optional<AnalysisJob> find(String id) {
+        return jobStore.find(id);
+    }
+
+    private void work() {
+        while (running) {
+            try {
+                AnalysisJob job = jobQueue.poll(POLL_INTERVAL);
+                if (job != null) {
+                    run(job);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                // A worker must never die, or the pool quietly shrinks
+                log.error("Analysis job worker failed: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    void run(AnalysisJob job) {
+        AnalysisJob started = job.toBuilder()
+                .status(AnalysisJob.Status.RUNNING)
+                .startedAt(System.currentTimeMillis())
+                .build();
+        jobStore.save(started);
+
+        AnalysisJob.AnalysisJobBuilder finished = started.toBuilder().request(null);
+        try {
+            ImageAnalysisResponse result = imageAnalysisService.analyze(job.getRequest(), Deadline.after(jobTimeout),
+                    Priority.BULK);
+            finished.status(AnalysisJob.Status.COMPLETED).result(result);
+        } catch (DeadlineExceededException e) {
+            log.warn("Analysis job {} ran out of time: {}", job.getId(), e.getMessage());
+            finished.status(AnalysisJob.Status.FAILED).error("Image analysis timed out");
+        } catch (IllegalArgumentException e) {
+            finished.status(AnalysisJob.Status.FAILED).error(e.getMessage());
+        } catch (CapacityExceededException e) {
+            log.warn("Analysis job {} was turned away: {}", job.getId(), e.getMessage());
+            finished.status(AnalysisJob.Status.FAILED).error("Too many images are being analysed right now, please try again shortly");
+        } catch (Exception e) {
+            log.error("Analysis job {} failed: {}", job.getId(), e.getMessage(), e);
+            finished.status(AnalysisJob.Status.FAILED).error("Error processing image: " + e.getMessage());
+        }
+
+        AnalysisJob done = finished.finishedAt(System.currentTimeMillis()).build();
+        jobStore.save(done);
+        log.info("Analysis job {} {} in {}ms", job.getId(), done.getStatus(), done.getFinishedAt() - done.getStartedAt());
+    }
+}
@@ -0,0 +1,25 @@
+package com.ratemyrickshaw.service;
+
+import java.util.Optional;
+
+import com.ratemyrickshaw.model.AnalysisJob;
+
+/*
+Where clients read a job's status and result from. Finished jobs are only kept for a while, clients are expected to
+collect their result soon after it's ready. The in-process store is the default, a shared store (e.g. DynamoDB with
+a TTL attribute) can replace it by providing its own bean.
+*/
+public interface AnalysisJobStore {
+
+    /**
+     * Save a job, replacing any earlier copy with the same id
+     */
+    void save(AnalysisJob job);
+
+    /**
+     * @return The latest copy of a job, or empty if there's no such job or it finished too long ago
+     */
+    Optional<AnalysisJob> find(String id);
+
+    void delete(String id);
+}
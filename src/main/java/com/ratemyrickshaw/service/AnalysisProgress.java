@@ -0,0 +1,37 @@
+package com.ratemyrickshaw.service;
+
+/*
+Told about each stage of an image analysis as soon as it's done, so a client can show partial results (the words
+Rekognition read, the plate) before the rating lookup and the rest of the response. The stages come from the
+analysis itself, listening costs nothing beyond the events.
+Called on the thread doing the analysis, so a listener must not block for long.
+*/
+@FunctionalInterface
+public interface AnalysisProgress {
+
+    // For callers that only want the final response
+    AnalysisProgress NONE = (stage, data) -> {
+    };
+
+    enum Stage {
+        // The request named an image, data is where it comes from
+        IMAGE_RECEIVED,
+        // The image is on its way to Rekognition
+        OCR_STARTED,
+        // The words Rekognition read, before any extraction
+        OCR_WORDS,
+        // What DetectLabels made of the vehicle, only with vehicle labels enabled
+        VEHICLE_CHECKED,
+        // The words picked out as the plate, before validation
+        CANDIDATE_PLATE,
+        // The plate after validation, or the reason it isn't one. Once per plate for multi plate requests
+        VALIDATED_PLATE,
+        // The plate's rating, null if there isn't one or the lookup was too slow
+        RATING
+    }
+
+    /**
+     * @param data What the stage produced, serialisable as JSON
+     */
+    void stage(Stage stage, Object data);
+}
@@ -0,0 +1,81 @@
+package com.ratemyrickshaw.service;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+A Bloom filter of strings: mightContain never gives a false negative, and gives a false positive at roughly the
+configured rate once the expected number of items has been added.
+Adds are lock free, so it can be updated while requests are reading it.
+*/
+public class BloomFilter {
+
+    private final AtomicLongArray bits;
+    private final int bitCount;
+    private final int hashCount;
+
+    /**
+     * @param expectedItems The number of items the filter is sized for
+     * @param falsePositiveRate The false positive rate at that size, e.g. 0.01
+     */
+    public BloomFilter(int expectedItems, double falsePositiveRate) {
+        int items = Math.max(1, expectedItems);
+        long optimalBits = (long) Math.ceil(-items * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.bitCount = (int) Math.max(64, Math.min(Integer.MAX_VALUE - 63, optimalBits));
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / items * Math.log(2)));
+        this.bits = new AtomicLongArray((bitCount + 63) / 64);
+    }
+
+    public void add(String value) {
+        long hash = hash(value);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashCount; i++) {
+            int bit = index(h1 + i * h2);
+            long mask = 1L << bit;
+            int word = bit >>> 6;
+            long current;
+            while (((current = bits.get(word)) & mask) == 0 && !bits.compareAndSet(word, current, current | mask)) {
+                // another thread set a bit in the same word, retry
+            }
+        }
+    }
+
+    public boolean mightContain(String value) {
+        long hash = hash(value);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashCount; i++) {
+            int bit = index(h1 + i * h2);
+            if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int sizeInBytes() {
+        return bits.length() * Long.BYTES;
+    }
+
+    private int index(int combinedHash) {
+        return (combinedHash & Integer.MAX_VALUE) % bitCount;
+    }
+
+    /*
+     * FNV-1a over the characters followed by a 64 bit finaliser, so the two halves are independent enough to
+     * derive every index from them (Kirsch-Mitzenmacher double hashing).
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
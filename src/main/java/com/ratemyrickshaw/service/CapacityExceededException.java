@@ -0,0 +1,12 @@
+package com.ratemyrickshaw.service;
+
+/*
+Thrown when there's more work queued for a rate limited dependency than it can get through, so the caller can be
+told to try again later rather than waiting behind the backlog.
+*/
+public class CapacityExceededException extends RuntimeException {
+
+    public CapacityExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,140 @@
+package com.ratemyrickshaw.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/*
+A consistent hash ring: keys and nodes are hashed onto the same 64 bit circle, and a key belongs to the first node
+point at or after its own hash, wrapping around.
+
+The logic is as follows:
+1. Each node is placed on the ring at many points (virtual nodes), hashing "name#0", "name#1" and so on. With enough
+   points every node owns about the same share of the circle, however few nodes there are.
+2. Adding a node only takes over the arcs just before its own points, so only about 1/n of the keys move, all of
+   them to the new node. Removing a node hands its arcs to the points after them, spread over the other nodes.
+3. The points are kept in one sorted long[], with the owning node's index alongside, so a lookup is a binary search
+   with no boxing.
+A ring never changes, with and without return a new one, so a router can swap rings atomically.
+*/
+public final class ConsistentHashRing<N> {
+
+    private final int virtualNodes;
+    private final Map<String, N> nodes;
+    private final long[] points;
+    private final int[] owners;
+    private final String[] names;
+
+    private ConsistentHashRing(int virtualNodes, Map<String, N> nodes) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("A node needs at least one point on the ring");
+        }
+        this.virtualNodes = virtualNodes;
+        this.nodes = Collections.unmodifiableMap(new LinkedHashMap<>(nodes));
+        this.names = nodes.keySet().toArray(String[]::new);
+
+        int size = names.length * virtualNodes;
+        long[] unsorted = new long[size];
+        Integer[] order = new Integer[size];
+        for (int node = 0; node < names.length; node++) {
+            for (int v = 0; v < virtualNodes; v++) {
+                int i = node * virtualNodes + v;
+                unsorted[i] = hash(names[node] + "#" + v);
+                order[i] = i;
+            }
+        }
+        // Ties (vanishingly rare) go to the node whose name sorts first, so every ring built from the same nodes agrees
+        Arrays.sort(order, (a, b) -> unsorted[a] != unsorted[b]
+                ? Long.compare(unsorted[a], unsorted[b])
+                : names[a / virtualNodes].compareTo(names[b / virtualNodes]));
+        this.points = new long[size];
+        this.owners = new int[size];
+        for (int i = 0; i < size; i++) {
+            points[i] = unsorted[order[i]];
+            owners[i] = order[i] / virtualNodes;
+        }
+    }
+
+    public static <N> ConsistentHashRing<N> of(int virtualNodes, Map<String, N> nodes) {
+        return new ConsistentHashRing<>(virtualNodes, nodes);
+    }
+
+    /**
+     * @return A ring with this node added, or replaced if there is already a node of that name
+     */
+    public ConsistentHashRing<N> with(String name, N node) {
+        Map<String, N> next = new LinkedHashMap<>(nodes);
+        next.put(name, node);
+        return new ConsistentHashRing<>(virtualNodes, next);
+    }
+
+    /**
+     * @return A ring without this node
+     */
+    public ConsistentHashRing<N> without(String name) {
+        Map<String, N> next = new LinkedHashMap<>(nodes);
+        next.remove(name);
+        return new ConsistentHashRing<>(virtualNodes, next);
+    }
+
+    /**
+     * @return The name of the node that owns the key
+     * @throws IllegalStateException If the ring has no nodes
+     */
+    public String ownerOf(String key) {
+        if (points.length == 0) {
+            throw new IllegalStateException("The ring has no nodes");
+        }
+        int i = Arrays.binarySearch(points, hash(key));
+        if (i < 0) {
+            i = -i - 1;
+        } else {
+            // Several points may share the hash, the key belongs to the first of them
+            while (i > 0 && points[i - 1] == points[i]) {
+                i--;
+            }
+        }
+        return names[owners[i == points.length ? 0 : i]];
+    }
+
+    /**
+     * @return The node that owns the key
+     * @throws IllegalStateException If the ring has no nodes
+     */
+    public N nodeFor(String key) {
+        return nodes.get(ownerOf(key));
+    }
+
+    public Map<String, N> nodes() {
+        return nodes;
+    }
+
+    public Set<String> names() {
+        return nodes.keySet();
+    }
+
+    public boolean isEmpty() {
+        return nodes.isEmpty();
+    }
+
+    /*
+     * 64 bit FNV-1a over the UTF-8 bytes, then MurmurHash3's finaliser. FNV alone leaves keys that differ only in
+     * their last characters (plates in a series, "shard#1" and "shard#2") close together on the ring.
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,16 @@
+package com.ratemyrickshaw.service;
+
+/*
+Thrown when a request's deadline passes before its work is done, so the handler can answer with a clean timeout
+instead of Lambda killing the invocation.
+*/
+public class DeadlineExceededException extends RuntimeException {
+
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+
+    public DeadlineExceededException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
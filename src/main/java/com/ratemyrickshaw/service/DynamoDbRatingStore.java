@@ -0,0 +1,277 @@
+package com.ratemyrickshaw.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import com.ratemyrickshaw.model.Rating;
+import com.ratemyrickshaw.model.RatingAggregate;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.PutRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+
+/*
+Ratings table keyed by plate (partition key) and idempotency key (sort key).
+BatchWriteItem can't take condition expressions, but because the idempotency key is part of the primary key a
+replayed submission overwrites its own item instead of adding a second rating.
+Each plate also has one aggregate item (sort key "#aggregate") with an attribute per node holding that node's
+counts and when it last wrote them. A node only ever overwrites its own attribute, so concurrent nodes never clobber
+each other. A node's counts are folded into the plate's base attribute once it goes idle, by the node itself or, if
+it never did (a Lambda environment that was shut down), by whoever reads them after the retire age. So the item only
+holds the nodes that rated the plate lately and stays well clear of DynamoDB's 400 KB item limit.
+A sharded table also has one item (plate and sort key "#shards") listing the tables it is sharded with.
+Works against DynamoDB Local too, see rickshaw.dynamodb.endpoint.
+*/
+@Slf4j
+@RequiredArgsConstructor
+public class DynamoDbRatingStore implements RatingStore {
+
+    private static final String PLATE = "plate";
+    private static final String IDEMPOTENCY_KEY = "idempotencyKey";
+    private static final String STARS = "stars";
+    private static final String SUBMITTED_AT = "submittedAt";
+    private static final String AGGREGATE_KEY = RESERVED_KEY_PREFIX + "aggregate";
+    private static final String NODE_PREFIX = "node_";
+    private static final String UPDATED_AT = "updatedAt";
+    private static final String[] COUNTS = { "count", "sum", "sumOfSquares", "decayedCount", "decayedSum" };
+    private static final String HISTOGRAM = "histogram";
+    private static final String SHARDS_KEY = RESERVED_KEY_PREFIX + "shards";
+    private static final String SHARD_NAMES = "names";
+
+    private final DynamoDbClient dynamoDbClient;
+    private final String tableName;
+
+    @Override
+    public List<Rating> writeBatch(List<Rating> ratings) {
+        List<WriteRequest> writes = ratings.stream()
+                .map(rating -> WriteRequest.builder()
+                        .putRequest(PutRequest.builder().item(toItem(rating)).build())
+                        .build())
+                .toList();
+
+        BatchWriteItemResponse response = dynamoDbClient.batchWriteItem(BatchWriteItemRequest.builder()
+                .requestItems(Map.of(tableName, writes))
+                .build());
+
+        List<Rating> unprocessed = new ArrayList<>();
+        response.unprocessedItems().getOrDefault(tableName, List.of())
+                .forEach(write -> unprocessed.add(toRating(write.putRequest().item())));
+
+        if (!unprocessed.isEmpty()) {
+            log.warn("{} of {} ratings were not processed by DynamoDB", unprocessed.size(), ratings.size());
+        }
+        return unprocessed;
+    }
+
+    @Override
+    public List<Rating> findByPlate(String plate) {
+        QueryRequest request = QueryRequest.builder()
+                .tableName(tableName)
+                .keyConditionExpression("#plate = :plate")
+                .expressionAttributeNames(Map.of("#plate", PLATE))
+                .expressionAttributeValues(Map.of(":plate", AttributeValue.fromS(plate)))
+                .build();
+
+        return dynamoDbClient.queryPaginator(request).items().stream()
+                .filter(item -> !AGGREGATE_KEY.equals(item.get(IDEMPOTENCY_KEY).s()))
+                .map(this::toRating)
+                .sorted((a, b) -> Long.compare(a.getSubmittedAt(), b.getSubmittedAt()))
+                .toList();
+    }
+
+    /*
+     * A keys only scan, reading just the plate attribute. This reads the whole table so it's only used to rebuild the
+     * known plates filter in the background.
+     */
+    @Override
+    public Set<String> ratedPlates() {
+        ScanRequest request = ScanRequest.builder()
+                .tableName(tableName)
+                .projectionExpression("#plate")
+                .expressionAttributeNames(Map.of("#plate", PLATE))
+                .build();
+
+        return dynamoDbClient.scanPaginator(request).items().stream()
+                .map(item -> item.get(PLATE).s())
+                .filter(plate -> !SHARDS_KEY.equals(plate))
+                .collect(Collectors.toSet());
+    }
+
+    @Override
+    public void writeAggregate(String plate, String nodeId, RatingAggregate.NodeCounts counts) {
+        dynamoDbClient.updateItem(UpdateItemRequest.builder()
+                .tableName(tableName)
+                .key(aggregateKey(plate))
+                .updateExpression("SET #node = :counts")
+                .expressionAttributeNames(Map.of("#node", NODE_PREFIX + nodeId))
+                .expressionAttributeValues(Map.of(":counts", toValue(counts, System.currentTimeMillis())))
+                .build());
+    }
+
+    @Override
+    public RatingAggregate readAggregate(String plate) {
+        GetItemResponse response = dynamoDbClient.getItem(GetItemRequest.builder()
+                .tableName(tableName)
+                .key(aggregateKey(plate))
+                .build());
+
+        long retiredBefore = System.currentTimeMillis() - AGGREGATE_RETIRE_AGE.toMillis();
+        Map<String, RatingAggregate.NodeCounts> nodes = new HashMap<>();
+        Map<String, RatingAggregate.NodeCounts> retired = new HashMap<>();
+        response.item().forEach((name, value) -> {
+            if (name.startsWith(NODE_PREFIX)) {
+                String nodeId = name.substring(NODE_PREFIX.length());
+                RatingAggregate.NodeCounts counts = toNodeCounts(value.m());
+                nodes.put(nodeId, counts);
+                // Counts written before nodes recorded when are left alone, their node may still be using them
+                AttributeValue updatedAt = value.m().get(UPDATED_AT);
+                if (!RatingAggregate.BASE_NODE.equals(nodeId) && updatedAt != null
+                        && Long.parseLong(updatedAt.n()) < retiredBefore) {
+                    retired.put(nodeId, counts);
+                }
+            }
+        });
+        retired.forEach((nodeId, counts) -> {
+            try {
+                foldAggregate(plate, nodeId, counts);
+            } catch (RuntimeException e) {
+                log.debug("Unable to fold node '{}' into the base for '{}': {}", nodeId, plate, e.getMessage());
+            }
+        });
+        return new RatingAggregate(Map.copyOf(nodes));
+    }
+
+    /*
+     * Two updates, since one update can't both create the base and add to its fields.
+     */
+    @Override
+    public boolean foldAggregate(String plate, String nodeId, RatingAggregate.NodeCounts counts) {
+        dynamoDbClient.updateItem(UpdateItemRequest.builder()
+                .tableName(tableName)
+                .key(aggregateKey(plate))
+                .updateExpression("SET #base = if_not_exists(#base, :zero)")
+                .expressionAttributeNames(Map.of("#base", NODE_PREFIX + RatingAggregate.BASE_NODE))
+                .expressionAttributeValues(Map.of(":zero", toValue(RatingAggregate.NodeCounts.zero(), 0)))
+                .build());
+
+        Map<String, String> names = new HashMap<>(Map.of(
+                "#base", NODE_PREFIX + RatingAggregate.BASE_NODE,
+                "#node", NODE_PREFIX + nodeId,
+                "#histogram", HISTOGRAM));
+        Map<String, AttributeValue> values = new HashMap<>();
+        Map<String, AttributeValue> value = toValue(counts, 0).m();
+        List<String> additions = new ArrayList<>();
+        for (String field : COUNTS) {
+            names.put("#" + field, field);
+            values.put(":" + field, value.get(field));
+            additions.add("#base.#" + field + " = #base.#" + field + " + :" + field);
+        }
+        for (int i = 0; i < RatingAggregate.MAX_STARS; i++) {
+            values.put(":stars" + i, value.get(HISTOGRAM).l().get(i));
+            additions.add("#base.#histogram[" + i + "] = #base.#histogram[" + i + "] + :stars" + i);
+        }
+        try {
+            dynamoDbClient.updateItem(UpdateItemRequest.builder()
+                    .tableName(tableName)
+                    .key(aggregateKey(plate))
+                    .updateExpression("SET " + String.join(", ", additions) + " REMOVE #node")
+                    .conditionExpression("#node.#count = :count")
+                    .expressionAttributeNames(names)
+                    .expressionAttributeValues(values)
+                    .build());
+            return true;
+        } catch (ConditionalCheckFailedException e) {
+            log.debug("Node '{}' wrote new counts for '{}', not folding them", nodeId, plate);
+            return false;
+        }
+    }
+
+    @Override
+    public Set<String> readShardNames() {
+        GetItemResponse response = dynamoDbClient.getItem(GetItemRequest.builder()
+                .tableName(tableName)
+                .key(shardsKey())
+                .consistentRead(true)
+                .build());
+        AttributeValue names = response.item().get(SHARD_NAMES);
+        return names == null ? Set.of() : Set.copyOf(names.ss());
+    }
+
+    @Override
+    public void writeShardNames(Set<String> names) {
+        dynamoDbClient.updateItem(UpdateItemRequest.builder()
+                .tableName(tableName)
+                .key(shardsKey())
+                .updateExpression("SET #names = :names")
+                .expressionAttributeNames(Map.of("#names", SHARD_NAMES))
+                .expressionAttributeValues(Map.of(":names", AttributeValue.fromSs(List.copyOf(names))))
+                .build());
+    }
+
+    private Map<String, AttributeValue> shardsKey() {
+        return Map.of(PLATE, AttributeValue.fromS(SHARDS_KEY), IDEMPOTENCY_KEY, AttributeValue.fromS(SHARDS_KEY));
+    }
+
+    private Map<String, AttributeValue> aggregateKey(String plate) {
+        return Map.of(PLATE, AttributeValue.fromS(plate), IDEMPOTENCY_KEY, AttributeValue.fromS(AGGREGATE_KEY));
+    }
+
+    private AttributeValue toValue(RatingAggregate.NodeCounts counts, long updatedAt) {
+        List<AttributeValue> histogram = new ArrayList<>();
+        for (long stars : counts.getHistogram()) {
+            histogram.add(AttributeValue.fromN(Long.toString(stars)));
+        }
+        return AttributeValue.fromM(Map.of(
+                "count", AttributeValue.fromN(Long.toString(counts.getCount())),
+                "sum", AttributeValue.fromN(Long.toString(counts.getSum())),
+                "sumOfSquares", AttributeValue.fromN(Long.toString(counts.getSumOfSquares())),
+                HISTOGRAM, AttributeValue.fromL(histogram),
+                "decayedCount", AttributeValue.fromN(Double.toString(counts.getDecayedCount())),
+                "decayedSum", AttributeValue.fromN(Double.toString(counts.getDecayedSum())),
+                UPDATED_AT, AttributeValue.fromN(Long.toString(updatedAt))));
+    }
+
+    private RatingAggregate.NodeCounts toNodeCounts(Map<String, AttributeValue> value) {
+        long[] histogram = value.get(HISTOGRAM).l().stream().mapToLong(stars -> Long.parseLong(stars.n())).toArray();
+        return RatingAggregate.NodeCounts.builder()
+                .count(Long.parseLong(value.get("count").n()))
+                .sum(Long.parseLong(value.get("sum").n()))
+                .sumOfSquares(Long.parseLong(value.get("sumOfSquares").n()))
+                .histogram(histogram)
+                .decayedCount(Double.parseDouble(value.get("decayedCount").n()))
+                .decayedSum(Double.parseDouble(value.get("decayedSum").n()))
+                .build();
+    }
+
+    private Map<String, AttributeValue> toItem(Rating rating) {
+        return Map.of(
+                PLATE, AttributeValue.fromS(rating.getPlate()),
+                IDEMPOTENCY_KEY, AttributeValue.fromS(rating.getIdempotencyKey()),
+                STARS, AttributeValue.fromN(Integer.toString(rating.getStars())),
+                SUBMITTED_AT, AttributeValue.fromN(Long.toString(rating.getSubmittedAt())));
+    }
+
+    private Rating toRating(Map<String, AttributeValue> item) {
+        return Rating.builder()
+                .plate(item.get(PLATE).s())
+                .idempotencyKey(item.get(IDEMPOTENCY_KEY).s())
+                .stars(Integer.parseInt(item.get(STARS).n()))
+                .submittedAt(Long.parseLong(item.get(SUBMITTED_AT).n()))
+                .build();
+    }
+}
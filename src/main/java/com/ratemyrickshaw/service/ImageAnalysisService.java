@@ -0,0 +1,278 @@
+package com.ratemyrickshaw.service;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.ratemyrickshaw.model.Deadline;
+import com.ratemyrickshaw.model.DetectedPlate;
+import com.ratemyrickshaw.model.ImageAnalysisRequest;
+import com.ratemyrickshaw.model.ImageAnalysisResponse;
+import com.ratemyrickshaw.model.ImageReading;
+import com.ratemyrickshaw.model.PlateDetectionResult;
+import com.ratemyrickshaw.model.RatingSummary;
+import com.ratemyrickshaw.service.RekognitionRateGovernor.Priority;
+
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.services.rekognition.model.DetectTextResponse;
+import software.amazon.awssdk.services.rekognition.model.TextDetection;
+
+/*
+One image analysis, from the request to the response body, shared by /analyze (which waits for it) and analysis
+jobs (which run it in the background).
+
+The logic is as follows:
+1. Read the text in the photo, taken from the uploads bucket, a URL or base64, in that order of preference.
+2. Find the plate (or every plate for multi plate requests) in the detections.
+3. With vehicle labels enabled, DetectLabels is asked what vehicle the photo shows at the same time as step 1. A photo
+   of some other vehicle is turned away as soon as that's known, without waiting for its text.
+4. Look up each plate's rating while the response is put together, on a virtual thread of its own rather than the
+   common pool, so blocked lookups never starve anything else in the process. The rating is a nice to have, so a
+   slow or failed lookup only means the response goes back without it. A lookup past the timeout isn't stopped, it
+   finishes in the background and its result is dropped.
+Each stage is reported to an AnalysisProgress as soon as it's done, which is how /analyze/stream sends its events.
+*/
+@Slf4j
+@ApplicationScoped
+public class ImageAnalysisService {
+
+    private final RekognitionService rekognitionService;
+    private final PostRekognitionService postRekognitionService;
+    private final RatingService ratingService;
+    private final OcrConfusionLearner ocrConfusionLearner;
+    private final ExecutorService ratingLookups = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("rating-lookup-", 0).factory());
+
+    // A slow rating lookup shouldn't hold up the plate, past this the response goes back without a rating
+    @ConfigProperty(name = "rickshaw.ratings.lookup-timeout", defaultValue = "250ms")
+    Duration ratingLookupTimeout;
+
+    // Check what vehicle the photo shows alongside the text, and turn away photos of other vehicles
+    @ConfigProperty(name = "rickshaw.enrichment.vehicle-labels.enabled", defaultValue = "false")
+    boolean vehicleLabelsEnabled;
+
+    @Inject
+    public ImageAnalysisService(RekognitionService rekognitionService, PostRekognitionService postRekognitionService,
+            RatingService ratingService, OcrConfusionLearner ocrConfusionLearner) {
+        this.rekognitionService = rekognitionService;
+        this.postRekognitionService = postRekognitionService;
+        this.ratingService = ratingService;
+        this.ocrConfusionLearner = ocrConfusionLearner;
+    }
+
+    @PreDestroy
+    void stop() {
+        ratingLookups.shutdownNow();
+    }
+
+    /**
+     * Check a request names an image, before any work is done on it
+     *
+     * @throws IllegalArgumentException If there's no image to analyse
+     */
+    public void validate(ImageAnalysisRequest request) {
+        if (isBlank(request.getImageKey()) && isBlank(request.getImageUrl()) && isBlank(request.getImageBase64())) {
+            throw new IllegalArgumentException("One of imageKey, imageUrl or imageBase64 must be provided");
+        }
+    }
+
+    /**
+     * Analyse the image in a request
+     *
+     * @param priority Where the Rekognition calls queue with the rate governor
+     * @throws IllegalArgumentException If there's no image to analyse, or the image key is unknown
+     * @throws DeadlineExceededException If the analysis doesn't finish before the deadline
+     * @throws CapacityExceededException If too many Rekognition calls are already queued
+     */
+    public ImageAnalysisResponse analyze(ImageAnalysisRequest request, Deadline deadline, Priority priority) {
+        return analyze(request, deadline, priority, AnalysisProgress.NONE);
+    }
+
+    /**
+     * Analyse the image in a request, telling the listener about each stage as it's done
+     *
+     * @see #analyze(ImageAnalysisRequest, Deadline, Priority)
+     */
+    public ImageAnalysisResponse analyze(ImageAnalysisRequest request, Deadline deadline, Priority priority,
+            AnalysisProgress progress) {
+        validate(request);
+        progress.stage(AnalysisProgress.Stage.IMAGE_RECEIVED, Map.of("source", source(request)));
+        progress.stage(AnalysisProgress.Stage.OCR_STARTED, Map.of("vehicleLabels", vehicleLabelsEnabled));
+
+        if (vehicleLabelsEnabled) {
+            return analyzeWithVehicleCheck(request, deadline, priority, progress);
+        }
+
+        DetectTextResponse detectTextResponse;
+        if (!isBlank(request.getImageKey())) {
+            log.info("Analyzing uploaded image: {}", request.getImageKey());
+            detectTextResponse = rekognitionService.analyzeImageFromS3(request.getImageKey(), deadline, priority);
+        } else if (!isBlank(request.getImageUrl())) {
+            log.info("Analyzing image from URL: {}", request.getImageUrl());
+            detectTextResponse = rekognitionService.analyzeImageFromUrl(request.getImageUrl(), deadline, priority);
+        } else {
+            log.info("Analyzing image from base64 data");
+            detectTextResponse = rekognitionService.analyzeImageFromBase64(request.getImageBase64(), deadline, priority);
+        }
+
+        return analyzeText(request, detectTextResponse, deadline, progress);
+    }
+
+    /*
+     * The text and the vehicle labels are read together. A photo of some other vehicle goes back straight away,
+     * otherwise the vehicle check is added to the usual response.
+     */
+    private ImageAnalysisResponse analyzeWithVehicleCheck(ImageAnalysisRequest request, Deadline deadline,
+            Priority priority, AnalysisProgress progress) {
+        ImageReading reading;
+        if (!isBlank(request.getImageKey())) {
+            log.info("Analyzing uploaded image: {}", request.getImageKey());
+            reading = rekognitionService.readImageFromS3(request.getImageKey(), deadline, priority);
+        } else if (!isBlank(request.getImageUrl())) {
+            log.info("Analyzing image from URL: {}", request.getImageUrl());
+            reading = rekognitionService.readImageFromUrl(request.getImageUrl(), deadline, priority);
+        } else {
+            log.info("Analyzing image from base64 data");
+            reading = rekognitionService.readImageFromBase64(request.getImageBase64(), deadline, priority);
+        }
+
+        progress.stage(AnalysisProgress.Stage.VEHICLE_CHECKED, reading.getVehicle());
+        if (reading.isOtherVehicle()) {
+            return ImageAnalysisResponse.builder()
+                    .success(false)
+                    .message("Not a rickshaw, the photo shows a " + reading.getVehicle().getLabel().toLowerCase(Locale.ROOT))
+                    .vehicle(reading.getVehicle())
+                    .build();
+        }
+        ImageAnalysisResponse response = analyzeText(request, reading.getText(), deadline, progress);
+        response.setVehicle(reading.getVehicle());
+        return response;
+    }
+
+    private ImageAnalysisResponse analyzeText(ImageAnalysisRequest request, DetectTextResponse detectTextResponse,
+            Deadline deadline, AnalysisProgress progress) {
+        progress.stage(AnalysisProgress.Stage.OCR_WORDS, Map.of("words", words(detectTextResponse)));
+        if (request.isMultiPlate()) {
+            return analyzeAllPlates(detectTextResponse, deadline, progress);
+        }
+
+        // Process the detection response
+        PlateDetectionResult detection = postRekognitionService.detectPlate(detectTextResponse);
+        String detectedText = detection.getPlate();
+        if (detection.getCandidate() != null) {
+            progress.stage(AnalysisProgress.Stage.CANDIDATE_PLATE, Map.of("candidate", detection.getCandidate()));
+        }
+
+        // Check if the result is an error message
+        boolean isError = detectedText.startsWith("Invalid");
+        progress.stage(AnalysisProgress.Stage.VALIDATED_PLATE, detection);
+
+        // Look the rating up while the response is put together
+        CompletableFuture<RatingSummary> rating = isError
+                ? CompletableFuture.completedFuture(null)
+                : CompletableFuture.supplyAsync(() -> ratingService.getRatingSummary(detectedText), ratingLookups);
+
+        ImageAnalysisResponse response = ImageAnalysisResponse.builder()
+                .success(!isError)
+                .message(isError ? "Number plate validation failed" : "Image analysis completed successfully")
+                .confidence(detection.getConfidence())
+                .data(detectedText)
+                .candidate(detection.getCandidate())
+                // Only a plate can be rated, and so learned from
+                .candidateToken(isError ? null : ocrConfusionLearner.issue(detection.getCandidate()))
+                .build();
+        response.setRating(awaitRating(rating, detectedText, deadline.remainingOrAtMost(ratingLookupTimeout).toMillis()));
+        if (!isError) {
+            progress.stage(AnalysisProgress.Stage.RATING, ratingEvent(detectedText, response.getRating()));
+        }
+        return response;
+    }
+
+    /*
+     * Every plate in the photo, each with its rating. The rating lookups run together and share one timeout.
+     */
+    private ImageAnalysisResponse analyzeAllPlates(DetectTextResponse detectTextResponse, Deadline deadline,
+            AnalysisProgress progress) {
+        List<DetectedPlate> plates = postRekognitionService.detectPlates(detectTextResponse);
+        plates.forEach(plate -> progress.stage(AnalysisProgress.Stage.VALIDATED_PLATE, plate));
+
+        List<CompletableFuture<RatingSummary>> ratings = plates.stream()
+                .map(plate -> CompletableFuture.supplyAsync(() -> ratingService.getRatingSummary(plate.getPlate()),
+                        ratingLookups))
+                .toList();
+        Deadline lookups = Deadline.after(deadline.remainingOrAtMost(ratingLookupTimeout));
+        for (int i = 0; i < plates.size(); i++) {
+            DetectedPlate plate = plates.get(i);
+            plate.setRating(awaitRating(ratings.get(i), plate.getPlate(), lookups.remaining().toMillis()));
+            progress.stage(AnalysisProgress.Stage.RATING, ratingEvent(plate.getPlate(), plate.getRating()));
+        }
+
+        return ImageAnalysisResponse.builder()
+                .success(!plates.isEmpty())
+                .message(plates.isEmpty()
+                        ? "No valid number plates detected"
+                        : "Image analysis completed successfully, found " + plates.size() + " number plate(s)")
+                .data(plates.isEmpty() ? null : plates.get(0).getPlate())
+                .plates(plates)
+                .build();
+    }
+
+    /*
+     * The rating is a nice to have, so any failure or timeout just means the response has no rating. A timed out
+     * lookup is left to finish, cancelling a CompletableFuture never interrupts the thread running it.
+     */
+    private RatingSummary awaitRating(CompletableFuture<RatingSummary> rating, String plate, long timeoutMillis) {
+        try {
+            return rating.get(Math.max(0, timeoutMillis), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.warn("Rating lookup for '{}' took longer than {}ms, responding without it", plate,
+                    ratingLookupTimeout.toMillis());
+        } catch (ExecutionException e) {
+            log.info("No rating for '{}': {}", plate, e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    private static String source(ImageAnalysisRequest request) {
+        if (!isBlank(request.getImageKey())) {
+            return "upload";
+        }
+        return !isBlank(request.getImageUrl()) ? "url" : "base64";
+    }
+
+    private static List<String> words(DetectTextResponse detectTextResponse) {
+        if (detectTextResponse == null || !detectTextResponse.hasTextDetections()) {
+            return List.of();
+        }
+        return detectTextResponse.textDetections().stream()
+                .filter(detection -> "WORD".equals(detection.typeAsString()) && detection.detectedText() != null)
+                .map(TextDetection::detectedText)
+                .toList();
+    }
+
+    private static Map<String, Object> ratingEvent(String plate, RatingSummary rating) {
+        Map<String, Object> event = new LinkedHashMap<>();
+        event.put("plate", plate);
+        event.put("rating", rating);
+        return event;
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.isEmpty();
+    }
+}
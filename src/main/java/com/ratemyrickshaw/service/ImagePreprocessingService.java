@@ -0,0 +1,114 @@
+package com.ratemyrickshaw.service;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.ratemyrickshaw.fn.PlateLocalizationFn;
+import com.ratemyrickshaw.model.ImageCrop;
+import com.ratemyrickshaw.model.PlateRegion;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+
+/*
+Prepares an uploaded photo for OCR. When the plate localizer is confident it has found the plate, only padded crops
+of the best regions are sent to Rekognition, so slogans, phone numbers and shop signs elsewhere in the photo are never
+read. Otherwise the full frame is sent as before.
+*/
+@ApplicationScoped
+@Slf4j
+public class ImagePreprocessingService {
+
+    // Below this score the localizer is more likely to have found a sticker or slogan than the plate
+    private static final double MIN_REGION_SCORE = 0.5;
+    private static final double HORIZONTAL_PADDING = 0.15;
+    private static final double VERTICAL_PADDING = 0.25;
+    // Tiny crops give the OCR model too few pixels to work with, grow them to at least this size
+    private static final int MIN_CROP_SIZE = 80;
+
+    @Inject
+    PlateLocalizationFn plateLocalizationFn;
+
+    @ConfigProperty(name = "rickshaw.plate-localizer.enabled", defaultValue = "true")
+    boolean localizerEnabled;
+
+    /**
+     * Crop an image down to its most likely number plate regions
+     *
+     * @param imageBytes The encoded image
+     * @return One or two padded crops, or a single full frame crop if no region scored highly enough
+     */
+    public List<ImageCrop> cropToPlateRegions(byte[] imageBytes) {
+        if (!localizerEnabled) {
+            return List.of(ImageCrop.fullFrame(imageBytes));
+        }
+
+        try {
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(imageBytes));
+            if (image == null) {
+                log.warn("Unable to decode image for plate localization, using the full frame");
+                return List.of(ImageCrop.fullFrame(imageBytes));
+            }
+
+            List<ImageCrop> crops = new ArrayList<>();
+            for (PlateRegion region : plateLocalizationFn.apply(image)) {
+                if (region.getScore() >= MIN_REGION_SCORE) {
+                    crops.add(crop(image, region));
+                }
+            }
+
+            if (crops.isEmpty()) {
+                log.info("No confident plate region found, using the full frame");
+                return List.of(ImageCrop.fullFrame(imageBytes));
+            }
+
+            log.info("Sending {} plate region crop(s) for OCR", crops.size());
+            return crops;
+
+        } catch (IOException e) {
+            log.warn("Plate localization failed, using the full frame: {}", e.getMessage());
+            return List.of(ImageCrop.fullFrame(imageBytes));
+        }
+    }
+
+    private ImageCrop crop(BufferedImage image, PlateRegion region) throws IOException {
+        int padX = (int) Math.round(region.getWidth() * HORIZONTAL_PADDING);
+        int padY = (int) Math.round(region.getHeight() * VERTICAL_PADDING);
+        int padWidth = Math.max(region.getWidth() + 2 * padX, MIN_CROP_SIZE);
+        int padHeight = Math.max(region.getHeight() + 2 * padY, MIN_CROP_SIZE);
+
+        int width = Math.min(image.getWidth(), padWidth);
+        int height = Math.min(image.getHeight(), padHeight);
+        int x = clamp(region.getX() + region.getWidth() / 2 - width / 2, 0, image.getWidth() - width);
+        int y = clamp(region.getY() + region.getHeight() / 2 - height / 2, 0, image.getHeight() - height);
+
+        // Copy into a plain RGB image, the JPEG writer can't handle alpha channels or shared rasters reliably
+        BufferedImage cropped = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = cropped.createGraphics();
+        g.drawImage(image, 0, 0, width, height, x, y, x + width, y + height, null);
+        g.dispose();
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ImageIO.write(cropped, "jpg", outputStream);
+
+        return new ImageCrop(outputStream.toByteArray(),
+                (float) x / image.getWidth(),
+                (float) y / image.getHeight(),
+                (float) width / image.getWidth(),
+                (float) height / image.getHeight());
+    }
+
+    private int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -0,0 +1,145 @@
+package com.ratemyrickshaw.service;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.ratemyrickshaw.model.ImageUploadRequest;
+import com.ratemyrickshaw.model.ImageUploadResponse;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.rekognition.model.Image;
+import software.amazon.awssdk.services.rekognition.model.S3Object;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.PresignedPutObjectRequest;
+import software.amazon.awssdk.services.s3.presigner.model.PutObjectPresignRequest;
+
+/*
+Photos can go straight from the browser to S3, so they never pass through API Gateway (base64, 10MB cap) or the
+Lambda's heap.
+
+The logic is as follows:
+1. The client asks for an upload, giving the photo's type and exact size. It gets back a presigned PUT URL for a
+   fresh, random key under the uploads prefix, valid for a few minutes. The size is part of the signature, so the URL
+   can't be used to upload anything bigger than what was asked for.
+2. The client PUTs the photo, then calls /analyze with the key. Rekognition reads the object from S3 itself.
+3. The object is deleted once it has been analysed. Anything left behind (uploads never analysed, failed deletes)
+   is removed by the bucket's lifecycle rule on the uploads prefix.
+Only keys of the form this service hands out are accepted, so /analyze can't be pointed at other objects.
+*/
+@Slf4j
+@ApplicationScoped
+public class ImageUploadService {
+
+    // Rekognition reads images of up to 15MB from S3
+    private static final long MAX_REKOGNITION_BYTES = 15L * 1024 * 1024;
+    private static final Map<String, String> EXTENSIONS = Map.of("image/jpeg", "jpg", "image/png", "png");
+
+    private final S3Client s3Client;
+    private final S3Presigner s3Presigner;
+    private final Optional<String> bucket;
+    private final String prefix;
+    private final Duration urlExpiry;
+    private final long maxBytes;
+    private final Pattern keyPattern;
+
+    @Inject
+    public ImageUploadService(S3Client s3Client, S3Presigner s3Presigner,
+            @ConfigProperty(name = "rickshaw.uploads.bucket") Optional<String> bucket,
+            @ConfigProperty(name = "rickshaw.uploads.prefix", defaultValue = "uploads/") String prefix,
+            @ConfigProperty(name = "rickshaw.uploads.url-expiry", defaultValue = "5m") Duration urlExpiry,
+            @ConfigProperty(name = "rickshaw.uploads.max-bytes", defaultValue = "15728640") long maxBytes) {
+        this.s3Client = s3Client;
+        this.s3Presigner = s3Presigner;
+        this.bucket = bucket;
+        this.prefix = prefix;
+        this.urlExpiry = urlExpiry;
+        this.maxBytes = Math.min(maxBytes, MAX_REKOGNITION_BYTES);
+        this.keyPattern = Pattern.compile(Pattern.quote(prefix) + "[0-9a-f-]{36}\\.(jpg|png)");
+    }
+
+    /**
+     * Create a presigned upload for one photo
+     *
+     * @throws IllegalArgumentException If the type isn't JPEG or PNG, or the photo is empty or too big
+     * @throws IllegalStateException If no uploads bucket is configured
+     */
+    public ImageUploadResponse createUpload(ImageUploadRequest request) {
+        String extension = request.getContentType() == null ? null : EXTENSIONS.get(request.getContentType().toLowerCase());
+        if (extension == null) {
+            throw new IllegalArgumentException("Photos must be JPEG or PNG, not " + request.getContentType());
+        }
+        if (request.getContentLength() <= 0 || request.getContentLength() > maxBytes) {
+            throw new IllegalArgumentException("Photos must be between 1 byte and " + maxBytes / (1024 * 1024) + "MB");
+        }
+
+        String key = prefix + UUID.randomUUID() + "." + extension;
+        PresignedPutObjectRequest presigned = s3Presigner.presignPutObject(PutObjectPresignRequest.builder()
+                .signatureDuration(urlExpiry)
+                .putObjectRequest(PutObjectRequest.builder()
+                        .bucket(bucket())
+                        .key(key)
+                        .contentType(request.getContentType().toLowerCase())
+                        .contentLength(request.getContentLength())
+                        .build())
+                .build());
+
+        // The browser sets host and content-length itself, the rest it has to send exactly as signed
+        Map<String, String> headers = new LinkedHashMap<>();
+        presigned.signedHeaders().forEach((name, values) -> {
+            if (!name.equalsIgnoreCase("host") && !name.equalsIgnoreCase("content-length")) {
+                headers.put(name, String.join(",", values));
+            }
+        });
+
+        log.info("Issued an upload URL for '{}' ({} bytes, {})", key, request.getContentLength(), request.getContentType());
+        return ImageUploadResponse.builder()
+                .success(true)
+                .message("Upload the photo, then analyze it by its key")
+                .uploadUrl(presigned.url().toString())
+                .headers(headers)
+                .imageKey(key)
+                .expiresAt(presigned.expiration().toEpochMilli())
+                .build();
+    }
+
+    /**
+     * The Rekognition image for an uploaded photo, read by Rekognition straight from S3
+     *
+     * @throws IllegalArgumentException If the key isn't one this service hands out
+     */
+    public Image image(String key) {
+        if (key == null || !keyPattern.matcher(key).matches()) {
+            throw new IllegalArgumentException("Unknown image key: " + key);
+        }
+        return Image.builder()
+                .s3Object(S3Object.builder().bucket(bucket()).name(key).build())
+                .build();
+    }
+
+    /**
+     * Delete an uploaded photo once it's been analysed. Failures are only logged, the lifecycle rule catches them.
+     */
+    public void delete(String key) {
+        try {
+            s3Client.deleteObject(builder -> builder.bucket(bucket()).key(key));
+            log.debug("Deleted upload '{}'", key);
+        } catch (SdkException e) {
+            log.warn("Unable to delete upload '{}', leaving it to the lifecycle rule: {}", key, e.getMessage());
+        }
+    }
+
+    private String bucket() {
+        return bucket.orElseThrow(() -> new IllegalStateException("Photo uploads are not enabled"));
+    }
+}
@@ -0,0 +1,45 @@
+package com.ratemyrickshaw.service;
+
+import java.time.Duration;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.ratemyrickshaw.model.AnalysisJob;
+
+import io.quarkus.arc.DefaultBean;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/*
+Bounded, first in first out queue of jobs for the workers in this process.
+*/
+@DefaultBean
+@ApplicationScoped
+public class InMemoryAnalysisJobQueue implements AnalysisJobQueue {
+
+    private final BlockingQueue<AnalysisJob> jobs;
+
+    @Inject
+    public InMemoryAnalysisJobQueue(
+            @ConfigProperty(name = "rickshaw.jobs.queue-capacity", defaultValue = "500") int capacity) {
+        this.jobs = new LinkedBlockingQueue<>(capacity);
+    }
+
+    @Override
+    public boolean offer(AnalysisJob job) {
+        return jobs.offer(job);
+    }
+
+    @Override
+    public AnalysisJob poll(Duration timeout) throws InterruptedException {
+        return jobs.poll(timeout.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int size() {
+        return jobs.size();
+    }
+}
@@ -0,0 +1,95 @@
+package com.ratemyrickshaw.service;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.ratemyrickshaw.model.AnalysisJob;
+
+import io.quarkus.arc.DefaultBean;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+
+/*
+Jobs held in this process. A finished job expires once it has been finished for the result TTL, queued and running
+jobs never expire (the queue is bounded and every job has a timeout, so there can only be so many).
+Expired jobs are hidden straight away and swept out on the first save after each sweep interval, so no timer thread
+is needed.
+*/
+@Slf4j
+@DefaultBean
+@ApplicationScoped
+public class InMemoryAnalysisJobStore implements AnalysisJobStore {
+
+    private final long ttlNanos;
+    private final Map<String, Entry> jobs = new ConcurrentHashMap<>();
+    private final AtomicLong nextSweepNanos;
+
+    @Inject
+    public InMemoryAnalysisJobStore(
+            @ConfigProperty(name = "rickshaw.jobs.result-ttl", defaultValue = "15m") Duration resultTtl) {
+        this.ttlNanos = resultTtl.toNanos();
+        this.nextSweepNanos = new AtomicLong(System.nanoTime() + sweepIntervalNanos());
+    }
+
+    @Override
+    public void save(AnalysisJob job) {
+        long now = System.nanoTime();
+        jobs.put(job.getId(), new Entry(job, job.getStatus().isFinished() ? now + ttlNanos : Long.MAX_VALUE));
+
+        long nextSweep = nextSweepNanos.get();
+        if (now - nextSweep >= 0 && nextSweepNanos.compareAndSet(nextSweep, now + sweepIntervalNanos())) {
+            sweep(now);
+        }
+    }
+
+    @Override
+    public Optional<AnalysisJob> find(String id) {
+        Entry entry = id == null ? null : jobs.get(id);
+        if (entry == null || entry.isExpired(System.nanoTime())) {
+            return Optional.empty();
+        }
+        return Optional.of(entry.job);
+    }
+
+    @Override
+    public void delete(String id) {
+        jobs.remove(id);
+    }
+
+    public int size() {
+        return jobs.size();
+    }
+
+    private void sweep(long now) {
+        int before = jobs.size();
+        jobs.values().removeIf(entry -> entry.isExpired(now));
+        if (jobs.size() < before) {
+            log.debug("Removed {} expired analysis jobs", before - jobs.size());
+        }
+    }
+
+    // Sweep a few times per TTL, so an expired job lingers for at most a fraction of the TTL
+    private long sweepIntervalNanos() {
+        return Math.max(1, ttlNanos / 4);
+    }
+
+    private static final class Entry {
+        private final AnalysisJob job;
+        private final long expiresAtNanos;
+
+        Entry(AnalysisJob job, long expiresAtNanos) {
+            this.job = job;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+
+        boolean isExpired(long now) {
+            return expiresAtNanos != Long.MAX_VALUE && now - expiresAtNanos >= 0;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.ratemyrickshaw.service;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.ratemyrickshaw.model.Rating;
+import com.ratemyrickshaw.model.RatingAggregate;
+
+import lombok.extern.slf4j.Slf4j;
+
+/*
+A stand-in for the DynamoDB table, for local development and tests. An optional write latency simulates the
+network round trip each batch would cost against the real table.
+*/
+@Slf4j
+public class InMemoryRatingStore implements RatingStore {
+
+    private final Map<String, Map<String, Rating>> ratingsByPlate = new ConcurrentHashMap<>();
+    private final Map<String, RatingAggregate> aggregatesByPlate = new ConcurrentHashMap<>();
+    private final Duration writeLatency;
+    private volatile Set<String> shardNames = Set.of();
+
+    public InMemoryRatingStore() {
+        this(Duration.ZERO);
+    }
+
+    public InMemoryRatingStore(Duration writeLatency) {
+        this.writeLatency = writeLatency;
+    }
+
+    @Override
+    public List<Rating> writeBatch(List<Rating> ratings) {
+        if (ratings.size() > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("Batch of " + ratings.size() + " exceeds " + MAX_BATCH_SIZE + " items");
+        }
+        simulateLatency();
+        for (Rating rating : ratings) {
+            ratingsByPlate.computeIfAbsent(rating.getPlate(), plate -> new ConcurrentHashMap<>())
+                    .put(rating.getIdempotencyKey(), rating);
+        }
+        return List.of();
+    }
+
+    @Override
+    public List<Rating> findByPlate(String plate) {
+        return ratingsByPlate.getOrDefault(plate, Map.of()).values().stream()
+                .sorted(Comparator.comparingLong(Rating::getSubmittedAt))
+                .toList();
+    }
+
+    @Override
+    public Set<String> ratedPlates() {
+        return Set.copyOf(ratingsByPlate.keySet());
+    }
+
+    @Override
+    public void writeAggregate(String plate, String nodeId, RatingAggregate.NodeCounts counts) {
+        aggregatesByPlate.merge(plate, RatingAggregate.of(nodeId, counts), RatingAggregate::merge);
+    }
+
+    @Override
+    public RatingAggregate readAggregate(String plate) {
+        return aggregatesByPlate.getOrDefault(plate, RatingAggregate.empty());
+    }
+
+    @Override
+    public boolean foldAggregate(String plate, String nodeId, RatingAggregate.NodeCounts counts) {
+        boolean[] folded = new boolean[1];
+        aggregatesByPlate.computeIfPresent(plate, (key, aggregate) -> {
+            if (!counts.equals(aggregate.getNodes().get(nodeId))) {
+                return aggregate;
+            }
+            Map<String, RatingAggregate.NodeCounts> nodes = new HashMap<>(aggregate.getNodes());
+            nodes.remove(nodeId);
+            nodes.merge(RatingAggregate.BASE_NODE, counts, RatingAggregate.NodeCounts::plus);
+            folded[0] = true;
+            return new RatingAggregate(Map.copyOf(nodes));
+        });
+        return folded[0];
+    }
+
+    @Override
+    public Set<String> readShardNames() {
+        return shardNames;
+    }
+
+    @Override
+    public void writeShardNames(Set<String> names) {
+        shardNames = Set.copyOf(names);
+    }
+
+    private void simulateLatency() {
+        if (writeLatency.isZero()) {
+            return;
+        }
+        try {
+            Thread.sleep(writeLatency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
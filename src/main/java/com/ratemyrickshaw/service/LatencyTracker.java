@@ -0,0 +1,46 @@
+package com.ratemyrickshaw.service;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+/*
+Latencies of the most recent calls, kept in a fixed size ring so old behaviour ages out.
+Percentiles are computed on demand by sorting a copy, which is cheap at this size and keeps recording lock light.
+*/
+public class LatencyTracker {
+
+    private final long[] samplesNanos;
+    private int next;
+    private int count;
+
+    public LatencyTracker(int window) {
+        this.samplesNanos = new long[window];
+    }
+
+    public synchronized void record(Duration latency) {
+        samplesNanos[next] = latency.toNanos();
+        next = (next + 1) % samplesNanos.length;
+        count = Math.min(count + 1, samplesNanos.length);
+    }
+
+    public synchronized int count() {
+        return count;
+    }
+
+    /**
+     * @param percentile Between 0 and 1, e.g. 0.95
+     * @return The latency at that percentile of the recorded calls, or null if nothing has been recorded yet
+     */
+    public Duration percentile(double percentile) {
+        long[] sorted;
+        synchronized (this) {
+            if (count == 0) {
+                return null;
+            }
+            sorted = Arrays.copyOf(samplesNanos, count);
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return Duration.ofNanos(sorted[Math.max(0, Math.min(sorted.length - 1, index))]);
+    }
+}
@@ -0,0 +1,343 @@
+package com.ratemyrickshaw.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.UnaryOperator;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ratemyrickshaw.fn.NumberPlateValidationFn;
+import com.ratemyrickshaw.model.LeaderboardEntry;
+import com.ratemyrickshaw.model.LeaderboardSnapshot;
+import com.ratemyrickshaw.model.Rating;
+import com.ratemyrickshaw.model.RatingSummary;
+
+import io.quarkus.runtime.ShutdownEvent;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+
+/*
+Best and worst rated drivers per state ("MH") and per RTO ("MH12"), kept up to date as ratings come in, so a
+leaderboard is never worked out by reading every plate's ratings.
+
+The logic is as follows:
+1. Each plate has a standing: how many ratings it has and their total stars. A new rating adds to it straight away,
+   and whenever the rating cache loads a plate's merged summary (every node's ratings) the standing catches up to it.
+   Counts only grow, so the standing with more ratings always wins and nothing is counted twice.
+2. Every state and RTO has a skiplist of the standings of its plates with at least the minimum number of ratings,
+   ordered best first. A changed standing is taken out and put back in, O(log n), holding the board's write lock.
+3. The top k is the first k of the skiplist and the bottom k the last k, O(k) however many plates there are. A read
+   is optimistic: it only takes the board's read lock if a change landed while it was reading, so every read sees
+   each plate exactly once, and reads only ever wait on a board that is changing right then.
+4. If a snapshot file is configured every standing is saved to it (three columns) every snapshot interval and at
+   shutdown, and loaded at startup. Merged summaries top it up as plates are looked up again.
+The leaderboards are per node: each ranks the ratings it took and the merged summaries it has looked up, so on Lambda
+every execution environment has boards of its own that start from the snapshot, if any, and fill in as it goes.
+*/
+@Slf4j
+@ApplicationScoped
+public class Leaderboards {
+
+    private final NumberPlateValidationFn numberPlateValidationFn;
+    private final ObjectMapper objectMapper;
+    private final int minVotes;
+    private final Optional<Path> snapshotFile;
+    private final Duration snapshotInterval;
+
+    private final Map<String, Standing> standings = new ConcurrentHashMap<>();
+    private final Map<String, Board> boards = new ConcurrentHashMap<>();
+    // Whether a standing changed since the last save
+    private final AtomicBoolean changed = new AtomicBoolean();
+    private ScheduledExecutorService timer;
+
+    @Inject
+    public Leaderboards(NumberPlateValidationFn numberPlateValidationFn, ObjectMapper objectMapper,
+            @ConfigProperty(name = "rickshaw.ratings.leaderboards.min-votes", defaultValue = "5") int minVotes,
+            @ConfigProperty(name = "rickshaw.ratings.leaderboards.snapshot-file") Optional<String> snapshotFile,
+            @ConfigProperty(name = "rickshaw.ratings.leaderboards.snapshot-interval", defaultValue = "5m") Duration snapshotInterval) {
+        this.numberPlateValidationFn = numberPlateValidationFn;
+        this.objectMapper = objectMapper;
+        this.minVotes = minVotes;
+        this.snapshotFile = snapshotFile.filter(file -> !file.isBlank()).map(Path::of);
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (snapshotFile.isEmpty()) {
+            return;
+        }
+        load();
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "leaderboard-snapshots");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long periodMillis = snapshotInterval.toMillis();
+        timer.scheduleWithFixedDelay(this::saveQuietly, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void onShutdown(@Observes ShutdownEvent event) {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        saveQuietly();
+    }
+
+    /**
+     * Add a newly submitted rating to its plate's standing
+     */
+    public void record(Rating rating) {
+        update(rating.getPlate(), current -> current == null
+                ? new Standing(rating.getPlate(), 1, rating.getStars())
+                : new Standing(rating.getPlate(), current.count + 1, current.sum + rating.getStars()));
+    }
+
+    /**
+     * Catch a plate's standing up with its merged summary, if the summary has more ratings than the standing
+     */
+    public void observe(RatingSummary summary) {
+        if (summary == null || !summary.hasRatings() || summary.getAverageStars() == null) {
+            return;
+        }
+        observe(summary.getPlate(), summary.getCount(), Math.round(summary.getAverageStars() * summary.getCount()));
+    }
+
+    /**
+     * The best rated drivers of a state or RTO
+     *
+     * @param region A state code ("MH") or an RTO code ("MH12")
+     * @param limit At most this many
+     */
+    public List<LeaderboardEntry> best(String region, int limit) {
+        Board board = boards.get(region);
+        return board == null ? List.of() : board.entries(false, limit);
+    }
+
+    /**
+     * The worst rated drivers of a state or RTO, worst first
+     *
+     * @see #best
+     */
+    public List<LeaderboardEntry> worst(String region, int limit) {
+        Board board = boards.get(region);
+        return board == null ? List.of() : board.entries(true, limit);
+    }
+
+    /**
+     * Every plate's standing, for saving. Standings changing while it's taken are in it either before or after the change.
+     */
+    public LeaderboardSnapshot snapshot() {
+        List<Standing> all = new ArrayList<>(standings.values());
+        List<String> plates = new ArrayList<>(all.size());
+        long[] counts = new long[all.size()];
+        long[] sums = new long[all.size()];
+        for (int i = 0; i < all.size(); i++) {
+            plates.add(all.get(i).plate);
+            counts[i] = all.get(i).count;
+            sums[i] = all.get(i).sum;
+        }
+        return new LeaderboardSnapshot(plates, counts, sums);
+    }
+
+    /**
+     * Load a saved snapshot. Plates already standing with more ratings keep their standing.
+     */
+    public void restore(LeaderboardSnapshot snapshot) {
+        for (int i = 0; i < snapshot.getPlates().size(); i++) {
+            observe(snapshot.getPlates().get(i), snapshot.getCounts()[i], snapshot.getSums()[i]);
+        }
+        log.info("Restored {} leaderboard standings", snapshot.getPlates().size());
+    }
+
+    /**
+     * Restore the standings saved in the snapshot file, if there is one
+     */
+    public void load() {
+        if (snapshotFile.isEmpty() || !Files.exists(snapshotFile.get())) {
+            return;
+        }
+        try {
+            restore(objectMapper.readValue(snapshotFile.get().toFile(), LeaderboardSnapshot.class));
+        } catch (IOException | RuntimeException e) {
+            log.warn("Unable to load the leaderboards from {}, starting afresh: {}", snapshotFile.get(), e.getMessage());
+        }
+    }
+
+    /**
+     * Save every standing to the snapshot file, if there is one. Written next to the file and moved over it, so a
+     * crash mid write never leaves half a snapshot.
+     *
+     * @throws UncheckedIOException if the snapshot couldn't be saved
+     */
+    public void save() {
+        if (snapshotFile.isEmpty()) {
+            return;
+        }
+        Path file = snapshotFile.get();
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+            objectMapper.writeValue(temp.toFile(), snapshot());
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void saveQuietly() {
+        if (!changed.getAndSet(false)) {
+            return;
+        }
+        try {
+            save();
+        } catch (RuntimeException e) {
+            changed.set(true);
+            log.warn("Saving the leaderboards failed, will retry: {}", e.getMessage());
+        }
+    }
+
+    private void observe(String plate, long count, long sum) {
+        update(plate, current -> current == null || count > current.count ? new Standing(plate, count, sum) : current);
+    }
+
+    /*
+     * Changes to one plate are serialised by the standings map, so its old standing is always the one on its boards.
+     */
+    private void update(String plate, UnaryOperator<Standing> change) {
+        Optional<String> rto = numberPlateValidationFn.rtoCode(plate);
+        if (rto.isEmpty()) {
+            log.debug("Not ranking '{}', it isn't a complete plate", plate);
+            return;
+        }
+        List<String> regions = List.of(rto.get().substring(0, 2), rto.get());
+        standings.compute(plate, (key, current) -> {
+            Standing updated = change.apply(current);
+            if (updated == current) {
+                return current;
+            }
+            for (String region : regions) {
+                boards.computeIfAbsent(region, name -> new Board())
+                        .replace(current != null && current.count >= minVotes ? current : null,
+                                updated.count >= minVotes ? updated : null);
+            }
+            changed.set(true);
+            return updated;
+        });
+    }
+
+    /*
+     * One state's or RTO's standings, best first.
+     */
+    private static final class Board {
+        private final NavigableSet<Standing> standings = new ConcurrentSkipListSet<>();
+        private final StampedLock lock = new StampedLock();
+
+        void replace(Standing current, Standing updated) {
+            long stamp = lock.writeLock();
+            try {
+                if (current != null) {
+                    standings.remove(current);
+                }
+                if (updated != null) {
+                    standings.add(updated);
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /*
+         * A read that overlapped a change may have passed a plate twice or not at all, so it's read again under the
+         * read lock.
+         */
+        List<LeaderboardEntry> entries(boolean worstFirst, int limit) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp != 0) {
+                List<LeaderboardEntry> entries = read(worstFirst, limit);
+                if (lock.validate(stamp)) {
+                    return entries;
+                }
+            }
+            stamp = lock.readLock();
+            try {
+                return read(worstFirst, limit);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        private List<LeaderboardEntry> read(boolean worstFirst, int limit) {
+            List<LeaderboardEntry> entries = new ArrayList<>(Math.min(limit, 64));
+            for (Standing standing : worstFirst ? standings.descendingSet() : standings) {
+                if (entries.size() >= limit) {
+                    break;
+                }
+                entries.add(LeaderboardEntry.builder()
+                        .rank(entries.size() + 1)
+                        .plate(standing.plate)
+                        .count(standing.count)
+                        .averageStars((double) standing.sum / standing.count)
+                        .build());
+            }
+            return entries;
+        }
+    }
+
+    private static final class Standing implements Comparable<Standing> {
+        private final String plate;
+        private final long count;
+        private final long sum;
+
+        Standing(String plate, long count, long sum) {
+            this.plate = plate;
+            this.count = count;
+            this.sum = sum;
+        }
+
+        /*
+         * Best first: higher average, then more ratings, then by plate so every standing has its own place. Averages
+         * are compared as sum * other count, exactly, so no two are ever rounded to the same.
+         */
+        @Override
+        public int compareTo(Standing other) {
+            int byAverage = Long.compare(other.sum * count, sum * other.count);
+            if (byAverage != 0) {
+                return byAverage;
+            }
+            int byCount = Long.compare(other.count, count);
+            return byCount != 0 ? byCount : plate.compareTo(other.plate);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Standing standing && compareTo(standing) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return plate.hashCode();
+        }
+    }
+}
@@ -0,0 +1,1056 @@
+package com.ratemyrickshaw.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import com.ratemyrickshaw.model.Rating;
+import com.ratemyrickshaw.model.RatingAggregate;
+
+import lombok.extern.slf4j.Slf4j;
+
+/*
+A rating store on local disk, for the self-hosted server and for local development without DynamoDB. Nothing leaves
+the process, so a write costs an append to a file rather than a network round trip.
+
+The logic is as follows:
+1. Ratings and aggregate counts are appended as records to a log split into segments (0000000001.log and so on).
+   Each record is framed with its length and a CRC32C, and nothing in a segment is ever overwritten.
+2. Writes are group committed: callers queue their records and wait, and one writer thread appends everything
+   queued in a single write and a single fsync. The more writers there are, the more each fsync carries.
+3. Records in the segment being written are also kept in memory, by plate. Once a segment reaches its size it is
+   sealed: an index of where each plate's records are (sorted by plate) is written beside it, and both are memory
+   mapped. Looking a plate up in a sealed segment is a binary search of its index, then reads straight from the map.
+4. Once there are enough sealed segments they are compacted in the background: each rating once, and one aggregate
+   record per node, rolled into new segments of at most the segment size (so a segment is never mapped past 1GB).
+   Readers keep using the old segments until the new ones are switched in, and a failed compaction leaves them be.
+5. On start the sealed segments are mapped again, and only the log without an index (the tail) is replayed. A torn
+   record at its end, from a crash mid write, fails its CRC and is cut off.
+A sharded store's shard names are kept in a "shards" file beside the segments, and the node id of the process using
+the store in a "node" file, so its aggregate counts stay in one slot however often it restarts.
+A rating written again with the same idempotency key is the same rating, and aggregate counts merge by taking the
+larger of each, so a record found in more than one segment (after a crash mid compaction, say) is harmless.
+*/
+@Slf4j
+public class LogStructuredRatingStore implements RatingStore, Closeable {
+
+    private static final byte RATING = 1;
+    private static final byte AGGREGATE = 2;
+    private static final int RECORD_HEADER_BYTES = 8;
+    // Strings in a record are prefixed with their length as an unsigned short
+    private static final int MAX_STRING_BYTES = 0xFFFF;
+    private static final int INDEX_MAGIC = 0x52524958;
+    // The index of a segment written by compaction, which only counts once towards the next compaction
+    private static final int COMPACTED_INDEX_MAGIC = 0x52524943;
+    private static final int INDEX_HEADER_BYTES = 16;
+    // Most pending writes one group commit takes
+    private static final int MAX_GROUP = 1024;
+    private static final long MAX_SEGMENT_SIZE = 1L << 30;
+    private static final String SHARDS_FILE = "shards";
+    private static final String NODE_ID_FILE = "node";
+
+    private final Path directory;
+    private final long segmentSize;
+    private final boolean fsync;
+    private final int compactionThreshold;
+    private final String nodeId;
+
+    private final BlockingQueue<PendingWrite> pending = new LinkedBlockingQueue<>();
+    private final AtomicLong nextSegmentId;
+    private final Thread writer;
+    private final ExecutorService compactor;
+    // Held while the active segment or the sealed segments are swapped
+    private final Object stateLock = new Object();
+
+    private volatile State state;
+    private volatile boolean closed;
+
+    // Only used by the writer thread
+    private FileChannel activeChannel;
+    private long activePosition;
+    // A failed group left bytes in the active segment that couldn't be cut off, so it is sealed before the next write
+    private boolean torn;
+    private ByteBuffer groupBuffer = ByteBuffer.allocateDirect(1 << 20);
+
+    /**
+     * Open the store in a directory, recovering whatever is already there
+     *
+     * @param segmentSize Seal a segment once it is this many bytes
+     * @param fsync Whether a write waits for its group to reach the disk, rather than just the OS
+     * @param compactionThreshold Compact once there are this many sealed segments
+     */
+    public LogStructuredRatingStore(Path directory, long segmentSize, boolean fsync, int compactionThreshold)
+            throws IOException {
+        if (segmentSize < 1 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Segment size must be between 1 byte and 1GB, got " + segmentSize);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.fsync = fsync;
+        this.compactionThreshold = Math.max(2, compactionThreshold);
+
+        Files.createDirectories(directory);
+        long start = System.nanoTime();
+        List<Long> ids = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    Files.delete(file);
+                } else if (name.endsWith(".log")) {
+                    ids.add(Long.parseLong(name.substring(0, name.length() - 4)));
+                }
+            }
+        }
+        ids.sort(Comparator.naturalOrder());
+        this.nodeId = readOrCreateNodeId();
+
+        List<SealedSegment> sealed = new ArrayList<>();
+        List<Long> unsealed = new ArrayList<>();
+        for (long id : ids) {
+            if (!Files.exists(indexPath(id))) {
+                unsealed.add(id);
+                continue;
+            }
+            try {
+                sealed.add(SealedSegment.open(logPath(id), indexPath(id)));
+            } catch (IOException e) {
+                log.warn("Ignoring the damaged index of rating log segment {}, replaying it instead", id, e);
+                Files.delete(indexPath(id));
+                unsealed.add(id);
+            }
+        }
+        // Only the newest log should be unsealed, any other was about to be sealed when the process stopped
+        long newestId = ids.isEmpty() ? 0 : ids.get(ids.size() - 1);
+        long activeId = unsealed.isEmpty() ? newestId + 1 : unsealed.remove(unsealed.size() - 1);
+        for (long id : unsealed) {
+            try (FileChannel channel = FileChannel.open(logPath(id), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                Memtable memtable = new Memtable();
+                sealed.add(seal(id, channel, replay(channel, memtable), memtable));
+            }
+        }
+        this.nextSegmentId = new AtomicLong(Math.max(activeId, newestId) + 1);
+
+        Memtable memtable = new Memtable();
+        this.activeChannel = FileChannel.open(logPath(activeId), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.activePosition = replay(activeChannel, memtable);
+        this.state = new State(activeId, memtable, List.copyOf(sealed));
+        log.info("Opened the rating log in {}: {} sealed segments, {} plates in the tail, recovered in {}ms", directory,
+                sealed.size(), memtable.plates.size(), (System.nanoTime() - start) / 1_000_000);
+
+        this.compactor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rating-log-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.writer = new Thread(this::writeLoop, "rating-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        compactIfDue();
+    }
+
+    @Override
+    public List<Rating> writeBatch(List<Rating> ratings) {
+        if (ratings.size() > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("Batch of " + ratings.size() + " exceeds " + MAX_BATCH_SIZE + " items");
+        }
+        append(ratings.stream().map(Record::rating).toArray(Record[]::new));
+        return List.of();
+    }
+
+    @Override
+    public List<Rating> findByPlate(String plate) {
+        State current = state;
+        Map<String, Rating> byKey = new HashMap<>();
+        byte[] key = utf8(plate);
+        for (SealedSegment segment : current.sealed) {
+            segment.forEachRecord(key, record -> {
+                if (record.type == RATING) {
+                    byKey.put(record.rating.getIdempotencyKey(), record.rating);
+                }
+            });
+        }
+        PlateRecords tail = current.memtable.plates.get(plate);
+        if (tail != null) {
+            tail.copyRatings(byKey);
+        }
+        return byKey.values().stream()
+                .sorted(Comparator.comparingLong(Rating::getSubmittedAt))
+                .toList();
+    }
+
+    @Override
+    public Set<String> ratedPlates() {
+        State current = state;
+        Set<String> plates = new HashSet<>();
+        current.sealed.forEach(segment -> segment.addRatedPlates(plates));
+        current.memtable.plates.forEach((plate, records) -> {
+            if (records.hasRatings()) {
+                plates.add(plate);
+            }
+        });
+        return plates;
+    }
+
+    @Override
+    public void writeAggregate(String plate, String nodeId, RatingAggregate.NodeCounts counts) {
+        append(new Record[] {Record.aggregate(plate, nodeId, counts)});
+    }
+
+    @Override
+    public RatingAggregate readAggregate(String plate) {
+        State current = state;
+        Map<String, RatingAggregate.NodeCounts> nodes = new HashMap<>();
+        byte[] key = utf8(plate);
+        for (SealedSegment segment : current.sealed) {
+            segment.forEachRecord(key, record -> {
+                if (record.type == AGGREGATE) {
+                    nodes.merge(record.nodeId, record.counts, RatingAggregate.NodeCounts::merge);
+                }
+            });
+        }
+        PlateRecords tail = current.memtable.plates.get(plate);
+        if (tail != null) {
+            tail.mergeAggregates(nodes);
+        }
+        return nodes.isEmpty() ? RatingAggregate.empty() : new RatingAggregate(Map.copyOf(nodes));
+    }
+
+    @Override
+    public Set<String> readShardNames() {
+        Path file = directory.resolve(SHARDS_FILE);
+        try {
+            return Files.exists(file) ? Set.copyOf(Files.readAllLines(file, StandardCharsets.UTF_8)) : Set.of();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read '" + file + "'", e);
+        }
+    }
+
+    /*
+     * Written beside the file and moved over it, so a crash mid write never leaves half a list.
+     */
+    @Override
+    public void writeShardNames(Set<String> names) {
+        Path temporary = directory.resolve(SHARDS_FILE + ".tmp");
+        try {
+            Files.write(temporary, names, StandardCharsets.UTF_8);
+            Files.move(temporary, directory.resolve(SHARDS_FILE), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to record the shards in '" + directory + "'", e);
+        }
+    }
+
+    @Override
+    public Optional<String> readNodeId() {
+        return Optional.of(nodeId);
+    }
+
+    /*
+     * Written beside the file and moved over it like the shard names, so a crash never leaves an empty id.
+     */
+    private String readOrCreateNodeId() throws IOException {
+        Path file = directory.resolve(NODE_ID_FILE);
+        if (Files.exists(file)) {
+            String id = Files.readString(file, StandardCharsets.UTF_8).strip();
+            if (!id.isEmpty()) {
+                return id;
+            }
+        }
+        String id = UUID.randomUUID().toString();
+        Path temporary = directory.resolve(NODE_ID_FILE + ".tmp");
+        Files.writeString(temporary, id, StandardCharsets.UTF_8);
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return id;
+    }
+
+    /**
+     * Write everything queued, then stop. Writes after this fail.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        pending.add(PendingWrite.STOP);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        activeChannel.force(true);
+        activeChannel.close();
+        log.info("Closed the rating log in {}", directory);
+    }
+
+    /**
+     * @return How many sealed segments there are, for tests and diagnostics
+     */
+    public int sealedSegments() {
+        return state.sealed.size();
+    }
+
+    /**
+     * @return How many of the sealed segments were written by compaction, for tests and diagnostics
+     */
+    public int compactedSegments() {
+        return (int) state.sealed.stream().filter(segment -> segment.compacted).count();
+    }
+
+    private void append(Record[] records) {
+        if (closed) {
+            throw new IllegalStateException("The rating log is closed");
+        }
+        PendingWrite write = new PendingWrite(records);
+        pending.add(write);
+        while (true) {
+            try {
+                write.done.get(1, TimeUnit.SECONDS);
+                return;
+            } catch (TimeoutException e) {
+                // A write queued just as the store closed is never taken, rather than wait forever
+                if (!writer.isAlive() && !write.done.isDone()) {
+                    throw new IllegalStateException("The rating log is closed");
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException cause) {
+                    throw new UncheckedIOException("Unable to append to the rating log", cause);
+                }
+                throw new IllegalStateException("Unable to append to the rating log", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for the rating log", e);
+            }
+        }
+    }
+
+    private void writeLoop() {
+        List<PendingWrite> group = new ArrayList<>(MAX_GROUP);
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                group.add(pending.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            pending.drainTo(group, MAX_GROUP - 1);
+            stopping = group.remove(PendingWrite.STOP);
+            commit(group);
+            group.clear();
+        }
+        // Anything queued after the store closed is never written
+        pending.forEach(write -> write.done.completeExceptionally(new IOException("The rating log is closed")));
+    }
+
+    private void commit(List<PendingWrite> group) {
+        if (group.isEmpty()) {
+            return;
+        }
+        long start = -1;
+        try {
+            if (torn || activePosition >= segmentSize) {
+                roll();
+            }
+            start = activePosition;
+            int bytes = 0;
+            for (PendingWrite write : group) {
+                for (byte[] encoded : write.encoded) {
+                    bytes += encoded.length;
+                }
+            }
+            if (groupBuffer.capacity() < bytes) {
+                groupBuffer = ByteBuffer.allocateDirect(Integer.highestOneBit(bytes) << 1);
+            }
+            groupBuffer.clear();
+            for (PendingWrite write : group) {
+                for (byte[] encoded : write.encoded) {
+                    groupBuffer.put(encoded);
+                }
+            }
+            groupBuffer.flip();
+
+            long offset = activePosition;
+            while (groupBuffer.hasRemaining()) {
+                activePosition += activeChannel.write(groupBuffer, activePosition);
+            }
+            if (fsync) {
+                activeChannel.force(false);
+            }
+
+            // Only written records become visible, so a read after a write returns sees it
+            Memtable memtable = state.memtable;
+            for (PendingWrite write : group) {
+                for (int i = 0; i < write.records.length; i++) {
+                    memtable.apply(write.records[i], (int) offset);
+                    offset += write.encoded[i].length;
+                }
+            }
+            group.forEach(write -> write.done.complete(null));
+        } catch (IOException e) {
+            log.error("Unable to append {} writes to the rating log", group.size(), e);
+            group.forEach(write -> write.done.completeExceptionally(e));
+            if (start >= 0) {
+                discardFrom(start);
+            }
+        }
+    }
+
+    /*
+     * Cuts whatever part of a failed group reached the active segment back off. Left there, the next group would land
+     * after the torn bytes, and replay stops at them, losing writes that were acknowledged. If it can't be cut off the
+     * segment is sealed as it is before the next write instead, as its index never points at the torn bytes.
+     */
+    private void discardFrom(long start) {
+        try {
+            activeChannel.truncate(start);
+            activePosition = start;
+        } catch (IOException e) {
+            log.error("Unable to cut a failed write off rating log segment {}, sealing it before the next write",
+                    state.activeId, e);
+            torn = true;
+        }
+    }
+
+    /*
+     * Seals the active segment and starts the next one. Only called from the writer thread.
+     */
+    private void roll() throws IOException {
+        State current = state;
+        SealedSegment sealed = seal(current.activeId, activeChannel, activePosition, current.memtable);
+        long id = nextSegmentId.getAndIncrement();
+        FileChannel channel = FileChannel.open(logPath(id), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        synchronized (stateLock) {
+            List<SealedSegment> segments = new ArrayList<>(state.sealed);
+            segments.add(sealed);
+            state = new State(id, new Memtable(), List.copyOf(segments));
+        }
+        activeChannel.close();
+        activeChannel = channel;
+        activePosition = 0;
+        torn = false;
+        log.debug("Sealed rating log segment {}, now writing {}", current.activeId, id);
+        compactIfDue();
+    }
+
+    private SealedSegment seal(long id, FileChannel channel, long length, Memtable memtable) throws IOException {
+        channel.force(true);
+        List<IndexEntry> entries = new ArrayList<>(memtable.plates.size());
+        memtable.plates.forEach((plate, records) -> entries.add(records.indexEntry(plate)));
+        writeIndex(id, length, entries, INDEX_MAGIC);
+        return SealedSegment.open(logPath(id), indexPath(id));
+    }
+
+    private void compactIfDue() {
+        if (compactionDue(state.sealed) && !closed) {
+            compactor.execute(this::compact);
+        }
+    }
+
+    /*
+     * The output of the last compaction counts as one segment, as it would be if it weren't split by size, so a
+     * large store isn't compacted again every time a segment is sealed
+     */
+    private boolean compactionDue(List<SealedSegment> sealed) {
+        long fresh = sealed.stream().filter(segment -> !segment.compacted).count();
+        return fresh + (fresh < sealed.size() ? 1 : 0) >= compactionThreshold;
+    }
+
+    private void compact() {
+        List<SealedSegment> segments = state.sealed;
+        if (!compactionDue(segments)) {
+            return;
+        }
+        long start = System.nanoTime();
+        List<Long> ids = new ArrayList<>();
+        try {
+            List<SealedSegment> compacted = merge(segments, ids);
+            synchronized (stateLock) {
+                // Segments sealed while merging come after the ones merged
+                State latest = state;
+                List<SealedSegment> sealed = new ArrayList<>(compacted);
+                sealed.addAll(latest.sealed.subList(segments.size(), latest.sealed.size()));
+                state = new State(latest.activeId, latest.memtable, List.copyOf(sealed));
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("Unable to compact the rating log, keeping the segments as they are", e);
+            for (long id : ids) {
+                try {
+                    Files.deleteIfExists(indexPath(id));
+                    Files.deleteIfExists(logPath(id));
+                } catch (IOException cleanup) {
+                    log.warn("Unable to remove the partly compacted segment {}", id, cleanup);
+                }
+            }
+            return;
+        }
+        // Readers still holding the old segments keep their maps, which outlive the files
+        for (SealedSegment segment : segments) {
+            try {
+                Files.deleteIfExists(segment.logPath);
+                Files.deleteIfExists(segment.indexPath);
+            } catch (IOException e) {
+                // Its records are in the compacted segments too, so it is only wasted space
+                log.warn("Unable to remove the compacted segment '{}'", segment.logPath, e);
+            }
+        }
+        log.info("Compacted {} rating log segments into {} in {}ms", segments.size(), ids,
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /*
+     * Writes the segments' records out in plate order, starting a new segment before a plate whose records would take
+     * the current one past the segment size. A plate's records are never split across segments, so its index entry
+     * can point into one.
+     *
+     * @param ids Gets the id of each segment as it is started, so a failed merge can remove them
+     */
+    private List<SealedSegment> merge(List<SealedSegment> segments, List<Long> ids) throws IOException {
+        TreeSet<byte[]> plates = new TreeSet<>(Arrays::compareUnsigned);
+        segments.forEach(segment -> segment.forEachPlate(plates::add));
+
+        List<SealedSegment> merged = new ArrayList<>();
+        List<IndexEntry> entries = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+        FileChannel out = null;
+        // Where the buffer starts in the current segment
+        long position = 0;
+        try {
+            for (byte[] plate : plates) {
+                Map<String, Rating> ratings = new HashMap<>();
+                Map<String, RatingAggregate.NodeCounts> aggregates = new HashMap<>();
+                for (SealedSegment segment : segments) {
+                    segment.forEachRecord(plate, record -> {
+                        if (record.type == RATING) {
+                            ratings.put(record.rating.getIdempotencyKey(), record.rating);
+                        } else {
+                            aggregates.merge(record.nodeId, record.counts, RatingAggregate.NodeCounts::merge);
+                        }
+                    });
+                }
+                String name = new String(plate, StandardCharsets.UTF_8);
+                List<byte[]> records = new ArrayList<>(ratings.size() + aggregates.size());
+                ratings.values().forEach(rating -> records.add(Record.rating(rating).encode()));
+                aggregates.forEach((nodeId, counts) -> records.add(Record.aggregate(name, nodeId, counts).encode()));
+
+                long bytes = 0;
+                for (byte[] encoded : records) {
+                    bytes += encoded.length;
+                }
+                long used = position + buffer.position();
+                if (out == null || used > 0 && used + bytes > segmentSize) {
+                    if (out != null) {
+                        merged.add(finishSegment(ids.get(ids.size() - 1), out, buffer, position, entries));
+                        entries = new ArrayList<>();
+                    }
+                    long id = nextSegmentId.getAndIncrement();
+                    ids.add(id);
+                    out = FileChannel.open(logPath(id), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                    position = 0;
+                }
+
+                int[] offsets = new int[records.size()];
+                for (int i = 0; i < offsets.length; i++) {
+                    byte[] encoded = records.get(i);
+                    if (buffer.remaining() < encoded.length) {
+                        position += flush(out, buffer, position);
+                        if (buffer.capacity() < encoded.length) {
+                            buffer = ByteBuffer.allocateDirect(encoded.length);
+                        }
+                    }
+                    // Only a single plate with over 1GB of records could take this past an int
+                    offsets[i] = Math.toIntExact(position + buffer.position());
+                    buffer.put(encoded);
+                }
+                entries.add(new IndexEntry(plate, !ratings.isEmpty(), offsets));
+            }
+            if (out != null) {
+                merged.add(finishSegment(ids.get(ids.size() - 1), out, buffer, position, entries));
+            }
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+        return merged;
+    }
+
+    private SealedSegment finishSegment(long id, FileChannel out, ByteBuffer buffer, long position,
+            List<IndexEntry> entries) throws IOException {
+        long length = position + flush(out, buffer, position);
+        out.force(true);
+        out.close();
+        writeIndex(id, length, entries, COMPACTED_INDEX_MAGIC);
+        return SealedSegment.open(logPath(id), indexPath(id));
+    }
+
+    private static long flush(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += out.write(buffer, position + written);
+        }
+        buffer.clear();
+        return written;
+    }
+
+    /*
+     * Index layout: magic (which says whether compaction wrote the segment), entry count, log length, then the position of each entry in plate order, then the entries
+     * (plate length, plate, whether it has ratings, record count, record offsets). Written to a temporary file and
+     * moved into place, so an index either exists whole or not at all.
+     */
+    private void writeIndex(long id, long logLength, List<IndexEntry> entries, int magic) throws IOException {
+        entries.sort((a, b) -> Arrays.compareUnsigned(a.plate, b.plate));
+        long size = INDEX_HEADER_BYTES + 4L * entries.size();
+        for (IndexEntry entry : entries) {
+            size += 2 + entry.plate.length + 1 + 4 + 4L * entry.offsets.length;
+        }
+        ByteBuffer index = ByteBuffer.allocate(Math.toIntExact(size));
+        index.putInt(magic).putInt(entries.size()).putLong(logLength);
+        int position = INDEX_HEADER_BYTES + 4 * entries.size();
+        for (IndexEntry entry : entries) {
+            index.putInt(position);
+            position += 2 + entry.plate.length + 1 + 4 + 4 * entry.offsets.length;
+        }
+        for (IndexEntry entry : entries) {
+            index.putShort((short) entry.plate.length).put(entry.plate).put((byte) (entry.hasRatings ? 1 : 0));
+            index.putInt(entry.offsets.length);
+            for (int offset : entry.offsets) {
+                index.putInt(offset);
+            }
+        }
+        index.flip();
+
+        Path temporary = directory.resolve(indexPath(id).getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            while (index.hasRemaining()) {
+                out.write(index);
+            }
+            out.force(true);
+        }
+        Files.move(temporary, indexPath(id), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /*
+     * Reads a log into the memtable, stopping at the first record that is cut short or fails its CRC, and cuts the
+     * log there.
+     */
+    private long replay(FileChannel channel, Memtable memtable) throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(size));
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) {
+            // keep reading until the buffer is full
+        }
+        int offset = 0;
+        int records = 0;
+        while (offset + RECORD_HEADER_BYTES <= size) {
+            Record record = Record.decode(buffer, offset);
+            if (record == null) {
+                break;
+            }
+            memtable.apply(record, offset);
+            offset += RECORD_HEADER_BYTES + buffer.getInt(offset);
+            records++;
+        }
+        if (offset < size) {
+            log.warn("Cutting {} bytes of incomplete records off the end of the rating log", size - offset);
+            channel.truncate(offset);
+            channel.force(true);
+        }
+        log.debug("Replayed {} records from the rating log", records);
+        return offset;
+    }
+
+    private Path logPath(long id) {
+        return directory.resolve(String.format("%010d.log", id));
+    }
+
+    private Path indexPath(long id) {
+        return directory.resolve(String.format("%010d.idx", id));
+    }
+
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Everything a reader needs, swapped as a whole so a reader sees each segment in exactly one place
+     */
+    private static final class State {
+        private final long activeId;
+        private final Memtable memtable;
+        // Oldest first
+        private final List<SealedSegment> sealed;
+
+        State(long activeId, Memtable memtable, List<SealedSegment> sealed) {
+            this.activeId = activeId;
+            this.memtable = memtable;
+            this.sealed = sealed;
+        }
+    }
+
+    /*
+     * The records of the active segment by plate, with where each one is in the segment for its index
+     */
+    private static final class Memtable {
+        private final Map<String, PlateRecords> plates = new ConcurrentHashMap<>();
+
+        void apply(Record record, int offset) {
+            plates.computeIfAbsent(record.plate, plate -> new PlateRecords()).add(record, offset);
+        }
+    }
+
+    private static final class PlateRecords {
+        private final Map<String, Rating> ratings = new HashMap<>();
+        private final Map<String, RatingAggregate.NodeCounts> aggregates = new HashMap<>();
+        private int[] offsets = new int[4];
+        private int size;
+
+        synchronized void add(Record record, int offset) {
+            if (record.type == RATING) {
+                ratings.put(record.rating.getIdempotencyKey(), record.rating);
+            } else {
+                aggregates.merge(record.nodeId, record.counts, RatingAggregate.NodeCounts::merge);
+            }
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            offsets[size++] = offset;
+        }
+
+        synchronized void copyRatings(Map<String, Rating> into) {
+            into.putAll(ratings);
+        }
+
+        synchronized void mergeAggregates(Map<String, RatingAggregate.NodeCounts> into) {
+            aggregates.forEach((nodeId, counts) -> into.merge(nodeId, counts, RatingAggregate.NodeCounts::merge));
+        }
+
+        synchronized boolean hasRatings() {
+            return !ratings.isEmpty();
+        }
+
+        synchronized IndexEntry indexEntry(String plate) {
+            return new IndexEntry(utf8(plate), !ratings.isEmpty(), Arrays.copyOf(offsets, size));
+        }
+    }
+
+    private static final class IndexEntry {
+        private final byte[] plate;
+        private final boolean hasRatings;
+        private final int[] offsets;
+
+        IndexEntry(byte[] plate, boolean hasRatings, int[] offsets) {
+            this.plate = plate;
+            this.hasRatings = hasRatings;
+            this.offsets = offsets;
+        }
+    }
+
+    /*
+     * A segment that is never written again, with its log and index memory mapped. Reads use absolute positions
+     * only, so any number of threads can share the maps.
+     */
+    private static final class SealedSegment {
+        private final Path logPath;
+        private final Path indexPath;
+        private final MappedByteBuffer records;
+        private final MappedByteBuffer index;
+        private final int count;
+        private final boolean compacted;
+
+        private SealedSegment(Path logPath, Path indexPath, MappedByteBuffer records, MappedByteBuffer index) {
+            this.logPath = logPath;
+            this.indexPath = indexPath;
+            this.records = records;
+            this.index = index;
+            this.count = index.getInt(4);
+            this.compacted = index.getInt(0) == COMPACTED_INDEX_MAGIC;
+        }
+
+        static SealedSegment open(Path logPath, Path indexPath) throws IOException {
+            MappedByteBuffer index = map(indexPath, -1);
+            if (index.capacity() < INDEX_HEADER_BYTES
+                    || index.getInt(0) != INDEX_MAGIC && index.getInt(0) != COMPACTED_INDEX_MAGIC) {
+                throw new IOException("'" + indexPath + "' is not a rating log index");
+            }
+            return new SealedSegment(logPath, indexPath, map(logPath, index.getLong(8)), index);
+        }
+
+        private static MappedByteBuffer map(Path path, long length) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = length < 0 ? channel.size() : length;
+                if (size > channel.size()) {
+                    throw new IOException("'" + path + "' is shorter than its index says");
+                }
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+        }
+
+        void forEachRecord(byte[] plate, Consumer<Record> action) {
+            int entry = find(plate);
+            if (entry < 0) {
+                return;
+            }
+            int position = entry + 2 + plate.length + 1;
+            int found = index.getInt(position);
+            for (int i = 0; i < found; i++) {
+                Record record = Record.decode(records, index.getInt(position + 4 + 4 * i));
+                if (record != null) {
+                    action.accept(record);
+                }
+            }
+        }
+
+        void forEachPlate(Consumer<byte[]> action) {
+            for (int i = 0; i < count; i++) {
+                action.accept(plateAt(entryAt(i)));
+            }
+        }
+
+        void addRatedPlates(Set<String> plates) {
+            for (int i = 0; i < count; i++) {
+                int entry = entryAt(i);
+                byte[] plate = plateAt(entry);
+                if (index.get(entry + 2 + plate.length) != 0) {
+                    plates.add(new String(plate, StandardCharsets.UTF_8));
+                }
+            }
+        }
+
+        private int find(byte[] plate) {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int entry = entryAt(mid);
+                int comparison = compare(entry, plate);
+                if (comparison < 0) {
+                    low = mid + 1;
+                } else if (comparison > 0) {
+                    high = mid - 1;
+                } else {
+                    return entry;
+                }
+            }
+            return -1;
+        }
+
+        private int compare(int entry, byte[] plate) {
+            int length = index.getShort(entry);
+            int common = Math.min(length, plate.length);
+            for (int i = 0; i < common; i++) {
+                int difference = (index.get(entry + 2 + i) & 0xff) - (plate[i] & 0xff);
+                if (difference != 0) {
+                    return difference;
+                }
+            }
+            return length - plate.length;
+        }
+
+        private int entryAt(int i) {
+            return index.getInt(INDEX_HEADER_BYTES + 4 * i);
+        }
+
+        private byte[] plateAt(int entry) {
+            byte[] plate = new byte[index.getShort(entry)];
+            index.get(entry + 2, plate);
+            return plate;
+        }
+    }
+
+    /*
+     * One log record: a rating, or one node's aggregate counts for a plate. Framed as body length, CRC32C of the
+     * body, then the body.
+     */
+    private static final class Record {
+        private final byte type;
+        private final String plate;
+        private final Rating rating;
+        private final String nodeId;
+        private final RatingAggregate.NodeCounts counts;
+
+        private Record(byte type, String plate, Rating rating, String nodeId, RatingAggregate.NodeCounts counts) {
+            this.type = type;
+            this.plate = plate;
+            this.rating = rating;
+            this.nodeId = nodeId;
+            this.counts = counts;
+        }
+
+        static Record rating(Rating rating) {
+            return new Record(RATING, rating.getPlate(), rating, null, null);
+        }
+
+        static Record aggregate(String plate, String nodeId, RatingAggregate.NodeCounts counts) {
+            return new Record(AGGREGATE, plate, null, nodeId, counts);
+        }
+
+        byte[] encode() {
+            byte[] plateBytes = utf8(plate);
+            ByteBuffer body;
+            if (type == RATING) {
+                byte[] key = utf8(rating.getIdempotencyKey());
+                body = ByteBuffer.allocate(1 + 2 + plateBytes.length + 2 + key.length + 4 + 8);
+                body.put(type);
+                putString(body, plateBytes);
+                putString(body, key);
+                body.putInt(rating.getStars()).putLong(rating.getSubmittedAt());
+            } else {
+                byte[] node = utf8(nodeId);
+                body = ByteBuffer.allocate(1 + 2 + plateBytes.length + 2 + node.length + 8 * 3
+                        + 8 * RatingAggregate.MAX_STARS + 8 * 2);
+                body.put(type);
+                putString(body, plateBytes);
+                putString(body, node);
+                body.putLong(counts.getCount()).putLong(counts.getSum()).putLong(counts.getSumOfSquares());
+                for (int i = 0; i < RatingAggregate.MAX_STARS; i++) {
+                    body.putLong(counts.getHistogram()[i]);
+                }
+                body.putDouble(counts.getDecayedCount()).putDouble(counts.getDecayedSum());
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(body.array());
+            return ByteBuffer.allocate(RECORD_HEADER_BYTES + body.capacity())
+                    .putInt(body.capacity())
+                    .putInt((int) crc.getValue())
+                    .put(body.array())
+                    .array();
+        }
+
+        /*
+         * @return The record at the offset, or null if it is cut short, its CRC doesn't match or its body doesn't
+         *         parse. A body whose CRC matches was written whole, so one that doesn't parse can only be a bug,
+         *         and is treated like a torn record rather than taking the store down
+         */
+        static Record decode(ByteBuffer segment, int offset) {
+            if (offset + RECORD_HEADER_BYTES > segment.limit()) {
+                return null;
+            }
+            int length = segment.getInt(offset);
+            if (length <= 0 || length > segment.limit() - offset - RECORD_HEADER_BYTES) {
+                return null;
+            }
+            ByteBuffer body = segment.slice(offset + RECORD_HEADER_BYTES, length);
+            CRC32C crc = new CRC32C();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != segment.getInt(offset + 4)) {
+                return null;
+            }
+            try {
+                return decode(body);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                log.warn("Malformed record at offset {}: {}", offset, e.toString());
+                return null;
+            }
+        }
+
+        private static Record decode(ByteBuffer body) {
+            byte type = body.get();
+            String plate = string(body);
+            String name = string(body);
+            if (type == RATING) {
+                return rating(Rating.builder()
+                        .plate(plate)
+                        .idempotencyKey(name)
+                        .stars(body.getInt())
+                        .submittedAt(body.getLong())
+                        .build());
+            }
+            RatingAggregate.NodeCounts.NodeCountsBuilder counts = RatingAggregate.NodeCounts.builder()
+                    .count(body.getLong())
+                    .sum(body.getLong())
+                    .sumOfSquares(body.getLong());
+            long[] histogram = new long[RatingAggregate.MAX_STARS];
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] = body.getLong();
+            }
+            return aggregate(plate, name, counts.histogram(histogram)
+                    .decayedCount(body.getDouble())
+                    .decayedSum(body.getDouble())
+                    .build());
+        }
+
+        private static void putString(ByteBuffer body, byte[] bytes) {
+            if (bytes.length > MAX_STRING_BYTES) {
+                throw new IllegalArgumentException(
+                        "A " + bytes.length + " byte string is too long for the rating log, the limit is "
+                                + MAX_STRING_BYTES);
+            }
+            body.putShort((short) bytes.length).put(bytes);
+        }
+
+        private static String string(ByteBuffer body) {
+            int length = Short.toUnsignedInt(body.getShort());
+            if (length > body.remaining()) {
+                throw new IllegalArgumentException("String length " + length + " runs past the record");
+            }
+            byte[] bytes = new byte[length];
+            body.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /*
+     * Records queued for the next group commit, encoded by the caller so the writer thread only copies bytes
+     */
+    private static final class PendingWrite {
+        private static final PendingWrite STOP = new PendingWrite(new Record[0]);
+
+        private final Record[] records;
+        private final byte[][] encoded;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PendingWrite(Record[] records) {
+            this.records = records;
+            this.encoded = new byte[records.length][];
+            for (int i = 0; i < records.length; i++) {
+                encoded[i] = records[i].encode();
+            }
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package com.ratemyrickshaw.service;
+
+import static com.ratemyrickshaw.fn.OcrCorrectionTable.PARTS;
+import static com.ratemyrickshaw.fn.OcrCorrectionTable.SYMBOLS;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ratemyrickshaw.fn.NumberPlateValidationFn;
+import com.ratemyrickshaw.fn.OcrCorrectionTable;
+import com.ratemyrickshaw.model.OcrConfusionSnapshot;
+
+import io.quarkus.runtime.ShutdownEvent;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+
+/*
+Learns which OCR misreads to correct from plates users confirm, so validation picks up the misreads of the cameras
+and paint actually in use rather than only the built in ones.
+
+The logic is as follows:
+1. An analysis response carries a token for the raw OCR text its plate was read from, signed by this server, and a
+   rating can send it back. Only a genuine, unexpired token is learned from, and each token only once, so a client
+   can neither make up misreads nor repeat one. The plate the user rated is taken as what the text really says, and the text is aligned with it (edit distance, stray characters before, after or inside the plate
+   cost nothing or one each). Texts too far from the plate are ignored, they are a different plate or unreadable.
+2. For the state code and RTO characters, the parts validation corrects, each aligned pair adds one to a count of how
+   often that character was read as that other one, right reads included. The counts are LongAdders, so concurrent
+   ratings never contend on a lock or lose a count.
+3. Every publish interval the counts are turned into an OcrCorrectionTable and handed to NumberPlateValidationFn,
+   which reads it through one volatile field, so requests never wait on learning.
+4. If a snapshot file is configured the counts are saved to it on every publish and at shutdown, and loaded at
+   startup, so what was learned survives a restart.
+Each node learns from the ratings it takes, nodes don't share their counts. Validation never lets a learned correction
+change a character that already reads as a valid state code or RTO digit.
+*/
+@Slf4j
+@ApplicationScoped
+public class OcrConfusionLearner {
+
+    private static final String ALPHABET = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+    private static final String TOKEN_MAC = "HmacSHA256";
+    private static final Base64.Encoder BASE64 = Base64.getUrlEncoder().withoutPadding();
+    // A token is only learned from for this long after its analysis, which is also how long used ones are remembered
+    private static final Duration TOKEN_LIFETIME = Duration.ofHours(1);
+    // A text is only learned from if at most this share of the plate's characters had to be changed to match it
+    private static final double MAX_EDIT_SHARE = 1.0 / 3;
+    // The part of a plate each of its first characters is
+    private static final int[] PLATE_PARTS = { OcrCorrectionTable.STATE_FIRST, OcrCorrectionTable.STATE_SECOND,
+            OcrCorrectionTable.RTO_FIRST, OcrCorrectionTable.RTO_SECOND };
+
+    private final NumberPlateValidationFn numberPlateValidationFn;
+    private final ObjectMapper objectMapper;
+    private final boolean enabled;
+    private final Duration publishInterval;
+    private final long minObservations;
+    private final double minShare;
+    private final Optional<Path> snapshotFile;
+    private final SecretKeySpec tokenKey;
+
+    private final LongAdder[] counts = new LongAdder[PARTS * SYMBOLS * SYMBOLS];
+    // Whether anything was learned since the last publish
+    private final AtomicBoolean changed = new AtomicBoolean();
+    // The signatures of the tokens learned from, and when they were issued
+    private final Map<String, Long> usedTokens = new ConcurrentHashMap<>();
+    private ScheduledExecutorService timer;
+
+    @Inject
+    public OcrConfusionLearner(NumberPlateValidationFn numberPlateValidationFn, ObjectMapper objectMapper,
+            @ConfigProperty(name = "rickshaw.ocr.learning.enabled", defaultValue = "true") boolean enabled,
+            @ConfigProperty(name = "rickshaw.ocr.learning.publish-interval", defaultValue = "5m") Duration publishInterval,
+            @ConfigProperty(name = "rickshaw.ocr.learning.min-observations", defaultValue = "20") long minObservations,
+            @ConfigProperty(name = "rickshaw.ocr.learning.min-share", defaultValue = "0.6") double minShare,
+            @ConfigProperty(name = "rickshaw.ocr.learning.snapshot-file") Optional<String> snapshotFile,
+            @ConfigProperty(name = "rickshaw.ocr.learning.token-secret") Optional<String> tokenSecret) {
+        this.numberPlateValidationFn = numberPlateValidationFn;
+        this.objectMapper = objectMapper;
+        this.enabled = enabled;
+        this.publishInterval = publishInterval;
+        this.minObservations = minObservations;
+        this.minShare = minShare;
+        this.snapshotFile = snapshotFile.filter(file -> !file.isBlank()).map(Path::of);
+        // Without a shared secret only this process can check its tokens, which is all a Lambda environment needs
+        byte[] secret = tokenSecret.filter(value -> !value.isBlank())
+                .map(value -> value.getBytes(StandardCharsets.UTF_8))
+                .orElseGet(() -> {
+                    byte[] random = new byte[32];
+                    new SecureRandom().nextBytes(random);
+                    return random;
+                });
+        this.tokenKey = new SecretKeySpec(secret, TOKEN_MAC);
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        load();
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ocr-learning");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long periodMillis = publishInterval.toMillis();
+        timer.scheduleWithFixedDelay(this::publishQuietly, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void onShutdown(@Observes ShutdownEvent event) {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        publishQuietly();
+    }
+
+    /**
+     * A token for the OCR text a plate was read from, for the analysis response. The client sends it back with its
+     * rating, so only text this server read is ever learned from.
+     *
+     * @param ocrText The raw OCR text, e.g. "NH 12 AB 1234"
+     * @return The token, or null if learning is off
+     */
+    public String issue(String ocrText) {
+        if (!enabled || ocrText == null) {
+            return null;
+        }
+        // The nonce tells apart tokens for the same text issued in the same millisecond
+        String payload = BASE64.encodeToString(ocrText.getBytes(StandardCharsets.UTF_8)) + "." + System.currentTimeMillis()
+                + "." + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        return payload + "." + sign(payload);
+    }
+
+    /**
+     * Learn from a plate a user confirmed and the token for the OCR text it was read from (see {@link #issue})
+     *
+     * @param token The token from the analysis response
+     * @param plate The canonical plate, e.g. "MH12AB1234"
+     * @return Whether the pair was learned from, false if the token isn't genuine, has expired or was used before, or
+     *         its text is too far from the plate to align
+     */
+    public boolean learn(String token, String plate) {
+        if (!enabled || token == null || plate == null) {
+            return false;
+        }
+        Optional<String> ocrText = redeem(token);
+        if (ocrText.isEmpty()) {
+            log.debug("Not learning from '{}', its token isn't one this server issued or was used before", plate);
+            return false;
+        }
+        return learnText(ocrText.get(), plate);
+    }
+
+    private boolean learnText(String ocrText, String plate) {
+        Optional<String> rto = numberPlateValidationFn.rtoCode(plate);
+        if (rto.isEmpty()) {
+            return false;
+        }
+        String read = ocrText.toUpperCase().replaceAll("[^A-Z0-9]", "");
+        int[] aligned = align(plate, read);
+        if (aligned == null) {
+            log.debug("Not learning from '{}', it is too far from '{}'", ocrText, plate);
+            return false;
+        }
+        // The RTO code is the state code and one RTO digit for Delhi or two elsewhere
+        for (int i = 0; i < rto.get().length(); i++) {
+            // A character missing from the text says nothing about how characters are misread
+            if (aligned[i] >= 0) {
+                int readSymbol = OcrCorrectionTable.symbol(read.charAt(aligned[i]));
+                int actualSymbol = OcrCorrectionTable.symbol(plate.charAt(i));
+                counts[OcrCorrectionTable.index(PLATE_PARTS[i], readSymbol, actualSymbol)].increment();
+            }
+        }
+        changed.set(true);
+        return true;
+    }
+
+    /**
+     * Build a correction table from the counts so far, switch validation over to it and save the counts
+     *
+     * @throws UncheckedIOException if the counts couldn't be saved, validation uses the new table regardless
+     */
+    public OcrCorrectionTable publish() {
+        long expired = System.currentTimeMillis() - TOKEN_LIFETIME.toMillis();
+        usedTokens.values().removeIf(issuedAt -> issuedAt < expired);
+        long[] snapshot = new long[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            snapshot[i] = counts[i].sum();
+        }
+        OcrCorrectionTable table = OcrCorrectionTable.build(snapshot, minObservations, minShare);
+        numberPlateValidationFn.useCorrections(table);
+        log.debug("Published {}", table);
+        if (snapshotFile.isPresent()) {
+            save(snapshotFile.get(), snapshot);
+        }
+        return table;
+    }
+
+    /**
+     * Add the counts saved in the snapshot file, if there is one, and publish them
+     */
+    public void load() {
+        if (snapshotFile.isPresent() && Files.exists(snapshotFile.get())) {
+            try {
+                OcrConfusionSnapshot snapshot = objectMapper.readValue(snapshotFile.get().toFile(), OcrConfusionSnapshot.class);
+                if (!ALPHABET.equals(snapshot.getAlphabet()) || snapshot.getParts() != PARTS
+                        || snapshot.getCounts() == null || snapshot.getCounts().length != counts.length) {
+                    log.warn("Ignoring OCR confusion counts in {}, they were saved in a different layout", snapshotFile.get());
+                } else {
+                    for (int i = 0; i < counts.length; i++) {
+                        counts[i].add(snapshot.getCounts()[i]);
+                    }
+                    log.info("Loaded {} OCR confusion counts from {}", Arrays.stream(snapshot.getCounts()).sum(),
+                            snapshotFile.get());
+                }
+            } catch (IOException e) {
+                log.warn("Unable to load OCR confusion counts from {}, starting afresh: {}", snapshotFile.get(), e.getMessage());
+            }
+        }
+        try {
+            publish();
+        } catch (UncheckedIOException e) {
+            log.warn("Unable to save OCR confusion counts: {}", e.getMessage());
+        }
+    }
+
+    private void publishQuietly() {
+        if (!changed.getAndSet(false)) {
+            return;
+        }
+        try {
+            publish();
+        } catch (RuntimeException e) {
+            changed.set(true);
+            log.warn("Publishing OCR corrections failed, will retry: {}", e.getMessage());
+        }
+    }
+
+    /*
+     * The OCR text of a token that is genuine, unexpired and not used before, marking it used.
+     */
+    private Optional<String> redeem(String token) {
+        String[] parts = token.split("\\.");
+        if (parts.length != 4) {
+            return Optional.empty();
+        }
+        byte[] expected = sign(parts[0] + "." + parts[1] + "." + parts[2]).getBytes(StandardCharsets.US_ASCII);
+        if (!MessageDigest.isEqual(expected, parts[3].getBytes(StandardCharsets.US_ASCII))) {
+            return Optional.empty();
+        }
+        long issuedAt = Long.parseLong(parts[1]);
+        if (issuedAt < System.currentTimeMillis() - TOKEN_LIFETIME.toMillis()
+                || usedTokens.putIfAbsent(parts[3], issuedAt) != null) {
+            return Optional.empty();
+        }
+        return Optional.of(new String(Base64.getUrlDecoder().decode(parts[0]), StandardCharsets.UTF_8));
+    }
+
+    private String sign(String payload) {
+        try {
+            Mac mac = Mac.getInstance(TOKEN_MAC);
+            mac.init(tokenKey);
+            return BASE64.encodeToString(mac.doFinal(payload.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to sign an OCR text token: " + e.getMessage(), e);
+        }
+    }
+
+    /*
+     * Written next to the file and moved over it, so a crash mid write never leaves half a snapshot.
+     */
+    private void save(Path file, long[] snapshot) {
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+            objectMapper.writeValue(temp.toFile(), new OcrConfusionSnapshot(ALPHABET, PARTS, snapshot));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+     * Align the plate with the stretch of text that matches it best, by edit distance with the text before and after
+     * that stretch free. Returns where each plate character was read in the text (-1 if it is missing from the text),
+     * or null if more than MAX_EDIT_SHARE of the plate had to be changed.
+     */
+    static int[] align(String plate, String read) {
+        int m = plate.length();
+        int n = read.length();
+        int[][] cost = new int[m + 1][n + 1];
+        for (int i = 1; i <= m; i++) {
+            cost[i][0] = i;
+            for (int j = 1; j <= n; j++) {
+                int substitution = cost[i - 1][j - 1] + (plate.charAt(i - 1) == read.charAt(j - 1) ? 0 : 1);
+                cost[i][j] = Math.min(substitution, Math.min(cost[i - 1][j], cost[i][j - 1]) + 1);
+            }
+        }
+        int end = 0;
+        for (int j = 1; j <= n; j++) {
+            if (cost[m][j] < cost[m][end]) {
+                end = j;
+            }
+        }
+        if (cost[m][end] > m * MAX_EDIT_SHARE) {
+            return null;
+        }
+
+        int[] aligned = new int[m];
+        Arrays.fill(aligned, -1);
+        for (int i = m, j = end; i > 0; ) {
+            if (j > 0 && cost[i][j] == cost[i - 1][j - 1] + (plate.charAt(i - 1) == read.charAt(j - 1) ? 0 : 1)) {
+                aligned[--i] = --j;
+            } else if (j > 0 && cost[i][j] == cost[i][j - 1] + 1) {
+                j--;
+            } else {
+                i--;
+            }
+        }
+        return aligned;
+    }
+}
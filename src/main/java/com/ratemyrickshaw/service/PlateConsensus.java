@@ -0,0 +1,117 @@
+package com.ratemyrickshaw.service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+
+/*
+The plate a run of camera frames agrees on, when each frame's reading may be off by a character or two.
+
+The logic is as follows:
+1. Each frame that read a plate adds it as a vote. Frames that read no plate don't vote.
+2. The votes are grouped by shape (letter or digit at each position, e.g. MH12AB1234 is LLDDLLDDDD), and the shape
+   with the most votes wins. Within it each position takes its most voted character, so three frames each misreading
+   a different character still give the right plate, which none of them read on its own. Ties go to the later frame.
+3. If the character vote isn't a valid plate, the plate read most often wins instead.
+4. The consensus is stable once it has come out the same after the given number of votes in a row.
+Not thread safe, a session only votes from the thread analysing its frames.
+*/
+final class PlateConsensus {
+
+    private final int stableVotes;
+    private final Function<String, Optional<String>> validation;
+    private final List<String> votes = new ArrayList<>();
+
+    private String consensus;
+    private int unchangedVotes;
+
+    /**
+     * @param stableVotes How many votes in a row the consensus has to come out the same for to be stable
+     * @param validation Gives the canonical plate, or empty if the text isn't a complete plate
+     */
+    PlateConsensus(int stableVotes, Function<String, Optional<String>> validation) {
+        if (stableVotes < 1) {
+            throw new IllegalArgumentException("A consensus needs at least one vote to be stable");
+        }
+        this.stableVotes = stableVotes;
+        this.validation = validation;
+    }
+
+    /**
+     * Add a frame's plate
+     *
+     * @return The consensus after it
+     */
+    String vote(String plate) {
+        votes.add(plate);
+        String next = count();
+        unchangedVotes = next.equals(consensus) ? unchangedVotes + 1 : 1;
+        consensus = next;
+        return consensus;
+    }
+
+    /**
+     * @return The plate the votes so far agree on, or empty if there are none
+     */
+    Optional<String> consensus() {
+        return Optional.ofNullable(consensus);
+    }
+
+    boolean isStable() {
+        return consensus != null && unchangedVotes >= stableVotes;
+    }
+
+    /**
+     * @return How many votes were for exactly the consensus
+     */
+    int agreeing() {
+        return (int) votes.stream().filter(vote -> vote.equals(consensus)).count();
+    }
+
+    int votes() {
+        return votes.size();
+    }
+
+    private String count() {
+        Map<String, List<String>> byShape = new HashMap<>();
+        for (String vote : votes) {
+            byShape.computeIfAbsent(shape(vote), shape -> new ArrayList<>()).add(vote);
+        }
+        List<String> group = byShape.get(mostVoted(votes, PlateConsensus::shape));
+
+        char[] plate = new char[group.get(0).length()];
+        for (int i = 0; i < plate.length; i++) {
+            int position = i;
+            plate[i] = mostVoted(group, vote -> String.valueOf(vote.charAt(position))).charAt(0);
+        }
+        return validation.apply(new String(plate)).orElseGet(() -> mostVoted(votes, Function.identity()));
+    }
+
+    /*
+     * The key with the most votes, the one voted for latest on a tie
+     */
+    private static String mostVoted(List<String> votes, Function<String, String> key) {
+        Map<String, Integer> counts = new HashMap<>();
+        Map<String, Integer> latest = new HashMap<>();
+        for (int i = 0; i < votes.size(); i++) {
+            String voted = key.apply(votes.get(i));
+            counts.merge(voted, 1, Integer::sum);
+            latest.put(voted, i);
+        }
+        return counts.keySet().stream()
+                .max(Comparator.comparing(counts::get).thenComparing(latest::get))
+                .orElseThrow();
+    }
+
+    private static String shape(String plate) {
+        char[] shape = new char[plate.length()];
+        for (int i = 0; i < shape.length; i++) {
+            shape[i] = Character.isDigit(plate.charAt(i)) ? 'D' : 'L';
+        }
+        return new String(shape);
+    }
+}
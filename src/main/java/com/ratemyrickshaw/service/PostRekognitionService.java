@@ -1,9 +1,22 @@
 package com.ratemyrickshaw.service;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 
 import com.ratemyrickshaw.fn.NumberPlateExtractionFn;
 import com.ratemyrickshaw.fn.NumberPlateValidationFn;
+import com.ratemyrickshaw.fn.PlateClusteringFn;
+import com.ratemyrickshaw.model.DetectedPlate;
+import com.ratemyrickshaw.model.DetectionBatch;
+import com.ratemyrickshaw.model.PlateDetectionResult;
 
 import jakarta.enterprise.context.ApplicationScoped;
 import lombok.RequiredArgsConstructor;
@@ -17,12 +30,188 @@ public class PostRekognitionService {
 
     private final NumberPlateExtractionFn numberPlateExtractionFn;
     private final NumberPlateValidationFn numberPlateValidationFn;
+    private final PlateClusteringFn plateClusteringFn;
+
+    // A LINE at or above this confidence that parses as a whole plate is trusted without further checks
+    @ConfigProperty(name = "rickshaw.fast-path.min-confidence", defaultValue = "95")
+    float fastPathMinConfidence;
+
+    // Clusters with at least this many words are read on another thread, smaller ones aren't worth the hand off
+    @ConfigProperty(name = "rickshaw.multi-plate.parallel-min-words", defaultValue = "8")
+    int parallelMinWords;
+
+    private final LongAdder fastPathHits = new LongAdder();
+    private final LongAdder fastPathMisses = new LongAdder();
 
     public String postProcessTextDetections(DetectTextResponse rekognitionResponse) {
+        return detectPlate(rekognitionResponse).getPlate();
+    }
+
+    /**
+     * Find the number plate in a text detection response.
+     * When Rekognition has already read the whole plate as one confident LINE, e.g. "MH 12 AB 1234", it is returned
+     * straight away. Otherwise the words go through extraction and assembly.
+     */
+    public PlateDetectionResult detectPlate(DetectTextResponse rekognitionResponse) {
+        return detectPlate(DetectionBatch.of(rekognitionResponse));
+    }
+
+    /*
+     * The response is converted to a batch once, here, and every stage after this works on the batch.
+     */
+    private PlateDetectionResult detectPlate(DetectionBatch batch) {
+        Optional<PlateDetectionResult> fastPath = matchWholePlateLine(batch);
+        if (fastPath.isPresent()) {
+            fastPathHits.increment();
+            log.info("Fast path: '{}' read as a single line ({}% confidence), fast path hit ratio {}",
+                    fastPath.get().getPlate(), fastPath.get().getConfidence(), String.format("%.2f", fastPathHitRatio()));
+            return fastPath.get();
+        }
+        fastPathMisses.increment();
+
+        return assemblePlate(batch);
+    }
+
+    /*
+     * The slow path: extract the candidate words and assemble a plate from them, weighted by how confident
+     * Rekognition was in each word.
+     */
+    private PlateDetectionResult assemblePlate(DetectionBatch batch) {
+        int[] words = numberPlateExtractionFn.extract(batch);
+        String candidate = IntStream.of(words).mapToObj(batch::text).collect(Collectors.joining(" "));
+        return new PlateDetectionResult(numberPlateValidationFn.assemble(batch, words), null, candidate);
+    }
+
+    /**
+     * Find every valid number plate in a text detection response, e.g. a photo of a rickshaw stand.
+     * The words are clustered by position and each cluster is read on its own, fast path first. Clusters that don't
+     * give a valid plate are dropped, and of clusters that give the same plate (painted on the front and back, or
+     * read twice), only the most confident is kept. Plates are compared exactly, as validated: two rickshaws from the
+     * same series (MH12AB1234, MH12AB1299) parked side by side are two plates, however alike they read.
+     *
+     * @return The plates, biggest text region first, empty if none are valid
+     */
+    public List<DetectedPlate> detectPlates(DetectTextResponse rekognitionResponse) {
+        List<DetectionBatch> clusters = plateClusteringFn.apply(DetectionBatch.of(rekognitionResponse));
+
+        List<CompletableFuture<Optional<ClusterReading>>> readings = clusters.stream()
+                .map(cluster -> wordCount(cluster) >= parallelMinWords
+                        ? CompletableFuture.supplyAsync(() -> readCluster(cluster))
+                        : CompletableFuture.completedFuture(readCluster(cluster)))
+                .toList();
+
+        List<ClusterReading> valid = readings.stream()
+                .map(CompletableFuture::join)
+                .flatMap(Optional::stream)
+                .toList();
+
+        List<ClusterReading> kept = new ArrayList<>();
+        valid.stream()
+                .sorted(Comparator.comparingDouble(ClusterReading::score).reversed())
+                .forEach(reading -> {
+                    if (kept.stream().noneMatch(other -> other.plate().getPlate().equals(reading.plate().getPlate()))) {
+                        kept.add(reading);
+                    } else {
+                        log.info("Dropping '{}', the same plate was read more confidently", reading.plate().getPlate());
+                    }
+                });
+
+        return valid.stream()
+                .filter(kept::contains)
+                .map(ClusterReading::plate)
+                .toList();
+    }
+
+    /**
+     * @return The fraction of responses so far that were settled by the fast path
+     */
+    public double fastPathHitRatio() {
+        long hits = fastPathHits.sum();
+        long total = hits + fastPathMisses.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /*
+     * Read one cluster the same way as a whole photo. Validation throws or returns an "Invalid..." message when the
+     * cluster isn't a plate, which for a cluster is the common case (stickers, slogans, shop signs) rather than an error.
+     */
+    private Optional<ClusterReading> readCluster(DetectionBatch cluster) {
+        int[] words = IntStream.range(0, cluster.size()).filter(cluster::isWord).toArray();
+
+        PlateDetectionResult result;
+        try {
+            result = matchWholePlateLine(cluster).orElseGet(() -> assemblePlate(cluster));
+        } catch (RuntimeException e) {
+            log.debug("No plate in {}: {}", IntStream.of(words).mapToObj(cluster::text).toList(), e.getMessage());
+            return Optional.empty();
+        }
+        if (result.getPlate() == null || result.getPlate().startsWith("Invalid") || result.getPlate().startsWith("No ")) {
+            return Optional.empty();
+        }
+
+        float left = Float.MAX_VALUE;
+        float top = Float.MAX_VALUE;
+        float right = 0;
+        float bottom = 0;
+        for (int word : words) {
+            left = Math.min(left, cluster.left(word));
+            top = Math.min(top, cluster.top(word));
+            right = Math.max(right, cluster.left(word) + cluster.width(word));
+            bottom = Math.max(bottom, cluster.top(word) + cluster.height(word));
+        }
+
+        DetectedPlate plate = DetectedPlate.builder()
+                .plate(result.getPlate())
+                .confidence(result.getConfidence())
+                .left(left)
+                .top(top)
+                .width(right - left)
+                .height(bottom - top)
+                .build();
+        double score = result.getConfidence() != null
+                ? result.getConfidence()
+                : IntStream.of(words).mapToDouble(cluster::confidence).average().orElse(0);
+        return Optional.of(new ClusterReading(plate, score));
+    }
+
+    private static long wordCount(DetectionBatch cluster) {
+        return IntStream.range(0, cluster.size()).filter(cluster::isWord).count();
+    }
+
+    private static final class ClusterReading {
+        private final DetectedPlate plate;
+        private final double score;
+
+        ClusterReading(DetectedPlate plate, double score) {
+            this.plate = plate;
+            this.score = score;
+        }
+
+        DetectedPlate plate() {
+            return plate;
+        }
+
+        double score() {
+            return score;
+        }
+    }
 
-        return Optional.of(numberPlateExtractionFn.apply(rekognitionResponse))
-                .map(numberPlateValidationFn) 
-                .orElse("Invalid number plate");
+    /*
+     * The most confident LINE at or above the fast path threshold that reads as a whole plate. Only those lines are
+     * turned into Strings.
+     */
+    private Optional<PlateDetectionResult> matchWholePlateLine(DetectionBatch batch) {
+        int[] lines = IntStream.range(0, batch.size())
+                .filter(i -> batch.isLine(i) && batch.confidence(i) >= fastPathMinConfidence)
+                .toArray();
+        DetectionBatch.sort(lines, (a, b) -> Float.compare(batch.confidence(b), batch.confidence(a)));
+        for (int line : lines) {
+            Optional<String> plate = numberPlateValidationFn.matchCompletePlate(batch.text(line));
+            if (plate.isPresent()) {
+                return Optional.of(new PlateDetectionResult(plate.get(), batch.confidence(line), batch.text(line)));
+            }
+        }
+        return Optional.empty();
     }
 
 }
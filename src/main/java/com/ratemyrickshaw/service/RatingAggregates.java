@@ -0,0 +1,310 @@
+package com.ratemyrickshaw.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.ratemyrickshaw.model.Rating;
+import com.ratemyrickshaw.model.RatingAggregate;
+
+import io.quarkus.runtime.ShutdownEvent;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+
+/*
+Per plate rating aggregates, so reading a driver's rating costs the same whether they have 3 ratings or 30,000.
+
+The logic is as follows:
+1. Each submitted rating is added to this node's counts for the plate: count, sum, sum of squares, a star histogram
+   and forward decayed weights for the recent average. The counts are LongAdders/DoubleAdders under a shared read
+   lock, so concurrent submissions for a popular plate never wait on each other or lose an update.
+2. The counts are published to the store as this node's slot of the plate's aggregate. Only this node writes that
+   slot and the counts only grow, so a later publish always supersedes an earlier one.
+3. Reading merges the other nodes' slots from the store with this node's live counts (see RatingAggregate).
+4. A plate nobody has rated on this node for the idle timeout is dropped from memory once published, after folding
+   its slot into the plate's base counts (see RatingStore.foldAggregate). So memory holds only the plates rated
+   lately, and the store only the nodes that rated the plate lately.
+5. Counts for a plate that isn't in memory start from this node's slot in the store, if it still has one, so a
+   dropped plate picks up where it left off. Counts idle for the timeout are never added to, even if the timer
+   hasn't dropped them yet (a frozen Lambda environment), because the store may already have folded them.
+A retried submission still in the recent idempotency key window is only counted once.
+*/
+@Slf4j
+@ApplicationScoped
+public class RatingAggregates {
+
+    // Forward decay weights are measured from this fixed point, it must be the same on every node
+    private static final Instant DECAY_LANDMARK = Instant.parse("2024-01-01T00:00:00Z");
+    private static final Duration IDEMPOTENCY_WINDOW = Duration.ofHours(1);
+
+    private final RatingStore ratingStore;
+    private final String nodeId;
+    private final double decayRatePerMilli;
+    private final Duration publishInterval;
+    private final long idleAfterMillis;
+
+    private final Map<String, LocalCounts> localCounts = new ConcurrentHashMap<>();
+    private final Set<String> unpublished = ConcurrentHashMap.newKeySet();
+    private final Map<String, Long> recentIdempotencyKeys = new ConcurrentHashMap<>();
+    private ScheduledExecutorService timer;
+
+    @Inject
+    public RatingAggregates(RatingStore ratingStore,
+            @ConfigProperty(name = "rickshaw.node-id") Optional<String> nodeId,
+            @ConfigProperty(name = "rickshaw.ratings.aggregates.half-life", defaultValue = "30d") Duration halfLife,
+            @ConfigProperty(name = "rickshaw.ratings.aggregates.publish-interval", defaultValue = "30s") Duration publishInterval,
+            @ConfigProperty(name = "rickshaw.ratings.aggregates.idle-after", defaultValue = "1h") Duration idleAfter) {
+        if (idleAfter.compareTo(RatingStore.AGGREGATE_RETIRE_AGE) >= 0) {
+            throw new IllegalArgumentException("rickshaw.ratings.aggregates.idle-after has to be shorter than "
+                    + RatingStore.AGGREGATE_RETIRE_AGE);
+        }
+        this.ratingStore = ratingStore;
+        // Each Lambda execution environment has its own log stream, which makes a readable unique node id. Off Lambda
+        // the store's kept id, so restarts don't each leave another slot in every aggregate they touched
+        this.nodeId = nodeId
+                .or(() -> Optional.ofNullable(System.getenv("AWS_LAMBDA_LOG_STREAM_NAME")))
+                .or(ratingStore::readNodeId)
+                .orElseGet(() -> UUID.randomUUID().toString());
+        this.decayRatePerMilli = Math.log(2) / halfLife.toMillis();
+        this.publishInterval = publishInterval;
+        this.idleAfterMillis = idleAfter.toMillis();
+    }
+
+    @PostConstruct
+    public void start() {
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rating-aggregates");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long periodMillis = publishInterval.toMillis();
+        timer.scheduleWithFixedDelay(this::publishQuietly, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void onShutdown(@Observes ShutdownEvent event) {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        publishQuietly();
+    }
+
+    /**
+     * Add a rating to this node's counts for its plate
+     *
+     * @return Whether it was counted, false if a rating with the same idempotency key already was
+     */
+    public boolean record(Rating rating) {
+        if (recentIdempotencyKeys.putIfAbsent(rating.getIdempotencyKey(), rating.getSubmittedAt()) != null) {
+            log.debug("Rating '{}' has already been counted", rating.getIdempotencyKey());
+            return false;
+        }
+        double weight = Math.exp(decayRatePerMilli * (rating.getSubmittedAt() - DECAY_LANDMARK.toEpochMilli()));
+        String plate = rating.getPlate();
+        try {
+            while (true) {
+                LocalCounts counts = localCounts.get(plate);
+                if (counts == null) {
+                    LocalCounts seeded = seed(plate);
+                    LocalCounts raced = localCounts.putIfAbsent(plate, seeded);
+                    counts = raced == null ? seeded : raced;
+                } else if (idle(plate, counts, System.currentTimeMillis())) {
+                    retireIfIdle(plate, counts, System.currentTimeMillis());
+                }
+                counts.lock.readLock().lock();
+                try {
+                    // A retired plate has been dropped from memory, look it up again
+                    if (!counts.retired) {
+                        counts.add(rating.getStars(), weight);
+                        unpublished.add(plate);
+                        return true;
+                    }
+                } finally {
+                    counts.lock.readLock().unlock();
+                }
+            }
+        } catch (RuntimeException e) {
+            // Not counted, so a retry mustn't be taken for a duplicate
+            recentIdempotencyKeys.remove(rating.getIdempotencyKey());
+            throw e;
+        }
+    }
+
+    /**
+     * The merged view of a plate: this node's live counts plus every other node's published counts
+     */
+    public RatingAggregate get(String plate) {
+        return ratingStore.readAggregate(plate).merge(local(plate));
+    }
+
+    /**
+     * This node's counts for a plate, as a mergeable snapshot
+     */
+    public RatingAggregate local(String plate) {
+        LocalCounts counts = localCounts.get(plate);
+        // Idle counts are all in the store, perhaps already in the base, so they'd only count twice
+        return counts == null || idle(plate, counts, System.currentTimeMillis()) ? RatingAggregate.empty()
+                : RatingAggregate.of(nodeId, counts.snapshot());
+    }
+
+    /**
+     * Write this node's counts for every plate rated since the last publish, then drop the plates gone idle
+     */
+    public void publish() {
+        for (String plate : unpublished) {
+            // Remove first, so a rating landing while we write marks the plate again rather than being missed
+            unpublished.remove(plate);
+            try {
+                ratingStore.writeAggregate(plate, nodeId, localCounts.get(plate).snapshot());
+            } catch (RuntimeException e) {
+                unpublished.add(plate);
+                throw e;
+            }
+        }
+        long now = System.currentTimeMillis();
+        localCounts.forEach((plate, counts) -> {
+            if (idle(plate, counts, now)) {
+                retireIfIdle(plate, counts, now);
+            }
+        });
+        long cutoff = now - IDEMPOTENCY_WINDOW.toMillis();
+        recentIdempotencyKeys.values().removeIf(submittedAt -> submittedAt < cutoff);
+    }
+
+    /**
+     * @return Whether a plate has been rated since the last publish
+     */
+    public boolean hasUnpublished() {
+        return !unpublished.isEmpty();
+    }
+
+    public String nodeId() {
+        return nodeId;
+    }
+
+    /*
+     * Counts still waiting to be published are never idle, they only exist here.
+     */
+    private boolean idle(String plate, LocalCounts counts, long now) {
+        return now - counts.lastRatedAt >= idleAfterMillis && !unpublished.contains(plate);
+    }
+
+    /*
+     * This node's slot in the store, so a plate dropped from memory (or rated before a restart) carries on counting
+     * from where it was rather than overwriting the slot with fewer ratings.
+     */
+    private LocalCounts seed(String plate) {
+        RatingAggregate.NodeCounts stored = ratingStore.readAggregate(plate).getNodes().get(nodeId);
+        LocalCounts counts = new LocalCounts();
+        if (stored != null) {
+            counts.addAll(stored);
+        }
+        return counts;
+    }
+
+    /*
+     * Holds the counts' write lock, so no rating is added while the slot is folded. If the store can't fold, the slot
+     * stays as it is and seeding picks it up again.
+     */
+    private void retireIfIdle(String plate, LocalCounts counts, long now) {
+        counts.lock.writeLock().lock();
+        try {
+            if (counts.retired || !idle(plate, counts, now)) {
+                return;
+            }
+            try {
+                ratingStore.foldAggregate(plate, nodeId, counts.snapshot());
+            } catch (RuntimeException e) {
+                log.warn("Unable to fold the counts for '{}', keeping them: {}", plate, e.getMessage());
+                return;
+            }
+            counts.retired = true;
+            localCounts.remove(plate, counts);
+        } finally {
+            counts.lock.writeLock().unlock();
+        }
+    }
+
+    private void publishQuietly() {
+        try {
+            publish();
+        } catch (RuntimeException e) {
+            log.warn("Publishing rating aggregates failed, will retry: {}", e.getMessage());
+        }
+    }
+
+    /*
+     * Striped counters for one plate on this node. A snapshot reads each counter separately, so it may be a rating
+     * behind on some fields, which the next snapshot catches up on. Adding only shares the read lock, so
+     * submissions never wait on each other, just on the rare retire.
+     */
+    private static final class LocalCounts {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAdder sumOfSquares = new LongAdder();
+        private final LongAdder[] histogram = new LongAdder[RatingAggregate.MAX_STARS];
+        private final DoubleAdder decayedCount = new DoubleAdder();
+        private final DoubleAdder decayedSum = new DoubleAdder();
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private volatile long lastRatedAt = System.currentTimeMillis();
+        // Dropped from memory, only set holding the write lock
+        private volatile boolean retired;
+
+        LocalCounts() {
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] = new LongAdder();
+            }
+        }
+
+        void add(int stars, double weight) {
+            histogram[stars - 1].increment();
+            sum.add(stars);
+            sumOfSquares.add((long) stars * stars);
+            decayedSum.add(stars * weight);
+            decayedCount.add(weight);
+            count.increment();
+            lastRatedAt = System.currentTimeMillis();
+        }
+
+        void addAll(RatingAggregate.NodeCounts counts) {
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i].add(counts.getHistogram()[i]);
+            }
+            sum.add(counts.getSum());
+            sumOfSquares.add(counts.getSumOfSquares());
+            decayedSum.add(counts.getDecayedSum());
+            decayedCount.add(counts.getDecayedCount());
+            count.add(counts.getCount());
+        }
+
+        RatingAggregate.NodeCounts snapshot() {
+            long[] stars = new long[histogram.length];
+            for (int i = 0; i < histogram.length; i++) {
+                stars[i] = histogram[i].sum();
+            }
+            return RatingAggregate.NodeCounts.builder()
+                    .count(count.sum())
+                    .sum(sum.sum())
+                    .sumOfSquares(sumOfSquares.sum())
+                    .histogram(stars)
+                    .decayedCount(decayedCount.sum())
+                    .decayedSum(decayedSum.sum())
+                    .build();
+        }
+    }
+}
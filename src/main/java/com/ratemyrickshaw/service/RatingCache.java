@@ -0,0 +1,242 @@
+package com.ratemyrickshaw.service;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.ratemyrickshaw.model.Rating;
+import com.ratemyrickshaw.model.RatingSummary;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+
+/*
+Read-through cache of rating summaries, so looking up a driver's rating doesn't add a DynamoDB query to every
+/analyze request.
+
+The logic is as follows:
+1. Check a Bloom filter of every plate that has a rating. Most scanned plates have never been rated, and for those
+   the filter answers "no ratings yet" without touching the cache or the store.
+2. Otherwise serve the cached summary if it is younger than the TTL. Once it is into its last refresh-ahead window it
+   is reloaded in the background, so popular plates never block on an expired entry.
+3. On a miss or an expired entry, load the plate's aggregate (see RatingAggregates) and cache it.
+   Bloom filter false positives cache an empty summary for the shorter negative TTL.
+4. New ratings submitted here are added to the filter and invalidate the cached summary straight away, by replacing
+   it with an already expired entry. A load only caches what it read if the plate's entry is still the one it saw
+   when it started, so a refresh that read the store before the rating never puts the stale summary back.
+5. Ratings submitted by other instances are picked up when the filter is rebuilt from the store in the background.
+   The first rebuild waits for the initial delay, so a cold start serves its first requests without scanning the
+   whole table, going to the cache for every plate until the filter is built.
+The cache is size bounded and evicts the least recently used plate.
+*/
+@Slf4j
+@ApplicationScoped
+public class RatingCache {
+
+    private static final double BLOOM_FALSE_POSITIVE_RATE = 0.01;
+
+    private final RatingStore ratingStore;
+    private final RatingWriteBuffer ratingWriteBuffer;
+    private final RatingAggregates ratingAggregates;
+    private final int maxSize;
+    private final long ttlNanos;
+    private final long refreshAheadNanos;
+    private final long negativeTtlNanos;
+    private final int expectedPlates;
+    private final Duration bloomRebuildInterval;
+    private final Duration bloomInitialDelay;
+
+    // Guarded by "this", in access order so the eldest entry is the least recently used
+    private final Map<String, Entry> entries;
+
+    // Null until the first build completes, until then every lookup goes to the cache
+    private volatile BloomFilter knownPlates;
+    // Non-null while a rebuild is scanning the store, so plates rated meanwhile make it into the new filter
+    private volatile BloomFilter rebuilding;
+    private ScheduledExecutorService executor;
+
+    @Inject
+    public RatingCache(RatingStore ratingStore, RatingWriteBuffer ratingWriteBuffer, RatingAggregates ratingAggregates,
+            @ConfigProperty(name = "rickshaw.ratings.cache.max-size", defaultValue = "10000") int maxSize,
+            @ConfigProperty(name = "rickshaw.ratings.cache.ttl", defaultValue = "5m") Duration ttl,
+            @ConfigProperty(name = "rickshaw.ratings.cache.refresh-ahead", defaultValue = "1m") Duration refreshAhead,
+            @ConfigProperty(name = "rickshaw.ratings.cache.negative-ttl", defaultValue = "1m") Duration negativeTtl,
+            @ConfigProperty(name = "rickshaw.ratings.bloom.expected-plates", defaultValue = "100000") int expectedPlates,
+            @ConfigProperty(name = "rickshaw.ratings.bloom.rebuild-interval", defaultValue = "15m") Duration bloomRebuildInterval,
+            @ConfigProperty(name = "rickshaw.ratings.bloom.initial-delay", defaultValue = "1m") Duration bloomInitialDelay) {
+        this.ratingStore = ratingStore;
+        this.ratingWriteBuffer = ratingWriteBuffer;
+        this.ratingAggregates = ratingAggregates;
+        this.maxSize = maxSize;
+        this.ttlNanos = ttl.toNanos();
+        this.refreshAheadNanos = refreshAhead.toNanos();
+        this.negativeTtlNanos = negativeTtl.toNanos();
+        this.expectedPlates = expectedPlates;
+        this.bloomRebuildInterval = bloomRebuildInterval;
+        this.bloomInitialDelay = bloomInitialDelay;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > RatingCache.this.maxSize;
+            }
+        };
+    }
+
+    @PostConstruct
+    public void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rating-cache");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::rebuildKnownPlates, bloomInitialDelay.toMillis(),
+                bloomRebuildInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Get the rating summary for a plate
+     *
+     * @param plate The canonical number plate
+     * @return The summary, with a count of 0 if the plate has no ratings
+     */
+    public RatingSummary get(String plate) {
+        BloomFilter filter = knownPlates;
+        if (filter != null && !filter.mightContain(plate)) {
+            return RatingSummary.none(plate);
+        }
+
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(plate);
+        }
+
+        if (entry != null) {
+            long age = System.nanoTime() - entry.loadedAt;
+            if (age < entry.ttlNanos) {
+                if (entry.summary.hasRatings() && age >= entry.ttlNanos - refreshAheadNanos
+                        && entry.refreshing.compareAndSet(false, true)) {
+                    refreshInBackground(plate, entry);
+                }
+                return entry.summary;
+            }
+        }
+
+        return load(plate);
+    }
+
+    /**
+     * Note a newly submitted rating, so the next lookup for its plate sees it
+     */
+    public void recordRating(Rating rating) {
+        addKnownPlate(rating.getPlate());
+        synchronized (this) {
+            entries.put(rating.getPlate(), Entry.invalidated());
+        }
+    }
+
+    /**
+     * Rebuild the known plates filter from the store. Runs on a timer, but can be called directly.
+     */
+    public void rebuildKnownPlates() {
+        try {
+            BloomFilter next = new BloomFilter(expectedPlates, BLOOM_FALSE_POSITIVE_RATE);
+            rebuilding = next;
+            ratingStore.ratedPlates().forEach(next::add);
+            ratingWriteBuffer.pendingPlates().forEach(next::add);
+            knownPlates = next;
+            log.info("Rebuilt the known plates filter ({} KB)", next.sizeInBytes() / 1024);
+        } catch (RuntimeException e) {
+            log.warn("Unable to rebuild the known plates filter, keeping the previous one: {}", e.getMessage());
+        } finally {
+            rebuilding = null;
+        }
+    }
+
+    private void addKnownPlate(String plate) {
+        BloomFilter filter = knownPlates;
+        if (filter != null) {
+            filter.add(plate);
+        }
+        BloomFilter next = rebuilding;
+        if (next != null) {
+            next.add(plate);
+        }
+    }
+
+    private void refreshInBackground(String plate, Entry entry) {
+        try {
+            executor.execute(() -> {
+                try {
+                    load(plate);
+                } catch (RuntimeException e) {
+                    log.warn("Refreshing the rating for '{}' failed: {}", plate, e.getMessage());
+                    entry.refreshing.set(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            // Executor not running (shutting down, or never started), the entry will simply expire instead
+            entry.refreshing.set(false);
+        }
+    }
+
+    /*
+     * Each entry object is a version of its plate: a rating or another load replaces it with a new one, so finding a
+     * different entry afterwards means what was read may already be stale.
+     */
+    private RatingSummary load(String plate) {
+        Entry before;
+        synchronized (this) {
+            before = entries.get(plate);
+        }
+        RatingSummary summary = RatingSummary.of(plate, ratingAggregates.get(plate));
+        Entry entry = new Entry(summary, System.nanoTime(), summary.hasRatings() ? ttlNanos : negativeTtlNanos);
+        synchronized (this) {
+            if (entries.get(plate) == before) {
+                entries.put(plate, entry);
+            } else {
+                log.debug("Not caching the rating for '{}', it changed while loading", plate);
+            }
+        }
+        return summary;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private static final class Entry {
+        private final RatingSummary summary;
+        private final long loadedAt;
+        private final long ttlNanos;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(RatingSummary summary, long loadedAt, long ttlNanos) {
+            this.summary = summary;
+            this.loadedAt = loadedAt;
+            this.ttlNanos = ttlNanos;
+        }
+
+        /*
+         * Expired from the start, so the next lookup loads the plate
+         */
+        static Entry invalidated() {
+            return new Entry(null, System.nanoTime(), 0);
+        }
+    }
+}
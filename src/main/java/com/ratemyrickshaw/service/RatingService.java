@@ -0,0 +1,166 @@
+package com.ratemyrickshaw.service;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import com.ratemyrickshaw.fn.NumberPlateValidationFn;
+import com.ratemyrickshaw.model.LeaderboardEntry;
+import com.ratemyrickshaw.model.Rating;
+import com.ratemyrickshaw.model.RatingRequest;
+import com.ratemyrickshaw.model.RatingSummary;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+@ApplicationScoped
+@RequiredArgsConstructor
+public class RatingService {
+
+    public static final int MAX_LEADERBOARD_SIZE = 100;
+    // Client generated keys are UUIDs or similar, anything much longer is a mistake or abuse
+    public static final int MAX_IDEMPOTENCY_KEY_LENGTH = 128;
+    // A state code, optionally followed by an RTO number (one digit for Delhi, two elsewhere)
+    private static final Pattern REGION_PATTERN = Pattern.compile("[A-Z]{2}(\\d{1,2})?");
+
+    private final NumberPlateValidationFn numberPlateValidationFn;
+    private final RatingWriteBuffer ratingWriteBuffer;
+    private final RatingStore ratingStore;
+    private final RatingCache ratingCache;
+    private final RatingAggregates ratingAggregates;
+    private final Leaderboards leaderboards;
+    private final OcrConfusionLearner ocrConfusionLearner;
+
+    /**
+     * Accept a rating for a driver. The rating is buffered and written in the background.
+     *
+     * @param request The plate as typed or read by OCR, a 1-5 star rating, an optional idempotency key and, if the
+     *            plate was read from a photo, the token for the OCR text it was read from
+     * @return The rating as it will be stored
+     * @throws IllegalArgumentException if the plate, star rating or idempotency key is invalid
+     * @throws IllegalStateException if the write buffer is full
+     */
+    public Rating submitRating(RatingRequest request) {
+        if (request.getStars() < 1 || request.getStars() > 5) {
+            throw new IllegalArgumentException("Stars must be between 1 and 5");
+        }
+        if (request.getIdempotencyKey() != null && request.getIdempotencyKey().length() > MAX_IDEMPOTENCY_KEY_LENGTH) {
+            throw new IllegalArgumentException(
+                    "Idempotency key must be at most " + MAX_IDEMPOTENCY_KEY_LENGTH + " characters");
+        }
+        // A key like "#aggregate" would overwrite the plate's aggregate item
+        if (request.getIdempotencyKey() != null
+                && request.getIdempotencyKey().startsWith(RatingStore.RESERVED_KEY_PREFIX)) {
+            throw new IllegalArgumentException(
+                    "Idempotency key must not start with '" + RatingStore.RESERVED_KEY_PREFIX + "'");
+        }
+
+        Rating rating = Rating.builder()
+                .plate(canonicalPlate(request.getPlate()))
+                .stars(request.getStars())
+                .idempotencyKey(request.getIdempotencyKey() != null && !request.getIdempotencyKey().isBlank()
+                        ? request.getIdempotencyKey()
+                        : UUID.randomUUID().toString())
+                .submittedAt(Instant.now().toEpochMilli())
+                .build();
+
+        if (!ratingWriteBuffer.submit(rating)) {
+            throw new IllegalStateException("Too many ratings are waiting to be saved, try again shortly");
+        }
+        // A retried submission replaces its stored rating, it mustn't move the driver's standing a second time
+        if (ratingAggregates.record(rating)) {
+            leaderboards.record(rating);
+        }
+        ratingCache.recordRating(rating);
+        // The user rating the plate confirms it, which says how the OCR text should have been read
+        if (request.getCandidateToken() != null && !request.getCandidateToken().isBlank()) {
+            ocrConfusionLearner.learn(request.getCandidateToken(), rating.getPlate());
+        }
+        log.info("Accepted {} star rating for '{}'", rating.getStars(), rating.getPlate());
+        return rating;
+    }
+
+    /**
+     * Get every rating for a plate, including ones still waiting in the write buffer
+     */
+    public List<Rating> getRatings(String plate) {
+        String canonicalPlate = canonicalPlate(plate);
+
+        Map<String, Rating> ratings = new LinkedHashMap<>();
+        ratingStore.findByPlate(canonicalPlate).forEach(rating -> ratings.put(rating.getIdempotencyKey(), rating));
+        ratingWriteBuffer.pendingFor(canonicalPlate).forEach(rating -> ratings.putIfAbsent(rating.getIdempotencyKey(), rating));
+        return List.copyOf(ratings.values());
+    }
+
+    /**
+     * Get the rating summary for a plate, served from the rating cache
+     *
+     * @param plate The plate as returned by the analysis endpoint
+     * @return The summary, with a count of 0 if the plate has no ratings yet
+     */
+    public RatingSummary getRatingSummary(String plate) {
+        RatingSummary summary = ratingCache.get(canonicalPlate(plate));
+        // The merged summary includes other nodes' ratings, which the leaderboards only learn about this way
+        leaderboards.observe(summary);
+        return summary;
+    }
+
+    /**
+     * The best or worst rated drivers of a state or RTO
+     *
+     * @param region A state code ("MH") or an RTO code ("MH12"), in any case
+     * @param worst The worst rated first, rather than the best
+     * @param limit At most this many, from 1 to {@link #MAX_LEADERBOARD_SIZE}
+     * @throws IllegalArgumentException if the region or limit is invalid
+     */
+    public List<LeaderboardEntry> getLeaderboard(String region, boolean worst, int limit) {
+        String code = region == null ? "" : region.trim().toUpperCase(Locale.ROOT);
+        if (!REGION_PATTERN.matcher(code).matches()) {
+            throw new IllegalArgumentException("Region must be a state code (e.g. MH) or an RTO code (e.g. MH12)");
+        }
+        if (limit < 1 || limit > MAX_LEADERBOARD_SIZE) {
+            throw new IllegalArgumentException("Limit must be between 1 and " + MAX_LEADERBOARD_SIZE);
+        }
+        return worst ? leaderboards.worst(code, limit) : leaderboards.best(code, limit);
+    }
+
+    /**
+     * @return Whether there are buffered ratings or aggregate counts that haven't been written yet
+     */
+    public boolean hasPendingRatings() {
+        return ratingWriteBuffer.pendingCount() > 0 || ratingAggregates.hasUnpublished();
+    }
+
+    /**
+     * Write out any buffered ratings, for callers about to be frozen (e.g. at the end of a Lambda invocation)
+     */
+    public void flushPendingRatings() {
+        ratingWriteBuffer.flush();
+        try {
+            ratingAggregates.publish();
+        } catch (RuntimeException e) {
+            log.warn("Publishing rating aggregates failed, will retry on the next flush: {}", e.getMessage());
+        }
+    }
+
+    /*
+     * Ratings are keyed by the same plate string the analysis endpoint returns, so "ap 13 v 7951" and "AP13V7951"
+     * are the same driver.
+     */
+    private String canonicalPlate(String plate) {
+        if (plate == null || plate.isBlank()) {
+            throw new IllegalArgumentException("Invalid number plate");
+        }
+        String canonical = numberPlateValidationFn.apply(List.of(plate));
+        if (canonical.startsWith("Invalid") || canonical.startsWith("No text")) {
+            throw new IllegalArgumentException("Invalid number plate");
+        }
+        return canonical;
+    }
+}
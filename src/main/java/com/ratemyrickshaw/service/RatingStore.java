@@ -0,0 +1,88 @@
+package com.ratemyrickshaw.service;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import com.ratemyrickshaw.model.Rating;
+import com.ratemyrickshaw.model.RatingAggregate;
+
+/*
+Where ratings end up. Writes are always batched, matching DynamoDB's BatchWriteItem, which may accept only part of a
+batch when the table is throttled.
+*/
+public interface RatingStore {
+
+    // BatchWriteItem accepts at most 25 put requests per call
+    int MAX_BATCH_SIZE = 25;
+    // A node's aggregate counts not written for this long may be folded into the plate's base by any node. A node
+    // stops using its own counts well before then (see RatingAggregates), so they can never be written again.
+    Duration AGGREGATE_RETIRE_AGE = Duration.ofDays(1);
+    // Keys the store keeps for itself (e.g. a plate's aggregate) start with this, no rating's idempotency key may
+    String RESERVED_KEY_PREFIX = "#";
+
+    /**
+     * Write a batch of ratings. Writing a rating with the same plate and idempotency key again replaces it.
+     *
+     * @param ratings At most {@link #MAX_BATCH_SIZE} ratings
+     * @return The ratings that were not written and should be retried, empty if all were written
+     */
+    List<Rating> writeBatch(List<Rating> ratings);
+
+    /**
+     * Find every stored rating for a plate
+     *
+     * @param plate The canonical number plate
+     * @return The ratings, oldest first
+     */
+    List<Rating> findByPlate(String plate);
+
+    /**
+     * @return Every plate that has at least one stored rating
+     */
+    Set<String> ratedPlates();
+
+    /**
+     * Store one node's aggregate counts for a plate, replacing that node's previous counts
+     */
+    void writeAggregate(String plate, String nodeId, RatingAggregate.NodeCounts counts);
+
+    /**
+     * @return Every node's aggregate counts for a plate, merged, or an empty aggregate if there are none
+     */
+    RatingAggregate readAggregate(String plate);
+
+    /**
+     * Add one node's aggregate counts for a plate to the plate's base counts ({@link RatingAggregate#BASE_NODE}) and
+     * remove the node's own, as long as the node's stored counts are still exactly these
+     *
+     * @return Whether the counts were folded, false if they had changed or the store doesn't fold
+     */
+    default boolean foldAggregate(String plate, String nodeId, RatingAggregate.NodeCounts counts) {
+        return false;
+    }
+
+    /**
+     * @return The shards this store was last recorded as sharded with (see ShardedRatingStore), empty if it never was
+     *         or it doesn't outlive the process
+     */
+    default Set<String> readShardNames() {
+        return Set.of();
+    }
+
+    /**
+     * Record the shards this store is sharded with, replacing what was recorded before
+     */
+    default void writeShardNames(Set<String> names) {
+        // Nothing to keep them in
+    }
+
+    /**
+     * @return The node id (see RatingAggregates) kept by a store only one process ever uses, so the process carries
+     *         on as the same node after a restart, or empty if the store keeps none
+     */
+    default Optional<String> readNodeId() {
+        return Optional.empty();
+    }
+}
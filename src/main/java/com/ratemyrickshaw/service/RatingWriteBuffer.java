@@ -0,0 +1,247 @@
+package com.ratemyrickshaw.service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.ratemyrickshaw.model.Rating;
+
+import io.quarkus.runtime.ShutdownEvent;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+
+/*
+Write-behind buffer for ratings, so a submission doesn't pay a DynamoDB round trip of its own.
+
+The logic is as follows:
+1. Submissions are held in a bounded in-process buffer, keyed by idempotency key so a retried submission that is
+   still buffered is only written once. When the buffer is full, submissions are rejected rather than growing memory.
+2. As soon as a full batch (25 ratings, the BatchWriteItem limit) is buffered, the submitting thread writes it.
+3. A background timer writes whatever is left once the oldest rating has waited for the flush interval.
+4. Ratings DynamoDB didn't process (throttling) are retried with exponential backoff and jitter. If they still fail
+   they go back into the buffer for the next flush.
+5. Everything is flushed on shutdown. Lambda gives no warning before freezing an environment, so the handler also
+   flushes at the end of any invocation that submitted ratings.
+*/
+@Slf4j
+@ApplicationScoped
+public class RatingWriteBuffer {
+
+    private static final long BASE_BACKOFF_MILLIS = 25;
+    private static final long MAX_BACKOFF_MILLIS = 1000;
+
+    private final RatingStore ratingStore;
+    private final int capacity;
+    private final Duration flushInterval;
+    private final int maxAttempts;
+
+    // Guarded by "this". Insertion order is submission order, so the oldest ratings are written first
+    private final LinkedHashMap<String, Rating> pending = new LinkedHashMap<>();
+    private long oldestPendingNanos;
+
+    // Only one thread writes at a time, so a batch is never split across two concurrent flushes
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private ScheduledExecutorService timer;
+
+    @Inject
+    public RatingWriteBuffer(RatingStore ratingStore,
+            @ConfigProperty(name = "rickshaw.ratings.buffer.capacity", defaultValue = "1000") int capacity,
+            @ConfigProperty(name = "rickshaw.ratings.buffer.flush-interval", defaultValue = "2s") Duration flushInterval,
+            @ConfigProperty(name = "rickshaw.ratings.buffer.max-attempts", defaultValue = "5") int maxAttempts) {
+        this.ratingStore = ratingStore;
+        this.capacity = capacity;
+        this.flushInterval = flushInterval;
+        this.maxAttempts = maxAttempts;
+    }
+
+    @PostConstruct
+    public void start() {
+        long periodMillis = Math.max(1, flushInterval.toMillis() / 2);
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rating-write-buffer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleWithFixedDelay(this::flushIfDue, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void onShutdown(@Observes ShutdownEvent event) {
+        stop();
+    }
+
+    /**
+     * Stop the flush timer and write everything still buffered
+     */
+    public void stop() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        flush();
+    }
+
+    /**
+     * Buffer a rating to be written later
+     *
+     * @param rating The rating, with a canonical plate and an idempotency key
+     * @return false if the buffer is full and the rating was not accepted
+     */
+    public boolean submit(Rating rating) {
+        boolean fullBatch;
+        synchronized (this) {
+            if (pending.containsKey(rating.getIdempotencyKey())) {
+                log.debug("Rating '{}' is already buffered, ignoring the duplicate", rating.getIdempotencyKey());
+                return true;
+            }
+            if (pending.size() >= capacity) {
+                log.warn("Rating buffer is full ({} ratings), rejecting '{}'", capacity, rating.getIdempotencyKey());
+                return false;
+            }
+            if (pending.isEmpty()) {
+                oldestPendingNanos = System.nanoTime();
+            }
+            pending.put(rating.getIdempotencyKey(), rating);
+            fullBatch = pending.size() >= RatingStore.MAX_BATCH_SIZE;
+        }
+
+        if (fullBatch) {
+            writeBatches(true);
+        }
+        return true;
+    }
+
+    /**
+     * Write everything currently buffered
+     */
+    public void flush() {
+        writeBatches(false);
+    }
+
+    /**
+     * @return Buffered ratings for a plate that haven't been written yet, so readers see their own submissions
+     */
+    public synchronized List<Rating> pendingFor(String plate) {
+        return pending.values().stream()
+                .filter(rating -> rating.getPlate().equals(plate))
+                .toList();
+    }
+
+    /**
+     * @return The plates with ratings that haven't been written yet
+     */
+    public synchronized Set<String> pendingPlates() {
+        return pending.values().stream()
+                .map(Rating::getPlate)
+                .collect(Collectors.toSet());
+    }
+
+    public synchronized int pendingCount() {
+        return pending.size();
+    }
+
+    private void flushIfDue() {
+        boolean due;
+        synchronized (this) {
+            due = !pending.isEmpty() && System.nanoTime() - oldestPendingNanos >= flushInterval.toNanos();
+        }
+        if (due) {
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                log.error("Timed rating flush failed: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    /*
+     * With fullBatchesOnly the caller only writes complete batches, leaving a partial batch for the timer,
+     * otherwise everything is drained.
+     */
+    private void writeBatches(boolean fullBatchesOnly) {
+        flushLock.lock();
+        try {
+            List<Rating> batch;
+            while (!(batch = takeBatch(fullBatchesOnly)).isEmpty()) {
+                List<Rating> failed = writeWithRetry(batch);
+                if (!failed.isEmpty()) {
+                    requeue(failed);
+                    return; // the store is struggling, leave the rest for the next flush
+                }
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private synchronized List<Rating> takeBatch(boolean fullBatchesOnly) {
+        if (pending.isEmpty() || (fullBatchesOnly && pending.size() < RatingStore.MAX_BATCH_SIZE)) {
+            return List.of();
+        }
+        List<Rating> batch = new ArrayList<>(RatingStore.MAX_BATCH_SIZE);
+        var iterator = pending.values().iterator();
+        while (iterator.hasNext() && batch.size() < RatingStore.MAX_BATCH_SIZE) {
+            batch.add(iterator.next());
+            iterator.remove();
+        }
+        oldestPendingNanos = System.nanoTime();
+        return batch;
+    }
+
+    private List<Rating> writeWithRetry(List<Rating> batch) {
+        List<Rating> remaining = batch;
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            try {
+                remaining = ratingStore.writeBatch(remaining);
+            } catch (RuntimeException e) {
+                log.warn("Rating batch write attempt {} failed: {}", attempt, e.getMessage());
+            }
+            if (remaining.isEmpty()) {
+                log.debug("Wrote a batch of {} ratings", batch.size());
+                return remaining;
+            }
+            if (attempt < maxAttempts) {
+                backoff(attempt);
+            }
+        }
+        log.error("{} ratings were still unprocessed after {} attempts", remaining.size(), maxAttempts);
+        return remaining;
+    }
+
+    /*
+     * Full jitter, so instances throttled at the same moment don't all retry at the same moment.
+     */
+    private void backoff(int attempt) {
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << (attempt - 1));
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void requeue(List<Rating> failed) {
+        int dropped = 0;
+        for (Rating rating : failed) {
+            if (pending.size() < capacity) {
+                pending.putIfAbsent(rating.getIdempotencyKey(), rating);
+            } else {
+                dropped++;
+            }
+        }
+        if (dropped > 0) {
+            log.error("Rating buffer is full, dropped {} unwritten ratings", dropped);
+        }
+    }
+}
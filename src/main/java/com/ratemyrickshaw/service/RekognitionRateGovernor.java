@@ -0,0 +1,265 @@
+package com.ratemyrickshaw.service;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.ratemyrickshaw.model.Deadline;
+import com.ratemyrickshaw.model.RateGovernorStats;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+
+/*
+Paces Rekognition calls from every path (interactive scans, bulk jobs) to stay just under the account's TPS quota,
+rather than bursting into ThrottlingExceptions and backing off blindly.
+
+The logic is as follows:
+1. Calls take a token from a token bucket before they go out. The bucket refills at the current rate and holds at
+   most one second's worth, so short bursts go straight through.
+2. The rate adapts to what Rekognition tells us (AIMD): each successful call nudges it up, so it gains about the
+   additive increase every second while calls are flowing. A throttled call halves it, at most once a second so a
+   burst of throttles from calls already in flight doesn't collapse the rate.
+3. Callers waiting for a token queue by priority, interactive scans first and bulk work after them, first come first
+   served within a priority. The queue is bounded, when it's full new callers are turned away straight away
+   instead of piling up behind a backlog they'll never get through.
+4. A caller gives up when its deadline passes while it's still queued.
+How long callers wait in the queue is recorded and served by /stats with the rest of the counts, so the rate and
+queue can be tuned.
+*/
+@Slf4j
+@ApplicationScoped
+public class RekognitionRateGovernor {
+
+    public enum Priority {
+        INTERACTIVE,
+        BULK
+    }
+
+    private final double minRate;
+    private final double maxRate;
+    private final double additiveIncrease;
+    private final double decreaseFactor;
+    private final int queueCapacity;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    // Guarded by lock
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>(
+            Comparator.comparing((Waiter waiter) -> waiter.priority).thenComparingLong(waiter -> waiter.sequence));
+    private long nextSequence;
+    private double rate;
+    private double tokens;
+    private long lastRefillNanos;
+    private long lastDecreaseNanos;
+
+    private final LatencyTracker queueWait = new LatencyTracker(512);
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+
+    @Inject
+    public RekognitionRateGovernor(
+            @ConfigProperty(name = "rickshaw.rekognition.governor.initial-tps", defaultValue = "5") double initialRate,
+            @ConfigProperty(name = "rickshaw.rekognition.governor.min-tps", defaultValue = "0.5") double minRate,
+            @ConfigProperty(name = "rickshaw.rekognition.governor.max-tps", defaultValue = "50") double maxRate,
+            @ConfigProperty(name = "rickshaw.rekognition.governor.additive-increase", defaultValue = "0.5") double additiveIncrease,
+            @ConfigProperty(name = "rickshaw.rekognition.governor.decrease-factor", defaultValue = "0.5") double decreaseFactor,
+            @ConfigProperty(name = "rickshaw.rekognition.governor.queue-capacity", defaultValue = "200") int queueCapacity) {
+        this.minRate = minRate;
+        this.maxRate = maxRate;
+        this.additiveIncrease = additiveIncrease;
+        this.decreaseFactor = decreaseFactor;
+        this.queueCapacity = queueCapacity;
+        this.rate = Math.max(minRate, Math.min(maxRate, initialRate));
+        this.tokens = burstCapacity();
+        this.lastRefillNanos = System.nanoTime();
+        this.lastDecreaseNanos = lastRefillNanos - TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * Wait for permission to make one Rekognition call
+     *
+     * @throws CapacityExceededException If the queue is already full
+     * @throws DeadlineExceededException If the deadline passes while waiting
+     */
+    public void acquire(Priority priority, Deadline deadline) {
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            if (waiters.size() >= queueCapacity) {
+                rejected.increment();
+                throw new CapacityExceededException("Too many Rekognition calls queued (" + waiters.size() + ")");
+            }
+            Waiter waiter = new Waiter(priority, nextSequence++);
+            waiters.add(waiter);
+            try {
+                while (true) {
+                    refill();
+                    if (waiters.peek() == waiter && tokens >= 1) {
+                        tokens -= 1;
+                        waiters.poll();
+                        break;
+                    }
+                    if (deadline.isExpired()) {
+                        waiters.remove(waiter);
+                        throw new DeadlineExceededException("Ran out of time waiting for Rekognition capacity");
+                    }
+                    // The head waits for its token, everyone else waits to become the head
+                    long waitNanos = waiters.peek() == waiter
+                            ? (long) Math.ceil((1 - tokens) / rate * 1e9)
+                            : Long.MAX_VALUE;
+                    changed.awaitNanos(Math.max(1, Math.min(waitNanos, deadline.remaining().toNanos())));
+                }
+            } catch (InterruptedException e) {
+                waiters.remove(waiter);
+                Thread.currentThread().interrupt();
+                throw new DeadlineExceededException("Interrupted waiting for Rekognition capacity", e);
+            } finally {
+                // The head may have changed, let the next waiter check
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        Duration waited = Duration.ofNanos(System.nanoTime() - start);
+        queueWait.record(waited);
+        acquired.increment();
+        if (waited.toMillis() > 1000) {
+            log.info("Waited {}ms for Rekognition capacity ({} priority, {} TPS)", waited.toMillis(), priority,
+                    String.format("%.1f", currentRate()));
+        }
+    }
+
+    /**
+     * Take a token only if one is free right now and nobody is queued, for calls that are worth making only when
+     * they cost nothing extra (e.g. a hedged call)
+     */
+    public boolean tryAcquire() {
+        lock.lock();
+        try {
+            refill();
+            if (waiters.isEmpty() && tokens >= 1) {
+                tokens -= 1;
+                acquired.increment();
+                queueWait.record(Duration.ZERO);
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A call went through, raise the rate a little
+     */
+    public void onSuccess() {
+        lock.lock();
+        try {
+            refill();
+            rate = Math.min(maxRate, rate + additiveIncrease / rate);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A call was throttled, back off
+     */
+    public void onThrottled() {
+        throttled.increment();
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            if (now - lastDecreaseNanos < TimeUnit.SECONDS.toNanos(1)) {
+                return;
+            }
+            refill();
+            lastDecreaseNanos = now;
+            rate = Math.max(minRate, rate * decreaseFactor);
+            tokens = Math.min(tokens, burstCapacity());
+            log.warn("Rekognition throttled us, pacing calls at {} TPS", String.format("%.1f", rate));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double currentRate() {
+        lock.lock();
+        try {
+            return rate;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The most calls a second the governor will ever let through, however well calls are going
+     */
+    public double maxRate() {
+        return maxRate;
+    }
+
+    public int queueDepth() {
+        lock.lock();
+        try {
+            return waiters.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return How long callers waited for a token, at the given percentile of recent calls, or null before any
+     */
+    public Duration queueWait(double percentile) {
+        return queueWait.percentile(percentile);
+    }
+
+    /**
+     * @return The current rate and queue, with the counts and queue waits since the node started, for /stats
+     */
+    public RateGovernorStats stats() {
+        Duration p50 = queueWait(0.5);
+        Duration p99 = queueWait(0.99);
+        return RateGovernorStats.builder()
+                .tps(currentRate())
+                .queued(queueDepth())
+                .acquired(acquired.sum())
+                .rejected(rejected.sum())
+                .throttled(throttled.sum())
+                .queueWaitP50Millis(p50 == null ? null : p50.toMillis())
+                .queueWaitP99Millis(p99 == null ? null : p99.toMillis())
+                .build();
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burstCapacity(), tokens + (now - lastRefillNanos) / 1e9 * rate);
+        lastRefillNanos = now;
+    }
+
+    private double burstCapacity() {
+        return Math.max(1, rate);
+    }
+
+    private static final class Waiter {
+        private final Priority priority;
+        private final long sequence;
+
+        Waiter(Priority priority, long sequence) {
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -3,78 +3,548 @@ package com.ratemyrickshaw.service;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.net.URI;
+import java.net.SocketTimeoutException;
+import java.net.URLConnection;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.ratemyrickshaw.model.Deadline;
+import com.ratemyrickshaw.fn.VehicleLabelFn;
+import com.ratemyrickshaw.model.ImageCrop;
+import com.ratemyrickshaw.model.ImageReading;
+import com.ratemyrickshaw.model.VehicleCheck;
+import com.ratemyrickshaw.service.RekognitionRateGovernor.Priority;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
 import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.core.exception.SdkServiceException;
 import software.amazon.awssdk.services.rekognition.RekognitionClient;
+import software.amazon.awssdk.services.rekognition.model.BoundingBox;
+import software.amazon.awssdk.services.rekognition.model.DetectLabelsRequest;
 import software.amazon.awssdk.services.rekognition.model.DetectTextRequest;
 import software.amazon.awssdk.services.rekognition.model.DetectTextResponse;
+import software.amazon.awssdk.services.rekognition.model.Geometry;
 import software.amazon.awssdk.services.rekognition.model.Image;
+import software.amazon.awssdk.services.rekognition.model.Point;
+import software.amazon.awssdk.services.rekognition.model.TextDetection;
+
+/*
+Every call is bounded by the request's deadline: the download, preprocessing and each OCR call only get the time
+that is left, so one slow call can't use up the whole Lambda timeout.
+
+detectText calls are hedged:
+1. Send the call, with its API call timeout set to the time left and each attempt capped at the attempt timeout.
+2. If it hasn't answered by the p95 latency of recent calls, send a second identical call.
+3. Use whichever answers first and cancel the other. If one fails, wait for the other.
+Only the slowest 5% of calls are duplicated, so the extra cost is small, but a call stuck on a bad connection or
+host no longer decides the request's latency.
+
+Every call first waits its turn with the RekognitionRateGovernor, which paces calls under the account's TPS quota.
+A hedged call is only sent if the governor has a token spare right now, it never queues.
 
+Calls run on a bounded pool, two threads for every call a second the governor can ever let through. Cancelling a
+call interrupts its thread but doesn't abort the HTTP request under it, the thread is only free again once the
+SDK's own call timeouts end it. When the pool is full a hedge isn't sent, and a new call is turned away rather than
+starting another thread.
+
+A photo cropped to several plate regions has all its crops read at the same time, under the same deadline.
+
+The read methods also ask DetectLabels what vehicle the photo shows, at the same time as the text, see readWithLabels.
+*/
 @ApplicationScoped
 @Slf4j
 public class RekognitionService {
 
+    // p95 isn't meaningful until there are enough samples, until then hedge after the initial delay
+    private static final int MIN_LATENCY_SAMPLES = 20;
+    private static final double HEDGE_PERCENTILE = 0.95;
+    // Vehicle labels are near the top, there's no need for the long tail of scenery
+    private static final int MAX_LABELS = 25;
+
     @Inject
     RekognitionClient rekognitionClient;
 
-    public DetectTextResponse uploadToRekognition(byte[] imageBytes) {
-        Image image = Image.builder()
-                .bytes(SdkBytes.fromByteArray(imageBytes))
-                .build();
+    @Inject
+    ImagePreprocessingService imagePreprocessingService;
+
+    @Inject
+    RekognitionRateGovernor rateGovernor;
+
+    @Inject
+    ImageUploadService imageUploadService;
+
+    @Inject
+    VehicleLabelFn vehicleLabelFn;
+
+    @ConfigProperty(name = "rickshaw.rekognition.hedge.enabled", defaultValue = "true")
+    boolean hedgingEnabled;
+
+    @ConfigProperty(name = "rickshaw.rekognition.hedge.initial-delay", defaultValue = "2s")
+    Duration initialHedgeDelay;
+
+    // Never hedge sooner than this, however fast recent calls have been
+    @ConfigProperty(name = "rickshaw.rekognition.hedge.min-delay", defaultValue = "100ms")
+    Duration minHedgeDelay;
+
+    @ConfigProperty(name = "rickshaw.rekognition.attempt-timeout", defaultValue = "10s")
+    Duration attemptTimeout;
+
+    // How much longer the labels are waited for once the text is back, see readWithLabels
+    @ConfigProperty(name = "rickshaw.enrichment.labels-grace", defaultValue = "300ms")
+    Duration labelsGrace;
+
+    private final LatencyTracker detectTextLatency = new LatencyTracker(256);
+    private final LongAdder hedgedCalls = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+
+    private ExecutorService executor;
+    // For work that only waits on calls (a crop's read, the text side of readWithLabels), the calls run on executor
+    private final ExecutorService coordinators = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("rekognition-wait-", 0).factory());
+
+    @PostConstruct
+    void start() {
+        // A second's worth of DetectText calls at the governor's top rate, and as many DetectLabels calls alongside
+        int threads = 2 * (int) Math.ceil(rateGovernor.maxRate());
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "rekognition-call");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        executor = pool;
+    }
+
+    @PreDestroy
+    void stop() {
+        executor.shutdownNow();
+        coordinators.shutdownNow();
+    }
+
+    /**
+     * Run text detection on the likely number plate regions of an image, or the full frame if none were found.
+     * Detections from crops are mapped back onto full frame coordinates, so callers can't tell the difference.
+     */
+    public DetectTextResponse uploadToRekognition(byte[] imageBytes, Deadline deadline, Priority priority) {
+        deadline.check("preprocessing");
+        List<ImageCrop> crops = imagePreprocessingService.cropToPlateRegions(imageBytes);
+
+        if (crops.size() == 1 && crops.get(0).isFullFrame()) {
+            return detectText(crops.get(0).getBytes(), deadline, priority);
+        }
+
+        List<Future<DetectTextResponse>> reads = new ArrayList<>();
+        try {
+            for (ImageCrop crop : crops) {
+                reads.add(coordinators.submit(() -> detectText(crop.getBytes(), deadline, priority)));
+            }
+
+            List<TextDetection> detections = new ArrayList<>();
+            for (int i = 0; i < crops.size(); i++) {
+                ImageCrop crop = crops.get(i);
+                int idOffset = detections.size();
+                reads.get(i).get(deadline.remaining().toNanos(), TimeUnit.NANOSECONDS).textDetections().stream()
+                        .map(detection -> toFullFrame(detection, crop, idOffset))
+                        .forEach(detections::add);
+            }
+
+            return DetectTextResponse.builder()
+                    .textDetections(detections)
+                    .build();
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        } catch (TimeoutException e) {
+            throw new DeadlineExceededException("Text detection didn't finish before the deadline", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DeadlineExceededException("Interrupted while waiting for text detection", e);
+        } finally {
+            // One crop failing fails the photo, the others are no longer needed
+            reads.forEach(read -> read.cancel(true));
+        }
+    }
+
+    DetectTextResponse detectText(byte[] imageBytes, Deadline deadline, Priority priority) {
+        return detectText(bytes(imageBytes), deadline, priority);
+    }
 
+    DetectTextResponse detectText(Image image, Deadline deadline, Priority priority) {
+        deadline.check("text detection");
+        // Queueing for a token happens before the hedge timer starts, so a busy queue doesn't look like a slow call
+        rateGovernor.acquire(priority, deadline);
+
+        ExecutorCompletionService<DetectTextResponse> calls = new ExecutorCompletionService<>(executor);
+        List<Future<DetectTextResponse>> sent = new ArrayList<>();
+        try {
+            sent.add(submit(calls, () -> timedDetectText(image, deadline)));
+
+            Future<DetectTextResponse> first = calls.poll(deadline.remainingOrAtMost(hedgeDelay()).toNanos(),
+                    TimeUnit.NANOSECONDS);
+            if (first == null && hedgingEnabled && !deadline.isExpired() && rateGovernor.tryAcquire()) {
+                try {
+                    sent.add(calls.submit(() -> timedDetectText(image, deadline)));
+                    log.info("detectText hasn't answered within {}ms, sent a hedged call", hedgeDelay().toMillis());
+                    hedgedCalls.increment();
+                } catch (RejectedExecutionException e) {
+                    log.info("detectText hasn't answered within {}ms, but every call thread is busy, not hedging",
+                            hedgeDelay().toMillis());
+                }
+            }
+
+            int outstanding = sent.size();
+            ExecutionException lastFailure = null;
+            while (outstanding > 0) {
+                Future<DetectTextResponse> done = first != null
+                        ? first
+                        : calls.poll(deadline.remaining().toNanos(), TimeUnit.NANOSECONDS);
+                first = null;
+                if (done == null) {
+                    throw new DeadlineExceededException("Text detection didn't finish before the deadline");
+                }
+                outstanding--;
+                try {
+                    DetectTextResponse response = done.get();
+                    if (sent.size() > 1 && done == sent.get(1)) {
+                        hedgeWins.increment();
+                    }
+                    return response;
+                } catch (ExecutionException e) {
+                    log.warn("detectText call failed{}: {}", outstanding > 0 ? ", waiting for the other call" : "",
+                            e.getCause().getMessage());
+                    lastFailure = e;
+                }
+            }
+            throw unwrap(lastFailure);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DeadlineExceededException("Interrupted while waiting for text detection", e);
+        } finally {
+            // Whichever call lost is no longer needed
+            sent.forEach(call -> call.cancel(true));
+        }
+    }
+
+    private DetectTextResponse timedDetectText(Image image, Deadline deadline) {
+        Duration remaining = deadline.remaining();
         DetectTextRequest request = DetectTextRequest.builder()
                 .image(image)
+                .overrideConfiguration(AwsRequestOverrideConfiguration.builder()
+                        .apiCallTimeout(remaining)
+                        .apiCallAttemptTimeout(deadline.remainingOrAtMost(attemptTimeout))
+                        .build())
                 .build();
 
-        return rekognitionClient.detectText(request);
+        long start = System.nanoTime();
+        DetectTextResponse response;
+        try {
+            response = rekognitionClient.detectText(request);
+        } catch (SdkServiceException e) {
+            if (e.isThrottlingException()) {
+                rateGovernor.onThrottled();
+            }
+            throw e;
+        }
+        detectTextLatency.record(Duration.ofNanos(System.nanoTime() - start));
+        rateGovernor.onSuccess();
+        return response;
+    }
+
+    /*
+     * How long to wait for a call before hedging it: the recent p95, or the initial delay until there's enough history.
+     */
+    Duration hedgeDelay() {
+        if (detectTextLatency.count() < MIN_LATENCY_SAMPLES) {
+            return initialHedgeDelay;
+        }
+        Duration p95 = detectTextLatency.percentile(HEDGE_PERCENTILE);
+        return p95.compareTo(minHedgeDelay) < 0 ? minHedgeDelay : p95;
+    }
+
+    /**
+     * @return How many detectText calls have been hedged, and how many of those the hedge answered first
+     */
+    public String hedgingStats() {
+        return hedgedCalls.sum() + " hedged, " + hedgeWins.sum() + " won by the hedge";
+    }
+
+    private static <T> Future<T> submit(ExecutorCompletionService<T> calls, Callable<T> call) {
+        try {
+            return calls.submit(call);
+        } catch (RejectedExecutionException e) {
+            throw new CapacityExceededException("Too many Rekognition calls in flight");
+        }
+    }
+
+    private static RuntimeException unwrap(ExecutionException e) {
+        return e.getCause() instanceof RuntimeException runtime
+                ? runtime
+                : new RuntimeException(e.getCause().getMessage(), e.getCause());
+    }
+
+    /*
+     * Ids are offset so LINE/WORD parent links stay unique when several crops are merged into one response.
+     */
+    private TextDetection toFullFrame(TextDetection detection, ImageCrop crop, int idOffset) {
+        TextDetection.Builder builder = detection.toBuilder();
+        if (detection.id() != null) {
+            builder.id(detection.id() + idOffset);
+        }
+        if (detection.parentId() != null) {
+            builder.parentId(detection.parentId() + idOffset);
+        }
+
+        Geometry geometry = detection.geometry();
+        if (geometry != null) {
+            Geometry.Builder geometryBuilder = geometry.toBuilder();
+            BoundingBox box = geometry.boundingBox();
+            if (box != null) {
+                geometryBuilder.boundingBox(BoundingBox.builder()
+                        .left(crop.getLeft() + box.left() * crop.getWidth())
+                        .top(crop.getTop() + box.top() * crop.getHeight())
+                        .width(box.width() * crop.getWidth())
+                        .height(box.height() * crop.getHeight())
+                        .build());
+            }
+            if (geometry.hasPolygon()) {
+                geometryBuilder.polygon(geometry.polygon().stream()
+                        .map(point -> Point.builder()
+                                .x(crop.getLeft() + point.x() * crop.getWidth())
+                                .y(crop.getTop() + point.y() * crop.getHeight())
+                                .build())
+                        .toList());
+            }
+            builder.geometry(geometryBuilder.build());
+        }
+        return builder.build();
     }
 
     /**
      * Analyze image from URL
      */
-    public DetectTextResponse analyzeImageFromUrl(String imageUrl) {
+    public DetectTextResponse analyzeImageFromUrl(String imageUrl, Deadline deadline, Priority priority) {
+        return uploadToRekognition(download(imageUrl, deadline), deadline, priority);
+    }
+
+    /**
+     * Analyze image from base64 encoded string
+     */
+    public DetectTextResponse analyzeImageFromBase64(String base64Image, Deadline deadline, Priority priority) {
+        return uploadToRekognition(decode(base64Image), deadline, priority);
+    }
+
+    /**
+     * Analyze a photo uploaded to the uploads bucket. Rekognition reads it from S3, so the bytes never come through
+     * here, and the photo isn't cropped to its plate regions first. The upload is deleted afterwards.
+     */
+    public DetectTextResponse analyzeImageFromS3(String imageKey, Deadline deadline, Priority priority) {
+        Image image = imageUploadService.image(imageKey);
+        try {
+            return detectText(image, deadline, priority);
+        } finally {
+            deleteUpload(imageKey);
+        }
+    }
+
+    /**
+     * Read the text in a photo from a URL and check what vehicle it shows, see {@link #readWithLabels}
+     */
+    public ImageReading readImageFromUrl(String imageUrl, Deadline deadline, Priority priority) {
+        byte[] imageBytes = download(imageUrl, deadline);
+        return readWithLabels(bytes(imageBytes), () -> uploadToRekognition(imageBytes, deadline, priority), deadline);
+    }
+
+    /**
+     * Read the text in a base64 photo and check what vehicle it shows, see {@link #readWithLabels}
+     */
+    public ImageReading readImageFromBase64(String base64Image, Deadline deadline, Priority priority) {
+        byte[] imageBytes = decode(base64Image);
+        return readWithLabels(bytes(imageBytes), () -> uploadToRekognition(imageBytes, deadline, priority), deadline);
+    }
+
+    /**
+     * Read the text in an uploaded photo and check what vehicle it shows, see {@link #readWithLabels}. The upload is
+     * deleted afterwards.
+     */
+    public ImageReading readImageFromS3(String imageKey, Deadline deadline, Priority priority) {
+        Image image = imageUploadService.image(imageKey);
+        try {
+            return readWithLabels(image, () -> detectText(image, deadline, priority), deadline);
+        } finally {
+            deleteUpload(imageKey);
+        }
+    }
+
+    /*
+     * Scatter-gather: the text and the labels are asked for at the same time, so checking the vehicle costs the
+     * slower of the two calls rather than both one after the other.
+     * 1. Both calls are sent straight away. The labels are for the full frame, the text goes through the usual
+     *    cropping, rate governor and hedging.
+     * 2. If the labels answer first and show some other vehicle, the text detection is cancelled (interrupting the
+     *    call in flight) and the photo is turned away without it.
+     * 3. Once the text is back, the labels get at most the labels grace period more. Labels that are late, failed or
+     *    never sent because every call thread was busy are UNKNOWN, they only ever add to a reading, never hold it up
+     *    or fail it.
+     * A text detection that fails or runs past the deadline fails the reading, as it would without the labels.
+     */
+    ImageReading readWithLabels(Image image, Callable<DetectTextResponse> detectText, Deadline deadline) {
+        // The text only waits on its own calls, so it doesn't take a call thread, both report to the same queue
+        BlockingQueue<Future<Object>> calls = new LinkedBlockingQueue<>();
+        Future<Object> labelsCall = null;
+        Future<Object> textCall = null;
+        VehicleCheck vehicle = null;
+        try {
+            try {
+                labelsCall = new ExecutorCompletionService<>(executor, calls).submit(() -> checkVehicle(image, deadline));
+            } catch (RejectedExecutionException e) {
+                log.info("Every call thread is busy, reading the text without the labels");
+                vehicle = VehicleCheck.unknown();
+            }
+            textCall = new ExecutorCompletionService<>(coordinators, calls).submit(detectText::call);
+            DetectTextResponse text = null;
+            while (text == null) {
+                Future<Object> done = calls.poll(deadline.remaining().toNanos(), TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    throw new DeadlineExceededException("Text detection didn't finish before the deadline");
+                }
+                if (done == labelsCall) {
+                    vehicle = (VehicleCheck) done.get();
+                    if (vehicle.getVerdict() == VehicleCheck.Verdict.OTHER_VEHICLE) {
+                        log.info("Labels show a {} ({}%), not reading the text", vehicle.getLabel(),
+                                vehicle.getConfidence());
+                        return new ImageReading(null, vehicle);
+                    }
+                } else {
+                    text = (DetectTextResponse) done.get();
+                }
+            }
+
+            if (vehicle == null) {
+                Future<Object> labels = calls.poll(deadline.remainingOrAtMost(labelsGrace).toNanos(),
+                        TimeUnit.NANOSECONDS);
+                if (labels == null) {
+                    log.info("Labels weren't back within {}ms of the text, carrying on without them",
+                            labelsGrace.toMillis());
+                    vehicle = VehicleCheck.unknown();
+                } else {
+                    vehicle = (VehicleCheck) labels.get();
+                }
+            }
+            return new ImageReading(text, vehicle);
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DeadlineExceededException("Interrupted while waiting for text detection", e);
+        } finally {
+            if (labelsCall != null) {
+                labelsCall.cancel(true);
+            }
+            if (textCall != null) {
+                textCall.cancel(true);
+            }
+        }
+    }
+
+    /*
+     * Never throws, a failed labels call is UNKNOWN. DetectLabels has its own TPS quota, so it doesn't queue with
+     * the rate governor, which paces DetectText.
+     */
+    private VehicleCheck checkVehicle(Image image, Deadline deadline) {
         try {
-            // Download image from URL
+            DetectLabelsRequest request = DetectLabelsRequest.builder()
+                    .image(image)
+                    .maxLabels(MAX_LABELS)
+                    .overrideConfiguration(AwsRequestOverrideConfiguration.builder()
+                            .apiCallTimeout(deadline.remaining())
+                            .apiCallAttemptTimeout(deadline.remainingOrAtMost(attemptTimeout))
+                            .build())
+                    .build();
+            VehicleCheck vehicle = vehicleLabelFn.apply(rekognitionClient.detectLabels(request));
+            log.debug("Vehicle check: {}", vehicle.getVerdict());
+            return vehicle;
+        } catch (RuntimeException e) {
+            log.warn("detectLabels call failed, carrying on without it: {}", e.getMessage());
+            return VehicleCheck.unknown();
+        }
+    }
+
+    private byte[] download(String imageUrl, Deadline deadline) {
+        try {
+            // Download image from URL, the connection and each read can only wait for the time that's left
             URI uri = URI.create(imageUrl);
-            InputStream inputStream = uri.toURL().openStream();
+            URLConnection connection = uri.toURL().openConnection();
+            int timeoutMillis = (int) Math.max(1, deadline.remaining().toMillis());
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            InputStream inputStream = connection.getInputStream();
             ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
 
             byte[] buffer = new byte[4096];
             int bytesRead;
             while ((bytesRead = inputStream.read(buffer)) != -1) {
                 outputStream.write(buffer, 0, bytesRead);
+                deadline.check("the download finished");
             }
 
-            byte[] imageBytes = outputStream.toByteArray();
             inputStream.close();
+            return outputStream.toByteArray();
 
-            return uploadToRekognition(imageBytes);
-
+        } catch (DeadlineExceededException e) {
+            throw e;
+        } catch (SocketTimeoutException e) {
+            throw new DeadlineExceededException("Downloading the image didn't finish before the deadline", e);
         } catch (Exception e) {
             throw new RuntimeException("Error downloading image: " + e.getMessage(), e);
         }
     }
 
-    /**
-     * Analyze image from base64 encoded string
-     */
-    public DetectTextResponse analyzeImageFromBase64(String base64Image) {
+    private static byte[] decode(String base64Image) {
         try {
             // Remove data URL prefix if present (e.g., "data:image/jpeg;base64,")
             String base64Data = base64Image;
             if (base64Image.contains(",")) {
                 base64Data = base64Image.split(",")[1];
             }
-
-            byte[] imageBytes = Base64.getDecoder().decode(base64Data);
-            return uploadToRekognition(imageBytes);
-
+            return Base64.getDecoder().decode(base64Data);
         } catch (Exception e) {
             throw new RuntimeException("Error decoding base64 image: " + e.getMessage(), e);
         }
     }
+
+    private static Image bytes(byte[] imageBytes) {
+        return Image.builder().bytes(SdkBytes.fromByteArray(imageBytes)).build();
+    }
+
+    private void deleteUpload(String imageKey) {
+        // Off the request path, the lifecycle rule removes it if this never runs
+        try {
+            executor.execute(() -> imageUploadService.delete(imageKey));
+        } catch (RejectedExecutionException e) {
+            log.debug("Every call thread is busy, leaving upload {} to the lifecycle rule", imageKey);
+        }
+    }
 }
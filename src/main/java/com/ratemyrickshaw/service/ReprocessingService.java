@@ -0,0 +1,299 @@
+package com.ratemyrickshaw.service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ratemyrickshaw.fn.DetectTextResponseParserFn;
+import com.ratemyrickshaw.model.Deadline;
+import com.ratemyrickshaw.model.DetectedPlate;
+import com.ratemyrickshaw.model.PlateDetectionResult;
+import com.ratemyrickshaw.model.ReprocessingResult;
+import com.ratemyrickshaw.model.ReprocessingSummary;
+import com.ratemyrickshaw.service.RekognitionRateGovernor.Priority;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.services.rekognition.model.DetectTextResponse;
+
+/*
+Re-runs plate extraction and validation over an archive of stored DetectText responses, so a change to the
+heuristics can be checked against every photo we have rather than a handful of fixtures.
+
+The logic is as follows:
+1. Inputs are streamed from a directory (every .json file under it, in whatever order the file system lists them)
+   or a manifest (one path per line, relative to the manifest, blank lines and # comments ignored), so the archive
+   is never listed into memory. Nothing depends on the order, the checkpoint goes by id.
+   With OCR enabled, photos (.jpg, .jpeg, .png) are read through Rekognition first, as BULK work.
+2. Inputs are handed to a fixed pool of workers, one per core. At most two per worker are in flight, so reading
+   the archive never runs ahead of processing it.
+3. Each result is appended to the JSONL output as soon as it's ready, in the order they finish.
+4. The output doubles as the checkpoint: a rerun reads the ids already in it and skips them. A line torn by a crash
+   is cut off first, so that input is simply done again.
+Progress and throughput are logged every few seconds.
+*/
+@Slf4j
+@ApplicationScoped
+@RequiredArgsConstructor
+public class ReprocessingService {
+
+    private static final int IN_FLIGHT_PER_WORKER = 2;
+    // Lines written between flushes. A crash loses at most these, and they are redone on the next run
+    private static final int FLUSH_EVERY = 100;
+    private static final Duration PROGRESS_INTERVAL = Duration.ofSeconds(5);
+    private static final Duration OCR_TIMEOUT = Duration.ofSeconds(30);
+    private static final List<String> IMAGE_EXTENSIONS = List.of(".jpg", ".jpeg", ".png");
+
+    private final PostRekognitionService postRekognitionService;
+    private final RekognitionService rekognitionService;
+    private final DetectTextResponseParserFn detectTextResponseParserFn;
+    private final ObjectMapper objectMapper;
+
+    /**
+     * Reprocess every input not already in the output
+     *
+     * @param input A directory of stored responses, or a manifest listing them
+     * @param output The JSONL file results are appended to, created if it doesn't exist
+     * @param workers How many inputs to process at once
+     * @param multiPlate Find every plate in each photo, rather than the most likely one
+     * @param ocrImages Read photos through Rekognition, otherwise only stored responses are processed
+     */
+    public ReprocessingSummary reprocess(Path input, Path output, int workers, boolean multiPlate, boolean ocrImages)
+            throws IOException, InterruptedException {
+        Set<String> completed = readCompleted(output);
+        if (!completed.isEmpty()) {
+            log.info("Resuming, {} inputs are already in {}", completed.size(), output);
+        }
+
+        LongAdder processed = new LongAdder();
+        LongAdder valid = new LongAdder();
+        LongAdder failed = new LongAdder();
+        LongAdder skipped = new LongAdder();
+        AtomicReference<IOException> writeFailure = new AtomicReference<>();
+        long start = System.nanoTime();
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers, threads("reprocess-worker"));
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(threads("reprocess-progress"));
+        progress.scheduleAtFixedRate(() -> log.info("Reprocessed {} ({} valid, {} failed, {} skipped), {}/s",
+                processed.sum(), valid.sum(), failed.sum(), skipped.sum(), perSecond(processed.sum(), start)),
+                PROGRESS_INTERVAL.toMillis(), PROGRESS_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+
+        Semaphore inFlight = new Semaphore(workers * IN_FLIGHT_PER_WORKER);
+        try (Stream<Input> inputs = inputs(input, ocrImages);
+                ResultWriter writer = new ResultWriter(output)) {
+            Iterator<Input> iterator = inputs.iterator();
+            while (iterator.hasNext() && writeFailure.get() == null) {
+                Input next = iterator.next();
+                if (completed.contains(next.id)) {
+                    skipped.increment();
+                    continue;
+                }
+                inFlight.acquire();
+                pool.execute(() -> {
+                    try {
+                        ReprocessingResult result = process(next, multiPlate);
+                        writer.write(objectMapper.writeValueAsString(result));
+                        processed.increment();
+                        if (result.getError() != null) {
+                            failed.increment();
+                        } else if (result.isValid()) {
+                            valid.increment();
+                        }
+                    } catch (IOException e) {
+                        writeFailure.compareAndSet(null, e);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } finally {
+            pool.shutdownNow();
+            progress.shutdownNow();
+        }
+        if (writeFailure.get() != null) {
+            throw writeFailure.get();
+        }
+
+        ReprocessingSummary summary = ReprocessingSummary.builder()
+                .processed(processed.sum())
+                .valid(valid.sum())
+                .failed(failed.sum())
+                .skipped(skipped.sum())
+                .elapsedMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))
+                .build();
+        log.info("Reprocessed {} inputs in {}s ({} valid, {} failed, {} skipped), {}/s", summary.getProcessed(),
+                summary.getElapsedMillis() / 1000, summary.getValid(), summary.getFailed(), summary.getSkipped(),
+                String.format(Locale.ROOT, "%.1f", summary.perSecond()));
+        return summary;
+    }
+
+    ReprocessingResult process(Input input, boolean multiPlate) {
+        long start = System.nanoTime();
+        ReprocessingResult.ReprocessingResultBuilder result = ReprocessingResult.builder().id(input.id);
+        try {
+            DetectTextResponse response = read(input);
+            if (multiPlate) {
+                List<DetectedPlate> plates = postRekognitionService.detectPlates(response);
+                result.valid(!plates.isEmpty())
+                        .plate(plates.isEmpty() ? null : plates.get(0).getPlate())
+                        .plates(plates);
+            } else {
+                PlateDetectionResult detection = postRekognitionService.detectPlate(response);
+                result.valid(!detection.getPlate().startsWith("Invalid"))
+                        .plate(detection.getPlate())
+                        .confidence(detection.getConfidence());
+            }
+        } catch (Exception e) {
+            log.debug("Unable to reprocess '{}': {}", input.id, e.getMessage());
+            result.error(e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+        }
+        return result.elapsedMicros(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start)).build();
+    }
+
+    private DetectTextResponse read(Input input) throws IOException {
+        if (isImage(input.path)) {
+            return rekognitionService.uploadToRekognition(Files.readAllBytes(input.path), Deadline.after(OCR_TIMEOUT),
+                    Priority.BULK);
+        }
+        return detectTextResponseParserFn.apply(objectMapper.readTree(input.path.toFile()));
+    }
+
+    private Stream<Input> inputs(Path input, boolean ocrImages) throws IOException {
+        if (Files.isDirectory(input)) {
+            return Files.walk(input)
+                    .filter(Files::isRegularFile)
+                    .filter(path -> path.toString().endsWith(".json") || (ocrImages && isImage(path)))
+                    .map(path -> new Input(input.relativize(path).toString().replace('\\', '/'), path));
+        }
+        Path base = input.toAbsolutePath().getParent();
+        return Files.lines(input, StandardCharsets.UTF_8)
+                .map(String::trim)
+                .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                .filter(line -> ocrImages || !isImage(Path.of(line)))
+                .map(line -> new Input(line, base.resolve(line)));
+    }
+
+    /*
+     * The ids already in the output. A last line without its newline was torn by a crash, so it's cut off.
+     */
+    private Set<String> readCompleted(Path output) throws IOException {
+        Set<String> completed = new HashSet<>();
+        if (!Files.exists(output)) {
+            return completed;
+        }
+
+        try (FileChannel channel = FileChannel.open(output, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            long end = size;
+            ByteBuffer last = ByteBuffer.allocate(1);
+            while (end > 0) {
+                last.clear();
+                channel.read(last, end - 1);
+                if (last.get(0) == '\n') {
+                    break;
+                }
+                end--;
+            }
+            if (end < size) {
+                log.warn("Cutting off a partly written line at the end of {}", output);
+                channel.truncate(end);
+            }
+        }
+
+        try (Stream<String> lines = Files.lines(output, StandardCharsets.UTF_8)) {
+            lines.filter(line -> !line.isBlank())
+                    .map(line -> {
+                        try {
+                            return objectMapper.readTree(line).path("id").asText(null);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException("Unreadable line in " + output, e);
+                        }
+                    })
+                    .filter(id -> id != null)
+                    .forEach(completed::add);
+        }
+        return completed;
+    }
+
+    private static boolean isImage(Path path) {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        return IMAGE_EXTENSIONS.stream().anyMatch(name::endsWith);
+    }
+
+    private static String perSecond(long count, long startNanos) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        return String.format(Locale.ROOT, "%.1f", seconds == 0 ? 0 : count / seconds);
+    }
+
+    private static ThreadFactory threads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    static final class Input {
+        private final String id;
+        private final Path path;
+
+        Input(String id, Path path) {
+            this.id = id;
+            this.path = path;
+        }
+    }
+
+    /*
+     * Appends one line per result. Lines are written whole under the lock, so concurrent workers never interleave.
+     */
+    private static final class ResultWriter implements AutoCloseable {
+        private final BufferedWriter writer;
+        private int sinceFlush;
+
+        ResultWriter(Path output) throws IOException {
+            this.writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+        }
+
+        synchronized void write(String line) throws IOException {
+            writer.write(line);
+            writer.write('\n');
+            if (++sinceFlush >= FLUSH_EVERY) {
+                writer.flush();
+                sinceFlush = 0;
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            writer.close();
+        }
+    }
+}
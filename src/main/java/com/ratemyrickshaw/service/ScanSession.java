@@ -0,0 +1,264 @@
+package com.ratemyrickshaw.service;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import com.ratemyrickshaw.model.ImageAnalysisResponse;
+import com.ratemyrickshaw.model.RatingSummary;
+import com.ratemyrickshaw.model.ScanEvent;
+
+import lombok.extern.slf4j.Slf4j;
+
+/*
+One live scanning connection: the client streams camera frames and is told the plate once enough frames agree on it.
+
+The logic is as follows:
+1. Only the latest frame is kept. A frame arriving while another is being analysed replaces whichever frame was
+   waiting, so a slow analysis never builds up a backlog and the next analysis is always of the freshest frame.
+2. One analysis runs at a time per session, on a virtual thread, and never sooner than the minimum interval after
+   the last one started. Frames in between only replace the waiting frame, they cost nothing.
+3. Each analysed frame's plate is a vote (see PlateConsensus), and the client gets a FRAME event with the frame's
+   plate and the consensus so far.
+4. Once the consensus is stable the client gets a PLATE event with the plate and its rating, and the scan stops
+   analysing. If the scan's OCR call budget runs out first it gets an EXHAUSTED event with the best guess instead.
+5. A reset starts a new scan, with a new budget. Frames sent after the scan finished and before a reset are ignored.
+   An analysis still running from before the reset belongs to the old scan: its result is thrown away, it neither
+   votes in the new scan nor finishes it.
+6. Every analysis also counts against the connection's own budget, which a reset doesn't restore. Once that is spent
+   the client gets an ERROR event and no more frames are analysed.
+So a scan costs at most its budget's worth of OCR calls, and a connection at most its own, however many frames or
+resets the client sends.
+*/
+@Slf4j
+public class ScanSession {
+
+    private final Function<byte[], ImageAnalysisResponse> analyzer;
+    private final Function<String, RatingSummary> ratings;
+    private final Function<String, Optional<String>> validation;
+    private final Consumer<ScanEvent> listener;
+    private final int stableFrames;
+    private final int maxOcrCalls;
+    private final int maxConnectionOcrCalls;
+    private final long minIntervalNanos;
+
+    private final AtomicReference<byte[]> latest = new AtomicReference<>();
+    private final AtomicBoolean analysing = new AtomicBoolean();
+    private final AtomicInteger connectionOcrCalls = new AtomicInteger();
+
+    // Replaced by a reset, an analysis only ever reports to the scan it started in
+    private volatile Scan scan;
+    private volatile boolean spent;
+    private volatile boolean closed;
+    private long lastCallNanos;
+
+    /**
+     * @param analyzer Analyses one frame
+     * @param ratings Looks up a plate's rating
+     * @param validation Gives the canonical plate, or empty if the text isn't a complete plate
+     * @param listener Gets the events for the client, called on the analysing thread
+     * @param stableFrames How many frames in a row the consensus has to come out the same for
+     * @param maxOcrCalls How many frames a scan analyses at most
+     * @param maxConnectionOcrCalls How many frames the session analyses at most, over all its scans
+     * @param minInterval How soon after an analysis starts the next one can start
+     */
+    public ScanSession(Function<byte[], ImageAnalysisResponse> analyzer, Function<String, RatingSummary> ratings,
+            Function<String, Optional<String>> validation, Consumer<ScanEvent> listener, int stableFrames,
+            int maxOcrCalls, int maxConnectionOcrCalls, Duration minInterval) {
+        this.analyzer = analyzer;
+        this.ratings = ratings;
+        this.validation = validation;
+        this.listener = listener;
+        this.stableFrames = stableFrames;
+        this.maxOcrCalls = maxOcrCalls;
+        this.maxConnectionOcrCalls = maxConnectionOcrCalls;
+        this.minIntervalNanos = minInterval.toNanos();
+        this.scan = new Scan(new PlateConsensus(stableFrames, validation));
+        this.lastCallNanos = System.nanoTime() - minIntervalNanos;
+    }
+
+    /**
+     * A new frame from the camera, e.g. a downscaled JPEG
+     */
+    public void offer(byte[] frame) {
+        Scan current = scan;
+        if (closed || spent || current.finished) {
+            return;
+        }
+        current.framesReceived.incrementAndGet();
+        if (latest.getAndSet(frame) != null) {
+            current.framesDropped.incrementAndGet();
+        }
+        if (analysing.compareAndSet(false, true)) {
+            Thread.ofVirtual().name("scan-session").start(this::drain);
+        }
+    }
+
+    /**
+     * Start a new scan. A frame being analysed right now still belongs to the old one and isn't reported.
+     */
+    public void reset() {
+        scan = new Scan(new PlateConsensus(stableFrames, validation));
+    }
+
+    /**
+     * Stop analysing, the client has gone. A frame being analysed right now is finished but not reported.
+     */
+    public void close() {
+        closed = true;
+        latest.set(null);
+    }
+
+    public boolean isFinished() {
+        return scan.finished;
+    }
+
+    /*
+     * Analyses the latest frame until there isn't one. A frame offered just as this gives up finds analysing false
+     * and starts another drain, or is picked up by the check after it.
+     */
+    private void drain() {
+        do {
+            try {
+                byte[] frame;
+                while ((frame = next()) != null) {
+                    analyse(frame);
+                }
+            } finally {
+                analysing.set(false);
+            }
+        } while (latest.get() != null && !stopped() && analysing.compareAndSet(false, true));
+    }
+
+    private boolean stopped() {
+        return closed || spent || scan.finished;
+    }
+
+    private byte[] next() {
+        long wait = lastCallNanos + minIntervalNanos - System.nanoTime();
+        if (wait > 0) {
+            try {
+                Thread.sleep(Duration.ofNanos(wait));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        return stopped() ? null : latest.getAndSet(null);
+    }
+
+    private void analyse(byte[] frame) {
+        Scan current = scan;
+        if (connectionOcrCalls.incrementAndGet() > maxConnectionOcrCalls) {
+            spent = true;
+            latest.set(null);
+            log.info("Scanning session used all {} of its OCR calls", maxConnectionOcrCalls);
+            send(current, event(current, ScanEvent.Type.ERROR)
+                    .message("This session has used all its OCR calls, open a new one to scan again"));
+            return;
+        }
+        lastCallNanos = System.nanoTime();
+        int calls = current.ocrCalls.incrementAndGet();
+
+        String plate = null;
+        String frameCandidate = null;
+        String frameCandidateToken = null;
+        try {
+            ImageAnalysisResponse response = analyzer.apply(frame);
+            if (response.isSuccess() && response.getData() != null) {
+                plate = response.getData();
+                frameCandidate = response.getCandidate();
+                frameCandidateToken = response.getCandidateToken();
+            }
+        } catch (RuntimeException e) {
+            log.debug("Unable to analyse a scan frame: {}", e.getMessage());
+            send(current, event(current, ScanEvent.Type.ERROR).message(e.getMessage()));
+        }
+        if (closed || current != scan) {
+            log.debug("Dropping the analysis of a frame from before a reset");
+            return;
+        }
+
+        if (plate != null) {
+            String agreed = current.consensus.vote(plate);
+            if (agreed.equals(plate) && frameCandidate != null) {
+                current.candidate = frameCandidate;
+                current.candidateToken = frameCandidateToken;
+            }
+        }
+        send(current, event(current, ScanEvent.Type.FRAME).plate(plate)
+                .consensus(current.consensus.consensus().orElse(null)));
+
+        if (current.consensus.isStable()) {
+            finish(current, ScanEvent.Type.PLATE);
+        } else if (calls >= maxOcrCalls) {
+            finish(current, ScanEvent.Type.EXHAUSTED);
+        }
+    }
+
+    private void finish(Scan current, ScanEvent.Type type) {
+        current.finished = true;
+        latest.set(null);
+        String plate = current.consensus.consensus().orElse(null);
+        RatingSummary rating = null;
+        if (plate != null) {
+            try {
+                rating = ratings.apply(plate);
+            } catch (RuntimeException e) {
+                log.warn("Unable to look up the rating for '{}': {}", plate, e.getMessage());
+            }
+        }
+        log.info("Scan {} with '{}' after {} OCR calls ({} of {} frames dropped)", type == ScanEvent.Type.PLATE
+                ? "agreed" : "gave up", plate, current.ocrCalls.get(), current.framesDropped.get(),
+                current.framesReceived.get());
+        send(current, event(current, type)
+                .plate(plate)
+                .candidate(plate == null ? null : current.candidate)
+                .candidateToken(plate == null ? null : current.candidateToken)
+                .rating(rating));
+    }
+
+    private ScanEvent.ScanEventBuilder event(Scan current, ScanEvent.Type type) {
+        return ScanEvent.builder()
+                .type(type)
+                .framesReceived(current.framesReceived.get())
+                .framesDropped(current.framesDropped.get())
+                .ocrCalls(current.ocrCalls.get());
+    }
+
+    /*
+     * Events of a scan the client has since reset are of no use to it.
+     */
+    private void send(Scan current, ScanEvent.ScanEventBuilder event) {
+        if (current != scan) {
+            return;
+        }
+        try {
+            listener.accept(event.build());
+        } catch (RuntimeException e) {
+            log.debug("Unable to send a scan event: {}", e.getMessage());
+        }
+    }
+
+    /*
+     * One scan's state, from the session's start or a reset until the next reset.
+     */
+    private static final class Scan {
+        private final PlateConsensus consensus;
+        private final AtomicInteger framesReceived = new AtomicInteger();
+        private final AtomicInteger framesDropped = new AtomicInteger();
+        private final AtomicInteger ocrCalls = new AtomicInteger();
+        private volatile boolean finished;
+        // The candidate text (and its token) of the latest frame that read the consensus plate
+        private volatile String candidate;
+        private volatile String candidateToken;
+
+        Scan(PlateConsensus consensus) {
+            this.consensus = consensus;
+        }
+    }
+}
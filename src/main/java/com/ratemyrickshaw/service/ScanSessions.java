@@ -0,0 +1,64 @@
+package com.ratemyrickshaw.service;
+
+import java.time.Duration;
+import java.util.Base64;
+import java.util.function.Consumer;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.ratemyrickshaw.fn.NumberPlateValidationFn;
+import com.ratemyrickshaw.model.Deadline;
+import com.ratemyrickshaw.model.ImageAnalysisRequest;
+import com.ratemyrickshaw.model.ScanEvent;
+import com.ratemyrickshaw.service.RekognitionRateGovernor.Priority;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/*
+Opens live scanning sessions (see ScanSession). Each frame gets the same analysis as a photo sent to /analyze, with
+its own short deadline, and its Rekognition calls queue as INTERACTIVE.
+*/
+@ApplicationScoped
+public class ScanSessions {
+
+    private final ImageAnalysisService imageAnalysisService;
+    private final RatingService ratingService;
+    private final NumberPlateValidationFn numberPlateValidationFn;
+    private final int stableFrames;
+    private final int maxOcrCalls;
+    private final int maxConnectionOcrCalls;
+    private final Duration minInterval;
+    private final Duration frameTimeout;
+
+    @Inject
+    public ScanSessions(ImageAnalysisService imageAnalysisService, RatingService ratingService,
+            NumberPlateValidationFn numberPlateValidationFn,
+            @ConfigProperty(name = "rickshaw.scan.stable-frames", defaultValue = "3") int stableFrames,
+            @ConfigProperty(name = "rickshaw.scan.max-ocr-calls", defaultValue = "8") int maxOcrCalls,
+            @ConfigProperty(name = "rickshaw.scan.max-connection-ocr-calls", defaultValue = "40") int maxConnectionOcrCalls,
+            @ConfigProperty(name = "rickshaw.scan.min-interval", defaultValue = "300ms") Duration minInterval,
+            @ConfigProperty(name = "rickshaw.scan.frame-timeout", defaultValue = "5s") Duration frameTimeout) {
+        this.imageAnalysisService = imageAnalysisService;
+        this.ratingService = ratingService;
+        this.numberPlateValidationFn = numberPlateValidationFn;
+        this.stableFrames = stableFrames;
+        this.maxOcrCalls = maxOcrCalls;
+        this.maxConnectionOcrCalls = maxConnectionOcrCalls;
+        this.minInterval = minInterval;
+        this.frameTimeout = frameTimeout;
+    }
+
+    /**
+     * @param listener Gets the session's events for the client
+     */
+    public ScanSession open(Consumer<ScanEvent> listener) {
+        return new ScanSession(
+                frame -> imageAnalysisService.analyze(
+                        new ImageAnalysisRequest(null, Base64.getEncoder().encodeToString(frame)),
+                        Deadline.after(frameTimeout), Priority.INTERACTIVE),
+                ratingService::getRatingSummary,
+                numberPlateValidationFn::matchCompletePlate,
+                listener, stableFrames, maxOcrCalls, maxConnectionOcrCalls, minInterval);
+    }
+}
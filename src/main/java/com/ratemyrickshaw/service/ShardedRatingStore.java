@@ -0,0 +1,427 @@
+package com.ratemyrickshaw.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+import com.ratemyrickshaw.fn.NumberPlateValidationFn;
+import com.ratemyrickshaw.model.Rating;
+import com.ratemyrickshaw.model.RatingAggregate;
+
+import lombok.extern.slf4j.Slf4j;
+
+/*
+Spreads plates over several rating stores (shards, e.g. one DynamoDB table each), so no single store takes all the
+writes. Callers see one RatingStore.
+
+The logic is as follows:
+1. Every plate lives on exactly one shard, picked by a consistent hash of the canonical plate (ConsistentHashRing,
+   with virtual nodes so each shard gets an even share and a popular state is spread over every shard).
+2. A state can be given its own shards as a locality hint (e.g. "MH=ratings-mh-1|ratings-mh-2"). Its plates are
+   then hashed over just those shards, the state code coming from NumberPlateValidationFn. Give a busy state more
+   than one shard, or it becomes the hot partition.
+3. A batch is split by shard and each part written to its own shard. Reads of a plate go to its shard only,
+   listing every rated plate asks every shard.
+4. A shard joining or leaving moves only the plates whose owner changes (about 1/n of them on a join). They are
+   copied to their new shard while writes carry on, recording which plates are written meanwhile. Then, with writes
+   held off, just the recorded plates that move are copied again and the new routing is switched in. Ratings and
+   aggregate counts both merge, so copying a plate twice, or a plate a write has already reached, is harmless.
+5. Every shard records the shard names it is sharded with. Opened with other shards than the recorded ones (the
+   configured list changed), the store either moves the plates from the recorded shards to the new ones, or refuses
+   to open, rather than look plates up on shards that don't have them.
+Copies left behind on a plate's old shard are never read again. Only plates with stored ratings, or written during
+the rebalance, are found by a rebalance. A plate with only older aggregate counts keeps them on its old shard.
+*/
+@Slf4j
+public class ShardedRatingStore implements RatingStore, Closeable {
+
+    // Attempts at each batch copied during a rebalance, before giving up on a throttled shard
+    private static final int COPY_ATTEMPTS = 5;
+
+    private final NumberPlateValidationFn numberPlateValidationFn;
+    private final int virtualNodes;
+    private final Map<String, List<String>> stateShards;
+    // Held shared by writes, exclusively by the last copy of a rebalance and the switch to the new routing
+    private final ReentrantReadWriteLock resizeLock = new ReentrantReadWriteLock();
+
+    private volatile Routing routing;
+    // The plates written while a rebalance copies, for its last copy. Null when no rebalance is running
+    private volatile Set<String> writtenDuringRebalance;
+
+    /**
+     * @param shards The shards by name
+     * @param virtualNodes How many points each shard has on the ring
+     * @param stateShards The shards each state's plates are limited to, states not listed use every shard
+     */
+    public ShardedRatingStore(Map<String, RatingStore> shards, int virtualNodes, Map<String, List<String>> stateShards,
+            NumberPlateValidationFn numberPlateValidationFn) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is needed");
+        }
+        this.numberPlateValidationFn = numberPlateValidationFn;
+        this.virtualNodes = virtualNodes;
+        this.stateShards = Map.copyOf(stateShards);
+        this.routing = routing(ConsistentHashRing.of(virtualNodes, shards));
+        log.info("Sharding ratings over {} ({} virtual nodes each)", shards.keySet(), virtualNodes);
+    }
+
+    /**
+     * Shard over the given stores, first checking them against the shards they were last recorded as sharded with.
+     *
+     * @param rebalance Whether to move the plates from the recorded shards to these ones if they differ. Otherwise a
+     *            difference is refused, as plates would be looked up on shards that don't have them
+     * @param open Opens a recorded shard that isn't one of these, to move its plates off it
+     * @throws IllegalStateException if the shards differ from the recorded ones and rebalance is false
+     */
+    public static ShardedRatingStore open(Map<String, RatingStore> shards, int virtualNodes,
+            Map<String, List<String>> stateShards, NumberPlateValidationFn numberPlateValidationFn, boolean rebalance,
+            Function<String, RatingStore> open) {
+        Set<String> recorded = recordedShardNames(shards);
+        if (recorded.isEmpty() || recorded.equals(shards.keySet())) {
+            ShardedRatingStore store = new ShardedRatingStore(shards, virtualNodes, stateShards, numberPlateValidationFn);
+            store.recordShardNames();
+            return store;
+        }
+        if (!rebalance) {
+            throw new IllegalStateException("The ratings are sharded over " + new TreeSet<>(recorded) + ", not "
+                    + new TreeSet<>(shards.keySet()) + ". Rebalance them from one instance, or put the shards back");
+        }
+
+        log.info("Moving the ratings from shards {} to {}", recorded, shards.keySet());
+        Map<String, RatingStore> previous = new LinkedHashMap<>();
+        for (String name : new TreeSet<>(recorded)) {
+            previous.put(name, shards.containsKey(name) ? shards.get(name) : open.apply(name));
+        }
+        ShardedRatingStore store = new ShardedRatingStore(previous, virtualNodes, stateShards, numberPlateValidationFn);
+        // Joins first, so the last of the old shards is never left to remove
+        shards.forEach((name, shard) -> {
+            if (!recorded.contains(name)) {
+                store.addShard(name, shard);
+            }
+        });
+        for (String name : recorded) {
+            if (!shards.containsKey(name)) {
+                store.removeShard(name);
+                closeQuietly(name, previous.get(name));
+            }
+        }
+        store.recordShardNames();
+        return store;
+    }
+
+    /*
+     * A rebalance that stopped part way through recording the new names leaves some shards with the old ones. Those
+     * win, so the next start moves the plates again rather than trust a rebalance that may not have finished.
+     */
+    private static Set<String> recordedShardNames(Map<String, RatingStore> shards) {
+        Set<String> recorded = Set.of();
+        for (RatingStore shard : shards.values()) {
+            Set<String> names = shard.readShardNames();
+            if (!names.isEmpty() && !names.equals(shards.keySet())) {
+                return names;
+            }
+            if (!names.isEmpty()) {
+                recorded = names;
+            }
+        }
+        return recorded;
+    }
+
+    private void recordShardNames() {
+        Set<String> names = routing.ring.names();
+        routing.ring.nodes().values().forEach(shard -> shard.writeShardNames(names));
+    }
+
+    private static void closeQuietly(String name, RatingStore shard) {
+        if (shard instanceof Closeable closeable) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                log.warn("Unable to close the removed shard '{}'", name, e);
+            }
+        }
+    }
+
+    /**
+     * The kept node id of the first shard by name that keeps one
+     */
+    @Override
+    public Optional<String> readNodeId() {
+        return new TreeMap<>(routing.ring.nodes()).values().stream()
+                .map(RatingStore::readNodeId)
+                .flatMap(Optional::stream)
+                .findFirst();
+    }
+
+    /**
+     * Parse state shards from config, e.g. "MH=ratings-mh-1|ratings-mh-2,DL=ratings-dl"
+     */
+    public static Map<String, List<String>> parseStateShards(String config) {
+        Map<String, List<String>> stateShards = new LinkedHashMap<>();
+        if (config == null || config.isBlank()) {
+            return stateShards;
+        }
+        for (String entry : config.split(",")) {
+            String[] parts = entry.split("=", 2);
+            if (parts.length != 2 || parts[0].isBlank() || parts[1].isBlank()) {
+                throw new IllegalArgumentException("Expected STATE=shard|shard, got '" + entry.trim() + "'");
+            }
+            stateShards.put(parts[0].trim().toUpperCase(), List.of(parts[1].trim().split("\\s*\\|\\s*")));
+        }
+        return stateShards;
+    }
+
+    @Override
+    public List<Rating> writeBatch(List<Rating> ratings) {
+        resizeLock.readLock().lock();
+        try {
+            Set<String> written = writtenDuringRebalance;
+            if (written != null) {
+                ratings.forEach(rating -> written.add(rating.getPlate()));
+            }
+            Routing current = routing;
+            Map<String, List<Rating>> byShard = new LinkedHashMap<>();
+            for (Rating rating : ratings) {
+                byShard.computeIfAbsent(current.ownerOf(rating.getPlate()), shard -> new ArrayList<>()).add(rating);
+            }
+            if (byShard.size() == 1) {
+                Map.Entry<String, List<Rating>> only = byShard.entrySet().iterator().next();
+                return current.shard(only.getKey()).writeBatch(only.getValue());
+            }
+            List<Rating> unprocessed = new ArrayList<>();
+            byShard.forEach((shard, part) -> unprocessed.addAll(current.shard(shard).writeBatch(part)));
+            return unprocessed;
+        } finally {
+            resizeLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Rating> findByPlate(String plate) {
+        return routing.shardFor(plate).findByPlate(plate);
+    }
+
+    @Override
+    public Set<String> ratedPlates() {
+        Set<String> plates = new HashSet<>();
+        routing.ring.nodes().values().forEach(shard -> plates.addAll(shard.ratedPlates()));
+        return plates;
+    }
+
+    @Override
+    public void writeAggregate(String plate, String nodeId, RatingAggregate.NodeCounts counts) {
+        resizeLock.readLock().lock();
+        try {
+            Set<String> written = writtenDuringRebalance;
+            if (written != null) {
+                written.add(plate);
+            }
+            routing.shardFor(plate).writeAggregate(plate, nodeId, counts);
+        } finally {
+            resizeLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean foldAggregate(String plate, String nodeId, RatingAggregate.NodeCounts counts) {
+        resizeLock.readLock().lock();
+        try {
+            Set<String> written = writtenDuringRebalance;
+            if (written != null) {
+                written.add(plate);
+            }
+            return routing.shardFor(plate).foldAggregate(plate, nodeId, counts);
+        } finally {
+            resizeLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public RatingAggregate readAggregate(String plate) {
+        return routing.shardFor(plate).readAggregate(plate);
+    }
+
+    /**
+     * @return The name of the shard a plate is stored on
+     */
+    public String shardOf(String plate) {
+        return routing.ownerOf(plate);
+    }
+
+    public Set<String> shards() {
+        return routing.ring.names();
+    }
+
+    /**
+     * Close every shard that needs closing
+     */
+    @Override
+    public void close() throws IOException {
+        for (RatingStore shard : routing.ring.nodes().values()) {
+            if (shard instanceof Closeable closeable) {
+                closeable.close();
+            }
+        }
+    }
+
+    /**
+     * Add a shard, moving the plates it now owns onto it
+     *
+     * @return How many plates were moved
+     */
+    public synchronized int addShard(String name, RatingStore shard) {
+        if (routing.ring.names().contains(name)) {
+            throw new IllegalArgumentException("There is already a shard called '" + name + "'");
+        }
+        return rebalance(routing(routing.ring.with(name, shard)));
+    }
+
+    /**
+     * Remove a shard, moving every plate on it to the shards that now own them
+     *
+     * @return How many plates were moved
+     */
+    public synchronized int removeShard(String name) {
+        if (!routing.ring.names().contains(name)) {
+            throw new IllegalArgumentException("There is no shard called '" + name + "'");
+        }
+        if (routing.ring.names().size() == 1) {
+            throw new IllegalStateException("Can't remove the last shard");
+        }
+        return rebalance(routing(routing.ring.without(name)));
+    }
+
+    private int rebalance(Routing next) {
+        long start = System.nanoTime();
+        Routing current = routing;
+        Set<String> moved = new HashSet<>();
+        Set<String> written = ConcurrentHashMap.newKeySet();
+        // Taken so no write is part way through without recording its plates
+        resizeLock.writeLock().lock();
+        writtenDuringRebalance = written;
+        resizeLock.writeLock().unlock();
+        try {
+            // Most of the copying happens while writes carry on, the last copy only has the plates they wrote
+            copyMoved(current, next, moved);
+
+            resizeLock.writeLock().lock();
+            try {
+                for (String plate : written) {
+                    copyIfMoved(plate, current, next, moved);
+                }
+                routing = next;
+            } finally {
+                resizeLock.writeLock().unlock();
+            }
+        } finally {
+            writtenDuringRebalance = null;
+        }
+        log.info("Rebalanced ratings over {}, moved {} plates ({} written meanwhile) in {}ms", next.ring.names(),
+                moved.size(), written.size(), (System.nanoTime() - start) / 1_000_000);
+        return moved.size();
+    }
+
+    /*
+     * Copies every plate whose owner changes, from the shard that owns it now. Copies left behind by earlier moves
+     * aren't owned by the shard they're on, so they're skipped.
+     */
+    private void copyMoved(Routing from, Routing to, Set<String> moved) {
+        for (Map.Entry<String, RatingStore> shard : from.ring.nodes().entrySet()) {
+            for (String plate : shard.getValue().ratedPlates()) {
+                if (from.ownerOf(plate).equals(shard.getKey())) {
+                    copyIfMoved(plate, from, to, moved);
+                }
+            }
+        }
+    }
+
+    private static void copyIfMoved(String plate, Routing from, Routing to, Set<String> moved) {
+        String owner = from.ownerOf(plate);
+        String newOwner = to.ownerOf(plate);
+        if (!newOwner.equals(owner)) {
+            copy(plate, from.shard(owner), to.shard(newOwner));
+            moved.add(plate);
+        }
+    }
+
+    private static void copy(String plate, RatingStore from, RatingStore to) {
+        List<Rating> ratings = from.findByPlate(plate);
+        for (int i = 0; i < ratings.size(); i += MAX_BATCH_SIZE) {
+            List<Rating> batch = ratings.subList(i, Math.min(ratings.size(), i + MAX_BATCH_SIZE));
+            for (int attempt = 1; !batch.isEmpty(); attempt++) {
+                if (attempt > COPY_ATTEMPTS) {
+                    throw new IllegalStateException("Unable to copy the ratings for '" + plate + "', the shard is throttling");
+                }
+                batch = to.writeBatch(batch);
+            }
+        }
+        RatingAggregate aggregate = from.readAggregate(plate);
+        // Counts folded into the base since an earlier copy are folded on this shard too, or they'd count twice
+        to.readAggregate(plate).getNodes().forEach((nodeId, counts) -> {
+            if (!aggregate.getNodes().containsKey(nodeId)) {
+                to.foldAggregate(plate, nodeId, counts);
+            }
+        });
+        aggregate.getNodes().forEach((nodeId, counts) -> to.writeAggregate(plate, nodeId, counts));
+    }
+
+    private Routing routing(ConsistentHashRing<RatingStore> ring) {
+        Map<String, ConsistentHashRing<RatingStore>> stateRings = new LinkedHashMap<>();
+        stateShards.forEach((state, names) -> {
+            Map<String, RatingStore> shards = new LinkedHashMap<>();
+            names.stream()
+                    .filter(ring.names()::contains)
+                    .forEach(name -> shards.put(name, ring.nodes().get(name)));
+            // A state whose shards have all left falls back to every shard
+            if (!shards.isEmpty()) {
+                stateRings.put(state, ConsistentHashRing.of(virtualNodes, shards));
+            }
+        });
+        return new Routing(ring, stateRings);
+    }
+
+    /*
+     * Which shard owns which plate. Never changes, a resize builds a new one.
+     */
+    private final class Routing {
+        private final ConsistentHashRing<RatingStore> ring;
+        private final Map<String, ConsistentHashRing<RatingStore>> stateRings;
+
+        Routing(ConsistentHashRing<RatingStore> ring, Map<String, ConsistentHashRing<RatingStore>> stateRings) {
+            this.ring = ring;
+            this.stateRings = stateRings;
+        }
+
+        String ownerOf(String plate) {
+            if (!stateRings.isEmpty()) {
+                Optional<String> rto = numberPlateValidationFn.rtoCode(plate);
+                if (rto.isPresent()) {
+                    ConsistentHashRing<RatingStore> stateRing = stateRings.get(rto.get().substring(0, 2));
+                    if (stateRing != null) {
+                        return stateRing.ownerOf(plate);
+                    }
+                }
+            }
+            return ring.ownerOf(plate);
+        }
+
+        RatingStore shardFor(String plate) {
+            return shard(ownerOf(plate));
+        }
+
+        RatingStore shard(String name) {
+            return ring.nodes().get(name);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.ratemyrickshaw.service;
+
+import com.ratemyrickshaw.model.StatsResponse;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import lombok.RequiredArgsConstructor;
+
+/*
+The numbers worth watching to tune this node: how Rekognition calls are paced and queued, how often they're
+hedged, and how often a plate is read without the extraction and assembly stages. Everything is since the node started, nothing is shared between nodes.
+*/
+@ApplicationScoped
+@RequiredArgsConstructor
+public class StatsService {
+
+    private final RekognitionRateGovernor rateGovernor;
+    private final RekognitionService rekognitionService;
+    private final PostRekognitionService postRekognitionService;
+
+    public StatsResponse stats() {
+        return StatsResponse.builder()
+                .success(true)
+                .rekognition(rateGovernor.stats())
+                .hedging(rekognitionService.hedgingStats())
+                .fastPathHitRatio(postRekognitionService.fastPathHitRatio())
+                .build();
+    }
+}
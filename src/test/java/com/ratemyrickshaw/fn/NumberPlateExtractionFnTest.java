@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.junit.jupiter.api.Test;
@@ -18,6 +19,7 @@ import jakarta.inject.Inject;
 import software.amazon.awssdk.services.rekognition.model.BoundingBox;
 import software.amazon.awssdk.services.rekognition.model.DetectTextResponse;
 import software.amazon.awssdk.services.rekognition.model.Geometry;
+import software.amazon.awssdk.services.rekognition.model.Point;
 import software.amazon.awssdk.services.rekognition.model.TextDetection;
 
 @QuarkusTest
@@ -57,6 +59,85 @@ class NumberPlateExtractionFnTest {
         
         assertEquals(List.of("MH03", "MF50", "V5823"), result);
     }
+
+    @Test
+    void testExtractByLines() throws IOException {
+        Path path = Paths.get("src/test/resources/ocr_data/0_result.json");
+        DetectTextResponse rekognitionResponse = DetectTextResponse.builder()
+                .textDetections(parseTextDetectionsFromJson(Files.readString(path)))
+                .build();
+
+        List<String> result = numberPlateExtractionFn.extractByLines(rekognitionResponse);
+
+        assertEquals(List.of("AP13", "v7951"), result);
+    }
+
+    @Test
+    void testExtractByLines_2() throws IOException {
+        Path path = Paths.get("src/test/resources/ocr_data/10_result.json");
+        DetectTextResponse rekognitionResponse = DetectTextResponse.builder()
+                .textDetections(parseTextDetectionsFromJson(Files.readString(path)))
+                .build();
+
+        List<String> result = numberPlateExtractionFn.extractByLines(rekognitionResponse);
+
+        assertEquals(List.of("MH03", "V5823"), result);
+    }
+
+    @Test
+    void testExtractByLines_TiltedPlate() {
+        // A single row plate rotated ~6 degrees anticlockwise: "AB1234" sits higher in the frame than "MH12",
+        // so sorting by box top would put it first
+        DetectTextResponse rekognitionResponse = DetectTextResponse.builder()
+                .textDetections(List.of(
+                        detection("MH12 AB1234", "LINE", 0, null, 0.20f, 0.40f, 0.50f, 0.12f, -0.1f),
+                        detection("AB1234", "WORD", 2, 0, 0.38f, 0.40f, 0.32f, 0.09f, -0.1f),
+                        detection("MH12", "WORD", 1, 0, 0.20f, 0.44f, 0.16f, 0.09f, -0.1f)))
+                .build();
+
+        List<String> result = numberPlateExtractionFn.extractByLines(rekognitionResponse);
+
+        assertEquals(List.of("MH12", "AB1234"), result);
+    }
+
+    @Test
+    void testExtractByLines_SplitLinesMergedIntoRows() {
+        // Rekognition split the top row of a two row plate into two lines, they should be read as one row
+        DetectTextResponse rekognitionResponse = DetectTextResponse.builder()
+                .textDetections(List.of(
+                        detection("11", "LINE", 1, null, 0.30f, 0.20f, 0.06f, 0.08f, 0f),
+                        detection("TN", "LINE", 0, null, 0.20f, 0.21f, 0.07f, 0.08f, 0f),
+                        detection("AP 2245", "LINE", 2, null, 0.19f, 0.32f, 0.20f, 0.08f, 0f),
+                        detection("TN", "WORD", 3, 0, 0.20f, 0.21f, 0.07f, 0.08f, 0f),
+                        detection("11", "WORD", 4, 1, 0.30f, 0.20f, 0.06f, 0.08f, 0f),
+                        detection("2245", "WORD", 6, 2, 0.26f, 0.32f, 0.13f, 0.08f, 0f),
+                        detection("AP", "WORD", 5, 2, 0.19f, 0.32f, 0.06f, 0.08f, 0f)))
+                .build();
+
+        List<String> result = numberPlateExtractionFn.extractByLines(rekognitionResponse);
+
+        assertEquals(List.of("TN", "11", "AP", "2245"), result);
+    }
+
+    private TextDetection detection(String text, String type, int id, Integer parentId,
+            float left, float top, float width, float height, float slope) {
+        // Polygon top edge rises by slope * width, to simulate a tilted line
+        return TextDetection.builder()
+                .detectedText(text)
+                .type(type)
+                .id(id)
+                .parentId(parentId)
+                .confidence(95f)
+                .geometry(Geometry.builder()
+                        .boundingBox(BoundingBox.builder().left(left).top(top).width(width).height(height).build())
+                        .polygon(List.of(
+                                Point.builder().x(left).y(top - slope * width).build(),
+                                Point.builder().x(left + width).y(top).build(),
+                                Point.builder().x(left + width).y(top + height).build(),
+                                Point.builder().x(left).y(top + height - slope * width).build()))
+                        .build())
+                .build();
+    }
     
     /**
      * Helper method to parse JSON manually into TextDetection objects
@@ -67,7 +148,7 @@ class NumberPlateExtractionFnTest {
         ObjectMapper mapper = new ObjectMapper();
         JsonNode root = mapper.readTree(jsonContent);
         
-        List<TextDetection> detections = new java.util.ArrayList<>();
+        List<TextDetection> detections = new ArrayList<>();
         
         root.get("TextDetections").forEach(node -> {
             detections.add(
@@ -75,6 +156,7 @@ class NumberPlateExtractionFnTest {
                     .detectedText(node.get("DetectedText").asText())
                     .type(node.get("Type").asText())
                     .id(node.get("Id").asInt())
+                    .parentId(node.has("ParentId") ? node.get("ParentId").asInt() : null)
                     .confidence(node.get("Confidence").floatValue())
                     .geometry(parseGeometry(node.get("Geometry")))
                     .build()
@@ -86,7 +168,11 @@ class NumberPlateExtractionFnTest {
     
     private Geometry parseGeometry(JsonNode node) {
         JsonNode bbox = node.get("BoundingBox");
+        List<Point> polygon = new ArrayList<>();
+        node.get("Polygon").forEach(point -> polygon.add(
+                Point.builder().x(point.get("X").floatValue()).y(point.get("Y").floatValue()).build()));
         return Geometry.builder()
+            .polygon(polygon)
             .boundingBox(
                 BoundingBox.builder()
                     .width(bbox.get("Width").floatValue())
@@ -0,0 +1,18 @@
+package com.ratemyrickshaw.fn;
+
+/*
+Builds extraction functions in a given mode, for tests outside this package that compare the modes side by side
+without restarting Quarkus under another profile.
+*/
+public final class NumberPlateExtractionFns {
+
+    private NumberPlateExtractionFns() {
+    }
+
+    public static NumberPlateExtractionFn withMode(SimilarityFn similarityFn, NumberPlateExtractionFn.Mode mode) {
+        NumberPlateExtractionFn extractionFn = new NumberPlateExtractionFn(similarityFn,
+                new SignageFilterFn("classpath:signage-stopwords.txt"));
+        extractionFn.mode = mode;
+        return extractionFn;
+    }
+}
@@ -3,6 +3,7 @@ package com.ratemyrickshaw.fn;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 import java.util.List;
+import java.util.Optional;
 
 import org.junit.jupiter.api.Test;
 
@@ -77,10 +78,10 @@ class NumberPlateValidationFnTest {
         assertEquals("Invalid state code", result);
 
         // Invalid RTO code - missing digits (concatenates to "AP7951" which becomes AP + 79 + 51)
-        // This actually forms AP79 (valid RTO pattern) + 51 (invalid number), so it's invalid plate format
+        // AP79 has the RTO pattern, but there is no such RTO
         detections = List.of("AP", "7951");
         result = numberPlateValidationFn.apply(detections);
-        assertEquals("Invalid plate format", result);
+        assertEquals("Invalid RTO code", result);
 
         // Invalid RTO code - Delhi with 2 digits instead of 1 (becomes DL12 + 5954 = DL125954)
         // DL1 is valid RTO, but then 25954 doesn't fit series+number pattern
@@ -109,4 +110,45 @@ class NumberPlateValidationFnTest {
         assertEquals("Invalid plate format", result);
     }
 
-}
\ No newline at end of file
+    @Test
+    void testRtoCodesMustExist() {
+        assertEquals("Invalid RTO code", numberPlateValidationFn.apply(List.of("MH99", "AB", "1234")));
+        assertEquals("Invalid RTO code", numberPlateValidationFn.apply(List.of("UP05", "AB", "1234")));
+        assertEquals("Invalid RTO code", numberPlateValidationFn.apply(List.of("DL0", "RK", "5954")));
+
+        // The impossible reading loses to the possible one, whatever their order
+        assertEquals("KA01CD5678", numberPlateValidationFn.apply(List.of("KA99AB1234", "KA01CD5678")));
+        // A misread is only corrected into a code that exists: MH1Z reads as MH12, MHB1 would be MH81
+        assertEquals("MH12AB1234", numberPlateValidationFn.apply(List.of("MH1Z", "AB", "1234")));
+        assertEquals("Invalid RTO code", numberPlateValidationFn.apply(List.of("MHB1", "AB", "1234")));
+
+        assertEquals(Optional.empty(), numberPlateValidationFn.matchCompletePlate("MH 99 AB 1234"));
+        assertEquals(Optional.of("MH12AB1234"), numberPlateValidationFn.matchCompletePlate("MH 12 AB 1234"));
+        assertEquals(Optional.empty(), numberPlateValidationFn.rtoCode("DL0RK5954"));
+        assertEquals(Optional.of("DL1"), numberPlateValidationFn.rtoCode("DL1RK5954"));
+    }
+
+    @Test
+    void testWordsSplitAndOutOfOrder() {
+        // The number read as two words
+        List<String> detections = List.of("KA01", "AB", "12", "34");
+        assertEquals("KA01AB1234", numberPlateValidationFn.apply(detections));
+
+        // A two row plate read bottom row first
+        detections = List.of("5021", "MH12", "AB");
+        assertEquals("MH12AB5021", numberPlateValidationFn.apply(detections));
+
+        // Stray words before, inside and after the plate
+        detections = List.of("JAI", "MATA", "DI", "UP32", "CNG", "AB", "4567", "SLOW");
+        assertEquals("UP32AB4567", numberPlateValidationFn.apply(detections));
+    }
+
+    @Test
+    void testConfidenceBreaksTies() {
+        // Two readings of the series, the more confident one wins
+        List<String> detections = List.of("GJ05", "CD", "CO", "7788");
+        assertEquals("GJ05CD7788", numberPlateValidationFn.assemble(detections, List.of(99f, 98f, 40f, 97f)));
+        assertEquals("GJ05CO7788", numberPlateValidationFn.assemble(detections, List.of(99f, 30f, 95f, 97f)));
+    }
+
+}
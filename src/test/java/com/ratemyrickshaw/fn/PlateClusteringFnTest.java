@@ -0,0 +1,135 @@
+package com.ratemyrickshaw.fn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ratemyrickshaw.model.DetectionBatch;
+
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+import software.amazon.awssdk.services.rekognition.model.BoundingBox;
+import software.amazon.awssdk.services.rekognition.model.Geometry;
+import software.amazon.awssdk.services.rekognition.model.TextDetection;
+
+@QuarkusTest
+class PlateClusteringFnTest {
+
+    @Inject
+    PlateClusteringFn plateClusteringFn;
+
+    @Test
+    void testFrontAndRearPlatesAreSeparateClusters() throws IOException {
+        List<DetectionBatch> clusters = plateClusteringFn.apply(load("0_result.json"));
+
+        assertEquals(Set.of(Set.of("AP13", "v7951"), Set.of("APIB", "V7951")), wordSets(clusters));
+    }
+
+    @Test
+    void testTwoRowPlateStaysTogether() throws IOException {
+        Set<Set<String>> clusters = wordSets(plateClusteringFn.apply(load("10_result.json")));
+
+        assertTrue(clusters.contains(Set.of("MH03", "V5823")), clusters.toString());
+        assertTrue(clusters.contains(Set.of("ALTIS")), clusters.toString());
+    }
+
+    @Test
+    void testClusterKeepsItsLines() throws IOException {
+        List<DetectionBatch> clusters = plateClusteringFn.apply(load("0_result.json"));
+
+        for (DetectionBatch cluster : clusters) {
+            Set<Integer> lineIds = IntStream.range(0, cluster.size())
+                    .filter(cluster::isLine)
+                    .mapToObj(cluster::id)
+                    .collect(Collectors.toSet());
+            IntStream.range(0, cluster.size())
+                    .filter(cluster::isWord)
+                    .forEach(word -> {
+                        assertTrue(lineIds.contains(cluster.parentId(word)));
+                        assertTrue(cluster.isLine(cluster.parent(word)));
+                    });
+        }
+    }
+
+    @Test
+    void testBiggestClusterComesFirstThenLeftToRight() {
+        List<DetectionBatch> clusters = plateClusteringFn.apply(DetectionBatch.of(List.of(
+                word(1, "SIGN", 0.7f),
+                word(2, "KA01", 0.1f),
+                word(3, "CD5678", 0.16f),
+                word(4, "TAXI", 0.4f))));
+
+        assertEquals(List.of(List.of("KA01", "CD5678"), List.of("TAXI"), List.of("SIGN")),
+                clusters.stream()
+                        .map(cluster -> IntStream.range(0, cluster.size())
+                                .filter(cluster::isWord)
+                                .mapToObj(cluster::text)
+                                .toList())
+                        .toList());
+    }
+
+    @Test
+    void testNoWordsGivesNoClusters() {
+        assertEquals(List.of(), plateClusteringFn.apply(DetectionBatch.of(List.of())));
+    }
+
+    private Set<Set<String>> wordSets(List<DetectionBatch> clusters) {
+        return clusters.stream()
+                .map(cluster -> IntStream.range(0, cluster.size())
+                        .filter(cluster::isWord)
+                        .mapToObj(cluster::text)
+                        .collect(Collectors.toSet()))
+                .collect(Collectors.toSet());
+    }
+
+    private static TextDetection word(int id, String text, float left) {
+        return TextDetection.builder()
+                .detectedText(text)
+                .type("WORD")
+                .id(id)
+                .confidence(99f)
+                .geometry(Geometry.builder()
+                        .boundingBox(BoundingBox.builder().width(0.05f).height(0.05f).left(left).top(0.5f).build())
+                        .build())
+                .build();
+    }
+
+    private DetectionBatch load(String fileName) throws IOException {
+        Path path = Paths.get("src/test/resources/ocr_data", fileName);
+        JsonNode root = new ObjectMapper().readTree(Files.readString(path));
+
+        List<TextDetection> detections = new ArrayList<>();
+        root.get("TextDetections").forEach(node -> {
+            JsonNode bbox = node.get("Geometry").get("BoundingBox");
+            detections.add(TextDetection.builder()
+                    .detectedText(node.get("DetectedText").asText())
+                    .type(node.get("Type").asText())
+                    .id(node.get("Id").asInt())
+                    .parentId(node.has("ParentId") ? node.get("ParentId").asInt() : null)
+                    .confidence(node.get("Confidence").floatValue())
+                    .geometry(Geometry.builder()
+                            .boundingBox(BoundingBox.builder()
+                                    .width(bbox.get("Width").floatValue())
+                                    .height(bbox.get("Height").floatValue())
+                                    .left(bbox.get("Left").floatValue())
+                                    .top(bbox.get("Top").floatValue())
+                                    .build())
+                            .build())
+                    .build());
+        });
+        return DetectionBatch.of(detections);
+    }
+}
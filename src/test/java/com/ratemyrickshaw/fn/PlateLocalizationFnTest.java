@@ -0,0 +1,62 @@
+package com.ratemyrickshaw.fn;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+
+import com.ratemyrickshaw.model.PlateRegion;
+
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+
+@QuarkusTest
+class PlateLocalizationFnTest {
+
+    @Inject
+    private PlateLocalizationFn plateLocalizationFn;
+
+    @Test
+    void testLocalizesTwoRowPlate() throws IOException {
+        // AP13 / V7951, the plate centre is roughly at (0.26, 0.61) of the frame
+        BufferedImage image = ImageIO.read(new File("src/test/resources/rickshaws/0.jpg"));
+
+        List<PlateRegion> regions = plateLocalizationFn.apply(image);
+
+        assertTrue(containsPoint(regions.get(0), image, 0.26, 0.61), "Best region should contain the plate: " + regions);
+    }
+
+    @Test
+    void testLocalizesPlateAmongOtherText() throws IOException {
+        // MH03 / V5823, the photo also has a car badge and a second plate on the rear
+        BufferedImage image = ImageIO.read(new File("src/test/resources/rickshaws/10.JPG"));
+
+        List<PlateRegion> regions = plateLocalizationFn.apply(image);
+
+        assertTrue(regions.size() <= 2);
+        assertTrue(regions.stream().anyMatch(region -> containsPoint(region, image, 0.41, 0.60)),
+                "A region should contain the plate: " + regions);
+    }
+
+    @Test
+    void testBlankImageHasNoRegions() {
+        BufferedImage image = new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB);
+
+        List<PlateRegion> regions = plateLocalizationFn.apply(image);
+
+        assertTrue(regions.isEmpty());
+    }
+
+    private boolean containsPoint(PlateRegion region, BufferedImage image, double x, double y) {
+        double px = x * image.getWidth();
+        double py = y * image.getHeight();
+        return px >= region.getX() && px <= region.getX() + region.getWidth()
+                && py >= region.getY() && py <= region.getY() + region.getHeight();
+    }
+}
@@ -0,0 +1,102 @@
+package com.ratemyrickshaw.fn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.ratemyrickshaw.model.DetectionBatch;
+
+import software.amazon.awssdk.services.rekognition.model.TextDetection;
+
+class SignageFilterFnTest {
+
+    private final SignageFilterFn signageFilterFn = new SignageFilterFn("classpath:signage-stopwords.txt");
+
+    @Test
+    void testWordsMatchWhateverTheirCaseAndPunctuation() {
+        List<TextDetection> detections = List.of(
+                word("cng", 1), word("R.T.O", 1), word("Bajaj", 1), word("Stop!", 2), word("DL1RK5954", 3));
+
+        BitSet signage = new SignageFilterFn(List.of("CNG", "RTO", "BAJAJ", "STOP")).apply(DetectionBatch.of(detections));
+
+        assertEquals(BitSet.valueOf(new long[] { 0b01111 }), signage);
+    }
+
+    @Test
+    void testPhrasesOnlyMatchTheirWordsTogetherInOneLine() {
+        List<TextDetection> together = List.of(
+                word("MH12", 1), word("Horn", 2), word("OK", 2), word("Please", 2), word("AB1234", 3));
+        List<TextDetection> apart = List.of(
+                word("Horn", 1), word("OK", 2), word("Please", 2), word("OK", 3), word("AB1234", 3));
+        List<TextDetection> partOfAWord = List.of(word("HORNOK", 1), word("PLEASE", 1));
+
+        assertEquals(indexes(1, 2, 3), signageFilterFn.apply(DetectionBatch.of(together)));
+        assertTrue(signageFilterFn.apply(DetectionBatch.of(apart)).isEmpty());
+        assertTrue(signageFilterFn.apply(DetectionBatch.of(partOfAWord)).isEmpty());
+    }
+
+    @Test
+    void testLongerPhrasesWinOverTheirPrefixes() {
+        List<TextDetection> detections = List.of(
+                word("Buri", 1), word("Nazar", 1), word("Wale", 1), word("Tera", 1), word("Muh", 1), word("Kala", 1),
+                word("UP32", 1));
+
+        assertEquals(indexes(0, 1, 2, 3, 4, 5), signageFilterFn.apply(DetectionBatch.of(detections)));
+    }
+
+    @Test
+    void testWatermarksMatchInsideWords() {
+        List<TextDetection> detections = List.of(
+                word("pngtree.com", 1), word("RECNGpngtree", 2), word("KA05", 3), word("AB1234", 3));
+
+        assertEquals(indexes(0, 1), signageFilterFn.apply(DetectionBatch.of(detections)));
+    }
+
+    @Test
+    void testPlatesAreKept() {
+        List<TextDetection> detections = List.of(
+                word("AP13", 1), word("V7951", 1), word("MH03V5823", 2), word("DL1RK5954", 3),
+                line("AP13 V7951", 1));
+
+        assertTrue(signageFilterFn.apply(DetectionBatch.of(detections)).isEmpty());
+    }
+
+    @Test
+    void testThousandsOfEntriesStillMatchExactly() {
+        List<String> entries = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            entries.add("SIGN" + i);
+            entries.add("PAINTED " + i + " PHRASE");
+        }
+        SignageFilterFn large = new SignageFilterFn(entries);
+
+        List<TextDetection> detections = List.of(
+                word("sign4999", 1), word("SIGN5000", 1), word("painted", 2), word("1234", 2), word("phrase", 2),
+                word("PAINTED", 3), word("12345", 3), word("PHRASE", 3));
+
+        assertEquals(indexes(0, 2, 3, 4), large.apply(DetectionBatch.of(detections)));
+        assertFalse(large.apply(DetectionBatch.of(List.of(word("SIGN", 1)))).get(0));
+    }
+
+    private static BitSet indexes(int... indexes) {
+        BitSet bits = new BitSet();
+        for (int index : indexes) {
+            bits.set(index);
+        }
+        return bits;
+    }
+
+    private static TextDetection word(String text, int parentId) {
+        return TextDetection.builder().detectedText(text).type("WORD").parentId(parentId).confidence(99f).build();
+    }
+
+    private static TextDetection line(String text, int id) {
+        return TextDetection.builder().detectedText(text).type("LINE").id(id).confidence(99f).build();
+    }
+}
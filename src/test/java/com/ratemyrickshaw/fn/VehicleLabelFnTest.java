@@ -0,0 +1,60 @@
+package com.ratemyrickshaw.fn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.ratemyrickshaw.model.VehicleCheck;
+
+import software.amazon.awssdk.services.rekognition.model.DetectLabelsResponse;
+import software.amazon.awssdk.services.rekognition.model.Label;
+import software.amazon.awssdk.services.rekognition.model.Parent;
+
+class VehicleLabelFnTest {
+
+    private final VehicleLabelFn vehicleLabelFn = new VehicleLabelFn(List.of("Auto Rickshaw", "Tuk Tuk"),
+            List.of("Car", "Truck"), 50, 90);
+
+    @Test
+    void testRickshawGetsTheBenefitOfTheDoubt() {
+        VehicleCheck check = vehicleLabelFn.apply(labels(label("Car", 99f), label("auto rickshaw", 62f)));
+
+        assertEquals(VehicleCheck.Verdict.RICKSHAW, check.getVerdict());
+        assertEquals("auto rickshaw", check.getLabel());
+        assertEquals(62f, check.getConfidence());
+    }
+
+    @Test
+    void testConfidentOtherVehicle() {
+        VehicleCheck check = vehicleLabelFn.apply(labels(label("Truck", 91f), label("Car", 96f)));
+
+        assertEquals(VehicleCheck.Verdict.OTHER_VEHICLE, check.getVerdict());
+        assertEquals("Car", check.getLabel());
+    }
+
+    @Test
+    void testParentLabelsCount() {
+        Label sedan = Label.builder().name("Sedan").confidence(95f)
+                .parents(Parent.builder().name("Car").build())
+                .build();
+
+        assertEquals(VehicleCheck.Verdict.OTHER_VEHICLE, vehicleLabelFn.apply(labels(sedan)).getVerdict());
+    }
+
+    @Test
+    void testUnsureOrNoVehicleIsNoVehicle() {
+        assertEquals(VehicleCheck.Verdict.NO_VEHICLE,
+                vehicleLabelFn.apply(labels(label("Car", 80f), label("Text", 99f))).getVerdict());
+        assertEquals(VehicleCheck.Verdict.NO_VEHICLE, vehicleLabelFn.apply(labels()).getVerdict());
+    }
+
+    private static Label label(String name, float confidence) {
+        return Label.builder().name(name).confidence(confidence).build();
+    }
+
+    private static DetectLabelsResponse labels(Label... labels) {
+        return DetectLabelsResponse.builder().labels(labels).build();
+    }
+}
@@ -0,0 +1,224 @@
+package com.ratemyrickshaw.lambda;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ratemyrickshaw.fn.NumberPlateExtractionFn;
+import com.ratemyrickshaw.fn.NumberPlateValidationFn;
+import com.ratemyrickshaw.fn.SimilarityFn;
+import com.ratemyrickshaw.model.ImageAnalysisRequest;
+import com.ratemyrickshaw.service.PostRekognitionService;
+import com.ratemyrickshaw.service.RekognitionRateGovernor.Priority;
+import com.ratemyrickshaw.service.RekognitionService;
+
+import io.quarkus.test.InjectMock;
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.services.rekognition.model.BoundingBox;
+import software.amazon.awssdk.services.rekognition.model.DetectTextResponse;
+import software.amazon.awssdk.services.rekognition.model.Geometry;
+import software.amazon.awssdk.services.rekognition.model.Point;
+import software.amazon.awssdk.services.rekognition.model.TextDetection;
+
+/*
+Allocation budgets for each stage of the analysis pipeline, and for the whole handler with Rekognition stubbed out.
+Each stage runs over every OCR fixture, first to warm up and then measured with the JVM's per thread allocation
+counter. The average bytes per request must stay within the budget in allocation-budgets.properties.
+Only the request thread is counted, so work handed to other threads (the rating lookup) isn't included.
+*/
+@Slf4j
+@QuarkusTest
+class AllocationBudgetTest {
+
+    private static final int WARM_UP_ROUNDS = 100;
+    private static final int MEASURED_ROUNDS = 50;
+
+    @Inject
+    RickshawAnalysisHandler handler;
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    @Inject
+    NumberPlateExtractionFn numberPlateExtractionFn;
+
+    @Inject
+    NumberPlateValidationFn numberPlateValidationFn;
+
+    @Inject
+    SimilarityFn similarityFn;
+
+    @Inject
+    PostRekognitionService postRekognitionService;
+
+    @InjectMock
+    RekognitionService rekognitionService;
+
+    private com.sun.management.ThreadMXBean threadMXBean;
+    private List<DetectTextResponse> corpus;
+    private Properties budgets;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean,
+                "Per thread allocation counting needs a HotSpot based JVM");
+        threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported(), "Per thread allocation counting is not supported");
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        corpus = new ArrayList<>();
+        try (Stream<Path> files = Files.list(Paths.get("src/test/resources/ocr_data"))) {
+            for (Path file : files.filter(path -> path.toString().endsWith(".json")).sorted().toList()) {
+                corpus.add(load(file));
+            }
+        }
+
+        budgets = new Properties();
+        try (InputStream in = getClass().getResourceAsStream("/allocation-budgets.properties")) {
+            budgets.load(in);
+        }
+    }
+
+    @Test
+    void testSimilarityBudget() {
+        List<List<String>> words = corpus.stream().map(this::words).toList();
+        assertWithinBudget("similarity", index -> {
+            List<String> texts = words.get(index);
+            for (String text : texts) {
+                for (String other : texts) {
+                    similarityFn.test(text, other);
+                }
+            }
+        });
+    }
+
+    @Test
+    void testExtractionBudget() {
+        assertWithinBudget("extraction.similarity", index -> numberPlateExtractionFn.apply(corpus.get(index)));
+        assertWithinBudget("extraction.lines", index -> numberPlateExtractionFn.extractByLines(corpus.get(index)));
+    }
+
+    @Test
+    void testValidationBudget() {
+        List<List<String>> extracted = corpus.stream().map(numberPlateExtractionFn::apply).toList();
+        assertWithinBudget("validation", index -> {
+            try {
+                numberPlateValidationFn.apply(extracted.get(index));
+            } catch (NullPointerException e) {
+                // No plate in this fixture, which is a result like any other here
+            }
+        });
+    }
+
+    @Test
+    void testPostRekognitionBudget() {
+        assertWithinBudget("post-rekognition", index -> {
+            try {
+                postRekognitionService.detectPlate(corpus.get(index));
+            } catch (NullPointerException e) {
+                // No plate in this fixture
+            }
+        });
+    }
+
+    @Test
+    void testHandlerBudget() throws Exception {
+        List<APIGatewayProxyRequestEvent> events = new ArrayList<>();
+        for (int i = 0; i < corpus.size(); i++) {
+            String imageUrl = "https://example.com/fixture-" + i + ".jpg";
+            when(rekognitionService.analyzeImageFromUrl(eq(imageUrl), any(), eq(Priority.INTERACTIVE))).thenReturn(corpus.get(i));
+            events.add(new APIGatewayProxyRequestEvent()
+                    .withHttpMethod("POST")
+                    .withBody(objectMapper.writeValueAsString(new ImageAnalysisRequest(imageUrl, null))));
+        }
+
+        // Fixtures without a plate take the error path, which is part of the budget too
+        assertWithinBudget("handler", index -> handler.handleRequest(events.get(index), null));
+    }
+
+    private void assertWithinBudget(String stage, Stage work) {
+        for (int round = 0; round < WARM_UP_ROUNDS; round++) {
+            for (int i = 0; i < corpus.size(); i++) {
+                work.run(i);
+            }
+        }
+
+        long threadId = Thread.currentThread().threadId();
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int round = 0; round < MEASURED_ROUNDS; round++) {
+            for (int i = 0; i < corpus.size(); i++) {
+                work.run(i);
+            }
+        }
+        long perRequest = (threadMXBean.getThreadAllocatedBytes(threadId) - before) / ((long) MEASURED_ROUNDS * corpus.size());
+
+        long budget = Long.parseLong(budgets.getProperty(stage));
+        log.info("Allocation for '{}': {} bytes per request, budget {} bytes ({}%)", stage, perRequest, budget,
+                perRequest * 100 / budget);
+        assertTrue(perRequest <= budget,
+                "'" + stage + "' allocated " + perRequest + " bytes per request, over its budget of " + budget);
+    }
+
+    private List<String> words(DetectTextResponse response) {
+        return response.textDetections().stream()
+                .filter(detection -> "WORD".equals(detection.typeAsString()))
+                .map(TextDetection::detectedText)
+                .toList();
+    }
+
+    private DetectTextResponse load(Path path) throws IOException {
+        JsonNode root = new ObjectMapper().readTree(Files.readString(path));
+
+        List<TextDetection> detections = new ArrayList<>();
+        root.get("TextDetections").forEach(node -> {
+            JsonNode geometry = node.get("Geometry");
+            JsonNode bbox = geometry.get("BoundingBox");
+            List<Point> polygon = new ArrayList<>();
+            geometry.get("Polygon").forEach(point -> polygon.add(
+                    Point.builder().x(point.get("X").floatValue()).y(point.get("Y").floatValue()).build()));
+            detections.add(TextDetection.builder()
+                    .detectedText(node.get("DetectedText").asText())
+                    .type(node.get("Type").asText())
+                    .id(node.get("Id").asInt())
+                    .parentId(node.has("ParentId") ? node.get("ParentId").asInt() : null)
+                    .confidence(node.get("Confidence").floatValue())
+                    .geometry(Geometry.builder()
+                            .polygon(polygon)
+                            .boundingBox(BoundingBox.builder()
+                                    .width(bbox.get("Width").floatValue())
+                                    .height(bbox.get("Height").floatValue())
+                                    .left(bbox.get("Left").floatValue())
+                                    .top(bbox.get("Top").floatValue())
+                                    .build())
+                            .build())
+                    .build());
+        });
+        return DetectTextResponse.builder().textDetections(detections).build();
+    }
+
+    @FunctionalInterface
+    private interface Stage {
+        void run(int fixtureIndex);
+    }
+}
@@ -9,22 +9,51 @@ import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ratemyrickshaw.controller.ScanSessionController;
+import com.ratemyrickshaw.model.AnalysisJobResponse;
+import com.ratemyrickshaw.model.Deadline;
+import com.ratemyrickshaw.model.DetectedPlate;
 import com.ratemyrickshaw.model.ImageAnalysisRequest;
 import com.ratemyrickshaw.model.ImageAnalysisResponse;
+import com.ratemyrickshaw.model.ImageUploadRequest;
+import com.ratemyrickshaw.model.ImageUploadResponse;
+import com.ratemyrickshaw.model.LeaderboardEntry;
+import com.ratemyrickshaw.model.LeaderboardResponse;
+import com.ratemyrickshaw.model.PlateDetectionResult;
+import com.ratemyrickshaw.model.RatingRequest;
+import com.ratemyrickshaw.model.RatingResponse;
+import com.ratemyrickshaw.model.ScanEvent;
+import com.ratemyrickshaw.model.StatsResponse;
+import com.ratemyrickshaw.service.DeadlineExceededException;
 import com.ratemyrickshaw.service.PostRekognitionService;
+import com.ratemyrickshaw.service.RatingService;
+import com.ratemyrickshaw.service.RatingWriteBuffer;
+import com.ratemyrickshaw.service.RekognitionRateGovernor.Priority;
 import com.ratemyrickshaw.service.RekognitionService;
 
 import io.quarkus.test.junit.QuarkusTest;
 import io.quarkus.test.InjectMock;
+import io.quarkus.test.common.http.TestHTTPResource;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.WebSocket;
 import jakarta.inject.Inject;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 
 import software.amazon.awssdk.services.rekognition.model.DetectTextResponse;
 import software.amazon.awssdk.services.rekognition.model.TextDetection;
 
+import java.net.URI;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 @QuarkusTest
 class RickshawAnalysisHandlerTest {
@@ -41,6 +70,21 @@ class RickshawAnalysisHandlerTest {
     @InjectMock
     PostRekognitionService postRekognitionService;
 
+    @Inject
+    RatingService ratingService;
+
+    @Inject
+    RatingWriteBuffer ratingWriteBuffer;
+
+    @Inject
+    Vertx vertx;
+
+    @TestHTTPResource(ScanSessionController.PATH)
+    URI scanSessionUri;
+
+    @TestHTTPResource("/analyze/stream")
+    URI analyzeStreamUri;
+
     private Context mockContext;
     private LambdaLogger mockLogger;
 
@@ -70,10 +114,10 @@ class RickshawAnalysisHandlerTest {
                 ))
                 .build();
         
-        when(rekognitionService.analyzeImageFromUrl(imageUrl))
+        when(rekognitionService.analyzeImageFromUrl(eq(imageUrl), any(), eq(Priority.INTERACTIVE)))
                 .thenReturn(mockDetectResponse);
-        when(postRekognitionService.postProcessTextDetections(mockDetectResponse))
-                .thenReturn("ABC123");
+        when(postRekognitionService.detectPlate(mockDetectResponse))
+                .thenReturn(new PlateDetectionResult("ABC123", null));
 
         // When
         APIGatewayProxyResponseEvent responseEvent = handler.handleRequest(requestEvent, mockContext);
@@ -87,9 +131,9 @@ class RickshawAnalysisHandlerTest {
         assertEquals("Image analysis completed successfully", response.getMessage());
         assertEquals("ABC123", response.getData());
         
-        verify(rekognitionService).analyzeImageFromUrl(imageUrl);
-        verify(rekognitionService, never()).analyzeImageFromBase64(any());
-        verify(postRekognitionService).postProcessTextDetections(mockDetectResponse);
+        verify(rekognitionService).analyzeImageFromUrl(eq(imageUrl), any(), eq(Priority.INTERACTIVE));
+        verify(rekognitionService, never()).analyzeImageFromBase64(any(), any(), any());
+        verify(postRekognitionService).detectPlate(mockDetectResponse);
     }
 
     @Test
@@ -111,10 +155,10 @@ class RickshawAnalysisHandlerTest {
                 ))
                 .build();
         
-        when(rekognitionService.analyzeImageFromBase64(base64Image))
+        when(rekognitionService.analyzeImageFromBase64(eq(base64Image), any(), eq(Priority.INTERACTIVE)))
                 .thenReturn(mockDetectResponse);
-        when(postRekognitionService.postProcessTextDetections(mockDetectResponse))
-                .thenReturn("XYZ789");
+        when(postRekognitionService.detectPlate(mockDetectResponse))
+                .thenReturn(new PlateDetectionResult("XYZ789", null));
 
         // When
         APIGatewayProxyResponseEvent responseEvent = handler.handleRequest(requestEvent, mockContext);
@@ -128,9 +172,9 @@ class RickshawAnalysisHandlerTest {
         assertEquals("Image analysis completed successfully", response.getMessage());
         assertEquals("XYZ789", response.getData());
         
-        verify(rekognitionService).analyzeImageFromBase64(base64Image);
-        verify(rekognitionService, never()).analyzeImageFromUrl(any());
-        verify(postRekognitionService).postProcessTextDetections(mockDetectResponse);
+        verify(rekognitionService).analyzeImageFromBase64(eq(base64Image), any(), eq(Priority.INTERACTIVE));
+        verify(rekognitionService, never()).analyzeImageFromUrl(any(), any(), any());
+        verify(postRekognitionService).detectPlate(mockDetectResponse);
     }
 
     @Test
@@ -146,10 +190,10 @@ class RickshawAnalysisHandlerTest {
         
         DetectTextResponse mockDetectResponse = DetectTextResponse.builder().build();
         
-        when(rekognitionService.analyzeImageFromUrl(imageUrl))
+        when(rekognitionService.analyzeImageFromUrl(eq(imageUrl), any(), eq(Priority.INTERACTIVE)))
                 .thenReturn(mockDetectResponse);
-        when(postRekognitionService.postProcessTextDetections(mockDetectResponse))
-                .thenReturn("ABC123");
+        when(postRekognitionService.detectPlate(mockDetectResponse))
+                .thenReturn(new PlateDetectionResult("ABC123", null));
 
         // When
         APIGatewayProxyResponseEvent responseEvent = handler.handleRequest(requestEvent, mockContext);
@@ -157,8 +201,8 @@ class RickshawAnalysisHandlerTest {
         // Then
         ImageAnalysisResponse response = objectMapper.readValue(responseEvent.getBody(), ImageAnalysisResponse.class);
         assertTrue(response.isSuccess());
-        verify(rekognitionService).analyzeImageFromUrl(imageUrl);
-        verify(rekognitionService, never()).analyzeImageFromBase64(any());
+        verify(rekognitionService).analyzeImageFromUrl(eq(imageUrl), any(), eq(Priority.INTERACTIVE));
+        verify(rekognitionService, never()).analyzeImageFromBase64(any(), any(), any());
     }
 
     @Test
@@ -179,12 +223,12 @@ class RickshawAnalysisHandlerTest {
         
         ImageAnalysisResponse response = objectMapper.readValue(responseEvent.getBody(), ImageAnalysisResponse.class);
         assertFalse(response.isSuccess());
-        assertEquals("Either imageUrl or imageBase64 must be provided", response.getMessage());
+        assertEquals("One of imageKey, imageUrl or imageBase64 must be provided", response.getMessage());
         
         // Verify no service calls were made
-        verify(rekognitionService, never()).analyzeImageFromUrl(any());
-        verify(rekognitionService, never()).analyzeImageFromBase64(any());
-        verify(postRekognitionService, never()).postProcessTextDetections(any());
+        verify(rekognitionService, never()).analyzeImageFromUrl(any(), any(), any());
+        verify(rekognitionService, never()).analyzeImageFromBase64(any(), any(), any());
+        verify(postRekognitionService, never()).detectPlate(any());
     }
 
     @Test
@@ -205,10 +249,10 @@ class RickshawAnalysisHandlerTest {
         
         ImageAnalysisResponse response = objectMapper.readValue(responseEvent.getBody(), ImageAnalysisResponse.class);
         assertFalse(response.isSuccess());
-        assertEquals("Either imageUrl or imageBase64 must be provided", response.getMessage());
+        assertEquals("One of imageKey, imageUrl or imageBase64 must be provided", response.getMessage());
         
-        verify(rekognitionService, never()).analyzeImageFromUrl(any());
-        verify(rekognitionService, never()).analyzeImageFromBase64(any());
+        verify(rekognitionService, never()).analyzeImageFromUrl(any(), any(), any());
+        verify(rekognitionService, never()).analyzeImageFromBase64(any(), any(), any());
     }
 
     @Test
@@ -221,7 +265,7 @@ class RickshawAnalysisHandlerTest {
                 .withHttpMethod("POST")
                 .withBody(objectMapper.writeValueAsString(request));
         
-        when(rekognitionService.analyzeImageFromUrl(imageUrl))
+        when(rekognitionService.analyzeImageFromUrl(eq(imageUrl), any(), eq(Priority.INTERACTIVE)))
                 .thenThrow(new RuntimeException("Failed to download image"));
 
         // When
@@ -236,8 +280,8 @@ class RickshawAnalysisHandlerTest {
         assertTrue(response.getMessage().contains("Error processing image"));
         assertTrue(response.getMessage().contains("Failed to download image"));
         
-        verify(rekognitionService).analyzeImageFromUrl(imageUrl);
-        verify(postRekognitionService, never()).postProcessTextDetections(any());
+        verify(rekognitionService).analyzeImageFromUrl(eq(imageUrl), any(), eq(Priority.INTERACTIVE));
+        verify(postRekognitionService, never()).detectPlate(any());
     }
 
     @Test
@@ -252,9 +296,9 @@ class RickshawAnalysisHandlerTest {
         
         DetectTextResponse mockDetectResponse = DetectTextResponse.builder().build();
         
-        when(rekognitionService.analyzeImageFromUrl(imageUrl))
+        when(rekognitionService.analyzeImageFromUrl(eq(imageUrl), any(), eq(Priority.INTERACTIVE)))
                 .thenReturn(mockDetectResponse);
-        when(postRekognitionService.postProcessTextDetections(mockDetectResponse))
+        when(postRekognitionService.detectPlate(mockDetectResponse))
                 .thenThrow(new RuntimeException("Post-processing failed"));
 
         // When
@@ -269,8 +313,8 @@ class RickshawAnalysisHandlerTest {
         assertTrue(response.getMessage().contains("Error processing image"));
         assertTrue(response.getMessage().contains("Post-processing failed"));
         
-        verify(rekognitionService).analyzeImageFromUrl(imageUrl);
-        verify(postRekognitionService).postProcessTextDetections(mockDetectResponse);
+        verify(rekognitionService).analyzeImageFromUrl(eq(imageUrl), any(), eq(Priority.INTERACTIVE));
+        verify(postRekognitionService).detectPlate(mockDetectResponse);
     }
 
     @Test
@@ -292,10 +336,10 @@ class RickshawAnalysisHandlerTest {
                 ))
                 .build();
         
-        when(rekognitionService.analyzeImageFromUrl(imageUrl))
+        when(rekognitionService.analyzeImageFromUrl(eq(imageUrl), any(), eq(Priority.INTERACTIVE)))
                 .thenReturn(mockDetectResponse);
-        when(postRekognitionService.postProcessTextDetections(mockDetectResponse))
-                .thenReturn("Invalid state code");
+        when(postRekognitionService.detectPlate(mockDetectResponse))
+                .thenReturn(new PlateDetectionResult("Invalid state code", null));
 
         // When
         APIGatewayProxyResponseEvent responseEvent = handler.handleRequest(requestEvent, mockContext);
@@ -309,8 +353,485 @@ class RickshawAnalysisHandlerTest {
         assertEquals("Number plate validation failed", response.getMessage());
         assertEquals("Invalid state code", response.getData());
         
-        verify(rekognitionService).analyzeImageFromUrl(imageUrl);
-        verify(postRekognitionService).postProcessTextDetections(mockDetectResponse);
+        verify(rekognitionService).analyzeImageFromUrl(eq(imageUrl), any(), eq(Priority.INTERACTIVE));
+        verify(postRekognitionService).detectPlate(mockDetectResponse);
+    }
+
+    @Test
+    void testHandleRequest_RatingSubmission_WrittenBeforeReturning() throws Exception {
+        // Given
+        RatingRequest request = new RatingRequest("ap-13 v 7951", 5, "rating-handler-test-1");
+
+        APIGatewayProxyRequestEvent requestEvent = new APIGatewayProxyRequestEvent()
+                .withHttpMethod("POST")
+                .withPath("/ratings")
+                .withBody(objectMapper.writeValueAsString(request));
+
+        // When
+        APIGatewayProxyResponseEvent responseEvent = handler.handleRequest(requestEvent, mockContext);
+
+        // Then
+        assertEquals(202, responseEvent.getStatusCode());
+
+        RatingResponse response = objectMapper.readValue(responseEvent.getBody(), RatingResponse.class);
+        assertTrue(response.isSuccess());
+        assertEquals("AP13V7951", response.getPlate());
+
+        // Flushed before returning, as Lambda may freeze the environment straight after
+        assertEquals(0, ratingWriteBuffer.pendingCount());
+        assertTrue(ratingService.getRatings("AP13V7951").stream()
+                .anyMatch(rating -> rating.getIdempotencyKey().equals("rating-handler-test-1")));
+
+        verifyNoInteractions(rekognitionService, postRekognitionService);
+    }
+
+    @Test
+    void testHandleRequest_RatingSubmission_InvalidPlate() throws Exception {
+        // Given
+        RatingRequest request = new RatingRequest("not a plate", 3, null);
+
+        APIGatewayProxyRequestEvent requestEvent = new APIGatewayProxyRequestEvent()
+                .withHttpMethod("POST")
+                .withPath("/ratings")
+                .withBody(objectMapper.writeValueAsString(request));
+
+        // When
+        APIGatewayProxyResponseEvent responseEvent = handler.handleRequest(requestEvent, mockContext);
+
+        // Then
+        assertEquals(400, responseEvent.getStatusCode());
+
+        RatingResponse response = objectMapper.readValue(responseEvent.getBody(), RatingResponse.class);
+        assertFalse(response.isSuccess());
+        assertEquals("Invalid number plate", response.getMessage());
+    }
+
+    @Test
+    void testHandleRequest_RatingSubmission_IdempotencyKeyTooLong() throws Exception {
+        // Given
+        RatingRequest request = new RatingRequest("KA01AB1234", 3, "k".repeat(129));
+
+        APIGatewayProxyRequestEvent requestEvent = new APIGatewayProxyRequestEvent()
+                .withHttpMethod("POST")
+                .withPath("/ratings")
+                .withBody(objectMapper.writeValueAsString(request));
+
+        // When
+        APIGatewayProxyResponseEvent responseEvent = handler.handleRequest(requestEvent, mockContext);
+
+        // Then
+        assertEquals(400, responseEvent.getStatusCode());
+
+        RatingResponse response = objectMapper.readValue(responseEvent.getBody(), RatingResponse.class);
+        assertFalse(response.isSuccess());
+        assertEquals("Idempotency key must be at most 128 characters", response.getMessage());
+    }
+
+    @Test
+    void testHandleRequest_RatingSubmission_ReservedIdempotencyKey() throws Exception {
+        // Given
+        RatingRequest request = new RatingRequest("KA01AB1234", 1, "#aggregate");
+
+        APIGatewayProxyRequestEvent requestEvent = new APIGatewayProxyRequestEvent()
+                .withHttpMethod("POST")
+                .withPath("/ratings")
+                .withBody(objectMapper.writeValueAsString(request));
+
+        // When
+        APIGatewayProxyResponseEvent responseEvent = handler.handleRequest(requestEvent, mockContext);
+
+        // Then
+        assertEquals(400, responseEvent.getStatusCode());
+
+        RatingResponse response = objectMapper.readValue(responseEvent.getBody(), RatingResponse.class);
+        assertFalse(response.isSuccess());
+        assertEquals("Idempotency key must not start with '#'", response.getMessage());
+    }
+
+    @Test
+    void testHandleRequest_IncludesRatingForDetectedPlate() throws Exception {
+        // Given
+        ratingService.submitRating(new RatingRequest("KA01AB1234", 4, "rating-lookup-test-1"));
+
+        String imageUrl = "https://example.com/image.jpg";
+        APIGatewayProxyRequestEvent requestEvent = new APIGatewayProxyRequestEvent()
+                .withHttpMethod("POST")
+                .withBody(objectMapper.writeValueAsString(new ImageAnalysisRequest(imageUrl, null)));
+
+        DetectTextResponse mockDetectResponse = DetectTextResponse.builder().build();
+        when(rekognitionService.analyzeImageFromUrl(eq(imageUrl), any(), eq(Priority.INTERACTIVE))).thenReturn(mockDetectResponse);
+        when(postRekognitionService.detectPlate(mockDetectResponse)).thenReturn(new PlateDetectionResult("KA01AB1234", null));
+
+        // When
+        APIGatewayProxyResponseEvent responseEvent = handler.handleRequest(requestEvent, mockContext);
+
+        // Then
+        ImageAnalysisResponse response = objectMapper.readValue(responseEvent.getBody(), ImageAnalysisResponse.class);
+        assertTrue(response.isSuccess());
+        assertNotNull(response.getRating());
+        assertEquals("KA01AB1234", response.getRating().getPlate());
+        assertTrue(response.getRating().getCount() >= 1);
+    }
+
+    @Test
+    void testHandleRequest_FastPathConfidenceIsReturned() throws Exception {
+        // Given
+        String imageUrl = "https://example.com/image.jpg";
+        APIGatewayProxyRequestEvent requestEvent = new APIGatewayProxyRequestEvent()
+                .withHttpMethod("POST")
+                .withBody(objectMapper.writeValueAsString(new ImageAnalysisRequest(imageUrl, null)));
+
+        DetectTextResponse mockDetectResponse = DetectTextResponse.builder().build();
+        when(rekognitionService.analyzeImageFromUrl(eq(imageUrl), any(), eq(Priority.INTERACTIVE))).thenReturn(mockDetectResponse);
+        when(postRekognitionService.detectPlate(mockDetectResponse))
+                .thenReturn(new PlateDetectionResult("MH12AB1234", 99.1f));
+
+        // When
+        APIGatewayProxyResponseEvent responseEvent = handler.handleRequest(requestEvent, mockContext);
+
+        // Then
+        ImageAnalysisResponse response = objectMapper.readValue(responseEvent.getBody(), ImageAnalysisResponse.class);
+        assertTrue(response.isSuccess());
+        assertEquals("MH12AB1234", response.getData());
+        assertEquals(99.1f, response.getConfidence());
+    }
+
+    @Test
+    void testHandleRequest_MultiPlateReturnsEveryPlate() throws Exception {
+        // Given
+        String imageUrl = "https://example.com/rickshaw-stand.jpg";
+        APIGatewayProxyRequestEvent requestEvent = new APIGatewayProxyRequestEvent()
+                .withHttpMethod("POST")
+                .withBody(objectMapper.writeValueAsString(new ImageAnalysisRequest(imageUrl, null, true)));
+
+        DetectTextResponse mockDetectResponse = DetectTextResponse.builder().build();
+        when(rekognitionService.analyzeImageFromUrl(eq(imageUrl), any(), eq(Priority.INTERACTIVE))).thenReturn(mockDetectResponse);
+        when(postRekognitionService.detectPlates(mockDetectResponse)).thenReturn(List.of(
+                DetectedPlate.builder().plate("MH12AB1234").left(0.1f).top(0.5f).width(0.2f).height(0.1f).build(),
+                DetectedPlate.builder().plate("KA01CD5678").confidence(99f).left(0.6f).top(0.5f).width(0.2f).height(0.1f).build()));
+
+        // When
+        APIGatewayProxyResponseEvent responseEvent = handler.handleRequest(requestEvent, mockContext);
+
+        // Then
+        assertEquals(200, responseEvent.getStatusCode());
+        ImageAnalysisResponse response = objectMapper.readValue(responseEvent.getBody(), ImageAnalysisResponse.class);
+        assertTrue(response.isSuccess());
+        assertEquals("MH12AB1234", response.getData());
+        assertEquals(List.of("MH12AB1234", "KA01CD5678"), response.getPlates().stream().map(DetectedPlate::getPlate).toList());
+        assertEquals(0.6f, response.getPlates().get(1).getLeft());
+        verify(postRekognitionService, never()).detectPlate(any());
+    }
+
+    @Test
+    void testHandleRequest_MultiPlateWithNoPlates() throws Exception {
+        // Given
+        String imageUrl = "https://example.com/empty-road.jpg";
+        APIGatewayProxyRequestEvent requestEvent = new APIGatewayProxyRequestEvent()
+                .withHttpMethod("POST")
+                .withBody(objectMapper.writeValueAsString(new ImageAnalysisRequest(imageUrl, null, true)));
+
+        DetectTextResponse mockDetectResponse = DetectTextResponse.builder().build();
+        when(rekognitionService.analyzeImageFromUrl(eq(imageUrl), any(), eq(Priority.INTERACTIVE))).thenReturn(mockDetectResponse);
+        when(postRekognitionService.detectPlates(mockDetectResponse)).thenReturn(List.of());
+
+        // When
+        APIGatewayProxyResponseEvent responseEvent = handler.handleRequest(requestEvent, mockContext);
+
+        // Then
+        assertEquals(200, responseEvent.getStatusCode());
+        ImageAnalysisResponse response = objectMapper.readValue(responseEvent.getBody(), ImageAnalysisResponse.class);
+        assertFalse(response.isSuccess());
+        assertTrue(response.getPlates().isEmpty());
+    }
+
+    @Test
+    void testHandleRequest_DeadlineExceededReturnsGatewayTimeout() throws Exception {
+        // Given
+        String imageUrl = "https://example.com/slow.jpg";
+        APIGatewayProxyRequestEvent requestEvent = new APIGatewayProxyRequestEvent()
+                .withHttpMethod("POST")
+                .withBody(objectMapper.writeValueAsString(new ImageAnalysisRequest(imageUrl, null)));
+        when(mockContext.getRemainingTimeInMillis()).thenReturn(3000);
+        when(rekognitionService.analyzeImageFromUrl(eq(imageUrl), any(), eq(Priority.INTERACTIVE)))
+                .thenThrow(new DeadlineExceededException("Text detection didn't finish before the deadline"));
+
+        // When
+        APIGatewayProxyResponseEvent responseEvent = handler.handleRequest(requestEvent, mockContext);
+
+        // Then
+        assertEquals(504, responseEvent.getStatusCode());
+        ImageAnalysisResponse response = objectMapper.readValue(responseEvent.getBody(), ImageAnalysisResponse.class);
+        assertFalse(response.isSuccess());
+        assertEquals("Image analysis timed out, please try again", response.getMessage());
+        verify(postRekognitionService, never()).detectPlate(any());
+    }
+
+    @Test
+    void testHandleRequest_DeadlineComesFromLambdaRemainingTime() throws Exception {
+        // Given
+        String imageUrl = "https://example.com/image.jpg";
+        APIGatewayProxyRequestEvent requestEvent = new APIGatewayProxyRequestEvent()
+                .withHttpMethod("POST")
+                .withBody(objectMapper.writeValueAsString(new ImageAnalysisRequest(imageUrl, null)));
+        when(mockContext.getRemainingTimeInMillis()).thenReturn(5000);
+        DetectTextResponse mockDetectResponse = DetectTextResponse.builder().build();
+        when(rekognitionService.analyzeImageFromUrl(eq(imageUrl), any(), eq(Priority.INTERACTIVE))).thenReturn(mockDetectResponse);
+        when(postRekognitionService.detectPlate(mockDetectResponse)).thenReturn(new PlateDetectionResult("MH12AB1234", null));
+
+        // When
+        handler.handleRequest(requestEvent, mockContext);
+
+        // Then, 5s left less the 1s reserve
+        ArgumentCaptor<Deadline> deadline = ArgumentCaptor.forClass(Deadline.class);
+        verify(rekognitionService).analyzeImageFromUrl(eq(imageUrl), deadline.capture(), eq(Priority.INTERACTIVE));
+        long remaining = deadline.getValue().remaining().toMillis();
+        assertTrue(remaining > 3000 && remaining <= 4000, "Remaining: " + remaining);
+    }
+
+    @Test
+    void testHandleRequest_WithImageKey_AnalysedFromS3() throws Exception {
+        // Given
+        String imageKey = "uploads/123e4567-e89b-12d3-a456-426614174000.jpg";
+        ImageAnalysisRequest request = new ImageAnalysisRequest();
+        request.setImageKey(imageKey);
+        APIGatewayProxyRequestEvent requestEvent = new APIGatewayProxyRequestEvent()
+                .withHttpMethod("POST")
+                .withBody(objectMapper.writeValueAsString(request));
+        DetectTextResponse mockDetectResponse = DetectTextResponse.builder().build();
+        when(rekognitionService.analyzeImageFromS3(eq(imageKey), any(), eq(Priority.INTERACTIVE))).thenReturn(mockDetectResponse);
+        when(postRekognitionService.detectPlate(mockDetectResponse)).thenReturn(new PlateDetectionResult("MH12AB1234", null));
+
+        // When
+        APIGatewayProxyResponseEvent responseEvent = handler.handleRequest(requestEvent, mockContext);
+
+        // Then
+        assertEquals(200, responseEvent.getStatusCode());
+        ImageAnalysisResponse response = objectMapper.readValue(responseEvent.getBody(), ImageAnalysisResponse.class);
+        assertEquals("MH12AB1234", response.getData());
+        verify(rekognitionService, never()).analyzeImageFromUrl(any(), any(), any());
+        verify(rekognitionService, never()).analyzeImageFromBase64(any(), any(), any());
+    }
+
+    @Test
+    void testHandleRequest_WithUnknownImageKey_ReturnsBadRequest() throws Exception {
+        // Given
+        ImageAnalysisRequest request = new ImageAnalysisRequest();
+        request.setImageKey("private/receipt.jpg");
+        APIGatewayProxyRequestEvent requestEvent = new APIGatewayProxyRequestEvent()
+                .withHttpMethod("POST")
+                .withBody(objectMapper.writeValueAsString(request));
+        when(rekognitionService.analyzeImageFromS3(eq("private/receipt.jpg"), any(), eq(Priority.INTERACTIVE)))
+                .thenThrow(new IllegalArgumentException("Unknown image key: private/receipt.jpg"));
+
+        // When
+        APIGatewayProxyResponseEvent responseEvent = handler.handleRequest(requestEvent, mockContext);
+
+        // Then
+        assertEquals(400, responseEvent.getStatusCode());
+        verify(postRekognitionService, never()).detectPlate(any());
+    }
+
+    @Test
+    void testHandleRequest_UploadWithoutBucket_ReturnsServiceUnavailable() throws Exception {
+        // Given, no uploads bucket is configured in tests
+        APIGatewayProxyRequestEvent requestEvent = new APIGatewayProxyRequestEvent()
+                .withHttpMethod("POST")
+                .withPath("/uploads")
+                .withBody(objectMapper.writeValueAsString(new ImageUploadRequest("image/jpeg", 1024)));
+
+        // When
+        APIGatewayProxyResponseEvent responseEvent = handler.handleRequest(requestEvent, mockContext);
+
+        // Then
+        assertEquals(503, responseEvent.getStatusCode());
+        ImageUploadResponse response = objectMapper.readValue(responseEvent.getBody(), ImageUploadResponse.class);
+        assertFalse(response.isSuccess());
+        assertEquals("Photo uploads are not enabled", response.getMessage());
+        verifyNoInteractions(rekognitionService, postRekognitionService);
     }
 
+    @Test
+    void testHandleRequest_JobsAreNotServedOnLambda() throws Exception {
+        // When
+        APIGatewayProxyResponseEvent responseEvent = handler.handleRequest(new APIGatewayProxyRequestEvent()
+                .withHttpMethod("POST")
+                .withPath("/analyze/jobs")
+                .withBody(objectMapper.writeValueAsString(new ImageAnalysisRequest("https://example.com/a.jpg", null))),
+                mockContext);
+
+        // Then
+        assertEquals(404, responseEvent.getStatusCode());
+        AnalysisJobResponse response = objectMapper.readValue(responseEvent.getBody(), AnalysisJobResponse.class);
+        assertFalse(response.isSuccess());
+        assertNull(response.getJobId());
+        verifyNoInteractions(rekognitionService, postRekognitionService);
+    }
+
+    @Test
+    void testAnalyzeStream_SendsEachStageThenTheResult() throws Exception {
+        // Given
+        String imageUrl = "https://example.com/stream.jpg";
+        DetectTextResponse mockDetectResponse = DetectTextResponse.builder()
+                .textDetections(List.of(
+                    TextDetection.builder().detectedText("MH12AB1234").type("LINE").confidence(90f).build(),
+                    TextDetection.builder().detectedText("MH12").type("WORD").confidence(90f).build(),
+                    TextDetection.builder().detectedText("AB1234").type("WORD").confidence(90f).build()
+                ))
+                .build();
+        when(rekognitionService.analyzeImageFromUrl(eq(imageUrl), any(), eq(Priority.INTERACTIVE))).thenReturn(mockDetectResponse);
+        when(postRekognitionService.detectPlate(mockDetectResponse))
+                .thenReturn(new PlateDetectionResult("MH12AB1234", null, "MH12 AB1234"));
+
+        // When
+        StreamResponse response = postAnalyzeStream(
+                objectMapper.writeValueAsString(new ImageAnalysisRequest(imageUrl, null)));
+
+        // Then
+        assertEquals(200, response.status());
+        assertTrue(response.contentType().contains("text/event-stream"), response.contentType());
+        String stream = response.body();
+        List<String> events = stream.lines()
+                .filter(line -> line.startsWith("event:"))
+                .map(line -> line.substring("event:".length()).trim())
+                .toList();
+        assertEquals(List.of("image_received", "ocr_started", "ocr_words", "candidate_plate", "validated_plate",
+                "rating", "result"), events);
+        assertTrue(stream.contains("[\"MH12\",\"AB1234\"]"), stream);
+        assertTrue(stream.contains("\"success\":true"), stream);
+    }
+
+    @Test
+    void testAnalyzeStream_EndsWithTheError() throws Exception {
+        // Given
+        when(rekognitionService.analyzeImageFromUrl(any(), any(), any()))
+                .thenThrow(new DeadlineExceededException("Text detection didn't finish before the deadline"));
+
+        // When
+        StreamResponse response = postAnalyzeStream(
+                objectMapper.writeValueAsString(new ImageAnalysisRequest("https://example.com/slow.jpg", null)));
+
+        // Then
+        assertEquals(200, response.status());
+        String stream = response.body();
+        assertTrue(stream.contains("event:error"), stream);
+        assertTrue(stream.contains("Image analysis timed out"), stream);
+        assertFalse(stream.contains("event:result"), stream);
+    }
+
+    @Test
+    void testHandleRequest_Leaderboard() throws Exception {
+        // Given
+        for (int i = 0; i < 5; i++) {
+            ratingService.submitRating(new RatingRequest("KA05MN" + (1000 + i), 1 + i, "leaderboard-test-" + i));
+            for (int j = 1; j < 5; j++) {
+                ratingService.submitRating(new RatingRequest("KA05MN" + (1000 + i), 1 + i, "leaderboard-test-" + i + "-" + j));
+            }
+        }
+
+        // When
+        APIGatewayProxyResponseEvent worst = handler.handleRequest(new APIGatewayProxyRequestEvent()
+                .withHttpMethod("GET")
+                .withPath("/leaderboards/ka05")
+                .withQueryStringParameters(java.util.Map.of("order", "worst", "limit", "2")), mockContext);
+        APIGatewayProxyResponseEvent badLimit = handler.handleRequest(new APIGatewayProxyRequestEvent()
+                .withHttpMethod("GET")
+                .withPath("/leaderboards/KA05")
+                .withQueryStringParameters(java.util.Map.of("limit", "1000")), mockContext);
+
+        // Then
+        assertEquals(200, worst.getStatusCode());
+        LeaderboardResponse response = objectMapper.readValue(worst.getBody(), LeaderboardResponse.class);
+        assertEquals("KA05", response.getRegion());
+        assertEquals(List.of("KA05MN1000", "KA05MN1001"),
+                response.getEntries().stream().map(LeaderboardEntry::getPlate).toList());
+        assertEquals(400, badLimit.getStatusCode());
+    }
+
+    @Test
+    void testHandleRequest_Stats() throws Exception {
+        // Given
+        when(postRekognitionService.fastPathHitRatio()).thenReturn(0.75);
+
+        // When
+        APIGatewayProxyResponseEvent responseEvent = handler.handleRequest(new APIGatewayProxyRequestEvent()
+                .withHttpMethod("GET")
+                .withPath("/stats"), mockContext);
+
+        // Then
+        assertEquals(200, responseEvent.getStatusCode());
+        StatsResponse response = objectMapper.readValue(responseEvent.getBody(), StatsResponse.class);
+        assertTrue(response.isSuccess());
+        assertTrue(response.getRekognition().getTps() > 0);
+        assertEquals(0, response.getRekognition().getQueued());
+        assertEquals(0.75, response.getFastPathHitRatio());
+    }
+
+    @Test
+    void testScanSession_SendsThePlateOnceFramesAgree() throws Exception {
+        // Given
+        DetectTextResponse mockDetectResponse = DetectTextResponse.builder()
+                .textDetections(List.of(
+                    TextDetection.builder().detectedText("MH12AB1234").type("LINE").confidence(97f).build()
+                ))
+                .build();
+        when(rekognitionService.analyzeImageFromBase64(any(), any(), eq(Priority.INTERACTIVE))).thenReturn(mockDetectResponse);
+        when(postRekognitionService.detectPlate(mockDetectResponse))
+                .thenReturn(new PlateDetectionResult("MH12AB1234", 97f, "MH12AB1234"));
+
+        BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        HttpClient client = vertx.createHttpClient();
+        try {
+            WebSocket socket = client.webSocket(scanSessionUri.getPort(), scanSessionUri.getHost(), scanSessionUri.getPath())
+                    .toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS);
+            socket.textMessageHandler(messages::add);
+
+            // When
+            List<ScanEvent.Type> types = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                socket.writeBinaryMessage(Buffer.buffer(new byte[] { (byte) 0xff, (byte) 0xd8, (byte) i }));
+                types.add(nextScanEvent(messages).getType());
+            }
+            ScanEvent plate = nextScanEvent(messages);
+            socket.writeTextMessage("hello");
+            ScanEvent error = nextScanEvent(messages);
+
+            // Then
+            assertEquals(List.of(ScanEvent.Type.FRAME, ScanEvent.Type.FRAME, ScanEvent.Type.FRAME), types);
+            assertEquals(ScanEvent.Type.PLATE, plate.getType());
+            assertEquals("MH12AB1234", plate.getPlate());
+            assertEquals(3, plate.getOcrCalls());
+            assertNotNull(plate.getRating());
+            assertEquals(ScanEvent.Type.ERROR, error.getType());
+            verify(rekognitionService, times(3)).analyzeImageFromBase64(any(), any(), eq(Priority.INTERACTIVE));
+        } finally {
+            client.close();
+        }
+    }
+
+    /*
+     * Over the real HTTP server, the SSE endpoint isn't served through the Lambda handler
+     */
+    private StreamResponse postAnalyzeStream(String body) throws Exception {
+        HttpClient client = vertx.createHttpClient();
+        try {
+            return client.request(HttpMethod.POST, analyzeStreamUri.getPort(), analyzeStreamUri.getHost(),
+                            analyzeStreamUri.getPath())
+                    .compose(request -> request.putHeader("Content-Type", "application/json").send(body))
+                    .compose(response -> response.body().map(buffer -> new StreamResponse(response.statusCode(),
+                            response.getHeader("Content-Type"), buffer.toString())))
+                    .toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+        } finally {
+            client.close();
+        }
+    }
+
+    private record StreamResponse(int status, String contentType, String body) {
+    }
+
+    private ScanEvent nextScanEvent(BlockingQueue<String> messages) throws Exception {
+        String message = messages.poll(5, TimeUnit.SECONDS);
+        assertNotNull(message, "No scan event");
+        return objectMapper.readValue(message, ScanEvent.class);
+    }
 }
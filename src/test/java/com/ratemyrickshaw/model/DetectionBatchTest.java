@@ -0,0 +1,135 @@
+package com.ratemyrickshaw.model;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import software.amazon.awssdk.services.rekognition.model.BoundingBox;
+import software.amazon.awssdk.services.rekognition.model.Geometry;
+import software.amazon.awssdk.services.rekognition.model.Point;
+import software.amazon.awssdk.services.rekognition.model.TextDetection;
+
+class DetectionBatchTest {
+
+    private static final List<TextDetection> DETECTIONS = List.of(
+            detection("MH12 AB1234", "LINE", 0, null, 99f, box(0.1f, 0.2f, 0.4f, 0.1f)),
+            detection("MH12", "WORD", 1, 0, 98f, box(0.1f, 0.2f, 0.15f, 0.1f)),
+            detection("AB1234", "WORD", 2, 0, 97f, box(0.3f, 0.2f, 0.2f, 0.1f)),
+            detection("MH12", "WORD", 3, 7, null, null));
+
+    @Test
+    void testColumnsHoldTheDetections() {
+        DetectionBatch batch = DetectionBatch.of(DETECTIONS);
+
+        assertEquals(4, batch.size());
+        assertTrue(batch.isLine(0));
+        assertTrue(batch.isWord(1));
+        assertEquals("MH12 AB1234", batch.text(0));
+        assertEquals("AB1234", batch.textView(2).toString());
+        assertEquals(0.3f, batch.left(2));
+        assertEquals(0.25f, batch.centreY(2), 1e-6);
+        assertEquals(97f, batch.confidence(2));
+        assertTrue(batch.sameText(1, 3));
+        assertFalse(batch.sameText(1, 2));
+    }
+
+    @Test
+    void testMissingValuesAreNaNOrNoId() {
+        DetectionBatch batch = DetectionBatch.of(DETECTIONS);
+
+        assertEquals(DetectionBatch.NO_ID, batch.parentId(0));
+        assertTrue(Float.isNaN(batch.confidence(3)));
+        assertFalse(batch.hasBox(3));
+        // Its parent id isn't in the response
+        assertEquals(-1, batch.parent(3));
+    }
+
+    @Test
+    void testParentsAreResolvedToIndexes() {
+        DetectionBatch batch = DetectionBatch.of(DETECTIONS);
+        assertEquals(0, batch.parent(1));
+        assertEquals(0, batch.parent(2));
+
+        DetectionBatch words = batch.select(new int[] { 2, 1 });
+        assertEquals("AB1234", words.text(0));
+        assertEquals("MH12", words.text(1));
+        assertEquals(0, words.parentId(0));
+        assertEquals(-1, words.parent(0), "The LINE wasn't selected");
+
+        DetectionBatch withLine = batch.select(new int[] { 1, 0 });
+        assertEquals(1, withLine.parent(0));
+    }
+
+    @Test
+    void testHugeAndNegativeIdsAreResolvedWithoutAnArrayById() {
+        DetectionBatch batch = DetectionBatch.of(List.of(
+                detection("MH12 AB1234", "LINE", Integer.MAX_VALUE, null, 99f, box(0.1f, 0.2f, 0.4f, 0.1f)),
+                detection("MH12", "WORD", 1_000_000_000, Integer.MAX_VALUE, 98f, box(0.1f, 0.2f, 0.15f, 0.1f)),
+                detection("AB1234", "WORD", -5, Integer.MAX_VALUE, 97f, box(0.3f, 0.2f, 0.2f, 0.1f)),
+                detection("1234", "WORD", 3, -5, 96f, box(0.4f, 0.2f, 0.1f, 0.1f)),
+                detection("AB", "WORD", 4, 999, 95f, box(0.3f, 0.2f, 0.1f, 0.1f))));
+
+        assertEquals(0, batch.parent(1));
+        assertEquals(0, batch.parent(2));
+        // A negative id is no id, so nothing is its child
+        assertEquals(-1, batch.parent(3));
+        assertEquals(-1, batch.parent(4));
+    }
+
+    @Test
+    void testPolygonGivesTheAngleAndSize() {
+        TextDetection tilted = TextDetection.builder()
+                .detectedText("KA05")
+                .type("LINE")
+                .id(0)
+                .confidence(99f)
+                .geometry(Geometry.builder()
+                        .boundingBox(BoundingBox.builder().left(0f).top(0f).width(0.4f).height(0.4f).build())
+                        .polygon(point(0f, 0f), point(0.3f, 0.3f), point(0.2f, 0.4f), point(-0.1f, 0.1f))
+                        .build())
+                .build();
+
+        DetectionBatch batch = DetectionBatch.of(List.of(tilted, DETECTIONS.get(1)));
+
+        assertEquals(Math.PI / 4, batch.angle(0), 1e-6);
+        assertEquals(Math.hypot(0.3, 0.3), batch.length(0), 1e-6);
+        assertEquals(Math.hypot(0.1, 0.1), batch.thickness(0), 1e-6);
+        assertTrue(Float.isNaN(batch.angle(1)));
+        assertEquals(0.15f, batch.length(1));
+    }
+
+    @Test
+    void testSortIsStable() {
+        DetectionBatch batch = DetectionBatch.of(DETECTIONS);
+        int[] indexes = { 3, 2, 1, 0 };
+
+        DetectionBatch.sort(indexes, (a, b) -> Integer.compare(batch.textLength(a), batch.textLength(b)));
+
+        assertArrayEquals(new int[] { 3, 1, 2, 0 }, indexes);
+    }
+
+    private static TextDetection detection(String text, String type, int id, Integer parentId, Float confidence,
+            BoundingBox box) {
+        return TextDetection.builder()
+                .detectedText(text)
+                .type(type)
+                .id(id)
+                .parentId(parentId)
+                .confidence(confidence)
+                .geometry(box == null ? null : Geometry.builder().boundingBox(box).build())
+                .build();
+    }
+
+    private static BoundingBox box(float left, float top, float width, float height) {
+        return BoundingBox.builder().left(left).top(top).width(width).height(height).build();
+    }
+
+    private static Point point(float x, float y) {
+        return Point.builder().x(x).y(y).build();
+    }
+}
@@ -0,0 +1,133 @@
+package com.ratemyrickshaw.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+
+import org.junit.jupiter.api.Test;
+
+import com.ratemyrickshaw.model.AnalysisJob;
+import com.ratemyrickshaw.model.Deadline;
+import com.ratemyrickshaw.model.ImageAnalysisRequest;
+import com.ratemyrickshaw.model.ImageAnalysisResponse;
+import com.ratemyrickshaw.service.RekognitionRateGovernor.Priority;
+
+class AnalysisJobServiceTest {
+
+    private static final ImageAnalysisRequest REQUEST = new ImageAnalysisRequest("https://example.com/rickshaw.jpg", null);
+
+    @Test
+    void testJobRunsInTheBackgroundAsBulkWork() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicReference<Priority> priority = new AtomicReference<>();
+        InMemoryAnalysisJobStore store = new InMemoryAnalysisJobStore(Duration.ofMinutes(1));
+        AnalysisJobService jobs = new AnalysisJobService(analysis((request, sent) -> {
+            priority.set(sent);
+            await(release);
+            return ImageAnalysisResponse.builder().success(true).data("AP13V7951").build();
+        }), new InMemoryAnalysisJobQueue(10), store, 2, Duration.ofSeconds(10));
+        jobs.start();
+        try {
+            AnalysisJob job = jobs.submit(REQUEST);
+            assertEquals(AnalysisJob.Status.QUEUED, job.getStatus());
+
+            // Submitting doesn't wait for the analysis
+            assertTrue(waitFor(jobs, job.getId(), AnalysisJob.Status.RUNNING));
+            release.countDown();
+            assertTrue(waitFor(jobs, job.getId(), AnalysisJob.Status.COMPLETED));
+
+            AnalysisJob done = jobs.find(job.getId()).orElseThrow();
+            assertEquals("AP13V7951", done.getResult().getData());
+            assertNull(done.getRequest(), "A finished job shouldn't hold on to the photo");
+            assertTrue(done.getFinishedAt() >= done.getStartedAt());
+            assertEquals(Priority.BULK, priority.get());
+        } finally {
+            jobs.stop();
+        }
+    }
+
+    @Test
+    void testFullQueueTurnsJobsAway() {
+        InMemoryAnalysisJobStore store = new InMemoryAnalysisJobStore(Duration.ofMinutes(1));
+        // No workers, so nothing leaves the queue
+        AnalysisJobService jobs = new AnalysisJobService(analysis((request, priority) -> null),
+                new InMemoryAnalysisJobQueue(1), store, 0, Duration.ofSeconds(10));
+
+        jobs.submit(REQUEST);
+        assertThrows(CapacityExceededException.class, () -> jobs.submit(REQUEST));
+        assertEquals(1, store.size(), "A job that was turned away shouldn't be kept");
+
+        assertThrows(IllegalArgumentException.class, () -> jobs.submit(new ImageAnalysisRequest()));
+        // The photo itself would sit in the queue until a worker got to it
+        assertThrows(IllegalArgumentException.class, () -> jobs.submit(new ImageAnalysisRequest(null, "/9j/4AAQ")));
+    }
+
+    @Test
+    void testFailuresAreRecorded() {
+        InMemoryAnalysisJobStore store = new InMemoryAnalysisJobStore(Duration.ofMinutes(1));
+        AnalysisJobService jobs = new AnalysisJobService(analysis((request, priority) -> {
+            throw new DeadlineExceededException("Ran out of time before text detection");
+        }), new InMemoryAnalysisJobQueue(10), store, 0, Duration.ofSeconds(10));
+
+        AnalysisJob job = jobs.submit(REQUEST);
+        jobs.run(job);
+
+        AnalysisJob failed = jobs.find(job.getId()).orElseThrow();
+        assertEquals(AnalysisJob.Status.FAILED, failed.getStatus());
+        assertEquals("Image analysis timed out", failed.getError());
+        assertNull(failed.getResult());
+    }
+
+    @Test
+    void testFinishedJobsExpireAfterTheTtl() throws InterruptedException {
+        InMemoryAnalysisJobStore store = new InMemoryAnalysisJobStore(Duration.ofMillis(100));
+        store.save(AnalysisJob.builder().id("queued").status(AnalysisJob.Status.QUEUED).build());
+        store.save(AnalysisJob.builder().id("done").status(AnalysisJob.Status.COMPLETED).build());
+        assertTrue(store.find("done").isPresent());
+
+        Thread.sleep(150);
+        // The next save sweeps the expired job out
+        store.save(AnalysisJob.builder().id("running").status(AnalysisJob.Status.RUNNING).build());
+
+        assertTrue(store.find("done").isEmpty());
+        assertTrue(store.find("queued").isPresent(), "Only finished jobs expire");
+        assertEquals(2, store.size());
+    }
+
+    private static ImageAnalysisService analysis(
+            BiFunction<ImageAnalysisRequest, Priority, ImageAnalysisResponse> behaviour) {
+        return new ImageAnalysisService(null, null, null, null) {
+            @Override
+            public ImageAnalysisResponse analyze(ImageAnalysisRequest request, Deadline deadline, Priority priority) {
+                return behaviour.apply(request, priority);
+            }
+        };
+    }
+
+    private static boolean waitFor(AnalysisJobService jobs, String id, AnalysisJob.Status status)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            if (jobs.find(id).map(AnalysisJob::getStatus).orElse(null) == status) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
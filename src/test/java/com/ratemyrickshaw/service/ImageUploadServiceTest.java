@@ -0,0 +1,204 @@
+package com.ratemyrickshaw.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.ratemyrickshaw.model.Deadline;
+import com.ratemyrickshaw.model.ImageUploadRequest;
+import com.ratemyrickshaw.model.ImageUploadResponse;
+import com.ratemyrickshaw.service.RekognitionRateGovernor.Priority;
+
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.rekognition.RekognitionClient;
+import software.amazon.awssdk.services.rekognition.model.DetectTextRequest;
+import software.amazon.awssdk.services.rekognition.model.DetectTextResponse;
+import software.amazon.awssdk.services.rekognition.model.S3Object;
+import software.amazon.awssdk.services.rekognition.model.TextDetection;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3Configuration;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+
+/*
+The presigned upload flow end to end against LocalS3Server: upload with the presigned URL, analyse by key, and the
+upload is cleaned up afterwards. The fake Rekognition client reads the object from the stand-in, as Rekognition
+reads it from S3, so the photo's bytes never pass through RekognitionService.
+*/
+class ImageUploadServiceTest {
+
+    private static final String BUCKET = "rickshaw-uploads";
+    private static final byte[] PHOTO = "not really a jpeg".getBytes();
+
+    private LocalS3Server s3;
+    private S3Client s3Client;
+    private S3Presigner s3Presigner;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        s3 = new LocalS3Server();
+        StaticCredentialsProvider credentials = StaticCredentialsProvider.create(AwsBasicCredentials.create("test", "test"));
+        s3Client = S3Client.builder()
+                .region(Region.EU_WEST_2)
+                .credentialsProvider(credentials)
+                .endpointOverride(s3.endpoint())
+                .forcePathStyle(true)
+                .build();
+        s3Presigner = S3Presigner.builder()
+                .region(Region.EU_WEST_2)
+                .credentialsProvider(credentials)
+                .endpointOverride(s3.endpoint())
+                .serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(true).build())
+                .build();
+    }
+
+    @AfterEach
+    void tearDown() {
+        s3Client.close();
+        s3Presigner.close();
+        s3.close();
+    }
+
+    @Test
+    void testPresignedUploadIsAnalysedFromS3AndDeleted() throws Exception {
+        ImageUploadService uploads = uploads(Optional.of(BUCKET));
+
+        ImageUploadResponse upload = uploads.createUpload(new ImageUploadRequest("image/jpeg", PHOTO.length));
+        assertTrue(upload.isSuccess());
+        assertTrue(upload.getImageKey().matches("uploads/[0-9a-f-]{36}\\.jpg"), upload.getImageKey());
+        assertTrue(upload.getUploadUrl().contains("X-Amz-Signature="));
+        assertEquals("image/jpeg", upload.getHeaders().get("content-type"));
+
+        assertEquals(200, put(upload));
+        assertArrayEquals(PHOTO, s3.object(BUCKET, upload.getImageKey()).bytes());
+
+        AtomicReference<DetectTextRequest> sent = new AtomicReference<>();
+        RekognitionService rekognition = rekognition(uploads, request -> {
+            sent.set(request);
+            S3Object image = request.image().s3Object();
+            // Rekognition reads the photo from the bucket itself
+            assertArrayEquals(PHOTO, s3.object(image.bucket(), image.name()).bytes());
+            return DetectTextResponse.builder()
+                    .textDetections(List.of(TextDetection.builder().detectedText("MH12AB1234").type("LINE").build()))
+                    .build();
+        });
+
+        DetectTextResponse response = rekognition.analyzeImageFromS3(upload.getImageKey(),
+                Deadline.after(Duration.ofSeconds(5)), Priority.INTERACTIVE);
+
+        assertEquals("MH12AB1234", response.textDetections().get(0).detectedText());
+        assertNull(sent.get().image().bytes());
+        assertEquals(BUCKET, sent.get().image().s3Object().bucket());
+        assertEquals(upload.getImageKey(), sent.get().image().s3Object().name());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (s3.object(BUCKET, upload.getImageKey()) != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNull(s3.object(BUCKET, upload.getImageKey()), "The upload should be deleted once analysed");
+    }
+
+    @Test
+    void testOnlyPhotosOfAcceptedTypesAndSizesCanBeUploaded() {
+        ImageUploadService uploads = uploads(Optional.of(BUCKET));
+
+        assertThrows(IllegalArgumentException.class, () -> uploads.createUpload(new ImageUploadRequest("image/gif", 100)));
+        assertThrows(IllegalArgumentException.class, () -> uploads.createUpload(new ImageUploadRequest(null, 100)));
+        assertThrows(IllegalArgumentException.class, () -> uploads.createUpload(new ImageUploadRequest("image/png", 0)));
+        assertThrows(IllegalArgumentException.class,
+                () -> uploads.createUpload(new ImageUploadRequest("image/png", 16L * 1024 * 1024)));
+        assertTrue(uploads.createUpload(new ImageUploadRequest("image/png", 100)).getImageKey().endsWith(".png"));
+    }
+
+    @Test
+    void testOnlyUploadedKeysCanBeAnalysed() {
+        ImageUploadService uploads = uploads(Optional.of(BUCKET));
+        s3.put(BUCKET, "private/receipt.jpg", PHOTO, "image/jpeg");
+
+        assertThrows(IllegalArgumentException.class, () -> uploads.image("private/receipt.jpg"));
+        assertThrows(IllegalArgumentException.class, () -> uploads.image("uploads/../private/receipt.jpg"));
+        assertThrows(IllegalArgumentException.class, () -> uploads.image(null));
+        assertNotNull(uploads.image("uploads/123e4567-e89b-12d3-a456-426614174000.jpg").s3Object());
+    }
+
+    @Test
+    void testUploadsNeedABucket() {
+        ImageUploadService uploads = uploads(Optional.empty());
+
+        assertThrows(IllegalStateException.class, () -> uploads.createUpload(new ImageUploadRequest("image/jpeg", 100)));
+    }
+
+    @Test
+    void testFailedDeleteIsLeftToTheLifecycleRule() {
+        ImageUploadService uploads = uploads(Optional.of(BUCKET));
+        s3.close();
+
+        // Only logged, the lifecycle rule expires the object instead
+        assertDoesNotThrow(() -> uploads.delete("uploads/123e4567-e89b-12d3-a456-426614174000.jpg"));
+    }
+
+    private ImageUploadService uploads(Optional<String> bucket) {
+        return new ImageUploadService(s3Client, s3Presigner, bucket, "uploads/", Duration.ofMinutes(5), 15L * 1024 * 1024);
+    }
+
+    private RekognitionService rekognition(ImageUploadService uploads,
+            Function<DetectTextRequest, DetectTextResponse> behaviour) {
+        RekognitionService service = new RekognitionService();
+        service.rekognitionClient = new RekognitionClient() {
+            @Override
+            public DetectTextResponse detectText(DetectTextRequest request) {
+                return behaviour.apply(request);
+            }
+
+            @Override
+            public String serviceName() {
+                return SERVICE_NAME;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        service.imageUploadService = uploads;
+        service.hedgingEnabled = false;
+        service.initialHedgeDelay = Duration.ofSeconds(1);
+        service.minHedgeDelay = Duration.ofSeconds(1);
+        service.attemptTimeout = Duration.ofSeconds(10);
+        service.rateGovernor = new RekognitionRateGovernor(1000, 1, 1000, 0.5, 0.5, 100);
+        service.start();
+        return service;
+    }
+
+    /*
+     * Upload the photo the way the browser would, with the presigned URL and the headers it came with.
+     */
+    private int put(ImageUploadResponse upload) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) URI.create(upload.getUploadUrl()).toURL().openConnection();
+        connection.setRequestMethod("PUT");
+        connection.setDoOutput(true);
+        upload.getHeaders().forEach(connection::setRequestProperty);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(PHOTO);
+        }
+        return connection.getResponseCode();
+    }
+}
@@ -0,0 +1,208 @@
+package com.ratemyrickshaw.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import com.ratemyrickshaw.fn.NumberPlateValidationFn;
+import com.ratemyrickshaw.model.LeaderboardEntry;
+import com.ratemyrickshaw.model.LeaderboardSnapshot;
+import com.ratemyrickshaw.model.Rating;
+import com.ratemyrickshaw.model.RatingRequest;
+import com.ratemyrickshaw.model.RatingSummary;
+
+class LeaderboardsTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testBestAndWorstPerRtoAndState() {
+        Leaderboards leaderboards = leaderboards(2);
+        rate(leaderboards, "MH12AB1234", 5, 5, 4);
+        rate(leaderboards, "MH12CD5678", 1, 2);
+        rate(leaderboards, "MH14EF9012", 3, 3);
+        rate(leaderboards, "DL1RK5954", 5, 5);
+
+        assertEquals(List.of("MH12AB1234", "MH12CD5678"), plates(leaderboards.best("MH12", 10)));
+        assertEquals(List.of("MH12CD5678", "MH12AB1234"), plates(leaderboards.worst("MH12", 10)));
+        assertEquals(List.of("MH12AB1234", "MH14EF9012", "MH12CD5678"), plates(leaderboards.best("MH", 10)));
+        assertEquals(List.of("DL1RK5954"), plates(leaderboards.best("DL1", 10)));
+        assertEquals(List.of("MH12AB1234"), plates(leaderboards.best("MH", 1)));
+
+        LeaderboardEntry top = leaderboards.best("MH12", 1).get(0);
+        assertEquals(1, top.getRank());
+        assertEquals(3, top.getCount());
+        assertEquals(14 / 3.0, top.getAverageStars(), 1e-9);
+        assertTrue(leaderboards.best("KA01", 10).isEmpty());
+    }
+
+    @Test
+    void testDriversAreRankedOnceTheyHaveEnoughRatings() {
+        Leaderboards leaderboards = leaderboards(3);
+        rate(leaderboards, "MH12AB1234", 5, 5);
+        assertTrue(leaderboards.best("MH12", 10).isEmpty());
+
+        rate(leaderboards, "MH12AB1234", 1);
+        assertEquals(List.of("MH12AB1234"), plates(leaderboards.best("MH12", 10)));
+    }
+
+    @Test
+    void testStandingMovesAsRatingsComeIn() {
+        Leaderboards leaderboards = leaderboards(1);
+        rate(leaderboards, "MH12AB1234", 4);
+        rate(leaderboards, "MH12CD5678", 3);
+        assertEquals(List.of("MH12AB1234", "MH12CD5678"), plates(leaderboards.best("MH12", 10)));
+
+        rate(leaderboards, "MH12AB1234", 1, 1);
+        assertEquals(List.of("MH12CD5678", "MH12AB1234"), plates(leaderboards.best("MH12", 10)));
+        assertEquals(2, leaderboards.best("MH12", 10).size());
+    }
+
+    @Test
+    void testMergedSummaryOnlyReplacesAStandingWithFewerRatings() {
+        Leaderboards leaderboards = leaderboards(1);
+        rate(leaderboards, "MH12AB1234", 5);
+
+        // Other nodes' ratings, seen in the merged summary
+        leaderboards.observe(summary("MH12AB1234", 4, 2.5));
+        assertEquals(4, leaderboards.best("MH12", 1).get(0).getCount());
+        assertEquals(2.5, leaderboards.best("MH12", 1).get(0).getAverageStars(), 1e-9);
+
+        // A stale summary never undoes what's already counted
+        leaderboards.observe(summary("MH12AB1234", 1, 5.0));
+        assertEquals(4, leaderboards.best("MH12", 1).get(0).getCount());
+    }
+
+    @Test
+    void testSnapshotRestoresTheSameLeaderboards() {
+        Leaderboards leaderboards = leaderboards(2);
+        rate(leaderboards, "MH12AB1234", 5, 4);
+        rate(leaderboards, "MH12CD5678", 2, 2, 3);
+        rate(leaderboards, "TN11AP2245", 1);
+
+        LeaderboardSnapshot snapshot = leaderboards.snapshot();
+        assertEquals(3, snapshot.getPlates().size());
+
+        Leaderboards restored = leaderboards(2);
+        restored.restore(snapshot);
+        assertEquals(leaderboards.best("MH", 10), restored.best("MH", 10));
+        assertEquals(leaderboards.worst("MH12", 10), restored.worst("MH12", 10));
+    }
+
+    @Test
+    void testConcurrentRatingsAreAllCounted() throws InterruptedException {
+        Leaderboards leaderboards = leaderboards(1);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 8_000; i++) {
+            String plate = "MH12AB" + (1000 + i % 20);
+            int stars = 1 + i % 5;
+            pool.execute(() -> leaderboards.record(rating(plate, stars)));
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+        List<LeaderboardEntry> best = leaderboards.best("MH12", 100);
+        assertEquals(20, best.size());
+        assertEquals(8_000, best.stream().mapToLong(LeaderboardEntry::getCount).sum());
+    }
+
+    @Test
+    void testReadersSeeEveryPlateOnceWhileStandingsChange() throws InterruptedException {
+        Leaderboards leaderboards = leaderboards(1);
+        for (int i = 0; i < 20; i++) {
+            rate(leaderboards, "MH12AB" + (1000 + i), 3);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        for (int i = 0; i < 40_000; i++) {
+            String plate = "MH12AB" + (1000 + i % 20);
+            int stars = 1 + i % 5;
+            pool.execute(() -> leaderboards.record(rating(plate, stars)));
+        }
+        pool.shutdown();
+
+        while (!pool.isTerminated()) {
+            List<String> plates = plates(leaderboards.best("MH12", 100));
+            assertEquals(20, plates.size());
+            assertEquals(20, plates.stream().distinct().count());
+        }
+    }
+
+    @Test
+    void testBoardsAreSavedToTheSnapshotFile() {
+        Path file = dir.resolve("leaderboards.json");
+        Leaderboards leaderboards = leaderboards(2, file);
+        rate(leaderboards, "MH12AB1234", 5, 4);
+        rate(leaderboards, "MH12CD5678", 2, 2, 3);
+        leaderboards.save();
+
+        Leaderboards restarted = leaderboards(2, file);
+        restarted.load();
+        assertEquals(leaderboards.best("MH12", 10), restarted.best("MH12", 10));
+    }
+
+    @Test
+    void testRetriedSubmissionCountsOnce() {
+        Leaderboards leaderboards = leaderboards(1);
+        RatingStore store = new InMemoryRatingStore();
+        RatingWriteBuffer buffer = mock(RatingWriteBuffer.class);
+        when(buffer.submit(any())).thenReturn(true);
+        RatingService ratingService = new RatingService(new NumberPlateValidationFn(), buffer, store,
+                mock(RatingCache.class), new RatingAggregates(store, Optional.of("this-node"), Duration.ofDays(30),
+                        Duration.ofSeconds(30), Duration.ofHours(1)),
+                leaderboards, mock(OcrConfusionLearner.class));
+
+        ratingService.submitRating(new RatingRequest("MH12AB1234", 5, "retried"));
+        ratingService.submitRating(new RatingRequest("MH12CD5678", 4, "other"));
+        // The client didn't hear back and sent the same rating again, twice
+        ratingService.submitRating(new RatingRequest("MH12AB1234", 5, "retried"));
+        ratingService.submitRating(new RatingRequest("MH12AB1234", 5, "retried"));
+
+        LeaderboardEntry top = leaderboards.best("MH12", 1).get(0);
+        assertEquals("MH12AB1234", top.getPlate());
+        assertEquals(1, top.getCount());
+        assertEquals(List.of("MH12AB1234", "MH12CD5678"), plates(leaderboards.best("MH12", 10)));
+    }
+
+    private static Leaderboards leaderboards(int minVotes) {
+        return leaderboards(minVotes, null);
+    }
+
+    private static Leaderboards leaderboards(int minVotes, Path snapshotFile) {
+        return new Leaderboards(new NumberPlateValidationFn(), new ObjectMapper(), minVotes,
+                Optional.ofNullable(snapshotFile).map(Path::toString), Duration.ofMinutes(5));
+    }
+
+    private static void rate(Leaderboards leaderboards, String plate, int... stars) {
+        for (int star : stars) {
+            leaderboards.record(rating(plate, star));
+        }
+    }
+
+    private static Rating rating(String plate, int stars) {
+        return Rating.builder().plate(plate).stars(stars).build();
+    }
+
+    private static RatingSummary summary(String plate, long count, double average) {
+        return RatingSummary.builder().plate(plate).count(count).averageStars(average).build();
+    }
+
+    private static List<String> plates(List<LeaderboardEntry> entries) {
+        return entries.stream().map(LeaderboardEntry::getPlate).toList();
+    }
+}
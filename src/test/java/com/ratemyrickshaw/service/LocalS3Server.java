@@ -0,0 +1,104 @@
+package com.ratemyrickshaw.service;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+A tiny S3 compatible stand-in for tests: path style PUT, GET, HEAD and DELETE of whole objects, kept in memory.
+Signatures aren't checked, only that the request was signed (a presigned URL or an Authorization header).
+*/
+class LocalS3Server implements AutoCloseable {
+
+    private final HttpServer server;
+    private final Map<String, StoredObject> objects = new ConcurrentHashMap<>();
+
+    LocalS3Server() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    URI endpoint() {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    StoredObject object(String bucket, String key) {
+        return objects.get(bucket + "/" + key);
+    }
+
+    void put(String bucket, String key, byte[] bytes, String contentType) {
+        objects.put(bucket + "/" + key, new StoredObject(bytes, contentType));
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String query = exchange.getRequestURI().getRawQuery();
+            boolean signed = exchange.getRequestHeaders().containsKey("Authorization")
+                    || (query != null && query.contains("X-Amz-Signature="));
+            if (!signed) {
+                exchange.sendResponseHeaders(403, -1);
+                return;
+            }
+
+            // Path style: /bucket/key
+            String path = exchange.getRequestURI().getPath().substring(1);
+            StoredObject object = objects.get(path);
+            switch (exchange.getRequestMethod()) {
+                case "PUT" -> {
+                    objects.put(path, new StoredObject(exchange.getRequestBody().readAllBytes(),
+                            exchange.getRequestHeaders().getFirst("Content-Type")));
+                    exchange.getResponseHeaders().add("ETag", "\"" + Integer.toHexString(path.hashCode()) + "\"");
+                    exchange.sendResponseHeaders(200, -1);
+                }
+                case "GET", "HEAD" -> {
+                    if (object == null) {
+                        exchange.sendResponseHeaders(404, -1);
+                        return;
+                    }
+                    exchange.getResponseHeaders().add("Content-Type", object.contentType());
+                    if (exchange.getRequestMethod().equals("HEAD")) {
+                        exchange.getResponseHeaders().add("Content-Length", String.valueOf(object.bytes().length));
+                        exchange.sendResponseHeaders(200, -1);
+                    } else {
+                        exchange.sendResponseHeaders(200, object.bytes().length);
+                        exchange.getResponseBody().write(object.bytes());
+                    }
+                }
+                case "DELETE" -> {
+                    objects.remove(path);
+                    exchange.sendResponseHeaders(204, -1);
+                }
+                default -> exchange.sendResponseHeaders(405, -1);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    static final class StoredObject {
+        private final byte[] bytes;
+        private final String contentType;
+
+        StoredObject(byte[] bytes, String contentType) {
+            this.bytes = bytes;
+            this.contentType = contentType;
+        }
+
+        byte[] bytes() {
+            return bytes;
+        }
+
+        String contentType() {
+            return contentType;
+        }
+    }
+}
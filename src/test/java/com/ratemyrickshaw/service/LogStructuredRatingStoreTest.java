@@ -0,0 +1,211 @@
+package com.ratemyrickshaw.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ratemyrickshaw.model.Rating;
+import com.ratemyrickshaw.model.RatingAggregate;
+
+class LogStructuredRatingStoreTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void testReadsWhatWasWritten() throws IOException {
+        try (LogStructuredRatingStore store = store(1 << 20, 4)) {
+            store.writeBatch(List.of(rating("MH12AB1234", "a", 4, 2), rating("MH12AB1234", "b", 2, 1),
+                    rating("DL1RK5954", "c", 5, 3)));
+            store.writeBatch(List.of(rating("MH12AB1234", "a", 4, 2)));
+            store.writeAggregate("MH12AB1234", "node-1", counts(2, 6));
+            store.writeAggregate("MH12AB1234", "node-1", counts(1, 4));
+            store.writeAggregate("MH12AB1234", "node-2", counts(3, 9));
+
+            assertEquals(List.of("b", "a"), keys(store.findByPlate("MH12AB1234")));
+            assertEquals(List.of("c"), keys(store.findByPlate("DL1RK5954")));
+            assertTrue(store.findByPlate("KA01AB1234").isEmpty());
+            assertEquals(Set.of("MH12AB1234", "DL1RK5954"), store.ratedPlates());
+            assertEquals(5, store.readAggregate("MH12AB1234").count());
+            assertEquals(0, store.readAggregate("DL1RK5954").count());
+        }
+    }
+
+    @Test
+    void testRecoversSealedSegmentsAndTheTail() throws IOException {
+        List<String> plates = plates(300);
+        try (LogStructuredRatingStore store = store(4096, 100)) {
+            writeAll(store, plates);
+            assertTrue(store.sealedSegments() > 2, "expected the small segments to have been sealed");
+        }
+
+        try (LogStructuredRatingStore store = store(4096, 100)) {
+            assertAllReadable(store, plates);
+            assertEquals(Set.copyOf(plates), store.ratedPlates());
+
+            store.writeBatch(List.of(rating(plates.get(0), "after-restart", 1, 99)));
+            assertEquals(3, store.findByPlate(plates.get(0)).size());
+        }
+    }
+
+    @Test
+    void testCutsATornRecordOffTheTail() throws IOException {
+        try (LogStructuredRatingStore store = store(1 << 20, 4)) {
+            store.writeBatch(List.of(rating("MH12AB1234", "a", 4, 1)));
+            store.writeBatch(List.of(rating("MH12AB1234", "b", 3, 2)));
+        }
+        Path tail = newestLog();
+        long intact = Files.size(tail);
+        // Half of a record, as a crash mid write would leave it
+        Files.write(tail, new byte[] {0, 0, 0, 60, 1, 2, 3, 4, 1, 0}, StandardOpenOption.APPEND);
+
+        try (LogStructuredRatingStore store = store(1 << 20, 4)) {
+            assertEquals(intact, Files.size(tail));
+            assertEquals(List.of("a", "b"), keys(store.findByPlate("MH12AB1234")));
+            store.writeBatch(List.of(rating("MH12AB1234", "c", 5, 3)));
+        }
+        try (LogStructuredRatingStore store = store(1 << 20, 4)) {
+            assertEquals(List.of("a", "b", "c"), keys(store.findByPlate("MH12AB1234")));
+        }
+    }
+
+    @Test
+    void testCompactionKeepsEveryRatingOnce() throws Exception {
+        List<String> plates = plates(300);
+        int sealed;
+        try (LogStructuredRatingStore store = store(4096, 3)) {
+            writeAll(store, plates);
+            // Written again, so the segments hold duplicates for compaction to drop
+            writeAll(store, plates);
+            for (int i = 0; i < 100 && !compacted(store); i++) {
+                Thread.sleep(20);
+            }
+            assertTrue(compacted(store), "expected the sealed segments to have been compacted");
+            // The merged records don't fit one 4KB segment, so compaction rolled its output
+            assertTrue(store.compactedSegments() > 1, store.compactedSegments() + " compacted segments");
+            assertAllReadable(store, plates);
+            sealed = store.sealedSegments();
+        }
+
+        List<Path> logs;
+        try (Stream<Path> files = Files.list(directory)) {
+            logs = files.filter(file -> file.toString().endsWith(".log")).toList();
+        }
+        // Every merged segment is gone, only the sealed ones and the tail are left
+        assertTrue(logs.size() <= sealed + 1, logs.size() + " segments left on disk, " + sealed + " sealed");
+        try (LogStructuredRatingStore store = store(4096, 3)) {
+            assertAllReadable(store, plates);
+        }
+    }
+
+    @Test
+    void testLongKeysSurviveAReopen() throws IOException {
+        // Past Short.MAX_VALUE, which a signed length would have read back as negative
+        String longKey = "k".repeat(40_000);
+        try (LogStructuredRatingStore store = store(1 << 20, 4)) {
+            store.writeBatch(List.of(rating("MH12AB1234", longKey, 4, 1)));
+            assertThrows(IllegalArgumentException.class,
+                    () -> store.writeBatch(List.of(rating("MH12AB1234", "k".repeat(70_000), 4, 2))));
+            store.writeBatch(List.of(rating("MH12AB1234", "b", 3, 3)));
+        }
+        try (LogStructuredRatingStore store = store(1 << 20, 4)) {
+            assertEquals(List.of(longKey, "b"), keys(store.findByPlate("MH12AB1234")));
+        }
+    }
+
+    @Test
+    void testKeepsTheNodeIdAcrossAReopen() throws IOException {
+        String nodeId;
+        try (LogStructuredRatingStore store = store(1 << 20, 4)) {
+            nodeId = store.readNodeId().orElseThrow();
+        }
+        try (LogStructuredRatingStore store = store(1 << 20, 4)) {
+            assertEquals(nodeId, store.readNodeId().orElseThrow());
+        }
+    }
+
+    @Test
+    void testRejectsWritesOnceClosed() throws IOException {
+        LogStructuredRatingStore store = store(1 << 20, 4);
+        store.close();
+        assertThrows(IllegalStateException.class, () -> store.writeBatch(List.of(rating("MH12AB1234", "a", 4, 1))));
+    }
+
+    // Compacted, with fewer segments sealed since than would start another compaction
+    private static boolean compacted(LogStructuredRatingStore store) {
+        return store.compactedSegments() > 0 && store.sealedSegments() - store.compactedSegments() < 2;
+    }
+
+    private LogStructuredRatingStore store(long segmentSize, int compactionThreshold) throws IOException {
+        return new LogStructuredRatingStore(directory, segmentSize, true, compactionThreshold);
+    }
+
+    private static void writeAll(RatingStore store, List<String> plates) {
+        List<Rating> batch = new ArrayList<>();
+        for (String plate : plates) {
+            batch.add(rating(plate, plate + "-1", 4, 1));
+            batch.add(rating(plate, plate + "-2", 2, 2));
+            if (batch.size() >= RatingStore.MAX_BATCH_SIZE - 1) {
+                store.writeBatch(batch);
+                batch.clear();
+            }
+            store.writeAggregate(plate, "node-1", counts(2, 6));
+        }
+        store.writeBatch(batch);
+    }
+
+    private static void assertAllReadable(RatingStore store, List<String> plates) {
+        for (String plate : plates) {
+            assertEquals(List.of(plate + "-1", plate + "-2"), keys(store.findByPlate(plate)), plate);
+            assertEquals(2, store.readAggregate(plate).count(), plate);
+            assertEquals(6, store.readAggregate(plate).getNodes().get("node-1").getSum(), plate);
+        }
+    }
+
+    private Path newestLog() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.toString().endsWith(".log")).max(Path::compareTo).orElseThrow();
+        }
+    }
+
+    private static List<String> plates(int count) {
+        List<String> plates = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            plates.add(String.format("MH%02dAB%04d", 1 + i % 50, i));
+        }
+        return plates;
+    }
+
+    private static List<String> keys(List<Rating> ratings) {
+        return ratings.stream().map(Rating::getIdempotencyKey).toList();
+    }
+
+    private static Rating rating(String plate, String key, int stars, long submittedAt) {
+        return Rating.builder().plate(plate).idempotencyKey(key).stars(stars).submittedAt(submittedAt).build();
+    }
+
+    private static RatingAggregate.NodeCounts counts(long count, long sum) {
+        long[] histogram = new long[RatingAggregate.MAX_STARS];
+        histogram[2] = count;
+        return RatingAggregate.NodeCounts.builder()
+                .count(count)
+                .sum(sum)
+                .sumOfSquares(sum * sum)
+                .histogram(histogram)
+                .decayedCount(count)
+                .decayedSum(sum)
+                .build();
+    }
+}
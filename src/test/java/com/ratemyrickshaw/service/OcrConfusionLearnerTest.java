@@ -0,0 +1,154 @@
+package com.ratemyrickshaw.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ratemyrickshaw.fn.NumberPlateValidationFn;
+
+class OcrConfusionLearnerTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testLearnedStateCodeCorrection() {
+        NumberPlateValidationFn validation = new NumberPlateValidationFn();
+        OcrConfusionLearner learner = learner(validation, null);
+        assertEquals("Invalid state code", validation.apply(List.of("NH12AB1234")));
+
+        for (int i = 0; i < 20; i++) {
+            assertTrue(learner.learn(learner.issue("NH 12 AB " + (1000 + i)), "MH12AB" + (1000 + i)));
+        }
+        // Nothing changes until the counts are published
+        assertEquals("Invalid state code", validation.apply(List.of("NH12AB1234")));
+
+        assertEquals(1, learner.publish().size());
+        assertEquals("MH12AB1234", validation.apply(List.of("NH12AB1234")));
+        assertEquals(Optional.of("MH12AB1234"), validation.matchCompletePlate("NH 12 AB 1234"));
+        // A state code that is already valid is left alone
+        assertEquals("NL01AB1234", validation.apply(List.of("NL01AB1234")));
+    }
+
+    @Test
+    void testLearnedRtoDigitCorrection() {
+        NumberPlateValidationFn validation = new NumberPlateValidationFn();
+        OcrConfusionLearner learner = learner(validation, null);
+        assertEquals("Invalid RTO code", validation.apply(List.of("KAQ1CD5678")));
+
+        for (int i = 0; i < 25; i++) {
+            learner.learn(learner.issue("KA Q1 CD 5678"), "KA01CD5678");
+        }
+        learner.publish();
+
+        assertEquals("KA01CD5678", validation.apply(List.of("KAQ1CD5678")));
+        assertEquals("KA01CD5678", validation.apply(List.of("KA", "Q1", "CD", "5678")));
+    }
+
+    @Test
+    void testRareOrAmbiguousMisreadsAreNotLearned() {
+        NumberPlateValidationFn validation = new NumberPlateValidationFn();
+        OcrConfusionLearner learner = learner(validation, null);
+        for (int i = 0; i < 19; i++) {
+            learner.learn(learner.issue("NH12AB1234"), "MH12AB1234");
+        }
+        assertEquals(0, learner.publish().size());
+
+        // N is now read as M 20 times, but really is N (Nagaland) 20 times too
+        learner.learn(learner.issue("NH12AB1234"), "MH12AB1234");
+        for (int i = 0; i < 20; i++) {
+            learner.learn(learner.issue("NL01AB1234"), "NL01AB1234");
+        }
+        assertEquals(0, learner.publish().size());
+        assertEquals("Invalid state code", validation.apply(List.of("NH12AB1234")));
+    }
+
+    @Test
+    void testCountsSurviveARestart() throws Exception {
+        Path snapshot = dir.resolve("ocr/confusions.json");
+        OcrConfusionLearner learner = learner(new NumberPlateValidationFn(), snapshot);
+        for (int i = 0; i < 20; i++) {
+            learner.learn(learner.issue("NH12AB1234"), "MH12AB1234");
+        }
+        learner.publish();
+        assertTrue(Files.exists(snapshot));
+
+        NumberPlateValidationFn restarted = new NumberPlateValidationFn();
+        OcrConfusionLearner reloaded = learner(restarted, snapshot);
+        reloaded.load();
+        assertEquals("MH12AB1234", restarted.apply(List.of("NH12AB1234")));
+
+        // A corrupt snapshot is ignored rather than stopping the learner
+        Files.writeString(snapshot, "{not json");
+        NumberPlateValidationFn fresh = new NumberPlateValidationFn();
+        learner(fresh, snapshot).load();
+        assertEquals("Invalid state code", fresh.apply(List.of("NH12AB1234")));
+    }
+
+    @Test
+    void testAlignment() {
+        // Stray characters before, inside and after the plate
+        assertArrayEquals(new int[] { 3, 4, 5, 6, 9, 10, 11, 12, 13, 14 },
+                OcrConfusionLearner.align("MH12AB1234", "CNGNH12TSAB1234X"));
+        // A character missing from the text
+        int[] aligned = OcrConfusionLearner.align("DL1RK5954", "DLRK5954");
+        assertNotNull(aligned);
+        assertEquals(-1, aligned[2]);
+        // Too far from the plate
+        assertNull(OcrConfusionLearner.align("MH12AB1234", "KA01CD5678"));
+
+        OcrConfusionLearner learner = learner(new NumberPlateValidationFn(), null);
+        assertFalse(learner.learn(learner.issue("KA01CD5678"), "MH12AB1234"));
+        assertFalse(learner.learn(learner.issue("MH12AB1234"), "not a plate"));
+    }
+
+    @Test
+    void testOnlyIssuedTokensAreLearnedFromOnce() {
+        NumberPlateValidationFn validation = new NumberPlateValidationFn();
+        OcrConfusionLearner learner = learner(validation, null);
+
+        String token = learner.issue("NH12AB1234");
+        assertTrue(learner.learn(token, "MH12AB1234"));
+        // The same token again, made up text, and a token with its text swapped
+        assertFalse(learner.learn(token, "MH12AB1234"));
+        assertFalse(learner.learn("NH12AB1234", "MH12AB1234"));
+        String forged = learner.issue("KA01CD5678").replaceFirst("^[^.]+", token.substring(0, token.indexOf('.')));
+        assertFalse(learner.learn(forged, "MH12AB1234"));
+        // Signed with another secret
+        OcrConfusionLearner other = new OcrConfusionLearner(validation, new ObjectMapper(), true, Duration.ofMinutes(5),
+                20, 0.6, Optional.empty(), Optional.of("other-secret"));
+        assertFalse(learner.learn(other.issue("NH12AB1234"), "MH12AB1234"));
+    }
+
+    @Test
+    void testLearnedCorrectionsNeverChangeValidCharacters() {
+        NumberPlateValidationFn validation = new NumberPlateValidationFn();
+        OcrConfusionLearner learner = learner(validation, null);
+        // Enough ratings to teach that a 1 in the RTO code is really a 7
+        for (int i = 0; i < 20; i++) {
+            learner.learn(learner.issue("MH 11 AB " + (1000 + i)), "MH17AB" + (1000 + i));
+        }
+        assertEquals(1, learner.publish().size());
+
+        assertEquals("MH11AB1234", validation.apply(List.of("MH11AB1234")));
+        assertEquals(Optional.of("MH11AB1234"), validation.matchCompletePlate("MH 11 AB 1234"));
+    }
+
+    private static OcrConfusionLearner learner(NumberPlateValidationFn validation, Path snapshot) {
+        return new OcrConfusionLearner(validation, new ObjectMapper(), true, Duration.ofMinutes(5), 20, 0.6,
+                Optional.ofNullable(snapshot).map(Path::toString), Optional.of("test-secret"));
+    }
+}
@@ -0,0 +1,301 @@
+package com.ratemyrickshaw.service;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Function;
+
+import org.apache.commons.text.similarity.LevenshteinDistance;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.ratemyrickshaw.fn.NumberPlateExtractionFn;
+import com.ratemyrickshaw.fn.NumberPlateExtractionFns;
+import com.ratemyrickshaw.fn.NumberPlateValidationFn;
+import com.ratemyrickshaw.fn.PlateClusteringFn;
+import com.ratemyrickshaw.fn.PlateLocalizationFn;
+import com.ratemyrickshaw.fn.SimilarityFn;
+import com.ratemyrickshaw.model.DetectedPlate;
+import com.ratemyrickshaw.model.ImageCrop;
+
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.services.rekognition.model.BoundingBox;
+import software.amazon.awssdk.services.rekognition.model.DetectTextResponse;
+import software.amazon.awssdk.services.rekognition.model.Geometry;
+import software.amazon.awssdk.services.rekognition.model.Point;
+import software.amazon.awssdk.services.rekognition.model.TextDetection;
+
+/*
+End to end accuracy and latency of the post-processing pipeline over the labelled corpus in benchmark/corpus.json.
+Each entry pairs a photo with its recorded Rekognition response and the plate actually on the vehicle.
+
+The logic is as follows:
+1. Run every pipeline configuration over every image: a few warm up rounds, then measured rounds timed per image.
+2. Score each configuration on exact matches and character error rate (edit distance / plate length, a wrong or
+   missing plate counts as every character wrong).
+3. Write everything to target/benchmark/plate-accuracy.json with keys in a fixed order, so reports from two branches
+   can be diffed. Latencies vary from run to run, the accuracy figures should only move when the pipeline does.
+4. Fail if a configuration is less accurate than its floor in benchmark/accuracy-baseline.properties.
+The "localized" configuration runs the plate localizer on the photo first and keeps only the recorded detections
+inside its crops, standing in for OCR on the crops, since the corpus only has full frame responses.
+*/
+@Slf4j
+@QuarkusTest
+class PlateAccuracyBenchmarkTest {
+
+    private static final Path REPORT = Paths.get("target/benchmark/plate-accuracy.json");
+
+    @Inject
+    NumberPlateExtractionFn numberPlateExtractionFn;
+
+    @Inject
+    NumberPlateValidationFn numberPlateValidationFn;
+
+    @Inject
+    PlateClusteringFn plateClusteringFn;
+
+    @Inject
+    PlateLocalizationFn plateLocalizationFn;
+
+    @Inject
+    SimilarityFn similarityFn;
+
+    @Test
+    void testAccuracyAndLatency() throws IOException {
+        List<Example> corpus = loadCorpus();
+        Properties floors = new Properties();
+        try (InputStream in = getClass().getResourceAsStream("/benchmark/accuracy-baseline.properties")) {
+            floors.load(in);
+        }
+
+        PostRekognitionService production = service(numberPlateExtractionFn, 95f);
+        PostRekognitionService noFastPath = service(numberPlateExtractionFn, Float.MAX_VALUE);
+        PostRekognitionService lines = service(
+                NumberPlateExtractionFns.withMode(similarityFn, NumberPlateExtractionFn.Mode.LINES), 95f);
+
+        ImagePreprocessingService preprocessing = new ImagePreprocessingService();
+        preprocessing.plateLocalizationFn = plateLocalizationFn;
+        preprocessing.localizerEnabled = true;
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("corpus", corpus.size());
+        Map<String, Object> configurations = new LinkedHashMap<>();
+        report.put("configurations", configurations);
+
+        configurations.put("similarity", run(corpus, 20, 100, example -> production.detectPlate(example.response).getPlate()));
+        configurations.put("similarity-no-fast-path", run(corpus, 20, 100,
+                example -> noFastPath.detectPlate(example.response).getPlate()));
+        configurations.put("lines", run(corpus, 20, 100, example -> lines.detectPlate(example.response).getPlate()));
+        configurations.put("multi-plate", run(corpus, 20, 100, example -> {
+            // Scored on the right plate if it was among those found, otherwise on the first
+            List<String> plates = production.detectPlates(example.response).stream().map(DetectedPlate::getPlate).toList();
+            return plates.contains(example.plate) ? example.plate : plates.stream().findFirst().orElse(null);
+        }));
+        // Decoding and localizing a photo is far slower than the rest, a few rounds are enough
+        configurations.put("localized", run(corpus, 2, 10, example -> production.detectPlate(
+                withinCrops(example, preprocessing.cropToPlateRegions(example.image))).getPlate()));
+
+        Files.createDirectories(REPORT.getParent());
+        new ObjectMapper()
+                .enable(SerializationFeature.INDENT_OUTPUT)
+                .writeValue(REPORT.toFile(), report);
+        log.info("Wrote the plate accuracy report to {}", REPORT.toAbsolutePath());
+
+        configurations.forEach((name, value) -> {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> summary = (Map<String, Object>) ((Map<String, Object>) value).get("summary");
+            log.info("'{}': {}", name, summary);
+
+            int exactMatches = (int) summary.get("exactMatches");
+            double characterErrorRate = (double) summary.get("characterErrorRate");
+            int minExactMatches = Integer.parseInt(floors.getProperty(name + ".min-exact-matches"));
+            double maxCharacterErrorRate = Double.parseDouble(floors.getProperty(name + ".max-character-error-rate"));
+            assertTrue(exactMatches >= minExactMatches,
+                    "'" + name + "' read " + exactMatches + " plates exactly, fewer than its floor of " + minExactMatches);
+            assertTrue(characterErrorRate <= maxCharacterErrorRate,
+                    "'" + name + "' character error rate " + characterErrorRate + " is over its ceiling of " + maxCharacterErrorRate);
+        });
+    }
+
+    private Map<String, Object> run(List<Example> corpus, int warmUpRounds, int measuredRounds,
+            Function<Example, String> pipeline) {
+        for (int round = 0; round < warmUpRounds; round++) {
+            corpus.forEach(example -> read(pipeline, example));
+        }
+
+        LatencyTracker overall = new LatencyTracker(corpus.size() * measuredRounds);
+        Map<String, Object> images = new LinkedHashMap<>();
+        int exactMatches = 0;
+        double totalErrorRate = 0;
+
+        for (Example example : corpus) {
+            LatencyTracker latency = new LatencyTracker(measuredRounds);
+            String plate = null;
+            for (int round = 0; round < measuredRounds; round++) {
+                long start = System.nanoTime();
+                plate = read(pipeline, example);
+                Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+                latency.record(elapsed);
+                overall.record(elapsed);
+            }
+
+            double errorRate = characterErrorRate(plate, example.plate);
+            exactMatches += example.plate.equals(plate) ? 1 : 0;
+            totalErrorRate += errorRate;
+
+            Map<String, Object> image = new LinkedHashMap<>();
+            image.put("expected", example.plate);
+            image.put("actual", plate);
+            image.put("exact", example.plate.equals(plate));
+            image.put("characterErrorRate", round(errorRate));
+            image.put("latencyMicros", percentiles(latency));
+            images.put(example.id, image);
+        }
+
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("exactMatches", exactMatches);
+        summary.put("accuracy", round((double) exactMatches / corpus.size()));
+        summary.put("characterErrorRate", round(totalErrorRate / corpus.size()));
+        summary.put("latencyMicros", percentiles(overall));
+
+        Map<String, Object> configuration = new LinkedHashMap<>();
+        configuration.put("summary", summary);
+        configuration.put("images", images);
+        return configuration;
+    }
+
+    /*
+     * What the pipeline read, or null if it read no plate. Validation reports a failure as a message or an exception.
+     */
+    private String read(Function<Example, String> pipeline, Example example) {
+        try {
+            String plate = pipeline.apply(example);
+            return plate == null || plate.startsWith("Invalid") || plate.startsWith("No ") ? null : plate;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private double characterErrorRate(String actual, String expected) {
+        if (actual == null) {
+            return 1.0;
+        }
+        return Math.min(1.0, (double) LevenshteinDistance.getDefaultInstance().apply(actual, expected) / expected.length());
+    }
+
+    private Map<String, Object> percentiles(LatencyTracker latency) {
+        Map<String, Object> percentiles = new LinkedHashMap<>();
+        for (double percentile : new double[] { 0.5, 0.9, 0.99 }) {
+            percentiles.put("p" + Math.round(percentile * 100), latency.percentile(percentile).toNanos() / 1000);
+        }
+        return percentiles;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10_000) / 10_000.0;
+    }
+
+    private PostRekognitionService service(NumberPlateExtractionFn extractionFn, float fastPathMinConfidence) {
+        PostRekognitionService service = new PostRekognitionService(extractionFn, numberPlateValidationFn,
+                plateClusteringFn);
+        service.fastPathMinConfidence = fastPathMinConfidence;
+        service.parallelMinWords = 8;
+        return service;
+    }
+
+    /*
+     * Keep the detections whose centre falls inside one of the crops, i.e. roughly what OCR on the crops would read.
+     */
+    private DetectTextResponse withinCrops(Example example, List<ImageCrop> crops) {
+        if (crops.size() == 1 && crops.get(0).isFullFrame()) {
+            return example.response;
+        }
+        return DetectTextResponse.builder()
+                .textDetections(example.response.textDetections().stream()
+                        .filter(detection -> crops.stream().anyMatch(crop -> inside(detection, crop)))
+                        .toList())
+                .textModelVersion(example.response.textModelVersion())
+                .build();
+    }
+
+    private boolean inside(TextDetection detection, ImageCrop crop) {
+        BoundingBox box = detection.geometry().boundingBox();
+        float x = box.left() + box.width() / 2;
+        float y = box.top() + box.height() / 2;
+        return x >= crop.getLeft() && x <= crop.getLeft() + crop.getWidth()
+                && y >= crop.getTop() && y <= crop.getTop() + crop.getHeight();
+    }
+
+    private List<Example> loadCorpus() throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        Path resources = Paths.get("src/test/resources");
+        List<Example> corpus = new ArrayList<>();
+        for (JsonNode entry : objectMapper.readTree(resources.resolve("benchmark/corpus.json").toFile())) {
+            corpus.add(new Example(
+                    entry.get("id").asText(),
+                    entry.get("plate").asText(),
+                    Files.readAllBytes(resources.resolve(entry.get("image").asText())),
+                    load(objectMapper.readTree(resources.resolve(entry.get("detections").asText()).toFile()))));
+        }
+        return corpus;
+    }
+
+    private DetectTextResponse load(JsonNode root) {
+        List<TextDetection> detections = new ArrayList<>();
+        root.get("TextDetections").forEach(node -> {
+            JsonNode geometry = node.get("Geometry");
+            JsonNode bbox = geometry.get("BoundingBox");
+            List<Point> polygon = new ArrayList<>();
+            geometry.get("Polygon").forEach(point -> polygon.add(
+                    Point.builder().x(point.get("X").floatValue()).y(point.get("Y").floatValue()).build()));
+            detections.add(TextDetection.builder()
+                    .detectedText(node.get("DetectedText").asText())
+                    .type(node.get("Type").asText())
+                    .id(node.get("Id").asInt())
+                    .parentId(node.has("ParentId") ? node.get("ParentId").asInt() : null)
+                    .confidence(node.get("Confidence").floatValue())
+                    .geometry(Geometry.builder()
+                            .boundingBox(BoundingBox.builder()
+                                    .width(bbox.get("Width").floatValue())
+                                    .height(bbox.get("Height").floatValue())
+                                    .left(bbox.get("Left").floatValue())
+                                    .top(bbox.get("Top").floatValue())
+                                    .build())
+                            .polygon(polygon)
+                            .build())
+                    .build());
+        });
+        return DetectTextResponse.builder()
+                .textDetections(detections)
+                .textModelVersion(root.path("TextModelVersion").asText(null))
+                .build();
+    }
+
+    private static final class Example {
+        private final String id;
+        private final String plate;
+        private final byte[] image;
+        private final DetectTextResponse response;
+
+        Example(String id, String plate, byte[] image, DetectTextResponse response) {
+            this.id = id;
+            this.plate = plate;
+            this.image = image;
+            this.response = response;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.ratemyrickshaw.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ratemyrickshaw.model.DetectedPlate;
+import com.ratemyrickshaw.model.PlateDetectionResult;
+
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+import software.amazon.awssdk.services.rekognition.model.BoundingBox;
+import software.amazon.awssdk.services.rekognition.model.DetectTextResponse;
+import software.amazon.awssdk.services.rekognition.model.Geometry;
+import software.amazon.awssdk.services.rekognition.model.TextDetection;
+
+@QuarkusTest
+class PostRekognitionServiceTest {
+
+    @Inject
+    PostRekognitionService postRekognitionService;
+
+    @Test
+    void testConfidentWholePlateLineTakesFastPath() {
+        DetectTextResponse response = DetectTextResponse.builder()
+                .textDetections(List.of(
+                        detection("KEEP DISTANCE", "LINE", 0, null, 99.5f, 0.1f),
+                        detection("MH 12 AB 1234", "LINE", 1, null, 99.2f, 0.5f),
+                        detection("KEEP", "WORD", 2, 0, 99.5f, 0.1f),
+                        detection("DISTANCE", "WORD", 3, 0, 99.5f, 0.1f),
+                        detection("MH", "WORD", 4, 1, 99.2f, 0.5f),
+                        detection("12", "WORD", 5, 1, 99.2f, 0.5f),
+                        detection("AB", "WORD", 6, 1, 99.2f, 0.5f),
+                        detection("1234", "WORD", 7, 1, 99.2f, 0.5f)))
+                .build();
+
+        double ratioBefore = postRekognitionService.fastPathHitRatio();
+        PlateDetectionResult result = postRekognitionService.detectPlate(response);
+
+        assertEquals("MH12AB1234", result.getPlate());
+        assertEquals(99.2f, result.getConfidence());
+        assertTrue(postRekognitionService.fastPathHitRatio() >= ratioBefore);
+    }
+
+    @Test
+    void testLowConfidenceLineFallsThroughToExtraction() {
+        DetectTextResponse response = DetectTextResponse.builder()
+                .textDetections(List.of(
+                        detection("TN 11 AP 2245", "LINE", 0, null, 80f, 0.5f),
+                        detection("TN11", "WORD", 1, 0, 80f, 0.5f),
+                        detection("AP2245", "WORD", 2, 0, 80f, 0.5f)))
+                .build();
+
+        PlateDetectionResult result = postRekognitionService.detectPlate(response);
+
+        // Confidence is only reported for plates read on the fast path
+        assertNull(result.getConfidence());
+    }
+
+    @Test
+    void testLineThatIsNotAPlateFallsThroughToExtraction() {
+        // "XX" is not a state code, so even a confident line isn't trusted
+        DetectTextResponse response = DetectTextResponse.builder()
+                .textDetections(List.of(
+                        detection("XX 12 AB 1234", "LINE", 0, null, 99f, 0.5f),
+                        detection("XX12", "WORD", 1, 0, 99f, 0.5f),
+                        detection("AB1234", "WORD", 2, 0, 99f, 0.5f)))
+                .build();
+
+        PlateDetectionResult result = postRekognitionService.detectPlate(response);
+
+        assertNull(result.getConfidence());
+    }
+
+    @Test
+    void testEveryPlateInAQueueIsReturned() {
+        DetectTextResponse response = DetectTextResponse.builder()
+                .textDetections(List.of(
+                        // A rickshaw on the left, read word by word
+                        detection("MH12", "LINE", 0, null, 88f, 0.1f, 0.50f, 0.08f),
+                        detection("MH12", "WORD", 1, 0, 88f, 0.1f, 0.50f, 0.08f),
+                        detection("AB1234", "LINE", 2, null, 86f, 0.1f, 0.56f, 0.08f),
+                        detection("AB1234", "WORD", 3, 2, 86f, 0.1f, 0.56f, 0.08f),
+                        // One on the right, read as a single confident line
+                        detection("KA 01 CD 5678", "LINE", 4, null, 99f, 0.6f, 0.52f, 0.2f),
+                        detection("KA01", "WORD", 5, 4, 99f, 0.6f, 0.52f, 0.08f),
+                        detection("CD5678", "WORD", 6, 4, 99f, 0.7f, 0.52f, 0.1f),
+                        // And a slogan painted up top
+                        detection("HORN OK PLEASE", "LINE", 7, null, 97f, 0.3f, 0.05f, 0.3f),
+                        detection("HORN", "WORD", 8, 7, 97f, 0.3f, 0.05f, 0.08f),
+                        detection("OK", "WORD", 9, 7, 97f, 0.4f, 0.05f, 0.04f),
+                        detection("PLEASE", "WORD", 10, 7, 97f, 0.46f, 0.05f, 0.12f)))
+                .build();
+
+        List<DetectedPlate> plates = postRekognitionService.detectPlates(response);
+
+        assertEquals(List.of("MH12AB1234", "KA01CD5678"), plates.stream().map(DetectedPlate::getPlate).toList());
+        assertNull(plates.get(0).getConfidence());
+        assertEquals(99f, plates.get(1).getConfidence());
+        assertEquals(0.1f, plates.get(0).getLeft(), 1e-6);
+        assertEquals(0.5f, plates.get(0).getTop(), 1e-6);
+        assertEquals(0.12f, plates.get(0).getHeight(), 1e-6);
+    }
+
+    @Test
+    void testSamePlateReadTwiceIsReturnedOnce() {
+        // The rear plate, and the same plate again in a shop window behind it
+        DetectTextResponse response = DetectTextResponse.builder()
+                .textDetections(List.of(
+                        detection("AP 13 V 7951", "LINE", 0, null, 99f, 0.1f, 0.5f, 0.2f),
+                        detection("AP13", "WORD", 1, 0, 99f, 0.1f, 0.5f, 0.08f),
+                        detection("V7951", "WORD", 2, 0, 99f, 0.2f, 0.5f, 0.1f),
+                        detection("AP13", "LINE", 3, null, 80f, 0.6f, 0.2f, 0.08f),
+                        detection("AP13", "WORD", 4, 3, 80f, 0.6f, 0.2f, 0.08f),
+                        detection("V7951", "LINE", 5, null, 75f, 0.6f, 0.26f, 0.1f),
+                        detection("V7951", "WORD", 6, 5, 75f, 0.6f, 0.26f, 0.1f)))
+                .build();
+
+        List<DetectedPlate> plates = postRekognitionService.detectPlates(response);
+
+        assertEquals(List.of("AP13V7951"), plates.stream().map(DetectedPlate::getPlate).toList());
+        assertEquals(99f, plates.get(0).getConfidence());
+    }
+
+    @Test
+    void testPlatesFromTheSameSeriesAreBothReturned() {
+        DetectTextResponse response = DetectTextResponse.builder()
+                .textDetections(List.of(
+                        detection("MH 12 AB 1234", "LINE", 0, null, 99f, 0.1f, 0.5f, 0.2f),
+                        detection("MH12", "WORD", 1, 0, 99f, 0.1f, 0.5f, 0.08f),
+                        detection("AB1234", "WORD", 2, 0, 99f, 0.2f, 0.5f, 0.1f),
+                        detection("MH 12 AB 1299", "LINE", 3, null, 98f, 0.6f, 0.5f, 0.2f),
+                        detection("MH12", "WORD", 4, 3, 98f, 0.6f, 0.5f, 0.08f),
+                        detection("AB1299", "WORD", 5, 3, 98f, 0.7f, 0.5f, 0.1f)))
+                .build();
+
+        List<DetectedPlate> plates = postRekognitionService.detectPlates(response);
+
+        assertEquals(List.of("MH12AB1234", "MH12AB1299"), plates.stream().map(DetectedPlate::getPlate).toList());
+    }
+
+    @Test
+    void testNoPlatesGivesAnEmptyList() {
+        DetectTextResponse response = DetectTextResponse.builder()
+                .textDetections(List.of(
+                        detection("HORN OK PLEASE", "LINE", 0, null, 97f, 0.3f, 0.05f, 0.3f),
+                        detection("HORN", "WORD", 1, 0, 97f, 0.3f, 0.05f, 0.08f)))
+                .build();
+
+        assertTrue(postRekognitionService.detectPlates(response).isEmpty());
+    }
+
+    private TextDetection detection(String text, String type, int id, Integer parentId, float confidence, float left,
+            float top, float width) {
+        return TextDetection.builder()
+                .detectedText(text)
+                .type(type)
+                .id(id)
+                .parentId(parentId)
+                .confidence(confidence)
+                .geometry(Geometry.builder()
+                        .boundingBox(BoundingBox.builder().left(left).top(top).width(width).height(0.06f).build())
+                        .build())
+                .build();
+    }
+
+    private DetectTextResponse load(String fileName) throws IOException {
+        Path path = Paths.get("src/test/resources/ocr_data", fileName);
+        JsonNode root = new ObjectMapper().readTree(Files.readString(path));
+
+        List<TextDetection> detections = new ArrayList<>();
+        root.get("TextDetections").forEach(node -> {
+            JsonNode bbox = node.get("Geometry").get("BoundingBox");
+            detections.add(TextDetection.builder()
+                    .detectedText(node.get("DetectedText").asText())
+                    .type(node.get("Type").asText())
+                    .id(node.get("Id").asInt())
+                    .parentId(node.has("ParentId") ? node.get("ParentId").asInt() : null)
+                    .confidence(node.get("Confidence").floatValue())
+                    .geometry(Geometry.builder()
+                            .boundingBox(BoundingBox.builder()
+                                    .width(bbox.get("Width").floatValue())
+                                    .height(bbox.get("Height").floatValue())
+                                    .left(bbox.get("Left").floatValue())
+                                    .top(bbox.get("Top").floatValue())
+                                    .build())
+                            .build())
+                    .build());
+        });
+        return DetectTextResponse.builder().textDetections(detections).build();
+    }
+
+    private TextDetection detection(String text, String type, int id, Integer parentId, float confidence, float top) {
+        return TextDetection.builder()
+                .detectedText(text)
+                .type(type)
+                .id(id)
+                .parentId(parentId)
+                .confidence(confidence)
+                .geometry(Geometry.builder()
+                        .boundingBox(BoundingBox.builder().left(0.2f).top(top).width(0.4f).height(0.1f).build())
+                        .build())
+                .build();
+    }
+}
@@ -0,0 +1,224 @@
+package com.ratemyrickshaw.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.ratemyrickshaw.model.Rating;
+import com.ratemyrickshaw.model.RatingAggregate;
+
+class RatingAggregatesTest {
+
+    private static final String PLATE = "MH12AB1234";
+
+    @Test
+    void testMergeOrderDoesNotMatter() {
+        Random random = new Random(42);
+
+        for (int trial = 0; trial < 200; trial++) {
+            // Several nodes take ratings, and every so often publish a snapshot of their state
+            int nodeCount = 2 + random.nextInt(4);
+            List<RatingAggregates> nodes = new ArrayList<>();
+            for (int n = 0; n < nodeCount; n++) {
+                nodes.add(aggregates("node-" + n));
+            }
+            List<RatingAggregate> snapshots = new ArrayList<>();
+            int ratings = 1 + random.nextInt(60);
+            for (int i = 0; i < ratings; i++) {
+                RatingAggregates node = nodes.get(random.nextInt(nodeCount));
+                node.record(rating("trial-" + trial + "-" + i, 1 + random.nextInt(5), random.nextLong(1_000_000_000L)));
+                if (random.nextInt(4) == 0) {
+                    snapshots.add(node.local(PLATE));
+                }
+            }
+            nodes.forEach(node -> snapshots.add(node.local(PLATE)));
+
+            RatingAggregate expected = RatingAggregate.empty();
+            for (RatingAggregates node : nodes) {
+                expected = expected.merge(node.local(PLATE));
+            }
+
+            // Deliver the snapshots in a random order, with random duplicates, folded from either side
+            List<RatingAggregate> delivered = new ArrayList<>(snapshots);
+            for (int d = random.nextInt(5); d > 0; d--) {
+                delivered.add(snapshots.get(random.nextInt(snapshots.size())));
+            }
+            Collections.shuffle(delivered, random);
+
+            RatingAggregate leftFold = RatingAggregate.empty();
+            for (RatingAggregate snapshot : delivered) {
+                leftFold = leftFold.merge(snapshot);
+            }
+            RatingAggregate rightFold = RatingAggregate.empty();
+            for (RatingAggregate snapshot : delivered) {
+                rightFold = snapshot.merge(rightFold);
+            }
+
+            assertEquals(expected, leftFold, "trial " + trial);
+            assertEquals(expected, rightFold, "trial " + trial);
+            assertEquals(expected, expected.merge(leftFold), "merge should be idempotent, trial " + trial);
+            assertEquals(ratings, leftFold.count(), "trial " + trial);
+        }
+    }
+
+    @Test
+    void testSummaryStatistics() {
+        RatingAggregates node = aggregates("node-a");
+        node.record(rating("a", 5, 0));
+        node.record(rating("b", 3, 0));
+        node.record(rating("c", 1, 0));
+        // A retry of a rating already counted
+        node.record(rating("a", 5, 0));
+
+        RatingAggregate aggregate = node.local(PLATE);
+
+        assertEquals(3, aggregate.count());
+        assertEquals(3.0, aggregate.mean());
+        assertEquals(Math.sqrt(8.0 / 3), aggregate.standardDeviation(), 1e-9);
+        assertArrayEquals(new long[] { 1, 0, 1, 0, 1 }, aggregate.histogram());
+    }
+
+    @Test
+    void testRecentRatingsOutweighOldOnes() {
+        RatingAggregates node = aggregates("node-a");
+        long now = System.currentTimeMillis();
+        long yearAgo = now - Duration.ofDays(365).toMillis();
+        for (int i = 0; i < 10; i++) {
+            node.record(rating("old-" + i, 5, yearAgo));
+        }
+        node.record(rating("new-1", 1, now));
+        node.record(rating("new-2", 1, now));
+
+        RatingAggregate aggregate = node.local(PLATE);
+
+        assertEquals(13.0 / 3, aggregate.mean(), 1e-9);
+        assertEquals(1.0, aggregate.recentMean(), 0.01);
+    }
+
+    @Test
+    void testConcurrentWritersLoseNoUpdates() throws InterruptedException {
+        RatingAggregates node = aggregates("node-a");
+        int threads = 8;
+        int perThread = 10_000;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            executor.execute(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    node.record(rating(thread + "-" + i, 1 + i % 5, 0));
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(30, TimeUnit.SECONDS);
+
+        RatingAggregate aggregate = node.local(PLATE);
+        assertEquals((long) threads * perThread, aggregate.count());
+        assertEquals(3.0, aggregate.mean());
+    }
+
+    @Test
+    void testPublishedStateMergesWithOtherNodes() {
+        InMemoryRatingStore store = new InMemoryRatingStore();
+        RatingAggregates nodeA = new RatingAggregates(store, Optional.of("node-a"), Duration.ofDays(30), Duration.ofSeconds(30),
+                Duration.ofHours(1));
+        RatingAggregates nodeB = new RatingAggregates(store, Optional.of("node-b"), Duration.ofDays(30), Duration.ofSeconds(30),
+                Duration.ofHours(1));
+
+        nodeA.record(rating("a-1", 4, 0));
+        nodeA.publish();
+        nodeB.record(rating("b-1", 2, 0));
+        nodeB.publish();
+        // Taken after the last publish, still visible to this node
+        nodeA.record(rating("a-2", 3, 0));
+
+        assertEquals(3, nodeA.get(PLATE).count());
+        assertEquals(2, nodeB.get(PLATE).count());
+    }
+
+    @Test
+    void testIdleCountsAreFoldedIntoTheBase() {
+        InMemoryRatingStore store = new InMemoryRatingStore();
+        RatingAggregates node = new RatingAggregates(store, Optional.of("node-a"), Duration.ofDays(30),
+                Duration.ofSeconds(30), Duration.ZERO);
+
+        node.record(rating("a", 5, 0));
+        node.record(rating("b", 3, 0));
+        // Publishes the counts, and with no idle time they're folded and dropped straight away
+        node.publish();
+
+        assertEquals(Set.of(RatingAggregate.BASE_NODE), store.readAggregate(PLATE).getNodes().keySet());
+        assertEquals(0, node.local(PLATE).count());
+        assertEquals(2, node.get(PLATE).count());
+
+        node.record(rating("c", 1, 0));
+        node.publish();
+        RatingAggregate aggregate = node.get(PLATE);
+        assertEquals(3, aggregate.count());
+        assertEquals(3.0, aggregate.mean());
+        assertArrayEquals(new long[] { 1, 0, 1, 0, 1 }, aggregate.histogram());
+    }
+
+    @Test
+    void testCountsCarryOnFromTheStore() {
+        InMemoryRatingStore store = new InMemoryRatingStore();
+        RatingAggregates before = new RatingAggregates(store, Optional.of("node-a"), Duration.ofDays(30),
+                Duration.ofSeconds(30), Duration.ofHours(1));
+        before.record(rating("a", 4, 0));
+        before.record(rating("b", 2, 0));
+        before.publish();
+
+        // The same node after a restart, its slot has to keep growing rather than start again
+        RatingAggregates after = new RatingAggregates(store, Optional.of("node-a"), Duration.ofDays(30),
+                Duration.ofSeconds(30), Duration.ofHours(1));
+        after.record(rating("c", 3, 0));
+        after.publish();
+
+        assertEquals(3, after.local(PLATE).count());
+        assertEquals(3, store.readAggregate(PLATE).count());
+        assertEquals(3.0, store.readAggregate(PLATE).mean());
+    }
+
+    @Test
+    void testFoldedCountsAreOnlyFoldedOnce() {
+        InMemoryRatingStore store = new InMemoryRatingStore();
+        RatingAggregates node = new RatingAggregates(store, Optional.of("node-a"), Duration.ofDays(30),
+                Duration.ofSeconds(30), Duration.ofHours(1));
+        node.record(rating("a", 5, 0));
+        node.publish();
+        RatingAggregate.NodeCounts counts = store.readAggregate(PLATE).getNodes().get("node-a");
+
+        assertTrue(store.foldAggregate(PLATE, "node-a", counts));
+        assertFalse(store.foldAggregate(PLATE, "node-a", counts));
+        assertEquals(1, store.readAggregate(PLATE).count());
+    }
+
+    private RatingAggregates aggregates(String nodeId) {
+        return new RatingAggregates(new InMemoryRatingStore(), Optional.of(nodeId), Duration.ofDays(30), Duration.ofSeconds(30),
+                Duration.ofHours(1));
+    }
+
+    private Rating rating(String idempotencyKey, int stars, long submittedAt) {
+        return Rating.builder()
+                .plate(PLATE)
+                .stars(stars)
+                .idempotencyKey(idempotencyKey)
+                .submittedAt(submittedAt)
+                .build();
+    }
+}
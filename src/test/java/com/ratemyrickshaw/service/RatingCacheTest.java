@@ -0,0 +1,256 @@
+package com.ratemyrickshaw.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import com.ratemyrickshaw.model.Rating;
+import com.ratemyrickshaw.model.RatingAggregate;
+import com.ratemyrickshaw.model.RatingSummary;
+
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+class RatingCacheTest {
+
+    @Test
+    void testUnratedPlateSkipsTheStore() {
+        CountingStore store = new CountingStore();
+        seed(store, rating("AP13V7951", "key-1", 4));
+        RatingCache cache = cache(store, Duration.ofMinutes(5), Duration.ofMinutes(1), 100);
+        cache.rebuildKnownPlates();
+
+        RatingSummary summary = cache.get("MH03V5823");
+
+        assertFalse(summary.hasRatings());
+        assertEquals(0, store.lookups.get());
+    }
+
+    @Test
+    void testRatedPlateIsReadThroughOnce() {
+        CountingStore store = new CountingStore();
+        seed(store, rating("AP13V7951", "key-1", 4), rating("AP13V7951", "key-2", 2));
+        RatingCache cache = cache(store, Duration.ofMinutes(5), Duration.ofMinutes(1), 100);
+        cache.rebuildKnownPlates();
+
+        RatingSummary first = cache.get("AP13V7951");
+        RatingSummary second = cache.get("AP13V7951");
+
+        assertEquals(2, first.getCount());
+        assertEquals(3.0, first.getAverageStars());
+        assertEquals(first, second);
+        assertEquals(1, store.lookups.get());
+    }
+
+    @Test
+    void testNewRatingInvalidatesCachedSummary() {
+        CountingStore store = new CountingStore();
+        RatingWriteBuffer buffer = new RatingWriteBuffer(store, 100, Duration.ofMinutes(1), 3);
+        RatingAggregates aggregates = aggregates(store, "this-node");
+        RatingCache cache = new RatingCache(store, buffer, aggregates, 100, Duration.ofMinutes(5), Duration.ofMinutes(1),
+                Duration.ofMinutes(1), 1000, Duration.ofMinutes(15), Duration.ofMinutes(1));
+        cache.rebuildKnownPlates();
+        assertFalse(cache.get("AP13V7951").hasRatings());
+
+        // Still in the write buffer, but the submitter should see it straight away
+        Rating rating = rating("AP13V7951", "key-1", 5);
+        buffer.submit(rating);
+        aggregates.record(rating);
+        cache.recordRating(rating);
+
+        assertEquals(1, cache.get("AP13V7951").getCount());
+    }
+
+    @Test
+    void testExpiredEntryIsReloaded() throws InterruptedException {
+        CountingStore store = new CountingStore();
+        seed(store, rating("AP13V7951", "key-1", 4));
+        RatingCache cache = cache(store, Duration.ofMillis(50), Duration.ZERO, 100);
+
+        cache.get("AP13V7951");
+        Thread.sleep(80);
+        cache.get("AP13V7951");
+
+        assertEquals(2, store.lookups.get());
+    }
+
+    @Test
+    void testEntryIsRefreshedAheadOfExpiry() throws InterruptedException {
+        CountingStore store = new CountingStore();
+        seed(store, rating("AP13V7951", "key-1", 4));
+        RatingCache cache = cache(store, Duration.ofSeconds(10), Duration.ofSeconds(10), 100);
+        cache.start();
+
+        cache.get("AP13V7951");
+        // Inside the refresh-ahead window from the start: the cached value is served and a reload runs behind it
+        seed(store, rating("AP13V7951", "key-2", 2));
+        assertEquals(1, cache.get("AP13V7951").getCount());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.get("AP13V7951").getCount() != 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        cache.stop();
+
+        assertEquals(2, cache.get("AP13V7951").getCount());
+    }
+
+    @Test
+    void testRefreshNeverCachesASummaryARatingMadeStale() throws InterruptedException {
+        CountingStore store = new CountingStore();
+        seed(store, rating("AP13V7951", "key-1", 4));
+        RatingWriteBuffer buffer = new RatingWriteBuffer(store, 100, Duration.ofMinutes(1), 3);
+        CountDownLatch read = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean stall = new AtomicBoolean();
+        // Reads the aggregate, then stalls until the new rating is in
+        RatingAggregates aggregates = new RatingAggregates(store, Optional.of("this-node"), Duration.ofDays(30),
+                Duration.ofSeconds(30), Duration.ofHours(1)) {
+            @Override
+            public RatingAggregate get(String plate) {
+                RatingAggregate aggregate = super.get(plate);
+                if (stall.getAndSet(false)) {
+                    read.countDown();
+                    await(release);
+                }
+                return aggregate;
+            }
+        };
+        RatingCache cache = new RatingCache(store, buffer, aggregates, 100, Duration.ofSeconds(10),
+                Duration.ofSeconds(10), Duration.ofSeconds(10), 1000, Duration.ofMinutes(15), Duration.ofMinutes(1));
+        cache.start();
+        assertEquals(1, cache.get("AP13V7951").getCount());
+
+        // Starts a refresh
+        stall.set(true);
+        assertEquals(1, cache.get("AP13V7951").getCount());
+        assertTrue(read.await(5, TimeUnit.SECONDS));
+
+        Rating rating = rating("AP13V7951", "key-2", 2);
+        buffer.submit(rating);
+        aggregates.record(rating);
+        cache.recordRating(rating);
+        release.countDown();
+        Thread.sleep(100);
+        cache.stop();
+
+        assertEquals(2, cache.get("AP13V7951").getCount());
+    }
+
+    @Test
+    void testCacheIsSizeBounded() {
+        CountingStore store = new CountingStore();
+        RatingCache cache = cache(store, Duration.ofMinutes(5), Duration.ofMinutes(1), 10);
+
+        for (int i = 0; i < 50; i++) {
+            cache.get("KA0" + (i % 10) + "AB" + (1000 + i));
+        }
+
+        assertEquals(10, cache.size());
+    }
+
+    @Test
+    void testBloomFilterFalsePositiveRate() {
+        BloomFilter filter = new BloomFilter(10_000, 0.01);
+        for (int i = 0; i < 10_000; i++) {
+            filter.add("KA01AB" + i);
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(filter.mightContain("KA01AB" + i));
+            if (filter.mightContain("MH12ZZ" + i)) {
+                falsePositives++;
+            }
+        }
+
+        log.info("Bloom filter: {} bytes, {} false positives in 10000", filter.sizeInBytes(), falsePositives);
+        assertTrue(falsePositives < 200, "False positive rate too high: " + falsePositives);
+    }
+
+    @Test
+    void testLookupLatencyBenchmark() {
+        CountingStore store = new CountingStore();
+        for (int i = 0; i < 100; i++) {
+            seed(store, rating("KA01AB" + (1000 + i), "key-" + i, 1 + i % 5));
+        }
+        RatingCache cache = cache(store, Duration.ofMinutes(5), Duration.ofMinutes(1), 1000);
+        cache.rebuildKnownPlates();
+
+        int lookups = 100_000;
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            // One in ten lookups is for a rated plate, the rest have never been rated
+            String plate = i % 10 == 0 ? "KA01AB" + (1000 + i % 100) : "MH12CD" + i;
+            cache.get(plate);
+        }
+        double micros = (System.nanoTime() - start) / 1e3 / lookups;
+
+        log.info("Average rating lookup: {} us, {} store lookups", String.format("%.3f", micros), store.lookups.get());
+        assertTrue(micros < 1000, "Lookups should be sub-millisecond: " + micros + "us");
+    }
+
+    private RatingCache cache(RatingStore store, Duration ttl, Duration refreshAhead, int maxSize) {
+        RatingWriteBuffer buffer = new RatingWriteBuffer(store, 100, Duration.ofMinutes(1), 3);
+        return new RatingCache(store, buffer, aggregates(store, "this-node"), maxSize, ttl, refreshAhead, ttl, 1000,
+                Duration.ofMinutes(15), Duration.ofMinutes(1));
+    }
+
+    private RatingAggregates aggregates(RatingStore store, String nodeId) {
+        return new RatingAggregates(store, Optional.of(nodeId), Duration.ofDays(30), Duration.ofSeconds(30),
+                Duration.ofHours(1));
+    }
+
+    /*
+     * Store ratings as if another node had taken them: written to the table and published as that node's aggregate.
+     */
+    private void seed(RatingStore store, Rating... ratings) {
+        store.writeBatch(List.of(ratings));
+        RatingAggregates otherNode = aggregates(store, "other-node-" + ratings[0].getIdempotencyKey());
+        for (Rating rating : ratings) {
+            otherNode.record(rating);
+        }
+        otherNode.publish();
+        // Recording reads the node's own counts, that isn't a lookup by the cache
+        if (store instanceof CountingStore counting) {
+            counting.lookups.set(0);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Rating rating(String plate, String idempotencyKey, int stars) {
+        return Rating.builder()
+                .plate(plate)
+                .stars(stars)
+                .idempotencyKey(idempotencyKey)
+                .submittedAt(System.currentTimeMillis())
+                .build();
+    }
+
+    private static class CountingStore extends InMemoryRatingStore {
+        private final AtomicInteger lookups = new AtomicInteger();
+
+        @Override
+        public RatingAggregate readAggregate(String plate) {
+            lookups.incrementAndGet();
+            return super.readAggregate(plate);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.ratemyrickshaw.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.ratemyrickshaw.model.Rating;
+
+import lombok.extern.slf4j.Slf4j;
+
+/*
+Write throughput and latency of the log store, and lookup latency once the data is spread over sealed segments.
+
+The logic is as follows:
+1. For each configuration, writer threads append batches of 25 ratings over many plates as fast as they can, each
+   batch timed. Group commit is what lets throughput grow with the writers while every write still waits for fsync.
+2. Then random plates are looked up, most of them in sealed, memory mapped segments.
+3. Everything goes to target/benchmark/rating-log.json. The floors asserted are far below what a laptop manages, so
+   only a real regression (writes no longer grouped, say) fails the build.
+*/
+@Slf4j
+class RatingLogBenchmarkTest {
+
+    private static final Path REPORT = Paths.get("target/benchmark/rating-log.json");
+    private static final int RATINGS = 200_000;
+    private static final int PLATES = 20_000;
+    private static final int WRITERS = 32;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void testThroughputAndLatency() throws Exception {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("ratings", RATINGS);
+        report.put("writers", WRITERS);
+        Map<String, Object> fsync = run(directory.resolve("fsync"), true);
+        Map<String, Object> noFsync = run(directory.resolve("no-fsync"), false);
+        report.put("fsync", fsync);
+        report.put("no-fsync", noFsync);
+
+        Files.createDirectories(REPORT.getParent());
+        new ObjectMapper()
+                .enable(SerializationFeature.INDENT_OUTPUT)
+                .writeValue(REPORT.toFile(), report);
+        log.info("Rating log with fsync: {}", fsync);
+        log.info("Rating log without fsync: {}", noFsync);
+        log.info("Wrote the rating log report to {}", REPORT.toAbsolutePath());
+
+        assertTrue((long) fsync.get("ratingsPerSecond") >= 10_000, "Group committed writes are too slow: " + fsync);
+        assertTrue((long) noFsync.get("ratingsPerSecond") >= 50_000, "Writes are too slow: " + noFsync);
+    }
+
+    private Map<String, Object> run(Path path, boolean fsync) throws Exception {
+        Map<String, Object> result = new LinkedHashMap<>();
+        try (LogStructuredRatingStore store = new LogStructuredRatingStore(path, 4 << 20, fsync, 4)) {
+            int batches = RATINGS / RatingStore.MAX_BATCH_SIZE;
+            LatencyTracker writes = new LatencyTracker(batches);
+            ExecutorService executor = Executors.newFixedThreadPool(WRITERS);
+            long start = System.nanoTime();
+            try {
+                List<Future<?>> writers = new ArrayList<>();
+                for (int writer = 0; writer < WRITERS; writer++) {
+                    int first = writer;
+                    writers.add(executor.submit(() -> {
+                        for (int batch = first; batch < batches; batch += WRITERS) {
+                            List<Rating> ratings = batch(batch);
+                            long batchStart = System.nanoTime();
+                            store.writeBatch(ratings);
+                            writes.record(Duration.ofNanos(System.nanoTime() - batchStart));
+                        }
+                    }));
+                }
+                for (Future<?> writer : writers) {
+                    writer.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+            long elapsedNanos = System.nanoTime() - start;
+            result.put("ratingsPerSecond", RATINGS * 1_000_000_000L / elapsedNanos);
+            result.put("batchLatencyMicros", percentiles(writes));
+
+            LatencyTracker reads = new LatencyTracker(20_000);
+            int found = 0;
+            for (int i = 0; i < 20_000; i++) {
+                String plate = plate(ThreadLocalRandom.current().nextInt(PLATES));
+                long readStart = System.nanoTime();
+                found += store.findByPlate(plate).size();
+                reads.record(Duration.ofNanos(System.nanoTime() - readStart));
+            }
+            assertEquals(20_000L * RATINGS / PLATES, found);
+            result.put("sealedSegments", store.sealedSegments());
+            result.put("lookupLatencyMicros", percentiles(reads));
+        }
+        return result;
+    }
+
+    private static List<Rating> batch(int batch) {
+        List<Rating> ratings = new ArrayList<>(RatingStore.MAX_BATCH_SIZE);
+        for (int i = 0; i < RatingStore.MAX_BATCH_SIZE; i++) {
+            int n = batch * RatingStore.MAX_BATCH_SIZE + i;
+            ratings.add(Rating.builder()
+                    .plate(plate(n % PLATES))
+                    .stars(1 + n % 5)
+                    .idempotencyKey("rating-" + n)
+                    .submittedAt(n)
+                    .build());
+        }
+        return ratings;
+    }
+
+    private static String plate(int n) {
+        return String.format("MH%02dAB%04d", 1 + n / 10_000, n % 10_000);
+    }
+
+    private static Map<String, Object> percentiles(LatencyTracker latency) {
+        Map<String, Object> percentiles = new LinkedHashMap<>();
+        for (double percentile : new double[] { 0.5, 0.9, 0.99 }) {
+            percentiles.put("p" + Math.round(percentile * 100), latency.percentile(percentile).toNanos() / 1000);
+        }
+        return percentiles;
+    }
+}
@@ -0,0 +1,158 @@
+package com.ratemyrickshaw.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import com.ratemyrickshaw.model.Rating;
+
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+class RatingWriteBufferTest {
+
+    @Test
+    void testFullBatchIsWrittenOnSubmit() {
+        CountingStore store = new CountingStore(Duration.ZERO);
+        RatingWriteBuffer buffer = new RatingWriteBuffer(store, 100, Duration.ofMinutes(1), 3);
+
+        for (int i = 0; i < 30; i++) {
+            assertTrue(buffer.submit(rating("AP13V7951", "key-" + i)));
+        }
+
+        assertEquals(1, store.batches.get());
+        assertEquals(25, store.findByPlate("AP13V7951").size());
+        assertEquals(5, buffer.pendingCount());
+    }
+
+    @Test
+    void testPartialBatchIsWrittenAfterFlushInterval() throws InterruptedException {
+        CountingStore store = new CountingStore(Duration.ZERO);
+        RatingWriteBuffer buffer = new RatingWriteBuffer(store, 100, Duration.ofMillis(100), 3);
+        buffer.start();
+
+        buffer.submit(rating("AP13V7951", "key-1"));
+        buffer.submit(rating("MH03V5823", "key-2"));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (buffer.pendingCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        buffer.stop();
+
+        assertEquals(0, buffer.pendingCount());
+        assertEquals(1, store.findByPlate("AP13V7951").size());
+        assertEquals(1, store.findByPlate("MH03V5823").size());
+    }
+
+    @Test
+    void testUnprocessedRatingsAreRetried() {
+        AtomicInteger calls = new AtomicInteger();
+        InMemoryRatingStore store = new InMemoryRatingStore() {
+            @Override
+            public List<Rating> writeBatch(List<Rating> ratings) {
+                // Simulate throttling: the first call only accepts the first half of the batch
+                if (calls.getAndIncrement() == 0) {
+                    int half = ratings.size() / 2;
+                    super.writeBatch(ratings.subList(0, half));
+                    return ratings.subList(half, ratings.size());
+                }
+                return super.writeBatch(ratings);
+            }
+        };
+        RatingWriteBuffer buffer = new RatingWriteBuffer(store, 100, Duration.ofMinutes(1), 3);
+
+        for (int i = 0; i < 10; i++) {
+            buffer.submit(rating("AP13V7951", "key-" + i));
+        }
+        buffer.flush();
+
+        assertEquals(2, calls.get());
+        assertEquals(10, store.findByPlate("AP13V7951").size());
+    }
+
+    @Test
+    void testDuplicateSubmissionIsWrittenOnce() {
+        CountingStore store = new CountingStore(Duration.ZERO);
+        RatingWriteBuffer buffer = new RatingWriteBuffer(store, 100, Duration.ofMinutes(1), 3);
+
+        buffer.submit(rating("AP13V7951", "same-key"));
+        buffer.submit(rating("AP13V7951", "same-key"));
+        buffer.flush();
+        // A client retry after the first copy was written replaces it rather than adding another
+        buffer.submit(rating("AP13V7951", "same-key"));
+        buffer.flush();
+
+        assertEquals(1, store.findByPlate("AP13V7951").size());
+    }
+
+    @Test
+    void testSubmissionsAreRejectedWhenBufferIsFull() {
+        RatingWriteBuffer buffer = new RatingWriteBuffer(new CountingStore(Duration.ZERO), 2, Duration.ofMinutes(1), 3);
+
+        assertTrue(buffer.submit(rating("AP13V7951", "key-1")));
+        assertTrue(buffer.submit(rating("AP13V7951", "key-2")));
+        assertFalse(buffer.submit(rating("AP13V7951", "key-3")));
+    }
+
+    @Test
+    void testBufferedThroughputBenchmark() {
+        // Each store call costs a simulated 5ms round trip, as a DynamoDB request would
+        int count = 500;
+        Duration latency = Duration.ofMillis(5);
+
+        CountingStore unbufferedStore = new CountingStore(latency);
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            unbufferedStore.writeBatch(List.of(rating("AP13V7951", "key-" + i)));
+        }
+        double unbufferedPerSecond = count / ((System.nanoTime() - start) / 1e9);
+
+        CountingStore bufferedStore = new CountingStore(latency);
+        RatingWriteBuffer buffer = new RatingWriteBuffer(bufferedStore, 1000, Duration.ofMinutes(1), 3);
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            buffer.submit(rating("AP13V7951", "key-" + i));
+        }
+        buffer.flush();
+        double bufferedPerSecond = count / ((System.nanoTime() - start) / 1e9);
+
+        log.info("Ratings per second: one write each {}, buffered {} ({} vs {} store calls)",
+                Math.round(unbufferedPerSecond), Math.round(bufferedPerSecond),
+                unbufferedStore.batches.get(), bufferedStore.batches.get());
+
+        assertEquals(count, bufferedStore.findByPlate("AP13V7951").size());
+        assertEquals(count / RatingStore.MAX_BATCH_SIZE, bufferedStore.batches.get());
+        assertTrue(bufferedPerSecond > unbufferedPerSecond * 5,
+                "Buffered writes should be much faster: " + bufferedPerSecond + " vs " + unbufferedPerSecond);
+    }
+
+    private Rating rating(String plate, String idempotencyKey) {
+        return Rating.builder()
+                .plate(plate)
+                .stars(4)
+                .idempotencyKey(idempotencyKey)
+                .submittedAt(System.currentTimeMillis())
+                .build();
+    }
+
+    private static class CountingStore extends InMemoryRatingStore {
+        private final AtomicInteger batches = new AtomicInteger();
+
+        CountingStore(Duration writeLatency) {
+            super(writeLatency);
+        }
+
+        @Override
+        public List<Rating> writeBatch(List<Rating> ratings) {
+            batches.incrementAndGet();
+            return super.writeBatch(ratings);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.ratemyrickshaw.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.ratemyrickshaw.model.Deadline;
+import com.ratemyrickshaw.service.RekognitionRateGovernor.Priority;
+
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+class RekognitionRateGovernorTest {
+
+    private static final Deadline LONG_DEADLINE = Deadline.after(Duration.ofMinutes(1));
+
+    @Test
+    void testCallsArePacedAtTheRate() {
+        RekognitionRateGovernor governor = governor(20, 100);
+
+        long start = System.nanoTime();
+        // The first 20 are the burst, the next 10 should take about half a second
+        for (int i = 0; i < 30; i++) {
+            governor.acquire(Priority.INTERACTIVE, LONG_DEADLINE);
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(millis >= 400 && millis < 1500, "30 calls at 20 TPS took " + millis + "ms");
+    }
+
+    @Test
+    void testRateAdaptsToThrottling() {
+        RekognitionRateGovernor governor = governor(10, 100);
+
+        governor.onThrottled();
+        assertEquals(5, governor.currentRate(), 1e-9);
+
+        // More throttles from calls already in flight don't keep halving it
+        governor.onThrottled();
+        governor.onThrottled();
+        assertEquals(5, governor.currentRate(), 1e-9);
+
+        // Each success adds increase / rate, so about 0.5 TPS per second of calls. Over n calls rate squared grows by
+        // about 2 * increase * n, so 50 calls take it from 5 to roughly sqrt(25 + 50)
+        for (int i = 0; i < 50; i++) {
+            governor.onSuccess();
+        }
+        assertEquals(Math.sqrt(75), governor.currentRate(), 0.05);
+    }
+
+    @Test
+    void testRateStaysWithinBounds() {
+        RekognitionRateGovernor governor = new RekognitionRateGovernor(5, 2, 6, 0.5, 0.5, 100);
+
+        for (int i = 0; i < 1000; i++) {
+            governor.onSuccess();
+        }
+        assertEquals(6, governor.currentRate(), 1e-9);
+    }
+
+    @Test
+    void testInteractiveCallsGoAheadOfBulkWork() throws InterruptedException {
+        RekognitionRateGovernor governor = governor(10, 100);
+        // Use up the burst so everything after this queues
+        for (int i = 0; i < 10; i++) {
+            governor.acquire(Priority.BULK, LONG_DEADLINE);
+        }
+
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch bulkQueued = new CountDownLatch(1);
+        for (int i = 0; i < 5; i++) {
+            int job = i;
+            executor.execute(() -> {
+                bulkQueued.countDown();
+                governor.acquire(Priority.BULK, LONG_DEADLINE);
+                order.add("bulk-" + job);
+            });
+        }
+        bulkQueued.await();
+        while (governor.queueDepth() < 5) {
+            Thread.sleep(5);
+        }
+        executor.execute(() -> {
+            governor.acquire(Priority.INTERACTIVE, LONG_DEADLINE);
+            order.add("interactive");
+        });
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+
+        // At most one bulk call could have taken a token before the interactive one was queued
+        assertTrue(order.indexOf("interactive") <= 1, "Order: " + order);
+        log.info("Governor after priority test: {}", governor.stats());
+    }
+
+    @Test
+    void testFullQueueTurnsCallersAway() throws InterruptedException {
+        RekognitionRateGovernor governor = governor(1, 2);
+        governor.acquire(Priority.BULK, LONG_DEADLINE);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        for (int i = 0; i < 2; i++) {
+            executor.execute(() -> governor.acquire(Priority.BULK, Deadline.after(Duration.ofSeconds(3))));
+        }
+        while (governor.queueDepth() < 2) {
+            Thread.sleep(5);
+        }
+
+        assertThrows(CapacityExceededException.class, () -> governor.acquire(Priority.INTERACTIVE, LONG_DEADLINE));
+        executor.shutdownNow();
+    }
+
+    @Test
+    void testQueuedCallerGivesUpAtItsDeadline() {
+        RekognitionRateGovernor governor = governor(1, 100);
+        governor.acquire(Priority.INTERACTIVE, LONG_DEADLINE);
+
+        long start = System.nanoTime();
+        assertThrows(DeadlineExceededException.class,
+                () -> governor.acquire(Priority.INTERACTIVE, Deadline.after(Duration.ofMillis(200))));
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(millis < 800, "Should give up at the deadline, took " + millis + "ms");
+        assertEquals(0, governor.queueDepth());
+    }
+
+    @Test
+    void testHedgeOnlyTakesASpareToken() {
+        RekognitionRateGovernor governor = governor(2, 100);
+
+        assertTrue(governor.tryAcquire());
+        assertTrue(governor.tryAcquire());
+        assertFalse(governor.tryAcquire());
+    }
+
+    private RekognitionRateGovernor governor(double rate, int queueCapacity) {
+        return new RekognitionRateGovernor(rate, 0.5, 1000, 0.5, 0.5, queueCapacity);
+    }
+}
@@ -0,0 +1,395 @@
+package com.ratemyrickshaw.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.Test;
+
+import com.ratemyrickshaw.fn.VehicleLabelFn;
+import com.ratemyrickshaw.model.Deadline;
+import com.ratemyrickshaw.model.ImageCrop;
+import com.ratemyrickshaw.model.ImageReading;
+import com.ratemyrickshaw.model.VehicleCheck;
+import com.ratemyrickshaw.service.RekognitionRateGovernor.Priority;
+
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+import software.amazon.awssdk.services.rekognition.RekognitionClient;
+import software.amazon.awssdk.services.rekognition.model.DetectLabelsRequest;
+import software.amazon.awssdk.services.rekognition.model.DetectLabelsResponse;
+import software.amazon.awssdk.services.rekognition.model.DetectTextRequest;
+import software.amazon.awssdk.services.rekognition.model.DetectTextResponse;
+import software.amazon.awssdk.services.rekognition.model.Image;
+import software.amazon.awssdk.services.rekognition.model.Label;
+import software.amazon.awssdk.services.rekognition.model.TextDetection;
+
+class RekognitionServiceTest {
+
+    private static final byte[] IMAGE = new byte[] { 1, 2, 3 };
+    private static final Image IMAGE_REF = Image.builder().bytes(SdkBytes.fromByteArray(IMAGE)).build();
+
+    @Test
+    void testFastCallIsNotHedged() {
+        FakeClient client = new FakeClient(call -> response("MH12AB1234"));
+        RekognitionService service = service(client, Duration.ofMillis(200));
+
+        DetectTextResponse response = service.detectText(IMAGE, Deadline.after(Duration.ofSeconds(5)),
+                Priority.INTERACTIVE);
+
+        assertEquals("MH12AB1234", response.textDetections().get(0).detectedText());
+        assertEquals(1, client.calls.get());
+    }
+
+    @Test
+    void testSlowCallIsHedgedAndTheLoserCancelled() throws InterruptedException {
+        CountDownLatch primaryInterrupted = new CountDownLatch(1);
+        FakeClient client = new FakeClient(call -> {
+            if (call == 1) {
+                try {
+                    Thread.sleep(10_000);
+                } catch (InterruptedException e) {
+                    primaryInterrupted.countDown();
+                    throw new IllegalStateException("cancelled");
+                }
+            }
+            return response("KA01CD5678");
+        });
+        RekognitionService service = service(client, Duration.ofMillis(50));
+
+        long start = System.nanoTime();
+        DetectTextResponse response = service.detectText(IMAGE, Deadline.after(Duration.ofSeconds(5)),
+                Priority.INTERACTIVE);
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals("KA01CD5678", response.textDetections().get(0).detectedText());
+        assertEquals(2, client.calls.get());
+        assertTrue(millis < 2000, "The hedge should have answered, took " + millis + "ms");
+        assertTrue(primaryInterrupted.await(2, TimeUnit.SECONDS), "The slow call should have been cancelled");
+        assertEquals("1 hedged, 1 won by the hedge", service.hedgingStats());
+    }
+
+    @Test
+    void testNoHedgeWhenEveryCallThreadIsBusy() {
+        FakeClient client = new FakeClient(call -> {
+            sleep(300);
+            return response("MH12AB1234");
+        }, () -> {
+            sleep(1_000);
+            return labels("Auto Rickshaw", 97f);
+        });
+        // Two call threads, sized for 1 TPS: the labels take one and the text the other. The governor that paces
+        // the calls has tokens to spare, so only the pool can stop the hedge
+        RekognitionService service = service(client, Duration.ofMillis(50), 1);
+        service.rateGovernor = new RekognitionRateGovernor(1000, 1, 1000, 0.5, 0.5, 100);
+        Deadline deadline = Deadline.after(Duration.ofSeconds(5));
+
+        ImageReading reading = service.readWithLabels(IMAGE_REF,
+                () -> service.detectText(IMAGE, deadline, Priority.INTERACTIVE), deadline);
+
+        assertEquals("MH12AB1234", reading.getText().textDetections().get(0).detectedText());
+        assertEquals(1, client.calls.get());
+        assertEquals("0 hedged, 0 won by the hedge", service.hedgingStats());
+    }
+
+    @Test
+    void testTextIsReadWithoutLabelsWhenEveryCallThreadIsBusy() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        FakeClient client = new FakeClient(call -> {
+            await(release);
+            return response("KA01CD5678");
+        }, () -> {
+            throw new IllegalStateException("The labels shouldn't have been asked for");
+        });
+        // Two call threads, both taken by calls that are still waiting for an answer
+        RekognitionService service = service(client, Duration.ofSeconds(5), 1);
+        service.rateGovernor = new RekognitionRateGovernor(1000, 1, 1000, 0.5, 0.5, 100);
+        Deadline deadline = Deadline.after(Duration.ofSeconds(5));
+        for (int i = 0; i < 2; i++) {
+            Thread.ofVirtual().start(() -> service.detectText(IMAGE, deadline, Priority.BULK));
+        }
+        while (client.calls.get() < 2) {
+            Thread.sleep(5);
+        }
+
+        try {
+            ImageReading reading = service.readWithLabels(IMAGE_REF, () -> response("MH12AB1234"), deadline);
+
+            assertEquals("MH12AB1234", reading.getText().textDetections().get(0).detectedText());
+            assertEquals(VehicleCheck.Verdict.UNKNOWN, reading.getVehicle().getVerdict());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    void testCropsAreReadTogether() {
+        FakeClient client = new FakeClient(call -> {
+            sleep(300);
+            return DetectTextResponse.builder()
+                    .textDetections(TextDetection.builder().id(0).detectedText("MH12AB1234").type("LINE").build(),
+                            TextDetection.builder().id(1).parentId(0).detectedText("MH12").type("WORD").build())
+                    .build();
+        });
+        RekognitionService service = service(client, Duration.ofSeconds(5));
+        service.imagePreprocessingService = new ImagePreprocessingService() {
+            @Override
+            public List<ImageCrop> cropToPlateRegions(byte[] imageBytes) {
+                return List.of(new ImageCrop(imageBytes, 0f, 0f, 0.5f, 0.5f),
+                        new ImageCrop(imageBytes, 0.5f, 0.5f, 0.5f, 0.5f));
+            }
+        };
+
+        long start = System.nanoTime();
+        DetectTextResponse response = service.uploadToRekognition(IMAGE, Deadline.after(Duration.ofSeconds(5)),
+                Priority.INTERACTIVE);
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(2, client.calls.get());
+        assertTrue(millis < 550, "The crops should be read at the same time, took " + millis + "ms");
+        // The second crop's ids come after the first's, in the same order as the crops
+        assertEquals(List.of(0, 1, 2, 3), response.textDetections().stream().map(TextDetection::id).toList());
+        assertEquals(2, response.textDetections().get(3).parentId());
+    }
+
+    @Test
+    void testFailedCallWaitsForTheHedge() {
+        FakeClient client = new FakeClient(call -> {
+            if (call == 1) {
+                sleep(200);
+                throw new IllegalStateException("Rekognition is having a bad day");
+            }
+            return response("TN11AP2245");
+        });
+        RekognitionService service = service(client, Duration.ofMillis(50));
+
+        DetectTextResponse response = service.detectText(IMAGE, Deadline.after(Duration.ofSeconds(5)),
+                Priority.INTERACTIVE);
+
+        assertEquals("TN11AP2245", response.textDetections().get(0).detectedText());
+    }
+
+    @Test
+    void testCallsThatOutliveTheDeadlineTimeOut() {
+        FakeClient client = new FakeClient(call -> {
+            sleep(5_000);
+            return response("MH12AB1234");
+        });
+        RekognitionService service = service(client, Duration.ofMillis(50));
+
+        long start = System.nanoTime();
+        assertThrows(DeadlineExceededException.class,
+                () -> service.detectText(IMAGE, Deadline.after(Duration.ofMillis(300)), Priority.INTERACTIVE));
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(millis < 1000, "Should give up at the deadline, took " + millis + "ms");
+    }
+
+    @Test
+    void testExpiredDeadlineMakesNoCall() {
+        FakeClient client = new FakeClient(call -> response("MH12AB1234"));
+        RekognitionService service = service(client, Duration.ofMillis(50));
+
+        assertThrows(DeadlineExceededException.class,
+                () -> service.detectText(IMAGE, Deadline.after(Duration.ZERO), Priority.INTERACTIVE));
+        assertEquals(0, client.calls.get());
+    }
+
+    @Test
+    void testErrorIsThrownWhenThereIsNoHedge() {
+        FakeClient client = new FakeClient(call -> {
+            throw new IllegalStateException("Access denied");
+        });
+        RekognitionService service = service(client, Duration.ofMillis(50));
+        service.hedgingEnabled = false;
+
+        IllegalStateException e = assertThrows(IllegalStateException.class,
+                () -> service.detectText(IMAGE, Deadline.after(Duration.ofSeconds(5)), Priority.INTERACTIVE));
+        assertEquals("Access denied", e.getMessage());
+    }
+
+    @Test
+    void testThrottlingSlowsTheGovernor() {
+        FakeClient client = new FakeClient(call -> {
+            throw SdkServiceException.builder().statusCode(429).message("Rate exceeded").build();
+        });
+        RekognitionService service = service(client, Duration.ofMillis(50));
+        service.hedgingEnabled = false;
+
+        assertThrows(SdkServiceException.class,
+                () -> service.detectText(IMAGE, Deadline.after(Duration.ofSeconds(5)), Priority.INTERACTIVE));
+        assertEquals(500, service.rateGovernor.currentRate(), 1e-9);
+    }
+
+    @Test
+    void testTextAndLabelsAreReadTogether() {
+        FakeClient client = new FakeClient(call -> {
+            sleep(400);
+            return response("MH12AB1234");
+        }, () -> {
+            sleep(400);
+            return labels("Auto Rickshaw", 97f);
+        });
+        RekognitionService service = service(client, Duration.ofSeconds(5));
+        Deadline deadline = Deadline.after(Duration.ofSeconds(5));
+
+        long start = System.nanoTime();
+        ImageReading reading = service.readWithLabels(IMAGE_REF,
+                () -> service.detectText(IMAGE, deadline, Priority.INTERACTIVE), deadline);
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals("MH12AB1234", reading.getText().textDetections().get(0).detectedText());
+        assertEquals(VehicleCheck.Verdict.RICKSHAW, reading.getVehicle().getVerdict());
+        assertTrue(millis < 700, "The calls should overlap, took " + millis + "ms");
+    }
+
+    @Test
+    void testOtherVehicleCancelsTheTextDetection() throws InterruptedException {
+        CountDownLatch textInterrupted = new CountDownLatch(1);
+        FakeClient client = new FakeClient(call -> {
+            try {
+                Thread.sleep(10_000);
+            } catch (InterruptedException e) {
+                textInterrupted.countDown();
+                throw new IllegalStateException("cancelled");
+            }
+            return response("MH12AB1234");
+        }, () -> {
+            // Long enough for the text detection to be in flight
+            sleep(200);
+            return labels("Car", 98f);
+        });
+        RekognitionService service = service(client, Duration.ofSeconds(20));
+        service.hedgingEnabled = false;
+        Deadline deadline = Deadline.after(Duration.ofSeconds(20));
+
+        long start = System.nanoTime();
+        ImageReading reading = service.readWithLabels(IMAGE_REF,
+                () -> service.detectText(IMAGE, deadline, Priority.INTERACTIVE), deadline);
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(reading.isOtherVehicle());
+        assertEquals("Car", reading.getVehicle().getLabel());
+        assertNull(reading.getText());
+        assertTrue(millis < 2000, "Should answer as soon as the labels are back, took " + millis + "ms");
+        assertTrue(textInterrupted.await(2, TimeUnit.SECONDS), "The text detection should have been cancelled");
+    }
+
+    @Test
+    void testFailedOrLateLabelsAreUnknown() {
+        FakeClient failing = new FakeClient(call -> response("MH12AB1234"), () -> {
+            throw new IllegalStateException("Access denied");
+        });
+        RekognitionService service = service(failing, Duration.ofSeconds(5));
+        Deadline deadline = Deadline.after(Duration.ofSeconds(5));
+
+        ImageReading reading = service.readWithLabels(IMAGE_REF,
+                () -> service.detectText(IMAGE, deadline, Priority.INTERACTIVE), deadline);
+        assertEquals("MH12AB1234", reading.getText().textDetections().get(0).detectedText());
+        assertEquals(VehicleCheck.Verdict.UNKNOWN, reading.getVehicle().getVerdict());
+
+        FakeClient slow = new FakeClient(call -> response("MH12AB1234"), () -> {
+            sleep(5_000);
+            return labels("Car", 98f);
+        });
+        RekognitionService slowService = service(slow, Duration.ofSeconds(5));
+
+        long start = System.nanoTime();
+        reading = slowService.readWithLabels(IMAGE_REF,
+                () -> slowService.detectText(IMAGE, deadline, Priority.INTERACTIVE), deadline);
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(VehicleCheck.Verdict.UNKNOWN, reading.getVehicle().getVerdict());
+        assertTrue(millis < 1000, "Late labels should only get the grace period, took " + millis + "ms");
+    }
+
+    private RekognitionService service(RekognitionClient client, Duration hedgeDelay) {
+        return service(client, hedgeDelay, 1000);
+    }
+
+    private RekognitionService service(RekognitionClient client, Duration hedgeDelay, double maxTps) {
+        RekognitionService service = new RekognitionService();
+        service.rekognitionClient = client;
+        service.hedgingEnabled = true;
+        service.initialHedgeDelay = hedgeDelay;
+        service.minHedgeDelay = hedgeDelay;
+        service.attemptTimeout = Duration.ofSeconds(10);
+        service.rateGovernor = new RekognitionRateGovernor(maxTps, 1, maxTps, 0.5, 0.5, 100);
+        service.vehicleLabelFn = new VehicleLabelFn(List.of("Auto Rickshaw"), List.of("Car"), 50, 90);
+        service.labelsGrace = Duration.ofMillis(100);
+        service.start();
+        return service;
+    }
+
+    private static DetectTextResponse response(String text) {
+        return DetectTextResponse.builder()
+                .textDetections(List.of(TextDetection.builder().detectedText(text).type("LINE").build()))
+                .build();
+    }
+
+    private static DetectLabelsResponse labels(String name, float confidence) {
+        return DetectLabelsResponse.builder()
+                .labels(Label.builder().name(name).confidence(confidence).build())
+                .build();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted");
+        }
+    }
+
+    private static class FakeClient implements RekognitionClient {
+        private final AtomicInteger calls = new AtomicInteger();
+        private final IntFunction<DetectTextResponse> behaviour;
+        private final Supplier<DetectLabelsResponse> labels;
+
+        FakeClient(IntFunction<DetectTextResponse> behaviour) {
+            this(behaviour, () -> labels("Auto Rickshaw", 97f));
+        }
+
+        FakeClient(IntFunction<DetectTextResponse> behaviour, Supplier<DetectLabelsResponse> labels) {
+            this.behaviour = behaviour;
+            this.labels = labels;
+        }
+
+        @Override
+        public DetectTextResponse detectText(DetectTextRequest request) {
+            return behaviour.apply(calls.incrementAndGet());
+        }
+
+        @Override
+        public DetectLabelsResponse detectLabels(DetectLabelsRequest request) {
+            return labels.get();
+        }
+
+        @Override
+        public String serviceName() {
+            return SERVICE_NAME;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.ratemyrickshaw.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ratemyrickshaw.model.ReprocessingResult;
+import com.ratemyrickshaw.model.ReprocessingSummary;
+
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+
+@QuarkusTest
+class ReprocessingServiceTest {
+
+    private static final Path ARCHIVE = Paths.get("src/test/resources/ocr_data");
+
+    @Inject
+    ReprocessingService reprocessingService;
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    private Path tempDir;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        // @TempDir isn't injected into @QuarkusTest instances
+        tempDir = Files.createTempDirectory("reprocessing");
+    }
+
+    @Test
+    void testArchiveIsReprocessedToJsonl() throws Exception {
+        Path output = tempDir.resolve("results.jsonl");
+
+        ReprocessingSummary summary = reprocessingService.reprocess(ARCHIVE, output, 4, false, false);
+
+        assertEquals(6, summary.getProcessed());
+        assertEquals(0, summary.getFailed());
+        Map<String, ReprocessingResult> results = read(output);
+        assertEquals(6, results.size());
+        assertEquals("AP13V7951", results.get("0_result.json").getPlate());
+        assertEquals("MH03V5823", results.get("10_result.json").getPlate());
+        assertTrue(results.get("0_result.json").isValid());
+    }
+
+    @Test
+    void testRunResumesFromItsOutput() throws Exception {
+        Path output = tempDir.resolve("results.jsonl");
+        reprocessingService.reprocess(ARCHIVE, output, 2, false, false);
+
+        // Lose the last two results, and leave half a line behind as a crash mid write would
+        List<String> lines = Files.readAllLines(output);
+        String kept = String.join("\n", lines.subList(0, 4)) + "\n" + lines.get(4).substring(0, 10);
+        Files.writeString(output, kept, StandardCharsets.UTF_8);
+
+        ReprocessingSummary summary = reprocessingService.reprocess(ARCHIVE, output, 2, false, false);
+
+        assertEquals(2, summary.getProcessed());
+        assertEquals(4, summary.getSkipped());
+        assertEquals(6, Files.readAllLines(output).size());
+        assertEquals(6, read(output).size(), "Every input should be in the output exactly once");
+    }
+
+    @Test
+    void testManifestAndUnreadableInputs() throws Exception {
+        Path archive = Files.createDirectory(tempDir.resolve("archive"));
+        Files.copy(ARCHIVE.resolve("10_result.json"), archive.resolve("10_result.json"));
+        Files.writeString(archive.resolve("broken.json"), "{\"Nope\": []}");
+        Path manifest = tempDir.resolve("manifest.txt");
+        Files.writeString(manifest, "# reprocess these\narchive/10_result.json\n\narchive/broken.json\narchive/photo.jpg\n");
+        Path output = tempDir.resolve("results.jsonl");
+
+        ReprocessingSummary summary = reprocessingService.reprocess(manifest, output, 2, true, false);
+
+        // The photo is skipped without --ocr, the broken response is recorded as failed
+        assertEquals(2, summary.getProcessed());
+        assertEquals(1, summary.getFailed());
+        Map<String, ReprocessingResult> results = read(output);
+        assertEquals("MH03V5823", results.get("archive/10_result.json").getPlate());
+        assertNotNull(results.get("archive/10_result.json").getPlates());
+        assertNotNull(results.get("archive/broken.json").getError());
+    }
+
+    private Map<String, ReprocessingResult> read(Path output) throws IOException {
+        Map<String, ReprocessingResult> results = new HashMap<>();
+        for (String line : Files.readAllLines(output)) {
+            ReprocessingResult result = objectMapper.readValue(line, ReprocessingResult.class);
+            results.put(result.getId(), result);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,238 @@
+package com.ratemyrickshaw.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Test;
+
+import com.ratemyrickshaw.fn.NumberPlateValidationFn;
+import com.ratemyrickshaw.model.ImageAnalysisResponse;
+import com.ratemyrickshaw.model.RatingSummary;
+import com.ratemyrickshaw.model.ScanEvent;
+
+class ScanSessionTest {
+
+    private final NumberPlateValidationFn validation = new NumberPlateValidationFn();
+    private final BlockingQueue<ScanEvent> events = new LinkedBlockingQueue<>();
+
+    @Test
+    void testConsensusCorrectsEveryFramesMisread() {
+        PlateConsensus consensus = new PlateConsensus(3, validation::matchCompletePlate);
+        // Each frame misreads a different character, none of them read the plate
+        consensus.vote("MH14AB1234");
+        consensus.vote("MH12AD1234");
+        assertEquals("MH12AB1234", consensus.vote("MH12AB1284"));
+        assertEquals(0, consensus.agreeing());
+        assertFalse(consensus.isStable());
+
+        consensus.vote("MH12AB1234");
+        assertFalse(consensus.isStable());
+        consensus.vote("MH14AB1234");
+        assertTrue(consensus.isStable());
+        assertEquals("MH12AB1234", consensus.consensus().orElseThrow());
+    }
+
+    @Test
+    void testConsensusFollowsTheMostCommonShape() {
+        PlateConsensus consensus = new PlateConsensus(1, validation::matchCompletePlate);
+        consensus.vote("DL1RK5954");
+        consensus.vote("MH12AB1234");
+        assertEquals("DL1RK5954", consensus.vote("DL1RK5954"));
+        // A character vote that isn't a plate falls back to the most common reading
+        PlateConsensus invalid = new PlateConsensus(1, text -> Optional.empty());
+        invalid.vote("KA01CD5678");
+        invalid.vote("KA01CD5678");
+        assertEquals("KA01CD5678", invalid.vote("KA01CD5679"));
+    }
+
+    @Test
+    void testPlateIsSentOnceTheFramesAgree() throws Exception {
+        List<String> analysed = new CopyOnWriteArrayList<>();
+        ScanSession session = session(frame -> {
+            analysed.add(new String(frame));
+            return read("MH12AB1234");
+        }, 3, 8);
+
+        for (int i = 0; i < 3; i++) {
+            session.offer(("frame-" + i).getBytes());
+            assertEquals(ScanEvent.Type.FRAME, next().getType());
+        }
+        ScanEvent plate = next();
+        assertEquals(ScanEvent.Type.PLATE, plate.getType());
+        assertEquals("MH12AB1234", plate.getPlate());
+        assertEquals("MH12 AB1234", plate.getCandidate());
+        assertEquals(4.5, plate.getRating().getAverageStars());
+        assertEquals(3, plate.getOcrCalls());
+        assertTrue(session.isFinished());
+
+        // The scan is done, more frames cost nothing until a reset
+        session.offer("frame-3".getBytes());
+        assertNull(events.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(3, analysed.size());
+
+        session.reset();
+        session.offer("frame-4".getBytes());
+        assertEquals(ScanEvent.Type.FRAME, next().getType());
+        assertEquals(List.of("frame-0", "frame-1", "frame-2", "frame-4"), analysed);
+    }
+
+    @Test
+    void testOnlyTheLatestFrameIsAnalysedWhenBusy() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> analysed = new CopyOnWriteArrayList<>();
+        ScanSession session = session(frame -> {
+            analysed.add(new String(frame));
+            await(release);
+            return read("KA01CD5678");
+        }, 5, 8);
+
+        session.offer("frame-0".getBytes());
+        while (analysed.isEmpty()) {
+            Thread.sleep(5);
+        }
+        for (int i = 1; i <= 4; i++) {
+            session.offer(("frame-" + i).getBytes());
+        }
+        release.countDown();
+
+        next();
+        ScanEvent second = next();
+        assertEquals(List.of("frame-0", "frame-4"), analysed);
+        assertEquals(5, second.getFramesReceived());
+        assertEquals(3, second.getFramesDropped());
+        assertEquals(2, second.getOcrCalls());
+    }
+
+    @Test
+    void testScanGivesUpAfterItsOcrCalls() throws Exception {
+        Iterator<ImageAnalysisResponse> reads = List.of(
+                ImageAnalysisResponse.builder().success(false).data("Invalid state code").build(),
+                read("AP13V7951"),
+                ImageAnalysisResponse.builder().success(false).data("Invalid plate format").build()).iterator();
+        ScanSession session = session(frame -> reads.next(), 3, 3);
+
+        ScanEvent event = null;
+        for (int i = 0; i < 3; i++) {
+            session.offer(new byte[] { (byte) i });
+            event = next();
+            assertEquals(ScanEvent.Type.FRAME, event.getType());
+        }
+        assertNull(event.getPlate());
+        assertEquals("AP13V7951", event.getConsensus());
+
+        ScanEvent exhausted = next();
+        assertEquals(ScanEvent.Type.EXHAUSTED, exhausted.getType());
+        assertEquals("AP13V7951", exhausted.getPlate());
+        assertEquals(3, exhausted.getOcrCalls());
+    }
+
+    @Test
+    void testFailedFrameIsReported() throws Exception {
+        ScanSession session = session(frame -> {
+            throw new DeadlineExceededException("Text detection didn't finish before the deadline");
+        }, 3, 8);
+
+        session.offer(new byte[1]);
+        ScanEvent error = next();
+        assertEquals(ScanEvent.Type.ERROR, error.getType());
+        assertEquals("Text detection didn't finish before the deadline", error.getMessage());
+        assertEquals(ScanEvent.Type.FRAME, next().getType());
+        assertFalse(session.isFinished());
+    }
+
+    @Test
+    void testAnalysisFromBeforeAResetIsDropped() throws Exception {
+        CountDownLatch analysing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ScanSession session = session(frame -> {
+            if (frame[0] == 0) {
+                analysing.countDown();
+                await(release);
+                return read("MH12AB1234");
+            }
+            return read("KA01CD5678");
+        }, 1, 8, 40);
+
+        session.offer(new byte[] { 0 });
+        assertTrue(analysing.await(5, TimeUnit.SECONDS));
+        session.reset();
+        release.countDown();
+        // The old frame would have finished the scan on its own, it neither votes nor finishes the new one
+        assertNull(events.poll(200, TimeUnit.MILLISECONDS));
+        assertFalse(session.isFinished());
+
+        session.offer(new byte[] { 1 });
+        ScanEvent frame = next();
+        assertEquals("KA01CD5678", frame.getConsensus());
+        ScanEvent plate = next();
+        assertEquals(ScanEvent.Type.PLATE, plate.getType());
+        assertEquals("KA01CD5678", plate.getPlate());
+    }
+
+    @Test
+    void testResetsDontRestoreTheConnectionsOcrCalls() throws Exception {
+        ScanSession session = session(frame -> read("MH12AB1234"), 1, 8, 3);
+
+        for (int i = 0; i < 3; i++) {
+            session.offer(new byte[] { (byte) i });
+            assertEquals(ScanEvent.Type.FRAME, next().getType());
+            assertEquals(ScanEvent.Type.PLATE, next().getType());
+            session.reset();
+        }
+        session.offer(new byte[] { 3 });
+        ScanEvent spent = next();
+        assertEquals(ScanEvent.Type.ERROR, spent.getType());
+        assertEquals("This session has used all its OCR calls, open a new one to scan again", spent.getMessage());
+
+        session.reset();
+        session.offer(new byte[] { 4 });
+        assertNull(events.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    private ScanSession session(Function<byte[], ImageAnalysisResponse> analyzer, int stableFrames, int maxOcrCalls) {
+        return session(analyzer, stableFrames, maxOcrCalls, 100);
+    }
+
+    private ScanSession session(Function<byte[], ImageAnalysisResponse> analyzer, int stableFrames, int maxOcrCalls,
+            int maxConnectionOcrCalls) {
+        RatingSummary rating = RatingSummary.builder().averageStars(4.5).build();
+        return new ScanSession(analyzer, plate -> rating, validation::matchCompletePlate, events::add, stableFrames,
+                maxOcrCalls, maxConnectionOcrCalls, Duration.ZERO);
+    }
+
+    private static ImageAnalysisResponse read(String plate) {
+        return ImageAnalysisResponse.builder()
+                .success(true)
+                .data(plate)
+                .candidate(plate.substring(0, 4) + " " + plate.substring(4))
+                .build();
+    }
+
+    private ScanEvent next() throws InterruptedException {
+        ScanEvent event = events.poll(5, TimeUnit.SECONDS);
+        assertNotNull(event, "No scan event");
+        return event;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.ratemyrickshaw.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Test;
+
+import com.ratemyrickshaw.fn.NumberPlateValidationFn;
+import com.ratemyrickshaw.model.Rating;
+import com.ratemyrickshaw.model.RatingAggregate;
+
+class ShardedRatingStoreTest {
+
+    private static final String[] STATES = {"MH", "DL", "KA", "TN", "AP", "UP", "GJ", "RJ"};
+
+    @Test
+    void testPlatesAreSpreadEvenlyOverShards() {
+        ShardedRatingStore store = store(8, Map.of());
+        Map<String, Integer> perShard = new HashMap<>();
+        for (String plate : plates(100_000)) {
+            perShard.merge(store.shardOf(plate), 1, Integer::sum);
+        }
+
+        assertEquals(8, perShard.size());
+        double mean = 100_000 / 8.0;
+        perShard.forEach((shard, count) ->
+                assertTrue(Math.abs(count - mean) < mean * 0.15, shard + " has " + count + " plates, expected about " + mean));
+    }
+
+    @Test
+    void testResizingMovesOnlyTheKeysThatMustMove() {
+        ShardedRatingStore store = store(8, Map.of());
+        List<String> plates = plates(100_000);
+        Map<String, String> before = owners(store, plates);
+
+        store.addShard("shard-8", new InMemoryRatingStore());
+        Map<String, String> afterAdd = owners(store, plates);
+        int moved = 0;
+        for (String plate : plates) {
+            if (!before.get(plate).equals(afterAdd.get(plate))) {
+                assertEquals("shard-8", afterAdd.get(plate), plate + " moved between two old shards");
+                moved++;
+            }
+        }
+        double expected = plates.size() / 9.0;
+        assertTrue(Math.abs(moved - expected) < expected * 0.15, moved + " plates moved, expected about " + expected);
+
+        store.removeShard("shard-3");
+        Map<String, String> afterRemove = owners(store, plates);
+        for (String plate : plates) {
+            if (!afterAdd.get(plate).equals(afterRemove.get(plate))) {
+                assertEquals("shard-3", afterAdd.get(plate), plate + " moved but wasn't on the removed shard");
+            }
+        }
+        assertFalse(afterRemove.containsValue("shard-3"));
+    }
+
+    @Test
+    void testRatingsAndAggregatesSurviveRebalancing() {
+        ShardedRatingStore store = store(3, Map.of());
+        List<String> plates = plates(500);
+        List<Rating> batch = new ArrayList<>();
+        for (String plate : plates) {
+            batch.add(Rating.builder().plate(plate).stars(4).idempotencyKey(plate + "-1").submittedAt(1).build());
+            batch.add(Rating.builder().plate(plate).stars(2).idempotencyKey(plate + "-2").submittedAt(2).build());
+            if (batch.size() >= RatingStore.MAX_BATCH_SIZE - 1) {
+                assertTrue(store.writeBatch(batch).isEmpty());
+                batch.clear();
+            }
+            store.writeAggregate(plate, "node-a", counts(2, 6));
+        }
+        assertTrue(store.writeBatch(batch).isEmpty());
+
+        Map<String, String> before = owners(store, plates);
+        InMemoryRatingStore added = new InMemoryRatingStore();
+        int moved = store.addShard("shard-3", added);
+        assertEquals(plates.stream().filter(plate -> !store.shardOf(plate).equals(before.get(plate))).count(), moved);
+        assertEquals(moved, added.ratedPlates().size());
+        assertAllReadable(store, plates);
+
+        store.removeShard("shard-0");
+        assertAllReadable(store, plates);
+        assertEquals(Set.copyOf(plates), store.ratedPlates());
+    }
+
+    @Test
+    void testLastCopyOnlyHasThePlatesWrittenMeanwhile() {
+        List<String> plates = plates(200);
+        // The same shards plus the one joining, to find a plate that will move to it
+        ShardedRatingStore after = store(4, Map.of());
+        String writtenMeanwhile = plates(1_000).stream()
+                .filter(plate -> !plates.contains(plate) && after.shardOf(plate).equals("shard-3"))
+                .findFirst()
+                .orElseThrow();
+
+        AtomicReference<ShardedRatingStore> sharded = new AtomicReference<>();
+        Map<String, Integer> scans = new ConcurrentHashMap<>();
+        Map<String, RatingStore> stores = new LinkedHashMap<>();
+        for (int i = 0; i < 3; i++) {
+            String name = "shard-" + i;
+            stores.put(name, new InMemoryRatingStore() {
+                @Override
+                public Set<String> ratedPlates() {
+                    // A write landing while the first copy is under way
+                    if (scans.merge(name, 1, Integer::sum) == 1 && name.equals("shard-0")) {
+                        sharded.get().writeBatch(List.of(rating(writtenMeanwhile, "meanwhile")));
+                    }
+                    return super.ratedPlates();
+                }
+            });
+        }
+        ShardedRatingStore store = new ShardedRatingStore(stores, 128, Map.of(), new NumberPlateValidationFn());
+        sharded.set(store);
+        plates.forEach(plate -> store.writeBatch(List.of(rating(plate, "first"))));
+
+        store.addShard("shard-3", new InMemoryRatingStore());
+
+        // Each shard was scanned once, the last copy only took the plate written meanwhile
+        assertEquals(Map.of("shard-0", 1, "shard-1", 1, "shard-2", 1), scans);
+        assertEquals("shard-3", store.shardOf(writtenMeanwhile));
+        assertEquals(1, store.findByPlate(writtenMeanwhile).size());
+        plates.forEach(plate -> assertEquals(1, store.findByPlate(plate).size(), plate));
+    }
+
+    @Test
+    void testChangedShardsAreRefusedUnlessRebalanced() {
+        Map<String, RatingStore> stores = new LinkedHashMap<>();
+        for (int i = 0; i < 3; i++) {
+            stores.put("shard-" + i, new InMemoryRatingStore());
+        }
+        ShardedRatingStore store = open(stores, false, name -> fail("Opened " + name));
+        List<String> plates = plates(500);
+        plates.forEach(plate -> store.writeBatch(List.of(rating(plate, "first"))));
+        assertEquals(Set.of("shard-0", "shard-1", "shard-2"), stores.get("shard-1").readShardNames());
+
+        // shard-2 swapped for shard-3 in config
+        Map<String, RatingStore> changed = new LinkedHashMap<>();
+        changed.put("shard-0", stores.get("shard-0"));
+        changed.put("shard-1", stores.get("shard-1"));
+        changed.put("shard-3", new InMemoryRatingStore());
+        assertThrows(IllegalStateException.class, () -> open(changed, false, name -> fail("Opened " + name)));
+
+        ShardedRatingStore rebalanced = open(changed, true, name -> stores.get(name));
+        plates.forEach(plate -> {
+            assertFalse(rebalanced.shardOf(plate).equals("shard-2"), plate);
+            assertEquals(1, rebalanced.findByPlate(plate).size(), plate);
+        });
+        assertEquals(Set.of("shard-0", "shard-1", "shard-3"), changed.get("shard-3").readShardNames());
+        // Opens as it is from now on
+        open(changed, false, name -> fail("Opened " + name));
+    }
+
+    @Test
+    void testStateAffinityKeepsAStateOnItsShards() {
+        Map<String, List<String>> stateShards = ShardedRatingStore.parseStateShards("MH=shard-0|shard-1");
+        ShardedRatingStore store = store(4, stateShards);
+        Set<String> mhShards = new HashSet<>();
+        Set<String> otherShards = new HashSet<>();
+        for (String plate : plates(2_000)) {
+            (plate.startsWith("MH") ? mhShards : otherShards).add(store.shardOf(plate));
+        }
+
+        assertEquals(Set.of("shard-0", "shard-1"), mhShards);
+        assertEquals(Set.of("shard-0", "shard-1", "shard-2", "shard-3"), otherShards);
+
+        // Once a state's shards have all left, its plates go back to every shard
+        store.removeShard("shard-0");
+        store.removeShard("shard-1");
+        mhShards.clear();
+        plates(2_000).stream().filter(plate -> plate.startsWith("MH")).forEach(plate -> mhShards.add(store.shardOf(plate)));
+        assertEquals(Set.of("shard-2", "shard-3"), mhShards);
+    }
+
+    private static void assertAllReadable(ShardedRatingStore store, List<String> plates) {
+        for (String plate : plates) {
+            assertEquals(2, store.findByPlate(plate).size(), plate);
+            assertEquals(2, store.readAggregate(plate).count(), plate);
+        }
+    }
+
+    private static ShardedRatingStore open(Map<String, RatingStore> shards, boolean rebalance,
+            Function<String, RatingStore> open) {
+        return ShardedRatingStore.open(shards, 128, Map.of(), new NumberPlateValidationFn(), rebalance, open);
+    }
+
+    private static Rating rating(String plate, String key) {
+        return Rating.builder().plate(plate).stars(3).idempotencyKey(key).submittedAt(1).build();
+    }
+
+    private static ShardedRatingStore store(int shards, Map<String, List<String>> stateShards) {
+        Map<String, RatingStore> stores = new LinkedHashMap<>();
+        for (int i = 0; i < shards; i++) {
+            stores.put("shard-" + i, new InMemoryRatingStore());
+        }
+        return new ShardedRatingStore(stores, 128, stateShards, new NumberPlateValidationFn());
+    }
+
+    private static Map<String, String> owners(ShardedRatingStore store, List<String> plates) {
+        Map<String, String> owners = new HashMap<>();
+        plates.forEach(plate -> owners.put(plate, store.shardOf(plate)));
+        return owners;
+    }
+
+    /*
+     * Plates in series, like a real registry hands them out, so neighbouring plates differ only in their last digits
+     */
+    private static List<String> plates(int count) {
+        List<String> plates = new ArrayList<>(count);
+        for (int i = 0; plates.size() < count; i++) {
+            String state = STATES[i % STATES.length];
+            int series = i / STATES.length;
+            plates.add(String.format("%s%02d%c%c%04d", state, 1 + series / 10_000 % 50,
+                    (char) ('A' + series / 500_000 % 26), (char) ('A' + series / 10_000 / 50 % 26), series % 10_000));
+        }
+        return plates;
+    }
+
+    private static RatingAggregate.NodeCounts counts(long count, long sum) {
+        return RatingAggregate.NodeCounts.builder()
+                .count(count)
+                .sum(sum)
+                .sumOfSquares(sum * sum)
+                .histogram(new long[RatingAggregate.MAX_STARS])
+                .build();
+    }
+}